@@ -0,0 +1,166 @@
+package at.willhaben.jdbcproxy.driver;
+
+import at.willhaben.jdbcproxy.server.avro.ResultFormat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The protocol features and server settings which apply to a connection, as negotiated during authentication.
+ * <p>
+ * The driver lists the features it supports in the AuthenticationRequestV2, and the server replies with those
+ * to be used plus some of its settings (see messages.avdl). A setting which the server did not provide (eg
+ * because it is older than this driver) has a default compatible with such servers.
+ * </p>
+ */
+class Capabilities {
+    static final String PROTOCOL_VERSION = "protocol.version";
+    static final String FORMATS = "formats"; // ResultFormat values
+    // names of compressions in order of preference; the server returns the one to be used
+    static final String COMPRESSION = "compression";
+    static final String ENCODINGS = "encodings"; // optional encodings of result values, eg "dictionary"
+    static final String STREAMING = "streaming"; // results can be returned via a cursor, in batches
+    static final String LAZY_METADATA = "metadata.lazy"; // schemas, tables and columns are fetched on demand
+    static final String METADATA_VERSION = "metadata.version"; // metadata is only sent when changed
+    static final String METADATA_INVALIDATION = "metadata.invalidation"; // server reports schema changes
+    static final String MAX_BATCH_SIZE = "batch.max";
+    static final String MAX_ROWS = "rows.max";
+    static final String QUERY_TIMEOUT = "query.timeout.seconds";
+    static final String KEEPALIVE_INTERVAL = "keepalive.seconds";
+
+    static final int CURRENT_PROTOCOL_VERSION = 2;
+
+    // Used until authentication has completed
+    static final Capabilities NONE = new Capabilities(Map.of());
+
+    private static final int DEFAULT_KEEPALIVE_SECS = 10;
+
+    private final Map<String, String> settings;
+
+    Capabilities(Map<String, String> settings) {
+        this.settings = settings;
+    }
+
+    // Values of the compression parameter in the JDBC URL, and the compressions requested for each
+    private static final Map<String, String> COMPRESSION_PREFERENCES = Map.of(
+            "none", "",
+            "fast", "deflate-fast,deflate-best",
+            "best", "deflate-best,deflate-fast");
+
+    /**
+     * Return the features this driver supports, for the AuthenticationRequestV2.
+     *
+     * @param compression is "none", "fast" (less CPU) or "best" (fewer bytes, eg for slow links)
+     */
+    static Map<String, String> ofClient(String compression) {
+        var preferences = COMPRESSION_PREFERENCES.get(compression);
+        if (preferences == null) {
+            throw new IllegalArgumentException("invalid compression: " + compression);
+        }
+
+        return Map.of(
+                PROTOCOL_VERSION, String.valueOf(CURRENT_PROTOCOL_VERSION),
+                FORMATS, ResultFormat.COLUMNS.name() + "," + ResultFormat.ROWS.name(),
+                COMPRESSION, preferences,
+                ENCODINGS, "dictionary,decimal,temporal,lob",
+                STREAMING, "true",
+                LAZY_METADATA, "true",
+                METADATA_VERSION, "true",
+                METADATA_INVALIDATION, "true");
+    }
+
+    int getProtocolVersion() {
+        return getInt(PROTOCOL_VERSION, 0);
+    }
+
+    /**
+     * Return true if the server accepts SelectRequestV2, ie applies the statement's max-rows and query-timeout.
+     */
+    boolean isSelectRequestV2() {
+        return getProtocolVersion() >= 2;
+    }
+
+    /**
+     * Return the most efficient result format supported by the server.
+     */
+    ResultFormat getResultFormat() {
+        return split(settings.get(FORMATS)).contains(ResultFormat.COLUMNS.name())
+                ? ResultFormat.COLUMNS
+                : ResultFormat.ROWS;
+    }
+
+    /**
+     * Return the name of the compression applied to large responses (empty if none).
+     */
+    String getCompression() {
+        return settings.getOrDefault(COMPRESSION, "");
+    }
+
+    /**
+     * Return true if the server can return results via a cursor (see SelectRequestV2.batchSize).
+     */
+    boolean isStreaming() {
+        return Boolean.parseBoolean(settings.getOrDefault(STREAMING, "false"));
+    }
+
+    /**
+     * Return true if the server supports SchemasRequest, TablesRequest and ColumnsRequest, rather than only
+     * returning all metadata at once via MetaDataRequest.
+     */
+    boolean isLazyMetaData() {
+        return Boolean.parseBoolean(settings.getOrDefault(LAZY_METADATA, "false"));
+    }
+
+    /**
+     * Return true if the server supports VersionedMetaDataRequest, ie can tell whether metadata stored by an
+     * earlier connection is still valid.
+     */
+    boolean isMetaDataVersion() {
+        return Boolean.parseBoolean(settings.getOrDefault(METADATA_VERSION, "false"));
+    }
+
+    /**
+     * Return the max number of rows the server returns per batch (0 if unknown).
+     */
+    int getMaxBatchSize() {
+        return getInt(MAX_BATCH_SIZE, 0);
+    }
+
+    /**
+     * Return the max number of rows the server returns for a query (0 if unknown).
+     */
+    int getMaxRows() {
+        return getInt(MAX_ROWS, 0);
+    }
+
+    /**
+     * Return the max time in seconds that the server allows a query to run (0 if unknown).
+     */
+    int getQueryTimeoutSecs() {
+        return getInt(QUERY_TIMEOUT, 0);
+    }
+
+    /**
+     * Return the interval in seconds at which keepalive pings should be sent (0 means never).
+     */
+    int getKeepAliveSecs() {
+        return getInt(KEEPALIVE_INTERVAL, DEFAULT_KEEPALIVE_SECS);
+    }
+
+    private int getInt(String key, int defaultValue) {
+        var value = settings.get(key);
+        try {
+            return (value == null) ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static List<String> split(String value) {
+        if (value == null || value.isEmpty()) {
+            return List.of();
+        }
+        return Arrays.asList(value.split(","));
+    }
+}
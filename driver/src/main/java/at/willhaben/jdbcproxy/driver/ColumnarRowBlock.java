@@ -0,0 +1,157 @@
+package at.willhaben.jdbcproxy.driver;
+
+import at.willhaben.jdbcproxy.server.avro.ColumnVector;
+import at.willhaben.jdbcproxy.server.avro.LobValue;
+import at.willhaben.jdbcproxy.server.avro.RowBatch;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * A block of rows received in columnar format (see RowBatch in messages.avdl).
+ * <p>
+ * Numeric columns are decoded into primitive arrays, so no object is allocated per cell until the
+ * value is actually read. For dictionary-encoded columns, all cells with the same value share one String.
+ * </p>
+ */
+class ColumnarRowBlock implements RowBlock {
+    private static final DatumReader<LobValue> LOB_READER = new SpecificDatumReader<>(LobValue.class);
+
+    private final int rowCount;
+    private final Column[] columns;
+
+    ColumnarRowBlock(RowBatch batch) throws ProxyError {
+        this.rowCount = batch.getRowCount();
+        this.columns = new Column[batch.getColumns().size()];
+        for (int i = 0; i < columns.length; ++i) {
+            columns[i] = decode(batch.getColumns().get(i), rowCount);
+        }
+    }
+
+    @Override
+    public int size() {
+        return rowCount;
+    }
+
+    @Override
+    public Object get(int row, int column) {
+        if (column >= columns.length) {
+            return null;
+        }
+        return columns[column].get(row);
+    }
+
+    private static Column decode(ColumnVector vector, int rowCount) throws ProxyError {
+        var nulls = toBitSet(vector.getNulls());
+        try {
+            switch (vector.getKind()) {
+                case LONG: {
+                    var decoder = toDecoder(vector.getValues());
+                    var values = new long[rowCount];
+                    for (int row = 0; row < rowCount; ++row) {
+                        if (!nulls.get(row)) {
+                            values[row] = decoder.readLong();
+                        }
+                    }
+                    return row -> nulls.get(row) ? null : values[row];
+                }
+
+                case DOUBLE: {
+                    var decoder = toDecoder(vector.getValues());
+                    var values = new double[rowCount];
+                    for (int row = 0; row < rowCount; ++row) {
+                        if (!nulls.get(row)) {
+                            values[row] = decoder.readDouble();
+                        }
+                    }
+                    return row -> nulls.get(row) ? null : values[row];
+                }
+
+                case BOOLEAN: {
+                    var values = toBitSet(vector.getValues());
+                    return row -> nulls.get(row) ? null : values.get(row);
+                }
+
+                case DECIMAL: {
+                    var decoder = toDecoder(vector.getValues());
+                    var values = new BigDecimal[rowCount];
+                    ByteBuffer unscaled = null;
+                    for (int row = 0; row < rowCount; ++row) {
+                        if (!nulls.get(row)) {
+                            int scale = decoder.readInt();
+                            unscaled = decoder.readBytes(unscaled);
+                            values[row] = new BigDecimal(new BigInteger(unscaled.array(), 0, unscaled.limit()), scale);
+                        }
+                    }
+                    return row -> values[row];
+                }
+
+                case LOB: {
+                    var decoder = toDecoder(vector.getValues());
+                    var values = new LobValue[rowCount];
+                    for (int row = 0; row < rowCount; ++row) {
+                        if (!nulls.get(row)) {
+                            values[row] = LOB_READER.read(null, decoder);
+                        }
+                    }
+                    return row -> values[row];
+                }
+
+                case DICTIONARY: {
+                    var dictionary = vector.getStrings();
+                    var decoder = toDecoder(vector.getValues());
+                    var values = new String[rowCount];
+                    for (int row = 0; row < rowCount; ++row) {
+                        if (!nulls.get(row)) {
+                            int index = decoder.readInt();
+                            if (index < 0 || index >= dictionary.size()) {
+                                throw new ProxyError("Malformed column data received from proxyserver");
+                            }
+                            values[row] = dictionary.get(index);
+                        }
+                    }
+                    return row -> values[row];
+                }
+
+                default: {
+                    var strings = vector.getStrings();
+                    var values = new String[rowCount];
+                    int next = 0;
+                    for (int row = 0; row < rowCount; ++row) {
+                        if (!nulls.get(row)) {
+                            values[row] = strings.get(next++);
+                        }
+                    }
+                    return row -> values[row];
+                }
+            }
+        } catch(IOException e) {
+            throw new ProxyError("Malformed column data received from proxyserver", e);
+        }
+    }
+
+    private static BinaryDecoder toDecoder(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return DecoderFactory.get().binaryDecoder(
+                    buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), null);
+        }
+        var bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return DecoderFactory.get().binaryDecoder(bytes, null);
+    }
+
+    private static BitSet toBitSet(ByteBuffer buffer) {
+        return BitSet.valueOf(buffer.duplicate());
+    }
+
+    private interface Column {
+        Object get(int row);
+    }
+}
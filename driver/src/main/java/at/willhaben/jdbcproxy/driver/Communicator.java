@@ -1,28 +1,36 @@
 package at.willhaben.jdbcproxy.driver;
 
+import at.willhaben.jdbcproxy.server.avro.CancelRequest;
+import at.willhaben.jdbcproxy.server.avro.CancelResponse;
+import at.willhaben.jdbcproxy.server.avro.CloseRequest;
 import at.willhaben.jdbcproxy.server.avro.ErrorResponse;
-import at.willhaben.jdbcproxy.server.avro.Request;
-import at.willhaben.jdbcproxy.server.avro.Response;
-import org.apache.avro.io.*;
-import org.apache.avro.specific.SpecificDatumReader;
-import org.apache.avro.specific.SpecificDatumWriter;
 import org.apache.avro.specific.SpecificRecord;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
  * Handle the low-level details of exchanging data across the network with the remote jdbcauditproxy server.
+ * <p>
+ * Each instance represents one logical connection ("channel"); the network connection itself may be shared with
+ * other instances (see Multiplexer).
+ * </p>
  */
 public class Communicator {
-    private static final String EXCEPTION_SOCKET_CLOSED = "Failed to read data from proxyserver: socket closed";
-    private static final String EXCEPTION_UNKNOWN = "Failed to read data from proxyserver: cause unknown";
+    private final Multiplexer multiplexer;
+    private final int channel;
+    private final int timeoutMillis; // max time to wait for a response (0 means forever)
 
-    private final Socket socket;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile long cancelToken; // provided by the server on authentication; zero if not supported
+    private volatile boolean partialResults; // accept the rows read so far when a query times out on the server
+    private volatile Capabilities capabilities = Capabilities.NONE; // negotiated on authentication
 
-    public Communicator(Socket socket) {
-        this.socket = socket;
+    Communicator(Multiplexer multiplexer, int channel, int timeoutMillis) {
+        this.multiplexer = multiplexer;
+        this.channel = channel;
+        this.timeoutMillis = timeoutMillis;
     }
 
     synchronized
@@ -38,77 +46,103 @@ public class Communicator {
             System.err.println(String.format(
                     "failed request of type %s -> %s: %s",
                     out.getClass().getName(), expectedResponse.getName(), e.getMessage()));
-            try {
-                this.close();
-            } catch(IOException e2) {
-                // ignore - we are already throwing an exception
-            }
+            this.close();
             throw e;
         }
     }
 
-    private <T extends SpecificRecord> T doSend(SpecificRecord out, Class<T> expectedResponse) throws ProxyError {
-        Request request = Request.newBuilder().setRequest(out).build();
-        try {
-            serializeAvroRequest(request, socket.getOutputStream());
-            var response = deserializeAvroResponse(Response.class, socket).getResponse();
-            if (response instanceof ErrorResponse) {
-                ErrorResponse errorResponse = (ErrorResponse) response;
-                throw new ProxyError(errorResponse.getMessage());
-            }
-            return expectedResponse.cast(response);
-        } catch(IOException e) {
-            throw new ProxyError("Unknown error: " + e.getMessage(), e);
+    private <T extends SpecificRecord> T doSend(SpecificRecord out, Class<T> expectedResponse)
+            throws ProxyError, ConnectionClosedError {
+        var response = multiplexer.exchange(channel, out, timeoutMillis);
+        if (response instanceof ErrorResponse) {
+            ErrorResponse errorResponse = (ErrorResponse) response;
+            throw new ProxyError(errorResponse.getMessage());
         }
+        return expectedResponse.cast(response);
     }
 
-    void close() throws IOException {
-        if (socket != null) {
-            socket.close();
-        }
+    /**
+     * Set the listener for schema changes reported by the server (see MetaDataInvalidation); it is invoked by
+     * the thread reading responses, so must not block.
+     */
+    void setInvalidationListener(Consumer<List<String>> listener) {
+        multiplexer.setInvalidationListener(channel, listener);
     }
 
-    boolean isClosed() {
-        return socket == null || socket.isClosed();
+    void setCancelToken(long cancelToken) {
+        this.cancelToken = cancelToken;
+    }
+
+    void setPartialResults(boolean partialResults) {
+        this.partialResults = partialResults;
+    }
+
+    boolean isPartialResults() {
+        return partialResults;
+    }
+
+    /**
+     * Apply the settings negotiated on authentication; the keepalive interval applies to the whole network
+     * connection, but is the same for all channels to the same server.
+     */
+    void setCapabilities(Capabilities capabilities) {
+        this.capabilities = capabilities;
+        multiplexer.setKeepAliveInterval(capabilities.getKeepAliveSecs());
+    }
+
+    Capabilities getCapabilities() {
+        return capabilities;
     }
 
-    void serializeAvroRequest(SpecificRecord request, OutputStream target) throws ProxyError {
-        DatumWriter<SpecificRecord> writer = new SpecificDatumWriter<>(request.getSchema());
-        Encoder encoder = EncoderFactory.get().binaryEncoder(target, null);
+    /**
+     * Return true if the server supports feature negotiation (see AuthenticationRequestV2).
+     */
+    boolean isNegotiating() {
+        return multiplexer.isNegotiating();
+    }
+
+    /**
+     * Ask the server to cancel the statement currently being executed on this connection.
+     * <p>
+     * This is typically invoked by a different thread than the one waiting for the results, and while method
+     * send holds the lock. The request is therefore sent on a new channel, identifying this one via the
+     * secret cancel token.
+     * </p>
+     *
+     * @return false if no statement was running
+     */
+    boolean cancel() throws ProxyError {
+        if (cancelToken == 0) {
+            throw new ProxyError("Server does not support cancelling statements");
+        }
+
+        SpecificRecord response;
         try {
-            writer.write(request, encoder);
-            encoder.flush();
-            target.flush();
-        } catch (IOException e) {
-            throw new ProxyError("Serialization error:" + e.getMessage());
+            var request = CancelRequest.newBuilder().setCancelToken(cancelToken).build();
+            response = multiplexer.exchange(multiplexer.newChannelId(), request, timeoutMillis);
+        } catch (ConnectionClosedError e) {
+            throw new ProxyError("Unable to cancel statement: connection closed");
+        }
+
+        if (response instanceof ErrorResponse) {
+            throw new ProxyError(((ErrorResponse) response).getMessage());
         }
+        return ((CancelResponse) response).getCancelled();
     }
 
-    <T extends SpecificRecord> T deserializeAvroResponse(Class<T> clazz, Socket socket) throws ProxyError {
-        DatumReader<T> reader = new SpecificDatumReader<>(clazz);
-        try {
-            if (socket.isClosed()) {
-                throw new ProxyError(EXCEPTION_SOCKET_CLOSED);
-            }
-
-            var inputStream = socket.getInputStream();
-            if (inputStream == null) {
-                throw new ProxyError(EXCEPTION_SOCKET_CLOSED);
-            }
-
-            // Read the object. Note that a max read timeout is set in class ProxyDriver when the
-            // socket is created..
-            Decoder decoder = DecoderFactory.get().directBinaryDecoder(socket.getInputStream(), null);
-            return reader.read(null, decoder);
-        } catch (IOException e) {
-            var msg = e.getMessage();
-            if (msg != null) {
-                throw new ProxyError("Failed to read data from proxyserver: " + msg);
-            } else if (socket.isClosed()) {
-                throw new ProxyError(EXCEPTION_SOCKET_CLOSED);
-            } else {
-                throw new ProxyError(EXCEPTION_UNKNOWN);
-            }
+    /**
+     * Close this channel; the server releases all resources held for it once any request in progress completes.
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
         }
+        multiplexer.setInvalidationListener(channel, null);
+        multiplexer.post(channel, new CloseRequest());
+        multiplexer.releaseChannel();
+    }
+
+    boolean isClosed() {
+        return closed.get() || multiplexer.isClosed();
     }
 }
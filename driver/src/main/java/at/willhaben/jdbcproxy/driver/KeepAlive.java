@@ -9,41 +9,70 @@ import java.time.Duration;
  * A simple "background task" which sends a "PingRequest" message to the server every N seconds in order
  * to ensure that the socket between client and server is not auto-closed due to inactivity.
  * <p>
- * Ideally this feature could be configured server-side, either to set the interval or to disable this
- * completely if not needed. However the current client/server protocol doesn't have the ability to
- * return such "connection settings" - ie the AVRO schema would need updating. Perhaps AuthenticationResponse
- * could be extended with such settings, or new "ConfigurationRequest/ConfigurationResponse" messages could
- * be defined.
+ * The interval is configured server-side and returned in the settings of the AuthenticationResponseV2; an
+ * interval of zero disables the pings. Until the first channel has authenticated, and with servers which
+ * do not provide the setting, the default interval applies.
  * </p>
  * <p>
- * This implementation could be improved to skip keepalives if other messages have been sent via the Communicator.
+ * This implementation could be improved to skip keepalives if other messages have been sent via the Multiplexer.
  * However that is only a small optimisation and possibly not worth it.
  * </p>
+ * <p>
+ * One keepalive is needed per network connection, not per JDBC connection; the pings are sent on channel zero,
+ * which is never used for anything else. As the server answers pings immediately, a response which does not
+ * arrive within the timeout indicates that the connection is broken, and it is closed. A server which predates
+ * framing answers one request at a time, so on such a connection a ping is only sent once the request in
+ * progress (if any) has been answered (see Multiplexer).
+ * </p>
  */
 public class KeepAlive implements Runnable {
-    private static final Duration pollInterval = Duration.ofSeconds(10);
-    private final Communicator communicator;
+    static final int DEFAULT_INTERVAL_SECS = 10;
+
+    // how often to check whether pings have been enabled, when disabled
+    private static final Duration disabledPollInterval = Duration.ofSeconds(10);
+
+    private final Multiplexer multiplexer;
+    private final int timeoutMillis;
     private final PingRequest pingRequest;
 
-    public KeepAlive(Communicator communicator) {
-        this.communicator = communicator;
+    KeepAlive(Multiplexer multiplexer, int timeoutMillis) {
+        this.multiplexer = multiplexer;
+        this.timeoutMillis = timeoutMillis;
         this.pingRequest = new PingRequest();
     }
 
     /**
-     * Send a PingRequest every pollInterval, returning (ie terminating enclosing thread) when the socket
+     * Send a PingRequest every keepalive interval, returning (ie terminating enclosing thread) when the socket
      * to the server is closed.
      */
     @Override
     public void run() {
         for(;;) {
             try {
-                Thread.sleep(pollInterval.toMillis());
-                communicator.send(pingRequest, PingResponse.class);
+                int intervalSecs = multiplexer.getKeepAliveInterval();
+                if (intervalSecs <= 0) {
+                    Thread.sleep(disabledPollInterval.toMillis());
+                    if (multiplexer.isClosed()) {
+                        break;
+                    }
+                    continue;
+                }
+
+                Thread.sleep(Duration.ofSeconds(intervalSecs).toMillis());
+                var response = multiplexer.exchange(0, pingRequest, timeoutMillis);
+                if (!(response instanceof PingResponse)) {
+                    throw new ProxyError("Unexpected response to ping: " + response.getClass().getSimpleName());
+                }
             } catch(InterruptedException e) {
                 // ignore
             } catch(ConnectionClosedError e) {
                 break;
+            } catch(ProxyError e) {
+                if (!multiplexer.isClosed()) {
+                    System.err.println("KeepAlive failed; closing connection:" + e.getMessage());
+                    multiplexer.close();
+                }
+                break;
             } catch(Exception e) {
                 // log and terminate - at worst the keepalive will stop working.
                 System.err.println("KeepAlive received exception:" + e.getMessage());
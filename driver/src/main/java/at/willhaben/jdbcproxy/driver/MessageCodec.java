@@ -0,0 +1,288 @@
+package at.willhaben.jdbcproxy.driver;
+
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.specific.SpecificRecord;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes avro messages on a single connection.
+ * <p>
+ * Each message is sent as a "frame": a header consisting of a flags byte and the length of the payload (as a
+ * 4-byte big-endian int), followed by the avro-encoded payload. This allows a message to be read with a single
+ * bulk read into memory, and a truncated message to be distinguished from a corrupt one.
+ * </p>
+ * <p>
+ * A large response may be sent with flag COMPRESSED when compression has been negotiated (see Capabilities):
+ * the payload is then the length of the avro-encoded message (4-byte big-endian int) followed by the message
+ * compressed in zlib format. Requests are never compressed.
+ * </p>
+ * <p>
+ * Servers which predate framing exchange each message as it is, without a header; a client which supports framing
+ * therefore first sends the PREFACE, which such a server does not understand (see messages.avdl). A codec created
+ * with framed=false reads and writes these unframed messages.
+ * </p>
+ * <p>
+ * Creating a DatumReader/DatumWriter is relatively expensive (the schema is analysed on first use), as is
+ * creating an encoder or decoder with their buffers. An instance of this class therefore creates these once
+ * and reuses them (and the frame buffers) for every message exchanged over the connection.
+ * </p>
+ * <p>
+ * Avro can also read a message into a previously returned object, overwriting its fields. This is only safe
+ * when the caller no longer references the previous message, so it is done only for messages accepted by
+ * the "reusable" predicate (eg replies to a keepalive ping, which are discarded immediately).
+ * </p>
+ */
+class MessageCodec<R extends SpecificRecord, W extends SpecificRecord> {
+    static final int HEADER_SIZE = 5; // flags + length
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    static final int FLAG_COMPRESSED = 1;
+    // Sent by the client before its first frame, and echoed by a server which supports framing
+    static final byte[] PREFACE = {(byte) 0xff, 'J', 'A', 'P'};
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    // Buffers grown beyond this size for a large message are released afterwards, so that an idle
+    // connection does not hold on to a lot of memory
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private final DatumReader<R> reader;
+    private final DatumWriter<W> writer;
+    private final boolean framed;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final FrameBuffer writeBuffer = new FrameBuffer();
+    private final BinaryEncoder encoder;
+    private final Predicate<R> reusable;
+
+    private byte[] readBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private byte[] inflateBuffer; // created when first needed
+    private Inflater inflater; // created when first needed
+    private BinaryDecoder decoder;
+    private R previous; // last message read, if it may be overwritten
+
+    MessageCodec(
+            Class<R> readType,
+            Class<W> writeType,
+            InputStream in,
+            OutputStream out,
+            Predicate<R> reusable) {
+        this(readType, writeType, true, in, out, reusable);
+    }
+
+    MessageCodec(
+            Class<R> readType,
+            Class<W> writeType,
+            boolean framed,
+            InputStream in,
+            OutputStream out,
+            Predicate<R> reusable) {
+        this.reader = new SpecificDatumReader<>(readType);
+        this.writer = new SpecificDatumWriter<>(writeType);
+        this.framed = framed;
+        // Buffered, so that a small frame normally needs just one read from the socket
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = out;
+        this.encoder = EncoderFactory.get().directBinaryEncoder(writeBuffer, null);
+        this.reusable = reusable;
+    }
+
+    /**
+     * Write a message, and flush it to the underlying stream.
+     */
+    void write(W message) throws IOException {
+        writeBuffer.startFrame();
+        writer.write(message, encoder);
+        encoder.flush();
+        if (framed) {
+            writeBuffer.writeFrame(out, 0);
+        } else {
+            writeBuffer.writeMessage(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Read the next message from the stream, blocking until it is available.
+     *
+     * @throws EOFException if the stream ended before the start of a message
+     */
+    R read() throws IOException {
+        if (!framed) {
+            return readUnframed();
+        }
+
+        int flags = readFlags();
+        int length = readFrame();
+        byte[] payload = readBuffer;
+        if (flags == FLAG_COMPRESSED) {
+            length = inflate(length);
+            payload = inflateBuffer;
+        }
+
+        decoder = DecoderFactory.get().binaryDecoder(payload, 0, length, decoder);
+        var message = reader.read(previous, decoder);
+        if (!decoder.isEnd()) {
+            throw new IOException("Malformed message: payload not fully consumed");
+        }
+        if (readBuffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            readBuffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+        if (inflateBuffer != null && inflateBuffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            inflateBuffer = null;
+        }
+
+        previous = reusable.test(message) ? message : null;
+        return message;
+    }
+
+    private R readUnframed() throws IOException {
+        // the end of the stream is only clean before the first byte of a message
+        in.mark(1);
+        if (in.read() < 0) {
+            throw new EOFException("Connection closed");
+        }
+        in.reset();
+
+        decoder = DecoderFactory.get().directBinaryDecoder(in, decoder);
+        R message;
+        try {
+            message = reader.read(previous, decoder);
+        } catch (EOFException e) {
+            throw new IOException("Truncated message", e);
+        }
+        previous = reusable.test(message) ? message : null;
+        return message;
+    }
+
+    /**
+     * Decompress the compressed payload in readBuffer into inflateBuffer, returning the length of the message.
+     */
+    private int inflate(int compressedLength) throws IOException {
+        if (compressedLength < 4) {
+            throw new IOException("Malformed message: compressed payload too short");
+        }
+        int length = ((readBuffer[0] & 0xff) << 24)
+                | ((readBuffer[1] & 0xff) << 16)
+                | ((readBuffer[2] & 0xff) << 8)
+                | (readBuffer[3] & 0xff);
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Malformed message: invalid uncompressed length " + length);
+        }
+
+        if (inflateBuffer == null || inflateBuffer.length < length) {
+            inflateBuffer = new byte[Math.max(length, INITIAL_BUFFER_SIZE)];
+        }
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(readBuffer, 4, compressedLength - 4);
+        try {
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int n = inflater.inflate(inflateBuffer, inflated, length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != length || !inflater.finished()) {
+                throw new IOException("Malformed message: compressed payload does not match its length");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed message: corrupt compressed payload", e);
+        }
+        return length;
+    }
+
+    /**
+     * Read the flags of the next frame.
+     *
+     * @throws EOFException if the stream ended before the start of a message
+     */
+    private int readFlags() throws IOException {
+        int flags = in.read();
+        if (flags < 0) {
+            throw new EOFException("Connection closed");
+        }
+        if (flags != 0 && flags != FLAG_COMPRESSED) {
+            throw new IOException("Malformed message: unsupported flags " + flags);
+        }
+        return flags;
+    }
+
+    /**
+     * Read the rest of the frame (after the flags) into readBuffer, returning the length of the payload.
+     */
+    private int readFrame() throws IOException {
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new IOException("Malformed message: invalid length " + length);
+            }
+            if (length > readBuffer.length) {
+                readBuffer = new byte[length];
+            }
+            in.readFully(readBuffer, 0, length);
+            return length;
+        } catch (EOFException e) {
+            // not a clean end of stream, so not reported as EOFException
+            throw new IOException("Truncated message", e);
+        }
+    }
+
+    /**
+     * A buffer into which a frame is assembled, so that it can be written with a single call.
+     */
+    private static class FrameBuffer extends ByteArrayOutputStream {
+        FrameBuffer() {
+            super(INITIAL_BUFFER_SIZE);
+        }
+
+        /**
+         * Discard the previous frame, and reserve space for the header of the next one.
+         */
+        void startFrame() {
+            if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+                buf = new byte[INITIAL_BUFFER_SIZE];
+            }
+            count = HEADER_SIZE;
+        }
+
+        void writeFrame(OutputStream target, int flags) throws IOException {
+            int length = count - HEADER_SIZE;
+            if (length > MAX_FRAME_SIZE) {
+                throw new IOException("Message too large: " + length + " bytes");
+            }
+            buf[0] = (byte) flags;
+            buf[1] = (byte) (length >>> 24);
+            buf[2] = (byte) (length >>> 16);
+            buf[3] = (byte) (length >>> 8);
+            buf[4] = (byte) length;
+            target.write(buf, 0, count);
+        }
+
+        /**
+         * Write the message without the header of its frame.
+         */
+        void writeMessage(OutputStream target) throws IOException {
+            target.write(buf, HEADER_SIZE, count - HEADER_SIZE);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package at.willhaben.jdbcproxy.driver;
+
+import at.willhaben.jdbcproxy.server.avro.VersionedMetaDataResponse;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps the metadata of a database on disk between connections, so that reconnecting (which DB GUIs do often)
+ * just asks the server whether the metadata has changed (see VersionedMetaDataRequest) rather than downloading
+ * all of it again; on a slow link, that is the difference between an instant and a long wait.
+ * <p>
+ * There is one file per proxy server, database and user, named by a hash of these. The metadata reveals what a
+ * user may see, so the directory is created accessible to its owner only (where the filesystem supports that).
+ * </p>
+ * <p>
+ * Failing to read or write the file is not an error; it just means the metadata is downloaded.
+ * </p>
+ */
+class MetaDataFileCache {
+    static final Path DEFAULT_DIR = Paths.get(System.getProperty("user.home"), ".jdbcauditproxy", "metadata");
+
+    private final Path dir;
+    private final Path file;
+
+    MetaDataFileCache(Path dir, String host, int port, String database, String user) {
+        this.dir = dir;
+        this.file = dir.resolve(hash(host + ":" + port + "/" + database + "/" + user) + ".metadata");
+    }
+
+    /**
+     * Return the metadata stored by an earlier connection, or null if there is none (or it is unreadable).
+     */
+    VersionedMetaDataResponse read() {
+        try {
+            var bytes = Files.readAllBytes(file);
+            var decoder = DecoderFactory.get().binaryDecoder(bytes, null);
+            var stored = new SpecificDatumReader<>(VersionedMetaDataResponse.class).read(null, decoder);
+            return stored.getMetaData().isPresent() ? stored : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            FileLog.log("Unable to read metadata cache " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store the metadata (which must be present) for later connections. The file is replaced atomically, so
+     * concurrent connections never read a partly written file.
+     */
+    void write(VersionedMetaDataResponse metaData) {
+        Path tmp = null;
+        try {
+            createDirectory();
+            tmp = Files.createTempFile(dir, "metadata", ".tmp");
+            try (var out = Files.newOutputStream(tmp)) {
+                var encoder = EncoderFactory.get().binaryEncoder(out, null);
+                new SpecificDatumWriter<>(VersionedMetaDataResponse.class).write(metaData, encoder);
+                encoder.flush();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+        } catch (IOException | RuntimeException e) {
+            FileLog.log("Unable to write metadata cache " + file, e);
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void createDirectory() throws IOException {
+        if (Files.isDirectory(dir)) {
+            return;
+        }
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(dir);
+        }
+    }
+
+    private static String hash(String key) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return String.format("%064x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM supports SHA-256
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package at.willhaben.jdbcproxy.driver;
+
+import at.willhaben.jdbcproxy.server.avro.ErrorResponse;
+import at.willhaben.jdbcproxy.server.avro.MetaDataInvalidation;
+import at.willhaben.jdbcproxy.server.avro.PingResponse;
+import at.willhaben.jdbcproxy.server.avro.Request;
+import at.willhaben.jdbcproxy.server.avro.RequestV2;
+import at.willhaben.jdbcproxy.server.avro.Response;
+import at.willhaben.jdbcproxy.server.avro.ResponseV2;
+import org.apache.avro.specific.SpecificRecord;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A network connection to a proxy server, which carries several logical connections ("channels").
+ * <p>
+ * Each JDBC connection uses its own channel (see class Communicator), so an application with many connections
+ * to the same server (as the same user, to the same database) needs just one socket, one thread to read responses
+ * and one thread to send keepalive pings. Connections of other users or to other databases use other sockets, so
+ * that whatever closes a socket (eg the server's socket lifetime, or an error) only affects connections which
+ * would otherwise have been affected together anyway. Requests on different channels can be in progress at the
+ * same time: the reader thread passes each response to the thread waiting for it, as identified by the requestId.
+ * A keepalive ping or a metadata request therefore does not wait for a long-running query on another channel.
+ * </p>
+ * <p>
+ * The network connection is closed when its last channel is closed.
+ * </p>
+ * <p>
+ * A server which predates framing (see messages.avdl) supports just one logical connection per network connection,
+ * and answers one request at a time, in order. Such a connection ("legacy") is never shared, and its requests are
+ * sent one at a time; each response is matched to the oldest request which has not been answered yet.
+ * </p>
+ */
+class Multiplexer {
+    private static final String EXCEPTION_SOCKET_CLOSED = "Failed to read data from proxyserver: socket closed";
+    private static final String EXCEPTION_UNKNOWN = "Failed to read data from proxyserver: cause unknown";
+
+    // Network connections which can be shared by new channels, by host:port/database/user
+    private static final Map<String, Multiplexer> shared = new HashMap<>(); // guarded by itself
+
+    private final String key; // null when not shared
+    private final Socket socket;
+    private final MessageCodec<ResponseV2, RequestV2> codec; // null when legacy
+    private final MessageCodec<Response, Request> legacyCodec; // null unless legacy
+    private final Object writeLock = new Object();
+    private final Object exchangeLock = new Object(); // serializes the requests of a legacy connection
+    private final Deque<Integer> legacyRequestIds = new ArrayDeque<>(); // awaiting a response (guarded by writeLock)
+    private final Map<Integer, CompletableFuture<SpecificRecord>> pending = new ConcurrentHashMap<>();
+    // Receive the schemas reported as changed, by channel (see MetaDataInvalidation)
+    private final Map<Integer, Consumer<List<String>>> invalidationListeners = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final AtomicInteger nextChannelId = new AtomicInteger();
+
+    private int channels; // number of open channels (guarded by this)
+    private volatile int keepAliveSecs = KeepAlive.DEFAULT_INTERVAL_SECS; // zero means disabled
+    private volatile String closedReason; // null while open
+
+    /**
+     * Open a new channel to the specified server, sharing an existing network connection of the same user and
+     * database when possible.
+     *
+     * @param timeoutMillis is the max time to wait for a response on the new channel (0 means forever)
+     */
+    static Communicator openChannel(String host, int port, String database, String user, int timeoutMillis)
+            throws IOException {
+        var key = host + ":" + port + "/" + database + "/" + user;
+        for (;;) {
+            Multiplexer multiplexer;
+            synchronized (shared) {
+                multiplexer = shared.get(key);
+            }
+
+            if (multiplexer == null) {
+                // connecting may take long, so is not done while holding the lock (which all connections need)
+                var created = connect(host, port, key, timeoutMillis);
+                if (created.key != null) {
+                    synchronized (shared) {
+                        multiplexer = shared.putIfAbsent(key, created);
+                    }
+                } // else a legacy connection, which is not shared
+                if (multiplexer == null) {
+                    multiplexer = created;
+                    multiplexer.startKeepAlive(timeoutMillis);
+                } else {
+                    created.close(); // another thread connected concurrently
+                }
+            }
+
+            try {
+                return multiplexer.openChannel(timeoutMillis);
+            } catch (ConnectionClosedError e) {
+                // closed concurrently (and therefore no longer shared); try again with a new connection
+            }
+        }
+    }
+
+    /**
+     * Connect to the server for a single logical connection, eg a SessionRequest; the connection is not shared, so
+     * it is closed by the caller.
+     */
+    static Multiplexer connect(String host, int port, int timeoutMillis) throws IOException {
+        return connect(host, port, null, timeoutMillis);
+    }
+
+    /**
+     * Connect to the server, and find out whether it supports framing (see messages.avdl). A server which predates
+     * it closes the connection, as it cannot parse the preface; this client then connects again, and sends only
+     * the messages which such a server understands. The key is ignored in that case, as such a connection cannot
+     * be shared.
+     */
+    private static Multiplexer connect(String host, int port, String key, int timeoutMillis) throws IOException {
+        var socket = new Socket(host, port);
+        try {
+            if (exchangePreface(socket, timeoutMillis)) {
+                return new Multiplexer(socket, key, true);
+            }
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+
+        closeQuietly(socket);
+        return new Multiplexer(new Socket(host, port), null, false);
+    }
+
+    /**
+     * Send the preface, and return true if the server echoes it, ie supports framing.
+     *
+     * @throws java.net.SocketTimeoutException if the server does not reply within the timeout (0 means forever)
+     */
+    private static boolean exchangePreface(Socket socket, int timeoutMillis) throws IOException {
+        try {
+            var out = socket.getOutputStream();
+            out.write(MessageCodec.PREFACE);
+            out.flush();
+
+            socket.setSoTimeout(timeoutMillis);
+            var reply = socket.getInputStream().readNBytes(MessageCodec.PREFACE.length);
+            socket.setSoTimeout(0);
+            return Arrays.equals(reply, MessageCodec.PREFACE);
+        } catch (EOFException | SocketException e) {
+            return false; // closed (or reset) by a server which predates framing
+        }
+    }
+
+    /**
+     * Create a connection over a socket on which the preface (if framed) has already been exchanged.
+     */
+    private Multiplexer(Socket socket, String key, boolean framed) throws IOException {
+        this.key = key;
+        this.socket = socket;
+        if (framed) {
+            this.codec = new MessageCodec<>(
+                    ResponseV2.class,
+                    RequestV2.class,
+                    socket.getInputStream(),
+                    socket.getOutputStream(),
+                    r -> r.getResponse() instanceof PingResponse); // keepalive replies are discarded
+            this.legacyCodec = null;
+        } else {
+            this.codec = null;
+            this.legacyCodec = new MessageCodec<>(
+                    Response.class,
+                    Request.class,
+                    false,
+                    socket.getInputStream(),
+                    socket.getOutputStream(),
+                    r -> r.getResponse() instanceof PingResponse);
+        }
+
+        var reader = new Thread(this::readResponses, "jdbcproxy-reader-" + socket.getPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Open a new channel on this connection.
+     */
+    Communicator openChannel(int timeoutMillis) throws ConnectionClosedError {
+        synchronized (this) {
+            if (isClosed()) {
+                throw new ConnectionClosedError();
+            }
+            channels++;
+        }
+        return new Communicator(this, newChannelId(), timeoutMillis);
+    }
+
+    /**
+     * Return a channel id which has not been used before, for a channel which is implicitly closed by the server
+     * after one request (eg a CancelRequest).
+     */
+    int newChannelId() {
+        return nextChannelId.incrementAndGet();
+    }
+
+    /**
+     * Set the listener for schema changes reported on the given channel (null for none). The listener is invoked
+     * by the thread reading responses, so must not block.
+     */
+    void setInvalidationListener(int channel, Consumer<List<String>> listener) {
+        if (listener == null) {
+            invalidationListeners.remove(channel);
+        } else {
+            invalidationListeners.put(channel, listener);
+        }
+    }
+
+    /**
+     * Invoked when a channel has been closed; closes the network connection when no open channels remain.
+     */
+    void releaseChannel() {
+        synchronized (this) {
+            if (--channels > 0) {
+                return;
+            }
+        }
+        close("Connection closed");
+    }
+
+    /**
+     * Send a request and wait for its response.
+     *
+     * @param timeoutMillis is the max time to wait for the response (0 means forever)
+     */
+    SpecificRecord exchange(int channel, SpecificRecord request, int timeoutMillis)
+            throws ProxyError, ConnectionClosedError {
+        if (codec == null) {
+            // as with a server which predates framing, a request waits until the previous one has been answered
+            synchronized (exchangeLock) {
+                return doExchange(channel, request, timeoutMillis);
+            }
+        }
+        return doExchange(channel, request, timeoutMillis);
+    }
+
+    private SpecificRecord doExchange(int channel, SpecificRecord request, int timeoutMillis)
+            throws ProxyError, ConnectionClosedError {
+        int requestId = nextRequestId();
+        var future = new CompletableFuture<SpecificRecord>();
+        pending.put(requestId, future);
+        try {
+            // checked after registering the future, so that a concurrent close cannot be missed
+            if (isClosed()) {
+                throw new ConnectionClosedError();
+            }
+
+            write(channel, requestId, request);
+            if (timeoutMillis > 0) {
+                return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            return future.get();
+        } catch (TimeoutException e) {
+            throw new ProxyError("Timed out waiting for response from proxyserver");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProxyError("Interrupted while waiting for response from proxyserver");
+        } catch (ExecutionException e) {
+            throw (ProxyError) e.getCause();
+        } finally {
+            pending.remove(requestId);
+        }
+    }
+
+    /**
+     * Send a request without waiting for its response (which is discarded).
+     */
+    void post(int channel, SpecificRecord request) {
+        if (isClosed()) {
+            return;
+        }
+
+        try {
+            write(channel, nextRequestId(), request);
+        } catch (ProxyError e) {
+            // ignore - the connection has been closed
+        }
+    }
+
+    void close() {
+        close("Connection closed");
+    }
+
+    /**
+     * Set the interval at which keepalive pings are sent, as specified by the server (zero means never).
+     */
+    void setKeepAliveInterval(int secs) {
+        keepAliveSecs = secs;
+    }
+
+    int getKeepAliveInterval() {
+        return keepAliveSecs;
+    }
+
+    boolean isClosed() {
+        return closedReason != null;
+    }
+
+    /**
+     * Return true if the server supports feature negotiation, ie AuthenticationRequestV2; only a server which
+     * supports framing does.
+     */
+    boolean isNegotiating() {
+        return codec != null;
+    }
+
+    private void close(String reason) {
+        synchronized (this) {
+            if (closedReason != null) {
+                return;
+            }
+            closedReason = reason;
+        }
+
+        if (key != null) {
+            synchronized (shared) {
+                shared.remove(key, this);
+            }
+        }
+
+        closeQuietly(socket);
+
+        // fail all requests still waiting for a response
+        pending.values().forEach(f -> f.completeExceptionally(new ProxyError(reason)));
+    }
+
+    private int nextRequestId() {
+        // zero is reserved for messages relating to the network connection as a whole
+        int id = nextRequestId.incrementAndGet();
+        return (id == 0) ? nextRequestId.incrementAndGet() : id;
+    }
+
+    private void write(int channel, int requestId, SpecificRecord request) throws ProxyError {
+        try {
+            // requests for different channels are sent by different threads
+            synchronized (writeLock) {
+                if (codec != null) {
+                    codec.write(new RequestV2(channel, requestId, request));
+                } else {
+                    legacyCodec.write(new Request(request));
+                    legacyRequestIds.add(requestId);
+                }
+            }
+        } catch (IOException e) {
+            var msg = "Failed to send data to proxyserver: " + e.getMessage();
+            close(msg);
+            throw new ProxyError(msg);
+        }
+    }
+
+    /**
+     * Read responses until the connection is closed, passing each one to the thread waiting for it.
+     */
+    private void readResponses() {
+        try {
+            for (;;) {
+                var envelope = readResponse();
+                var response = envelope.getResponse();
+                if (response instanceof MetaDataInvalidation) {
+                    // sent for a channel, rather than in response to a request
+                    var listener = invalidationListeners.get(envelope.getChannel());
+                    if (listener != null) {
+                        listener.accept(((MetaDataInvalidation) response).getSchemas());
+                    }
+                    continue;
+                }
+
+                if (envelope.getRequestId() == 0) {
+                    // relates to the connection as a whole; the server closes the connection after sending it
+                    var msg = (response instanceof ErrorResponse)
+                            ? ((ErrorResponse) response).getMessage()
+                            : "Unexpected message from proxyserver";
+                    close(msg);
+                    return;
+                }
+
+                var future = pending.get(envelope.getRequestId());
+                if (future != null) {
+                    future.complete((SpecificRecord) response);
+                }
+                // else the requester has given up waiting (or did not want the response)
+            }
+        } catch (EOFException e) {
+            close(EXCEPTION_SOCKET_CLOSED);
+        } catch (IOException | RuntimeException e) {
+            // avro sometimes throws RuntimeExceptions, eg ArrayIndexOutOfBoundsException
+            var msg = e.getMessage();
+            if (msg != null) {
+                close("Failed to read data from proxyserver: " + msg);
+            } else if (socket.isClosed()) {
+                close(EXCEPTION_SOCKET_CLOSED);
+            } else {
+                close(EXCEPTION_UNKNOWN);
+            }
+        }
+    }
+
+    /**
+     * Read the next response; that of a legacy connection is given the requestId of the oldest request which has
+     * not been answered yet, or zero if there is none (eg the ErrorResponse sent before the server closes the
+     * connection).
+     */
+    private ResponseV2 readResponse() throws IOException {
+        if (codec != null) {
+            return codec.read();
+        }
+
+        var response = legacyCodec.read();
+        Integer requestId;
+        synchronized (writeLock) {
+            requestId = legacyRequestIds.poll();
+        }
+        return new ResponseV2(0, (requestId == null) ? 0 : requestId, response.getResponse());
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Start a background thread that sends "keepalive" messages to the server to prevent the client/server
+     * socket from being closed by infrastructure.
+     * <p>
+     * The thread terminates automatically when the connection to the server is closed. The thread is also
+     * marked as "daemon" so it terminates when the application terminates.
+     * </p>
+     */
+    private void startKeepAlive(int timeoutMillis) {
+        var keepAlive = new KeepAlive(this, timeoutMillis);
+        var thread = new Thread(keepAlive, "jdbcproxy-keepalive-" + socket.getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -4,7 +4,6 @@ import at.willhaben.jdbcproxy.server.avro.SessionRequest;
 import at.willhaben.jdbcproxy.server.avro.SessionResponse;
 
 import java.io.IOException;
-import java.net.Socket;
 import java.util.*;
 
 /**
@@ -97,10 +96,10 @@ public class ProxyClient {
             return;
         }
 
-        Socket socket = null;
+        Multiplexer multiplexer = null;
         try {
-            socket = new Socket(host, port);
-            Communicator communicator = new Communicator(socket);
+            multiplexer = Multiplexer.connect(host, port, 0);
+            Communicator communicator = multiplexer.openChannel(0);
             var request = SessionRequest.newBuilder()
                     .setDb(db)
                     .setReason(reason)
@@ -117,12 +116,8 @@ public class ProxyClient {
         } catch(ConnectionClosedError e) {
             System.err.println("Connection terminated by server");
         } finally {
-            if (socket != null) {
-                try {
-                    socket.close();
-                } catch(Exception e) {
-                    // ignore
-                }
+            if (multiplexer != null) {
+                multiplexer.close();
             }
         }
     }
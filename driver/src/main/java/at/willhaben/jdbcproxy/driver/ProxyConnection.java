@@ -2,11 +2,16 @@ package at.willhaben.jdbcproxy.driver;
 
 import at.willhaben.jdbcproxy.server.avro.MetaDataRequest;
 import at.willhaben.jdbcproxy.server.avro.MetaDataResponse;
+import at.willhaben.jdbcproxy.server.avro.SchemasRequest;
+import at.willhaben.jdbcproxy.server.avro.SchemasResponse;
+import at.willhaben.jdbcproxy.server.avro.VersionedMetaDataRequest;
+import at.willhaben.jdbcproxy.server.avro.VersionedMetaDataResponse;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.sql.Connection;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -25,17 +30,45 @@ public class ProxyConnection implements InvocationHandler {
     private static final Properties EMPTY_PROPERTIES = new Properties();
 
     private final Communicator communicator;
-    private ProxyDatabaseMetaData proxyDatabaseMetaData;
+    private final MetaDataFileCache metaDataFileCache; // null if metadata is not kept between connections
+    private volatile ProxyDatabaseMetaData proxyDatabaseMetaData; // discarded by invalidateMetaData
 
     public static Connection of(Communicator communicator) {
+        return of(communicator, null);
+    }
+
+    static Connection of(Communicator communicator, MetaDataFileCache metaDataFileCache) {
         return (Connection) Proxy.newProxyInstance(
                 connectionClassLoader,
                 connectionInterfaces,
-                new ProxyConnection(communicator));
+                new ProxyConnection(communicator, metaDataFileCache));
     }
 
     public ProxyConnection(Communicator communicator) {
+        this(communicator, null);
+    }
+
+    ProxyConnection(Communicator communicator, MetaDataFileCache metaDataFileCache) {
         this.communicator = communicator;
+        this.metaDataFileCache = metaDataFileCache;
+        communicator.setInvalidationListener(this::invalidateMetaData);
+    }
+
+    /**
+     * Discard the metadata of schemas which the server reports as changed. Metadata which was provided all at
+     * once cannot be partly fetched again, so is discarded completely; the next call of getMetaData then fetches
+     * it again.
+     */
+    private void invalidateMetaData(List<String> schemas) {
+        var metaData = proxyDatabaseMetaData;
+        if (metaData == null) {
+            return;
+        }
+        if (metaData.isFetchedOnDemand()) {
+            metaData.invalidate(schemas);
+        } else {
+            proxyDatabaseMetaData = null;
+        }
     }
 
     @Override
@@ -44,15 +77,28 @@ public class ProxyConnection implements InvocationHandler {
 
         if ("getMetaData".equals(methodName)) {
             // Need to cache as at least some tools call this method repeatedly during startup.
-            // The proxy server returns *all* available data in the MetaDataResponse object so there
+            // Older proxy servers return *all* available data in the MetaDataResponse object so there
             // is no point re-fetching it (except possibly to "refresh" - but we just don't support that
-            // except by disconnect and reconnect).
-            if (proxyDatabaseMetaData == null) {
-                var request = new MetaDataRequest();
-                MetaDataResponse response = communicator.send(request, MetaDataResponse.class);
-                proxyDatabaseMetaData =  ProxyDatabaseMetaData.of(response);
+            // except by disconnect and reconnect). Otherwise just the schemas are fetched here, and the
+            // tables and columns as the client asks for them (and are then cached too). When metadata is kept
+            // on disk, all of it is used instead, as it then only crosses the network when changed. Servers which
+            // detect schema changes report them, and the affected metadata is then discarded (see invalidateMetaData).
+            var metaData = proxyDatabaseMetaData;
+            if (metaData == null) {
+                var capabilities = communicator.getCapabilities();
+                if ((metaDataFileCache != null) && capabilities.isMetaDataVersion()) {
+                    metaData = ProxyDatabaseMetaData.of(getVersionedMetaData());
+                } else if (capabilities.isLazyMetaData()) {
+                    var response = communicator.send(new SchemasRequest(), SchemasResponse.class);
+                    metaData = ProxyDatabaseMetaData.of(response, communicator);
+                } else {
+                    var request = new MetaDataRequest();
+                    MetaDataResponse response = communicator.send(request, MetaDataResponse.class);
+                    metaData = ProxyDatabaseMetaData.of(response);
+                }
+                proxyDatabaseMetaData = metaData;
             }
-            return proxyDatabaseMetaData;
+            return metaData;
         }
 
         if ("getCatalog".equals(methodName)) {
@@ -119,4 +165,24 @@ public class ProxyConnection implements InvocationHandler {
         // anything else
         throw new UnsupportedOperationException("Connection." + methodName);
     }
+
+    /**
+     * Return the metadata stored on disk by an earlier connection if the server confirms it is still valid,
+     * else the metadata sent by the server (which is then stored).
+     */
+    private MetaDataResponse getVersionedMetaData() throws ProxyError, ConnectionClosedError {
+        var stored = metaDataFileCache.read();
+        var request = VersionedMetaDataRequest.newBuilder()
+                .setKnownVersion((stored == null) ? null : stored.getVersion())
+                .build();
+        var response = communicator.send(request, VersionedMetaDataResponse.class);
+        if (response.getMetaData().isPresent()) {
+            metaDataFileCache.write(response);
+            return response.getMetaData().get();
+        }
+        if (stored == null) {
+            throw new ProxyError("Server returned no metadata");
+        }
+        return stored.getMetaData().get();
+    }
 }
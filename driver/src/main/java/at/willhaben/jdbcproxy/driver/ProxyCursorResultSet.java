@@ -0,0 +1,99 @@
+package at.willhaben.jdbcproxy.driver;
+
+import at.willhaben.jdbcproxy.server.avro.CloseCursorRequest;
+import at.willhaben.jdbcproxy.server.avro.CloseCursorResponse;
+import at.willhaben.jdbcproxy.server.avro.CursorResponseV2;
+import at.willhaben.jdbcproxy.server.avro.FetchRequest;
+import at.willhaben.jdbcproxy.server.avro.FetchResponseV2;
+import at.willhaben.jdbcproxy.server.avro.ResultBatch;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A jdbc ResultSet whose rows are fetched from a cursor on the proxy server, one batch at a time.
+ * <p>
+ * Only the current batch of rows is held in memory. When the result-set is closed before all rows have
+ * been read then the server is told to release the cursor (and thus its database connection).
+ * </p>
+ */
+class ProxyCursorResultSet extends ProxyMemResultSet {
+    private final int cursorId;
+    private boolean endOfResults;
+
+    /**
+     * Factory for a result-set which initially holds the first batch of rows returned with the cursor.
+     */
+    static ResultSet of(ProxyResultSetMetaData metaData, Communicator communicator, CursorResponseV2 response)
+            throws ProxyError {
+        return wrap(new ProxyCursorResultSet(
+                metaData, communicator, response.getCursorId(), response.getBatch(), response.getTimedOut()));
+    }
+
+    private ProxyCursorResultSet(
+            ProxyResultSetMetaData metaData,
+            Communicator communicator,
+            int cursorId,
+            ResultBatch firstBatch,
+            boolean timedOut) throws ProxyError {
+        super(metaData, toBlock(firstBatch), firstBatch.getEndOfResults(), communicator);
+        this.cursorId = cursorId;
+        this.endOfResults = firstBatch.getEndOfResults();
+        checkTimedOut(timedOut);
+    }
+
+    /**
+     * Report results which the server truncated because the query ran too long via getWarnings, as the rows
+     * read until then are returned rather than an error (see SelectRequestV2.partialResults).
+     */
+    private void checkTimedOut(boolean timedOut) {
+        if (timedOut) {
+            addWarning(ProxyStatement.TIMED_OUT_WARNING);
+        }
+    }
+
+    /**
+     * Return the rows of the batch, which are in columnar format if the server supports that.
+     */
+    private static RowBlock toBlock(ResultBatch batch) throws ProxyError {
+        var columns = batch.getColumns();
+        if (columns.isPresent()) {
+            return new ColumnarRowBlock(columns.get());
+        }
+        return RowBlock.of(ProxyStatement.toResultSetRows(batch.getRows()));
+    }
+
+    @Override
+    void loadNextBlock() throws SQLException {
+        try {
+            var request = FetchRequest.newBuilder().setCursorId(cursorId).build();
+            var response = communicator.send(request, FetchResponseV2.class);
+            var batch = response.getBatch();
+            endOfResults = batch.getEndOfResults();
+            setBlock(toBlock(batch), endOfResults);
+            checkTimedOut(response.getTimedOut());
+        } catch(ProxyError | ConnectionClosedError e) {
+            // the server closes the cursor on error, so there is nothing more to read
+            endOfResults = true;
+            setBlock(RowBlock.EMPTY, true);
+            throw new SQLException("Failed to fetch rows from proxyserver", e);
+        }
+    }
+
+    @Override
+    void onClose() {
+        if (endOfResults) {
+            // cursor has already been closed by the server
+            return;
+        }
+
+        endOfResults = true;
+        try {
+            var request = CloseCursorRequest.newBuilder().setCursorId(cursorId).build();
+            communicator.send(request, CloseCursorResponse.class);
+        } catch(ProxyError | ConnectionClosedError e) {
+            // ignore - the cursor is in any case released when the connection terminates
+            FileLog.log("Unable to close cursor", e);
+        }
+    }
+}
@@ -1,12 +1,20 @@
 package at.willhaben.jdbcproxy.driver;
 
+import at.willhaben.jdbcproxy.server.avro.ColumnsRequest;
+import at.willhaben.jdbcproxy.server.avro.ColumnsResponse;
 import at.willhaben.jdbcproxy.server.avro.DBMetaData;
 import at.willhaben.jdbcproxy.server.avro.MetaDataResponse;
+import at.willhaben.jdbcproxy.server.avro.SchemasRequest;
+import at.willhaben.jdbcproxy.server.avro.SchemasResponse;
 import at.willhaben.jdbcproxy.server.avro.TableColumnMetaData;
 import at.willhaben.jdbcproxy.server.avro.TableMetaData;
+import at.willhaben.jdbcproxy.server.avro.TablesRequest;
+import at.willhaben.jdbcproxy.server.avro.TablesResponse;
+import org.apache.avro.specific.SpecificRecord;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -29,6 +37,15 @@ import java.util.stream.Stream;
  * <p>
  * Invocation of stored-procedures is not supported; only plain SQL queries.
  * </p>
+ * <p>
+ * Older proxy servers provide all tables with all columns up front. Otherwise only the schemas are provided up
+ * front, and the tables of a schema and the columns of tables are fetched when the client first asks for them;
+ * for a large catalog, that is far quicker than fetching everything when the client connects.
+ * </p>
+ * <p>
+ * When the server reports that schemas have changed (see MetaDataInvalidation), the tables and columns fetched
+ * for them are discarded, and fetched again when next needed.
+ * </p>
  */
 @SuppressWarnings("squid:S1192") // sonarqube: some duplicated literals are deliberate, as they have distinct meanings
 public class ProxyDatabaseMetaData implements DatabaseMetaData {
@@ -38,14 +55,165 @@ public class ProxyDatabaseMetaData implements DatabaseMetaData {
         return new ProxyDatabaseMetaData(response.getCatalog(), response.getDatabaseMetaData(), response.getTables());
     }
 
+    /**
+     * Factory for metadata whose tables and columns are fetched on demand.
+     */
+    static ProxyDatabaseMetaData of(SchemasResponse response, Communicator communicator) {
+        return new ProxyDatabaseMetaData(
+                response.getCatalog(),
+                response.getDatabaseMetaData(),
+                response.getSchemas(),
+                response.getTableTypes(),
+                communicator);
+    }
+
     private final String catalog;
     private final String identifierQuoteString;
-    private final List<TableMetaData> tables;
+    private final Communicator communicator; // for fetching tables and columns; null if all were provided up front
+    private List<String> schemas; // null if derived from the tables (guarded by this)
+    private final List<String> tableTypes; // null if derived from the tables
+
+    // Tables fetched so far, by schema; key null holds the tables of all schemas
+    private final Map<String, List<TableMetaData>> tablesBySchema = new HashMap<>();
+    // Tables whose columns have been fetched (see qualifiedName)
+    private final Set<String> tablesWithColumns = new HashSet<>();
+    // Schemas reported as changed, whose tables and columns are to be discarded; added to by the thread reading
+    // responses, which must not wait for the lock of this object (held while fetching from the server)
+    private final Set<String> invalidSchemas = ConcurrentHashMap.newKeySet();
 
     public ProxyDatabaseMetaData(String catalog, DBMetaData dbMetaData, List<TableMetaData> tables) {
+        this(catalog, dbMetaData, null, null, null);
+        tablesBySchema.put(null, tables);
+    }
+
+    private ProxyDatabaseMetaData(
+            String catalog,
+            DBMetaData dbMetaData,
+            List<String> schemas,
+            List<String> tableTypes,
+            Communicator communicator) {
         this.catalog = catalog;
         this.identifierQuoteString = dbMetaData.getIdentifierQuoteString();
-        this.tables = tables;
+        this.schemas = schemas;
+        this.tableTypes = tableTypes;
+        this.communicator = communicator;
+    }
+
+    /**
+     * Return the tables of the given schema (or of all schemas, if null), fetching them from the server if
+     * needed; the returned list may also contain tables of other schemas.
+     */
+    private synchronized List<TableMetaData> getTableList(String schemaName) throws SQLException {
+        discardInvalid();
+        var allTables = tablesBySchema.get(null);
+        if (allTables != null) {
+            return allTables;
+        }
+
+        var tables = tablesBySchema.get(schemaName);
+        if (tables == null) {
+            var request = TablesRequest.newBuilder().setSchemaName(schemaName).setTableName(null).build();
+            tables = send(request, TablesResponse.class).getTables();
+            tablesBySchema.put(schemaName, tables);
+        }
+        return tables;
+    }
+
+    /**
+     * Ensure that the columns of the given tables, which were found by the given schema and table name (null
+     * meaning any), have been fetched from the server.
+     */
+    private synchronized void loadColumns(List<TableMetaData> tables, String schemaName, String tableName)
+            throws SQLException {
+        if (communicator == null || tables.stream().allMatch(t -> tablesWithColumns.contains(qualifiedName(t)))) {
+            return;
+        }
+
+        var request = ColumnsRequest.newBuilder().setSchemaName(schemaName).setTableName(tableName).build();
+        var columnsByTable = new HashMap<String, List<TableColumnMetaData>>();
+        for (var t : send(request, ColumnsResponse.class).getTables()) {
+            columnsByTable.put(qualifiedName(t), t.getColumns());
+        }
+
+        for (var t : tables) {
+            var columns = columnsByTable.get(qualifiedName(t));
+            if (columns != null) {
+                t.setColumns(columns);
+                tablesWithColumns.add(qualifiedName(t));
+            }
+        }
+    }
+
+    /**
+     * Return true if tables and columns are fetched on demand, ie can be fetched again when invalidated.
+     */
+    boolean isFetchedOnDemand() {
+        return communicator != null;
+    }
+
+    /**
+     * Discard the tables and columns of the given schemas (see isFetchedOnDemand); this happens when next
+     * needed, so does not block.
+     */
+    void invalidate(List<String> schemaNames) {
+        invalidSchemas.addAll(schemaNames);
+    }
+
+    /**
+     * Discard the tables and columns of the schemas reported as changed; as new schemas may have been created,
+     * the list of schemas is fetched again too.
+     */
+    private synchronized void discardInvalid() {
+        if (invalidSchemas.isEmpty()) {
+            return;
+        }
+
+        var discarded = new ArrayList<>(invalidSchemas);
+        invalidSchemas.removeAll(discarded);
+        tablesBySchema.remove(null);
+        discarded.forEach(tablesBySchema::remove);
+        tablesWithColumns.removeIf(name -> discarded.stream().anyMatch(schema -> name.startsWith(schema + ".")));
+        schemas = null;
+    }
+
+    private static String qualifiedName(TableMetaData t) {
+        return t.getSchemaName().orElse("") + "." + t.getName();
+    }
+
+    private <T extends SpecificRecord> T send(SpecificRecord request, Class<T> responseType) throws SQLException {
+        try {
+            return communicator.send(request, responseType);
+        } catch(ProxyError | ConnectionClosedError e) {
+            throw new SQLException("Failed to fetch metadata from proxyserver", e);
+        }
+    }
+
+    /**
+     * Return the schemas provided by the server, fetching them again if they were invalidated; null if the schemas
+     * are derived from the tables.
+     */
+    private synchronized List<String> getSchemaList() throws SQLException {
+        discardInvalid();
+        if ((schemas == null) && (communicator != null)) {
+            schemas = send(new SchemasRequest(), SchemasResponse.class).getSchemas();
+        }
+        return schemas;
+    }
+
+    /**
+     * Return the names of all schemas, sorted.
+     */
+    private List<String> getSchemaNames() throws SQLException {
+        var schemas = getSchemaList();
+        if (schemas != null) {
+            return schemas.stream().sorted().collect(Collectors.toUnmodifiableList());
+        }
+        return getTableList(null).stream()
+                .map(TableMetaData::getSchemaName)
+                .map(Optional::get)
+                .distinct()
+                .sorted()
+                .collect(Collectors.toUnmodifiableList());
     }
 
     // ===============================================================
@@ -685,7 +853,7 @@ public class ProxyDatabaseMetaData implements DatabaseMetaData {
         // 3: name
         // 4: type (eg VIEW)
         // 5: remarks
-        List<List<?>> tableNames = tables.stream()
+        List<List<?>> tableNames = getTableList(schemaName).stream()
                 .filter(t -> (catalog == null) || catalog.equals(t.getCatalogName().orElse(null)))
                 .filter(t -> (schemaName == null) || schemaName.equals(t.getSchemaName().orElse(null)))
                 .filter(t -> (tableName == null) || tableName.equals(t.getName()))
@@ -711,12 +879,9 @@ public class ProxyDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public ResultSet getSchemas() throws SQLException {
-        var set = tables.stream()
-                .map(TableMetaData::getSchemaName)
-                .map(Optional::get)
-                .collect(Collectors.toUnmodifiableSet());
-        var values = new ArrayList<>(set);
-        List<List<?>> rows = values.stream().sorted().map(item -> listOf(item, catalog)).collect(Collectors.toUnmodifiableList());
+        List<List<?>> rows = getSchemaNames().stream()
+                .map(item -> listOf(item, catalog))
+                .collect(Collectors.toUnmodifiableList());
 
         // return a result-set with a single schema.
         var metadata = new ProxyResultSetMetaData(
@@ -745,7 +910,9 @@ public class ProxyDatabaseMetaData implements DatabaseMetaData {
      */
     @Override
     public ResultSet getTableTypes() throws SQLException {
-        var set = tables.stream().map(TableMetaData::getType).collect(Collectors.toUnmodifiableSet());
+        var set = (tableTypes != null)
+                ? Set.copyOf(tableTypes)
+                : getTableList(null).stream().map(TableMetaData::getType).collect(Collectors.toUnmodifiableSet());
         var values = new ArrayList<>(set);
         List<List<?>> valuePerRow = values.stream().sorted().map(List::of).collect(Collectors.toUnmodifiableList());
         var metadata = new ProxyResultSetMetaData("tableTypes", List.of("TABLE_TYPE"), List.of(Types.VARCHAR));
@@ -773,11 +940,12 @@ public class ProxyDatabaseMetaData implements DatabaseMetaData {
         var tableName = unescape(tableNamePattern);
         var columnName = unescape(columnNamePattern);
 
-        var matchingTables = tables.stream()
+        var matchingTables = getTableList(schemaName).stream()
                 .filter(t -> (catalog == null) || catalog.equals(t.getCatalogName().orElse(null)))
                 .filter(t -> (schemaName == null) || schemaName.equals(t.getSchemaName().orElse(null)))
                 .filter(t -> (tableName == null) || tableName.equals(t.getName()))
                 .collect(Collectors.toUnmodifiableList());
+        loadColumns(matchingTables, schemaName, tableName);
 
         var coldata = matchingTables.stream()
                 .flatMap(t -> extractColumns(t, columnName))
@@ -1118,12 +1286,7 @@ public class ProxyDatabaseMetaData implements DatabaseMetaData {
 
     @Override
     public ResultSet getSchemas(String catalog, String schemaPattern) throws SQLException {
-        // get unique schemas
-        var schemas = tables.stream()
-                .map(t ->t.getSchemaName())
-                .map(s -> s.get())
-                .collect(Collectors.toUnmodifiableSet());
-        List<List<?>> schemaPerRow = schemas.stream().sorted()
+        List<List<?>> schemaPerRow = getSchemaNames().stream()
                 .map(i -> List.of(i, catalog))
                 .collect(Collectors.toUnmodifiableList());
 
@@ -1,9 +1,11 @@
 package at.willhaben.jdbcproxy.driver;
 
 import at.willhaben.jdbcproxy.server.avro.AuthenticationRequest;
+import at.willhaben.jdbcproxy.server.avro.AuthenticationRequestV2;
 import at.willhaben.jdbcproxy.server.avro.AuthenticationResponse;
+import at.willhaben.jdbcproxy.server.avro.AuthenticationResponseV2;
 
-import java.net.Socket;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.util.HashMap;
 import java.util.Map;
@@ -18,6 +20,22 @@ import java.util.logging.Logger;
  * JDBC connection parameter "timeout_secs" can be used to specify how long the connection
  * to the server should be kept open for - including "0" for no timeout.
  * </p>
+ * <p>
+ * JDBC connection parameter "compression" can be used to have the server compress large responses: "fast"
+ * uses little CPU, while "best" minimises the data transferred (eg when connected via VPN). The default
+ * is "none".
+ * </p>
+ * <p>
+ * Text values of CHAR/VARCHAR columns which the server truncated (see proxy.lobs.inlineTextSize) are returned by
+ * getString and getObject as truncated, with a SQLWarning on the result-set; the complete value is available via
+ * getClob or getCharacterStream. This suits DB GUIs, which display just the start of each value in their result
+ * grid.
+ * </p>
+ * <p>
+ * JDBC connection parameter "metadata_cache" can be set to "true" (or to a directory) to keep the metadata of the
+ * database on disk (by default in ~/.jdbcauditproxy/metadata), so that reconnecting only downloads it again if
+ * it has changed.
+ * </p>
  */
 @SuppressWarnings("unused")
 public class ProxyDriver implements Driver {
@@ -30,6 +48,16 @@ public class ProxyDriver implements Driver {
     // jdbc URL query-parameter that can override the default timeout
     private static final String SOCKET_TIMEOUT_PARAM = "timeout_secs";
 
+    // jdbc URL query-parameter that enables compression of large responses
+    private static final String COMPRESSION_PARAM = "compression";
+    private static final String COMPRESSION_DFLT = "none";
+
+    // jdbc URL query-parameter that requests the rows read so far (plus a warning) when a query times out
+    private static final String PARTIAL_RESULTS_PARAM = "partial_results";
+
+    // jdbc URL query-parameter that keeps metadata on disk between connections: "true" or a directory
+    private static final String METADATA_CACHE_PARAM = "metadata_cache";
+
     static class Target {
         private final String host;
         private final int port;
@@ -45,27 +73,34 @@ public class ProxyDriver implements Driver {
     }
 
     @Override
-    @SuppressWarnings("squid:S2095") // socket is closed by caller, not in this method
     public Connection connect(String url, Properties info) throws SQLException {
         Target target = parseUrl(url);
+        Map<String, String> capabilities;
+        try {
+            capabilities = Capabilities.ofClient(target.params.getOrDefault(COMPRESSION_PARAM, COMPRESSION_DFLT));
+        } catch (IllegalArgumentException e) {
+            throw new SQLException(e.getMessage() + " in url: " + url, e);
+        }
 
         try {
-            Socket socket = new Socket(target.host, target.port);
-            socket.setSoTimeout(1000 *  getSocketTimeoutSecs(target.params));
-
-            Communicator communicator = new Communicator(socket);
-            var request = AuthenticationRequest.newBuilder()
-                    .setUsername(info.getProperty("user"))
-                    .setPassword(info.getProperty("password"))
-                    .setDb(target.database)
-                    .build();
-            var response = communicator.send(request, AuthenticationResponse.class);
+            // The network connection may be shared with other connections of the user to the same database
+            int timeoutMillis = 1000 * getSocketTimeoutSecs(target.params);
+            Communicator communicator = Multiplexer.openChannel(
+                    target.host, target.port, target.database, info.getProperty("user"), timeoutMillis);
+            var response = authenticate(
+                    communicator,
+                    info.getProperty("user"),
+                    info.getProperty("password"),
+                    target.database,
+                    capabilities);
             if (!response.getAccepted()) {
+                communicator.close();
                 throw new SQLException("Authorization failed:" + response.getErrorMessage().orElse("Unknown error"));
             }
-            var conn = ProxyConnection.of(communicator);
-            startKeepAlive(communicator);
-            return conn;
+            communicator.setCancelToken(response.getCancelToken());
+            communicator.setPartialResults(Boolean.parseBoolean(target.params.get(PARTIAL_RESULTS_PARAM)));
+            communicator.setCapabilities(new Capabilities(response.getSettings()));
+            return ProxyConnection.of(communicator, getMetaDataFileCache(target, info.getProperty("user")));
         } catch(SQLException e) {
             throw e;
         } catch (Exception e) {
@@ -73,6 +108,46 @@ public class ProxyDriver implements Driver {
         }
     }
 
+    /**
+     * Authenticate on a new channel. A server which predates feature negotiation is sent an AuthenticationRequest
+     * (without the capabilities), and its response is treated as having no settings.
+     */
+    private static AuthenticationResponseV2 authenticate(
+            Communicator communicator, String user, String password, String database, Map<String, String> capabilities)
+            throws ProxyError, ConnectionClosedError {
+        if (communicator.isNegotiating()) {
+            var request = AuthenticationRequestV2.newBuilder()
+                    .setUsername(user)
+                    .setPassword(password)
+                    .setDb(database)
+                    .setCapabilities(capabilities)
+                    .build();
+            return communicator.send(request, AuthenticationResponseV2.class);
+        }
+
+        var request = AuthenticationRequest.newBuilder()
+                .setUsername(user)
+                .setPassword(password)
+                .setDb(database)
+                .build();
+        var response = communicator.send(request, AuthenticationResponse.class);
+        return AuthenticationResponseV2.newBuilder()
+                .setAccepted(response.getAccepted())
+                .setErrorMessage(response.getErrorMessage().orElse(null))
+                .setCancelToken(0) // such a server does not support cancelling
+                .setSettings(Map.of())
+                .build();
+    }
+
+    private MetaDataFileCache getMetaDataFileCache(Target target, String user) {
+        var dir = target.params.getOrDefault(METADATA_CACHE_PARAM, "false");
+        if (dir.equals("false")) {
+            return null;
+        }
+        var path = dir.equals("true") ? MetaDataFileCache.DEFAULT_DIR : Paths.get(dir);
+        return new MetaDataFileCache(path, target.host, target.port, target.database, user);
+    }
+
     private int getSocketTimeoutSecs(Map<String,String> jdbcParams) {
         var timeoutParam = jdbcParams.get(SOCKET_TIMEOUT_PARAM);
         if (timeoutParam != null) {
@@ -81,21 +156,6 @@ public class ProxyDriver implements Driver {
         return SOCKET_TIMEOUT_SECS_DFLT;
     }
 
-    /**
-     * Start a background thread that sends "keepalive" messages to the server to prevent the client/server
-     * socket from being closed by infrastructure.
-     * <p>
-     * The thread terminates automatically when the connection to the server is closed. The thread is also
-     * marked as "daemon" so it terminates when the application terminates.
-     * </p>
-     */
-    private void startKeepAlive(Communicator communicator) {
-        var keepAlive = new KeepAlive(communicator);
-        var thread = new Thread(keepAlive);
-        thread.setDaemon(true);
-        thread.start();
-    }
-
     // Possibly a suitable regex could extract all the relevant info from the URL in one go,
     // but it would be fairly complex..
     private Target parseUrl(String url) {
@@ -0,0 +1,226 @@
+package at.willhaben.jdbcproxy.driver;
+
+import at.willhaben.jdbcproxy.server.avro.LobRequest;
+import at.willhaben.jdbcproxy.server.avro.LobResponse;
+import at.willhaben.jdbcproxy.server.avro.LobValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.util.Optional;
+
+/**
+ * Emulate the JDBC Blob and Clob classes for a large object of which only a prefix was sent with the results
+ * (see LobValue in messages.avdl); the rest is fetched from the proxy server when (and if) it is read.
+ * <p>
+ * This is implemented as a dynamic InvocationHandler rather than implementing interfaces Blob and Clob because
+ * most of their methods (eg for modifying the value) are irrelevant for the use-cases that this driver is
+ * used for.
+ * </p>
+ */
+class ProxyLob implements InvocationHandler {
+    // Max bytes or chars requested at a time when streaming; larger reads are fetched in chunks of 1MB
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private final Communicator communicator; // null if the value cannot be fetched (eg in-memory results)
+    private final LobValue value;
+    private final boolean binary;
+
+    /**
+     * Factory for a Blob (for binary values) or Clob (for text values).
+     */
+    static Object of(Communicator communicator, LobValue value) {
+        var lob = new ProxyLob(communicator, value);
+        return Proxy.newProxyInstance(
+                ProxyLob.class.getClassLoader(),
+                new Class[]{lob.binary ? Blob.class : Clob.class},
+                lob);
+    }
+
+    private ProxyLob(Communicator communicator, LobValue value) {
+        this.communicator = communicator;
+        this.value = value;
+        this.binary = value.getPrefix() instanceof ByteBuffer;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String methodName = method.getName();
+
+        if ("length".equals(methodName)) {
+            return value.getLength();
+        }
+
+        if ("getBytes".equals(methodName)) {
+            return readBytes((Long) args[0] - 1, (Integer) args[1]);
+        }
+
+        if ("getSubString".equals(methodName)) {
+            return readString((Long) args[0] - 1, (Integer) args[1]);
+        }
+
+        if ("getBinaryStream".equals(methodName) && args == null) {
+            return new LobInputStream();
+        }
+
+        if ("getCharacterStream".equals(methodName) && args == null) {
+            return new LobReader();
+        }
+
+        if ("free".equals(methodName)) {
+            return null; // released on the server when the connection is closed
+        }
+
+        if ("toString".equals(methodName)) {
+            return String.format("%s(length=%d, truncated=%s)",
+                    binary ? "Blob" : "Clob", value.getLength(), value.getTruncated());
+        }
+
+        if ("hashCode".equals(methodName)) {
+            return System.identityHashCode(proxy);
+        }
+
+        if ("equals".equals(methodName)) {
+            return proxy == args[0];
+        }
+
+        throw new UnsupportedOperationException("ProxyLob." + methodName);
+    }
+
+    private byte[] readBytes(long offset, int length) throws SQLException {
+        var result = new byte[clamp(offset, length)];
+        var prefix = ((ByteBuffer) value.getPrefix()).duplicate();
+        int done = 0;
+        if (offset < prefix.remaining()) {
+            prefix.position(prefix.position() + (int) offset);
+            done = Math.min(result.length, prefix.remaining());
+            prefix.get(result, 0, done);
+        }
+        while (done < result.length) {
+            var chunk = (ByteBuffer) fetch(offset + done, Math.min(result.length - done, MAX_CHUNK_SIZE));
+            int n = chunk.remaining();
+            chunk.get(result, done, n);
+            done += n;
+        }
+        return result;
+    }
+
+    private String readString(long offset, int length) throws SQLException {
+        int count = clamp(offset, length);
+        var prefix = (String) value.getPrefix();
+        var result = new StringBuilder(count);
+        if (offset < prefix.length()) {
+            result.append(prefix, (int) offset, (int) Math.min(prefix.length(), offset + count));
+        }
+        while (result.length() < count) {
+            var chunk = fetch(offset + result.length(), Math.min(count - result.length(), MAX_CHUNK_SIZE));
+            result.append((CharSequence) chunk);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Return the number of bytes or chars which can be read at the (zero-based) offset.
+     */
+    private int clamp(long offset, int length) throws SQLException {
+        if (offset < 0 || length < 0) {
+            throw new SQLException("Invalid position or length");
+        }
+        return (int) Math.max(0, Math.min(length, value.getLength() - offset));
+    }
+
+    /**
+     * Fetch part of the value (after the prefix) from the server, returning a non-empty ByteBuffer or String.
+     */
+    private Object fetch(long offset, int length) throws SQLException {
+        if (communicator == null || value.getLobId() == 0) {
+            throw new SQLException("Large object is not available from the proxyserver");
+        }
+
+        var request = LobRequest.newBuilder()
+                .setLobId(value.getLobId())
+                .setOffset(offset)
+                .setLength(length)
+                .build();
+        Optional<Object> data;
+        try {
+            data = communicator.send(request, LobResponse.class).getData();
+        } catch(ProxyError | ConnectionClosedError e) {
+            throw new SQLException("Failed to fetch large object from proxyserver", e);
+        }
+        if (data.isEmpty()) {
+            throw new SQLException(
+                    "Large object no longer available from the proxyserver; please re-execute the query");
+        }
+
+        var chunk = data.get();
+        if ((chunk instanceof ByteBuffer) ? !((ByteBuffer) chunk).hasRemaining() : chunk.toString().isEmpty()) {
+            // cannot happen unless the value has shrunk on the server
+            throw new SQLException("Unexpected end of large object");
+        }
+        return chunk;
+    }
+
+    /**
+     * Reads the value of a Blob, fetching the rest after the prefix in chunks as needed.
+     */
+    private class LobInputStream extends InputStream {
+        private long position;
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (position >= value.getLength()) {
+                return -1;
+            }
+            try {
+                var bytes = readBytes(position, Math.min(length, STREAM_CHUNK_SIZE));
+                System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+                position += bytes.length;
+                return bytes.length;
+            } catch (SQLException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Reads the value of a Clob, fetching the rest after the prefix in chunks as needed.
+     */
+    private class LobReader extends Reader {
+        private long position;
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            if (position >= value.getLength()) {
+                return -1;
+            }
+            try {
+                var text = readString(position, Math.min(length, STREAM_CHUNK_SIZE));
+                text.getChars(0, text.length(), buffer, offset);
+                position += text.length();
+                return text.length();
+            } catch (SQLException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+    }
+}
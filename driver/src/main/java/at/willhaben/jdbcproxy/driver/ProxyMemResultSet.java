@@ -1,20 +1,28 @@
 package at.willhaben.jdbcproxy.driver;
 
+import at.willhaben.jdbcproxy.server.avro.LobValue;
+
+import java.io.StringReader;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLWarning;
 import java.sql.Types;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
 
 /**
@@ -29,10 +37,18 @@ class ProxyMemResultSet implements InvocationHandler {
     private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
 
     private final ProxyResultSetMetaData metaData;
-    private final List<List<?>> values;
+    final Communicator communicator; // for fetching large objects; null for results built by the driver
     private int rowNum = -1;
     private boolean wasNull;
 
+    // The rows are held in "blocks"; an in-memory result-set has just one block, while subclasses may
+    // replace the current block with the next one on demand.
+    private RowBlock values;
+    private int blockStart = 0; // value of rowNum for the first row in the current block
+    private boolean lastBlock = true;
+    private SQLWarning warnings; // see getWarnings
+    private final Set<Integer> truncatedColumns = new HashSet<>(); // columns reported via getWarnings (see toText)
+
     // Cache of (colname->colindex) for the metadata of this resultset; computed on demand.
     private Map<String, Integer> colNameToIndex = null;
 
@@ -47,15 +63,71 @@ class ProxyMemResultSet implements InvocationHandler {
      * Factory for a result-set with the specified metadata-format and specified content.
      */
     static ResultSet of(ProxyResultSetMetaData metaData, List<List<?>> rowData) {
+        return of(metaData, rowData, null);
+    }
+
+    /**
+     * Factory for a result-set with content returned by the proxy server, which may include large objects
+     * to be fetched via the communicator.
+     */
+    static ResultSet of(ProxyResultSetMetaData metaData, List<List<?>> rowData, Communicator communicator) {
+        return wrap(new ProxyMemResultSet(metaData, RowBlock.of(rowData), true, communicator));
+    }
+
+    static ResultSet wrap(ProxyMemResultSet handler) {
         return (ResultSet) Proxy.newProxyInstance(
                 ProxyMemResultSet.class.getClassLoader(),
                 new Class[]{ResultSet.class},
-                new ProxyMemResultSet(metaData, rowData));
+                handler);
     }
 
-    private ProxyMemResultSet(ProxyResultSetMetaData metaData, List<List<?>> values) {
+    ProxyMemResultSet(ProxyResultSetMetaData metaData, List<List<?>> values) {
+        this(metaData, RowBlock.of(values), true, null);
+    }
+
+    ProxyMemResultSet(
+            ProxyResultSetMetaData metaData,
+            RowBlock values,
+            boolean lastBlock,
+            Communicator communicator) {
         this.metaData = metaData;
         this.values = values;
+        this.lastBlock = lastBlock;
+        this.communicator = communicator;
+    }
+
+    /**
+     * Replace the current block of rows with the following one.
+     */
+    void setBlock(RowBlock values, boolean lastBlock) {
+        this.blockStart += this.values.size();
+        this.values = values;
+        this.lastBlock = lastBlock;
+    }
+
+    void addWarning(String message) {
+        var warning = new SQLWarning(message);
+        if (warnings == null) {
+            warnings = warning;
+        } else {
+            warnings.setNextWarning(warning);
+        }
+    }
+
+    /**
+     * Invoked when all rows in the current block have been read but it is not the last block; implementations
+     * must call setBlock. The default implementation is never invoked, as in-memory result-sets have just
+     * one block.
+     */
+    void loadNextBlock() throws SQLException {
+        throw new SQLException("No more rows available");
+    }
+
+    /**
+     * Invoked when the result-set is closed, to allow subclasses to release resources.
+     */
+    void onClose() throws SQLException {
+        // nothing to release for in-memory data
     }
 
     @Override
@@ -75,7 +147,10 @@ class ProxyMemResultSet implements InvocationHandler {
                 throw new IllegalStateException(); // closed
             }
             rowNum = rowNum + 1;
-            return rowNum < values.size();
+            while (rowNum - blockStart >= values.size() && !lastBlock) {
+                loadNextBlock();
+            }
+            return rowNum - blockStart < values.size();
         }
 
         if ("getRow".equals(methodName)) {
@@ -87,7 +162,7 @@ class ProxyMemResultSet implements InvocationHandler {
         }
 
         if ("isAfterLast".equals(methodName)) {
-            return (rowNum == values.size());
+            return lastBlock && (rowNum == blockStart + values.size());
         }
 
         if ("isFirst".equals(methodName)) {
@@ -95,11 +170,15 @@ class ProxyMemResultSet implements InvocationHandler {
         }
 
         if ("isLast".equals(methodName)) {
-            return (rowNum == values.size() - 1);
+            // When further blocks may follow, this is only known after fetching them; just report false.
+            return lastBlock && (rowNum == blockStart + values.size() - 1);
         }
 
         if ("close".equals(methodName)) {
-            rowNum = Integer.MAX_VALUE;
+            if (rowNum != Integer.MAX_VALUE) {
+                rowNum = Integer.MAX_VALUE;
+                onClose();
+            }
             return null;
         }
 
@@ -111,16 +190,54 @@ class ProxyMemResultSet implements InvocationHandler {
             return wasNull; // true iff getSomeType(col) recently returned null
         }
 
-        if ("getString".equals(methodName))
-            return getColumnOfCurrentRow(method, args);
+        if ("getString".equals(methodName)) {
+            var value = getColumnOfCurrentRow(method, args);
+            if (value instanceof Clob) {
+                var clob = (Clob) value;
+                return clob.getSubString(1, (int) clob.length());
+            }
+            if (value instanceof Blob) {
+                return toHex(getBytes((Blob) value));
+            }
+            return (value == null) ? null : value.toString();
+        }
+
+        if ("getBlob".equals(methodName)) {
+            return getLob(method, args, Blob.class);
+        }
+
+        if ("getClob".equals(methodName) || "getNClob".equals(methodName)) {
+            return getLob(method, args, Clob.class);
+        }
+
+        if ("getBytes".equals(methodName)) {
+            var blob = getLob(method, args, Blob.class);
+            return (blob == null) ? null : getBytes(blob);
+        }
+
+        if ("getBinaryStream".equals(methodName)) {
+            var blob = getLob(method, args, Blob.class);
+            return (blob == null) ? null : blob.getBinaryStream();
+        }
+
+        if ("getCharacterStream".equals(methodName) || "getNCharacterStream".equals(methodName)) {
+            var value = getRawColumnOfCurrentRow(getColumnIndexOfCurrentRow(method, args));
+            if (value instanceof LobValue) {
+                return getLob(method, args, Clob.class).getCharacterStream();
+            }
+            return (value == null) ? null : new StringReader(value.toString());
+        }
 
         if ("getBoolean".equals(methodName))
             return getColumnOfCurrentRow(method, args);
 
         if ("getBigDecimal".equals(methodName)) {
-            // DECIMAL and NUMERIC are transmitted from the server as strings
+            // DECIMAL and NUMERIC are transmitted from older servers as strings
             var value = getColumnOfCurrentRow(method, args);
-            return (value == null) ? null : new BigDecimal(value.toString());
+            if (value == null || value instanceof BigDecimal) {
+                return value;
+            }
+            return new BigDecimal(value.toString());
         }
 
         if ("getLong".equals(methodName)) {
@@ -162,10 +279,11 @@ class ProxyMemResultSet implements InvocationHandler {
         }
 
         if ("getWarnings".equals(methodName)) {
-            return null;
+            return warnings;
         }
 
         if ("clearWarnings".equals(methodName)) {
+            warnings = null;
             return null;
         }
 
@@ -190,13 +308,6 @@ class ProxyMemResultSet implements InvocationHandler {
         throw new UnsupportedOperationException("ProxyMemResultSet." + methodName);
     }
 
-    List<?> getCurrentRow() throws SQLException {
-        if ((rowNum < 0) || (rowNum >= values.size())) {
-            throw new SQLException("illegal row-index in fake resultset");
-        }
-        return values.get(this.rowNum);
-    }
-
     Object getColumnOfCurrentRow(int column) throws SQLException {
         if ((column < 1) || (column > metaData.getColumnCount())) {
             var msg = String.format(
@@ -207,26 +318,61 @@ class ProxyMemResultSet implements InvocationHandler {
             throw new SQLException(msg);
         }
 
-        var row = getCurrentRow();
-
-        if (column > row.size()) {
-            // This mem-resultset doesn't always have a value for every trailing column; just
-            // return null for those "unpopulated columns".
-            return null;
+        int idx = rowNum - blockStart;
+        if ((idx < 0) || (idx >= values.size())) {
+            throw new SQLException("illegal row-index in fake resultset");
         }
 
-        return row.get(column-1);
+        // Note that a block doesn't always have a value for every trailing column; it then returns null
+        // for those "unpopulated columns".
+        return values.get(idx, column-1);
     }
 
     Object getColumnOfCurrentRow(Method method, Object[] args) throws SQLException {
         int idx = getColumnIndexOfCurrentRow(method, args);
-        var value = getColumnOfCurrentRow(idx);
-        if (value == null) {
-            this.wasNull = true;
-            return null;
+        var value = getRawColumnOfCurrentRow(idx);
+        return (value == null) ? null : mapType(idx, metaData.getColumnType(idx), value);
+    }
+
+    /**
+     * Return the value as received from the server, ie without mapType.
+     */
+    private Object getRawColumnOfCurrentRow(int column) throws SQLException {
+        var value = getColumnOfCurrentRow(column);
+        this.wasNull = (value == null);
+        return value;
+    }
+
+    /**
+     * Return the value of a large-object column, which must be of the specified type (Blob or Clob). A text
+     * value truncated by the server can also be read as a Clob.
+     */
+    private <T> T getLob(Method method, Object[] args, Class<T> type) throws SQLException {
+        var value = getRawColumnOfCurrentRow(getColumnIndexOfCurrentRow(method, args));
+        if (value instanceof LobValue) {
+            value = ProxyLob.of(communicator, (LobValue) value);
+        }
+        return (value == null) ? null : toLob(value, type);
+    }
+
+    private static <T> T toLob(Object value, Class<T> type) throws SQLException {
+        if (!type.isInstance(value)) {
+            throw new SQLException(String.format(
+                    "Value of type %s cannot be returned as %s", value.getClass().getName(), type.getSimpleName()));
         }
-        this.wasNull = false;
-        return mapType(metaData.getColumnType(idx), value);
+        return type.cast(value);
+    }
+
+    private static byte[] getBytes(Blob blob) throws SQLException {
+        return blob.getBytes(1, (int) blob.length());
+    }
+
+    private static String toHex(byte[] bytes) {
+        var result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
     }
 
     int getColumnIndexOfCurrentRow(Method method, Object[] args) throws SQLException {
@@ -267,15 +413,33 @@ class ProxyMemResultSet implements InvocationHandler {
     // ProxyStatement.toResultSetRows just builds the row-data using the raw types from the AVRO message.
     // However there isn't a perfect 1:1 match between JDBC types and AVRO types, so here we do any necessary
     // conversions...
-    Object mapType(int coltype, Object value) {
+    Object mapType(int column, int coltype, Object value) throws SQLException {
+        if (value instanceof LobValue) {
+            if (coltype == Types.CHAR || coltype == Types.VARCHAR) {
+                // an ordinary text value which exceeded the server's inline limit
+                return toText(column, (LobValue) value);
+            }
+            // only a prefix has been received; the rest is fetched when (and if) it is read
+            return ProxyLob.of(communicator, (LobValue) value);
+        }
+
         switch(coltype) {
             case Types.DATE:
+                if (value instanceof Long) {
+                    return toDate((Long) value);
+                }
                 return toDate(value.toString(), java.sql.Date::new);
 
             case Types.TIME:
+                if (value instanceof Long) {
+                    return toTime((Long) value);
+                }
                 return toDate(value.toString(), java.sql.Time::new);
 
             case Types.TIMESTAMP:
+                if (value instanceof Long) {
+                    return toTimestamp((Long) value);
+                }
                 return toDate(value.toString(), java.sql.Timestamp::new);
 
             default:
@@ -283,11 +447,43 @@ class ProxyMemResultSet implements InvocationHandler {
         }
     }
 
-    // AVRO doesn't have a "date" type, so these types are passed as strings in ISO format; here
-    // we convert that back to the appropriate type.
-    java.util.Date toDate(String src, Function<Long, Date> constructor) {
+    /**
+     * Return the prefix of an ordinary text value which exceeded the server's inline limit, reporting the
+     * truncation (once per column) via getWarnings. The complete value is fetched only via getClob or
+     * getCharacterStream, so that eg a DB GUI displaying a grid of such values needs no round-trip per value.
+     */
+    private String toText(int column, LobValue value) throws SQLException {
+        var prefix = (String) value.getPrefix();
+        if (prefix.length() < value.getLength() && truncatedColumns.add(column)) {
+            addWarning(String.format(
+                    "Values of column %s are truncated (eg to %d of %d chars); use getClob or getCharacterStream "
+                            + "to read them completely",
+                    metaData.getColumnName(column), prefix.length(), value.getLength()));
+        }
+        return prefix;
+    }
+
+    // Older servers (or servers which have not negotiated the "temporal" encoding) pass these types as strings
+    // in ISO format; here we convert that back to the appropriate type.
+    static java.util.Date toDate(String src, Function<Long, Date> constructor) {
         var instant = DATE_TIME_FORMATTER.parse(src, LocalDateTime::from)
                 .atOffset(ZoneOffset.UTC).toInstant();
         return constructor.apply(instant.toEpochMilli());
     }
+
+    // Otherwise dates are passed as days since the epoch, times as microseconds since midnight and timestamps as
+    // microseconds since the epoch; as with the strings, dates and times are those of UTC
+    static java.sql.Date toDate(long epochDay) {
+        return new java.sql.Date(epochDay * 86_400_000L);
+    }
+
+    static java.sql.Time toTime(long microsOfDay) {
+        return new java.sql.Time(microsOfDay / 1000);
+    }
+
+    static java.sql.Timestamp toTimestamp(long epochMicros) {
+        var result = new java.sql.Timestamp(Math.floorDiv(epochMicros, 1_000_000L) * 1000);
+        result.setNanos((int) Math.floorMod(epochMicros, 1_000_000L) * 1000);
+        return result;
+    }
 }
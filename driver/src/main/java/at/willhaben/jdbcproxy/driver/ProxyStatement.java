@@ -5,6 +5,8 @@ import at.willhaben.jdbcproxy.server.avro.*;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.sql.*;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -22,10 +24,19 @@ public class ProxyStatement implements InvocationHandler {
     private static final ClassLoader statementClassLoader = Statement.class.getClassLoader();
     private static final Class[] statementInterfaces = new Class[] { Statement.class };
 
+    // Number of rows per batch requested from the server when the client has not called setFetchSize.
+    private static final int DEFAULT_BATCH_SIZE = 200;
+
+    // Warning for results which the server truncated as the query ran too long (see SelectRequestV2.partialResults)
+    static final String TIMED_OUT_WARNING = "Results are incomplete: the query was cancelled by the proxy server"
+            + " as it ran longer than allowed";
+
     private final Connection connection;
     private final Communicator communicator;
     private ResultSet results = null;
     private int maxRows = 0;
+    private int queryTimeoutSecs = 0;
+    private int fetchSize = 0;
     private boolean isClosed;
     private String warning;
 
@@ -51,6 +62,7 @@ public class ProxyStatement implements InvocationHandler {
 
         if ("close".equals(methodName)) {
             isClosed = true;
+            closeResults(); // releases the server-side cursor, if any
             return null;
         }
 
@@ -60,8 +72,8 @@ public class ProxyStatement implements InvocationHandler {
 
         if ("execute".equals(methodName)) {
             try {
-                results = doExecute(method, args);
                 warning = null; // as per spec, previous warnings are cleared on execute
+                results = doExecute(method, args);
                 return true; // results are present
             } catch(ProxyError e) {
                 results = null;
@@ -73,8 +85,8 @@ public class ProxyStatement implements InvocationHandler {
         if ("executeQuery".equals(methodName)) {
             // like execute() except that the returned value is the resultSet, not just "isPresent"
             try {
-                results = doExecute(method, args);
                 warning = null; // as per spec, previous warnings are cleared on execute
+                results = doExecute(method, args);
                 return results;
             } catch(ProxyError e) {
                 results = null;
@@ -90,20 +102,53 @@ public class ProxyStatement implements InvocationHandler {
             return results;
         }
 
+        if ("cancel".equals(methodName)) {
+            // Normally invoked by another thread, while this statement is executing or fetching results.
+            try {
+                communicator.cancel();
+            } catch(ProxyError e) {
+                throw new SQLException(e);
+            }
+            return null;
+        }
+
         if ("getConnection".equals(methodName)) {
             // ensure proxying is retained
             return connection;
         }
 
         if ("setMaxRows".equals(methodName)) {
+            // Sent with each query (if the server accepts SelectRequestV2); the server may apply a lower limit.
             maxRows = (int) args[0];
             return null;
         }
 
         if ("getMaxRows".equals(methodName)) {
+            // the server never returns more rows than its own limit
+            int serverMaxRows = communicator.getCapabilities().getMaxRows();
+            if (maxRows == 0 || (serverMaxRows > 0 && serverMaxRows < maxRows)) {
+                return serverMaxRows;
+            }
             return maxRows;
         }
 
+        if ("setQueryTimeout".equals(methodName)) {
+            // Sent with each query (if the server accepts SelectRequestV2); the server may apply a lower limit.
+            queryTimeoutSecs = (int) args[0];
+            return null;
+        }
+
+        if ("getQueryTimeout".equals(methodName)) {
+            // the server cancels queries which run longer than its own limit
+            var capabilities = communicator.getCapabilities();
+            int serverTimeoutSecs = capabilities.getQueryTimeoutSecs();
+            if (queryTimeoutSecs == 0 || !capabilities.isSelectRequestV2()
+                    || (serverTimeoutSecs > 0 && serverTimeoutSecs < queryTimeoutSecs)) {
+                return serverTimeoutSecs;
+            }
+            return queryTimeoutSecs;
+        }
+
         if ("getWarnings".equals(methodName)) {
             return (warning == null) ? null : new SQLWarning(warning);
         }
@@ -118,9 +163,15 @@ public class ProxyStatement implements InvocationHandler {
         }
 
         if ("setFetchSize".equals(methodName)) {
+            // Used as the batch-size when fetching results; the server may apply a lower limit.
+            fetchSize = (int) args[0];
             return null;
         }
 
+        if ("getFetchSize".equals(methodName)) {
+            return fetchSize;
+        }
+
         if ("getMoreResults".equals(methodName)) {
             // only one result-set per query is supported
             if (results == null) {
@@ -145,7 +196,7 @@ public class ProxyStatement implements InvocationHandler {
         throw new UnsupportedOperationException("ProxyStatement." + methodName);
     }
 
-    ResultSet doExecute(Method method, Object[] args) throws ProxyError, ConnectionClosedError {
+    ResultSet doExecute(Method method, Object[] args) throws ProxyError, ConnectionClosedError, SQLException {
         if (method.getParameterTypes().length == 0) {
             throw new UnsupportedOperationException("Statement.execute()");
         }
@@ -156,17 +207,65 @@ public class ProxyStatement implements InvocationHandler {
             throw new UnsupportedOperationException(String.format("Statement.execute(%s)", ptype.getName()));
         }
 
-        // Serialize this object to a SelectRequest and send it over the socket
-        // then read the SelectResponse and create a ResultSet wrapper around it
+        // Any previous results belong to this statement; release them (and their server-side cursor)
+        closeResults();
+
+        // Serialize this object to a SelectRequest(V2) and send it over the socket then read the CursorResponseV2
+        // and create a ResultSet wrapper around it which fetches further batches of rows on demand.
         //
         // Note that the resulting objects can be fetched via method getResultSet() and getMoreResults()
         String query = (String) args[0];
-        var response = communicator.send(
-                SelectRequest.newBuilder().setQuery(query).build(),
-                SelectResponse.class);
+        var capabilities = communicator.getCapabilities();
+        if (!capabilities.isSelectRequestV2()) {
+            // a server before protocol version 2 returns all rows in one response, without applying any limits of
+            // the statement, and never returns partial results
+            var request = SelectRequest.newBuilder().setQuery(query).build();
+            var response = communicator.send(request, SelectResponse.class);
+            var metadata = toResultSetMetaData("results", response.getMetadata());
+            return ProxyMemResultSet.of(metadata, toResultSetRows(response.getRows()), communicator);
+        }
+        if (!capabilities.isStreaming()) {
+            // all rows are returned in one response
+            var response = communicator.send(createSelectRequest(query, 0), SelectResponseV2.class);
+            if (response.getTimedOut()) {
+                warning = TIMED_OUT_WARNING;
+            }
+            var metadata = toResultSetMetaData("results", response.getMetadata());
+            return ProxyMemResultSet.of(metadata, toResultSetRows(response.getRows()), communicator);
+        }
+
+        var batchSize = (fetchSize > 0) ? fetchSize : DEFAULT_BATCH_SIZE;
+        if (capabilities.getMaxBatchSize() > 0) {
+            batchSize = Math.min(batchSize, capabilities.getMaxBatchSize());
+        }
+        var response = communicator.send(createSelectRequest(query, batchSize), CursorResponseV2.class);
+        if (response.getTimedOut()) {
+            warning = TIMED_OUT_WARNING;
+        }
         var metadata = toResultSetMetaData("results", response.getMetadata());
-        var rows = toResultSetRows(response.getRows());
-        return ProxyMemResultSet.of(metadata, rows);
+        return ProxyCursorResultSet.of(metadata, communicator, response);
+    }
+
+    /**
+     * Return the request for the query, with the statement's limits; batchSize zero means all rows are returned
+     * in one response.
+     */
+    private SelectRequestV2 createSelectRequest(String query, int batchSize) {
+        return SelectRequestV2.newBuilder()
+                .setQuery(query)
+                .setBatchSize(batchSize)
+                .setFormat(communicator.getCapabilities().getResultFormat())
+                .setMaxRows(maxRows)
+                .setQueryTimeoutSecs(queryTimeoutSecs)
+                .setPartialResults(communicator.isPartialResults())
+                .build();
+    }
+
+    private void closeResults() throws SQLException {
+        if (results != null) {
+            results.close();
+            results = null;
+        }
     }
 
     ProxyResultSetMetaData toResultSetMetaData(String tableName, ResultColumnsMetaData rowMetaData) {
@@ -176,14 +275,26 @@ public class ProxyStatement implements InvocationHandler {
         return new ProxyResultSetMetaData(tableName, colNames, colTypes, colNullable);
     }
 
-    List<List<?>> toResultSetRows(List<Row> rows) {
-        // Note that the returned lists contains types exactly as received in the AVRO message. Any conversion
-        // to other types is done in ProxyMemResultSet.mapType(..)
+    static List<List<?>> toResultSetRows(List<Row> rows) {
+        // Note that the returned lists contains types exactly as received in the AVRO message (except that
+        // a DecimalValue becomes a BigDecimal). Any conversion to other types (including of a LobValue to a
+        // Blob or Clob) is done in ProxyMemResultSet.mapType(..)
         return rows.stream().map(r -> {
             var columns = r.getColumns().stream()
-                    .map(col -> col.getValue().orElse(null))
+                    .map(col -> toValue(col.getValue().orElse(null)))
                     .collect(Collectors.toList());
             return columns;
         }).collect(Collectors.toUnmodifiableList());
     }
+
+    private static Object toValue(Object value) {
+        if (value instanceof DecimalValue) {
+            var decimal = (DecimalValue) value;
+            var unscaled = decimal.getUnscaled().duplicate();
+            var bytes = new byte[unscaled.remaining()];
+            unscaled.get(bytes);
+            return new BigDecimal(new BigInteger(bytes), decimal.getScale());
+        }
+        return value;
+    }
 }
@@ -0,0 +1,42 @@
+package at.willhaben.jdbcproxy.driver;
+
+import java.util.List;
+
+/**
+ * A block of rows held in memory by a ProxyMemResultSet.
+ * <p>
+ * Values are of the types sent by the server (see ProxyMemResultSet.mapType for conversion to jdbc types).
+ * </p>
+ */
+interface RowBlock {
+    RowBlock EMPTY = of(List.of());
+
+    /**
+     * Wrap a list of rows; a row may have fewer values than the result-set has columns, in which case
+     * the missing trailing values are null.
+     */
+    static RowBlock of(List<List<?>> rows) {
+        return new RowBlock() {
+            @Override
+            public int size() {
+                return rows.size();
+            }
+
+            @Override
+            public Object get(int row, int column) {
+                var values = rows.get(row);
+                return (column < values.size()) ? values.get(column) : null;
+            }
+        };
+    }
+
+    /**
+     * Return the number of rows in this block.
+     */
+    int size();
+
+    /**
+     * Return the value at the specified (zero-based) row and column.
+     */
+    Object get(int row, int column);
+}
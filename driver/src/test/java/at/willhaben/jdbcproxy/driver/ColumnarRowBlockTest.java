@@ -0,0 +1,151 @@
+package at.willhaben.jdbcproxy.driver;
+
+import at.willhaben.jdbcproxy.server.avro.ColumnKind;
+import at.willhaben.jdbcproxy.server.avro.ColumnVector;
+import at.willhaben.jdbcproxy.server.avro.LobValue;
+import at.willhaben.jdbcproxy.server.avro.RowBatch;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ColumnarRowBlockTest {
+
+    @Test
+    void testDecode() throws Exception {
+        // three rows, with a null in row 1 of every column
+        var nulls = new BitSet();
+        nulls.set(1);
+
+        var longBytes = new ByteArrayOutputStream();
+        var encoder = EncoderFactory.get().directBinaryEncoder(longBytes, null);
+        encoder.writeLong(-5);
+        encoder.writeLong(Long.MAX_VALUE);
+
+        var doubleBytes = new ByteArrayOutputStream();
+        encoder = EncoderFactory.get().directBinaryEncoder(doubleBytes, null);
+        encoder.writeDouble(1.5);
+        encoder.writeDouble(-0.25);
+
+        var booleans = new BitSet();
+        booleans.set(2);
+
+        var batch = RowBatch.newBuilder()
+                .setRowCount(3)
+                .setColumns(List.of(
+                        vector(ColumnKind.LONG, nulls, longBytes.toByteArray(), List.of()),
+                        vector(ColumnKind.DOUBLE, nulls, doubleBytes.toByteArray(), List.of()),
+                        vector(ColumnKind.BOOLEAN, nulls, booleans.toByteArray(), List.of()),
+                        vector(ColumnKind.STRING, nulls, new byte[0], List.of("a", "c"))))
+                .build();
+
+        var block = new ColumnarRowBlock(batch);
+        assertEquals(3, block.size());
+
+        assertEquals(-5L, block.get(0, 0));
+        assertEquals(1.5, block.get(0, 1));
+        assertEquals(false, block.get(0, 2));
+        assertEquals("a", block.get(0, 3));
+
+        for (int col = 0; col < 4; ++col) {
+            assertNull(block.get(1, col));
+        }
+
+        assertEquals(Long.MAX_VALUE, block.get(2, 0));
+        assertEquals(-0.25, block.get(2, 1));
+        assertEquals(true, block.get(2, 2));
+        assertEquals("c", block.get(2, 3));
+    }
+
+    @Test
+    void testDecodeDictionary() throws Exception {
+        // four rows, with a null in row 1
+        var nulls = new BitSet();
+        nulls.set(1);
+
+        var indexes = new ByteArrayOutputStream();
+        var encoder = EncoderFactory.get().directBinaryEncoder(indexes, null);
+        encoder.writeInt(1);
+        encoder.writeInt(0);
+        encoder.writeInt(1);
+
+        var batch = RowBatch.newBuilder()
+                .setRowCount(4)
+                .setColumns(List.of(
+                        vector(ColumnKind.DICTIONARY, nulls, indexes.toByteArray(), List.of("NEW", "DONE"))))
+                .build();
+
+        var block = new ColumnarRowBlock(batch);
+        assertEquals("DONE", block.get(0, 0));
+        assertNull(block.get(1, 0));
+        assertEquals("NEW", block.get(2, 0));
+        assertSame(block.get(0, 0), block.get(3, 0));
+
+        // an index outside the dictionary is rejected
+        var invalid = RowBatch.newBuilder()
+                .setRowCount(1)
+                .setColumns(List.of(
+                        vector(ColumnKind.DICTIONARY, new BitSet(), new byte[] {4}, List.of("NEW"))))
+                .build();
+        assertThrows(ProxyError.class, () -> new ColumnarRowBlock(invalid));
+    }
+
+    @Test
+    void testDecodeDecimal() throws Exception {
+        var values = new ByteArrayOutputStream();
+        var encoder = EncoderFactory.get().directBinaryEncoder(values, null);
+        for (var value : new BigDecimal[] {new BigDecimal("3.25"), new BigDecimal("-123456789012345678901234.5")}) {
+            encoder.writeInt(value.scale());
+            encoder.writeBytes(value.unscaledValue().toByteArray());
+        }
+
+        var batch = RowBatch.newBuilder()
+                .setRowCount(2)
+                .setColumns(List.of(vector(ColumnKind.DECIMAL, new BitSet(), values.toByteArray(), List.of())))
+                .build();
+
+        var block = new ColumnarRowBlock(batch);
+        assertEquals(new BigDecimal("3.25"), block.get(0, 0));
+        assertEquals(new BigDecimal("-123456789012345678901234.5"), block.get(1, 0));
+    }
+
+    @Test
+    void testDecodeLob() throws Exception {
+        // two rows, with a null in row 0
+        var nulls = new BitSet();
+        nulls.set(0);
+
+        var lob = LobValue.newBuilder().setPrefix("abc").setLength(10).setTruncated(false).setLobId(7).build();
+        var values = new ByteArrayOutputStream();
+        var encoder = EncoderFactory.get().directBinaryEncoder(values, null);
+        new SpecificDatumWriter<>(LobValue.class).write(lob, encoder);
+
+        var batch = RowBatch.newBuilder()
+                .setRowCount(2)
+                .setColumns(List.of(vector(ColumnKind.LOB, nulls, values.toByteArray(), List.of())))
+                .build();
+
+        var block = new ColumnarRowBlock(batch);
+        assertNull(block.get(0, 0));
+        assertEquals(lob, block.get(1, 0));
+    }
+
+    private static ColumnVector vector(ColumnKind kind, BitSet nulls, byte[] values, List<String> strings) {
+        return ColumnVector.newBuilder()
+                .setKind(kind)
+                .setNulls(ByteBuffer.wrap(nulls.toByteArray()))
+                .setValues(ByteBuffer.wrap(values))
+                .setStrings(strings)
+                .build();
+    }
+}
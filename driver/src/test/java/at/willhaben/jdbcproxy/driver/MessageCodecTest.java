@@ -0,0 +1,268 @@
+package at.willhaben.jdbcproxy.driver;
+
+import at.willhaben.jdbcproxy.server.avro.PingRequest;
+import at.willhaben.jdbcproxy.server.avro.PingResponse;
+import at.willhaben.jdbcproxy.server.avro.Request;
+import at.willhaben.jdbcproxy.server.avro.RequestV2;
+import at.willhaben.jdbcproxy.server.avro.ResponseV2;
+import at.willhaben.jdbcproxy.server.avro.SelectRequest;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Includes a microbenchmark comparing the heap allocated per ping/pong exchange when a reader, writer, encoder
+ * and decoder are created per message (as was done before MessageCodec existed) with that of MessageCodec. It
+ * is not part of the normal test run; run it with "mvn test -Dtest=MessageCodecTest -Dbenchmark=true".
+ */
+class MessageCodecTest {
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 100_000;
+
+    @Test
+    void testRoundTrip() throws IOException {
+        var out = new ByteArrayOutputStream();
+        var writer = new MessageCodec<>(
+                RequestV2.class, RequestV2.class, InputStream.nullInputStream(), out, r -> true);
+        writer.write(new RequestV2(0, 0, new PingRequest()));
+        writer.write(new RequestV2(0, 0, new PingRequest()));
+
+        var in = new ByteArrayInputStream(out.toByteArray());
+        var reader = new MessageCodec<>(
+                RequestV2.class, RequestV2.class, in, OutputStream.nullOutputStream(), r -> true);
+        var first = reader.read();
+        var second = reader.read();
+        assertTrue(first.getRequest() instanceof PingRequest);
+        assertTrue(first == second, "reusable message should be read into the previous instance");
+    }
+
+    @Test
+    void testTruncatedMessage() throws IOException {
+        var out = new ByteArrayOutputStream();
+        var writer = new MessageCodec<>(
+                RequestV2.class, RequestV2.class, InputStream.nullInputStream(), out, r -> true);
+        writer.write(new RequestV2(0, 0, new SelectRequest("select 1")));
+
+        // A stream which ends between messages is a clean end-of-stream, while one which ends within a
+        // message is not
+        var bytes = out.toByteArray();
+        var complete = new MessageCodec<>(RequestV2.class, RequestV2.class,
+                new ByteArrayInputStream(bytes), OutputStream.nullOutputStream(), r -> true);
+        assertTrue(complete.read().getRequest() instanceof SelectRequest);
+        assertThrows(EOFException.class, complete::read);
+
+        var truncated = new MessageCodec<>(RequestV2.class, RequestV2.class,
+                new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)), OutputStream.nullOutputStream(), r -> true);
+        var e = assertThrows(IOException.class, truncated::read);
+        assertEquals("Truncated message", e.getMessage());
+    }
+
+    @Test
+    void testUnframedMessage() throws IOException {
+        // as exchanged with a server which predates framing, ie just the avro-encoded messages
+        var out = new ByteArrayOutputStream();
+        var writer = new MessageCodec<>(Request.class, Request.class, false,
+                InputStream.nullInputStream(), out, r -> false);
+        writer.write(new Request(new SelectRequest("select 1")));
+        writer.write(new Request(new PingRequest()));
+
+        var expected = new ByteArrayOutputStream();
+        var encoder = EncoderFactory.get().binaryEncoder(expected, null);
+        var datumWriter = new SpecificDatumWriter<Request>(Request.getClassSchema());
+        datumWriter.write(new Request(new SelectRequest("select 1")), encoder);
+        datumWriter.write(new Request(new PingRequest()), encoder);
+        encoder.flush();
+        var bytes = out.toByteArray();
+        assertArrayEquals(expected.toByteArray(), bytes);
+
+        var reader = new MessageCodec<>(Request.class, Request.class, false,
+                new ByteArrayInputStream(bytes), OutputStream.nullOutputStream(), r -> false);
+        assertEquals("select 1", ((SelectRequest) reader.read().getRequest()).getQuery());
+        assertTrue(reader.read().getRequest() instanceof PingRequest);
+        assertThrows(EOFException.class, reader::read);
+
+        var truncated = new MessageCodec<>(Request.class, Request.class, false,
+                new ByteArrayInputStream(Arrays.copyOf(bytes, 4)), OutputStream.nullOutputStream(), r -> false);
+        var e = assertThrows(IOException.class, truncated::read);
+        assertEquals("Truncated message", e.getMessage());
+    }
+
+    @Test
+    void testCompressedMessage() throws IOException {
+        var query = "select * from foo where bar = 'baz' and ".repeat(500) + "1=1";
+        var plain = new ByteArrayOutputStream();
+        var writer = new MessageCodec<>(
+                RequestV2.class, RequestV2.class, InputStream.nullInputStream(), plain, r -> true);
+        writer.write(new RequestV2(0, 0, new SelectRequest(query)));
+        var payload = Arrays.copyOfRange(plain.toByteArray(), MessageCodec.HEADER_SIZE, plain.size());
+
+        // as sent by the server when compression has been negotiated
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(payload);
+        deflater.finish();
+        var compressed = new byte[payload.length];
+        int compressedLength = deflater.deflate(compressed);
+        assertTrue(deflater.finished());
+
+        var frame = new ByteArrayOutputStream();
+        var out = new DataOutputStream(frame);
+        out.writeByte(MessageCodec.FLAG_COMPRESSED);
+        out.writeInt(4 + compressedLength);
+        out.writeInt(payload.length);
+        out.write(compressed, 0, compressedLength);
+        out.flush();
+        assertTrue(frame.size() * 10 < payload.length);
+
+        var reader = new MessageCodec<>(RequestV2.class, RequestV2.class,
+                new ByteArrayInputStream(frame.toByteArray()), OutputStream.nullOutputStream(), r -> true);
+        var request = (SelectRequest) reader.read().getRequest();
+        assertEquals(query, request.getQuery());
+
+        // a payload which does not decompress to the announced length is rejected
+        var corrupt = frame.toByteArray();
+        corrupt[MessageCodec.HEADER_SIZE + 3]++;
+        var corruptReader = new MessageCodec<>(RequestV2.class, RequestV2.class,
+                new ByteArrayInputStream(corrupt), OutputStream.nullOutputStream(), r -> true);
+        assertThrows(IOException.class, corruptReader::read);
+    }
+
+    @Test
+    void testReuse() throws IOException {
+        // messages of different sizes through the same codec, including one larger than the buffers it retains
+        var queries = List.of("select 1", "select '" + "x".repeat(2 * 1024 * 1024) + "'", "select 2");
+        var out = new ByteArrayOutputStream();
+        var writer = new MessageCodec<>(
+                RequestV2.class, RequestV2.class, InputStream.nullInputStream(), out, r -> false);
+        for (var query : queries) {
+            writer.write(new RequestV2(0, 0, SelectRequest.newBuilder().setQuery(query).build()));
+            writer.write(new RequestV2(0, 0, new PingRequest()));
+        }
+
+        var in = new ByteArrayInputStream(out.toByteArray());
+        var reader = new MessageCodec<>(RequestV2.class, RequestV2.class, in, OutputStream.nullOutputStream(),
+                r -> r.getRequest() instanceof PingRequest);
+        var selects = new ArrayList<SelectRequest>();
+        RequestV2 ping = null;
+        for (int i = 0; i < queries.size(); ++i) {
+            selects.add((SelectRequest) reader.read().getRequest());
+            var next = reader.read();
+            assertTrue(next.getRequest() instanceof PingRequest);
+            assertTrue(ping == null || ping == next, "reusable message should be read into the previous instance");
+            ping = next;
+        }
+        assertThrows(EOFException.class, reader::read);
+
+        // messages which are not reusable are not overwritten by later ones
+        for (int i = 0; i < queries.size(); ++i) {
+            assertEquals(queries.get(i), selects.get(i).getQuery());
+        }
+    }
+
+    @Test
+    @Tag("benchmark")
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    void testAllocationsPerMessage() throws IOException {
+        var threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean, "allocation counter not available");
+        var bean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+
+        var response = new ResponseV2(0, 0, new PingResponse(true));
+        var framedBytes = new ByteArrayOutputStream();
+        new MessageCodec<>(ResponseV2.class, ResponseV2.class, InputStream.nullInputStream(), framedBytes, r -> false)
+                .write(response);
+        var rawBytes = new ByteArrayOutputStream();
+        var rawEncoder = EncoderFactory.get().binaryEncoder(rawBytes, null);
+        new SpecificDatumWriter<ResponseV2>(ResponseV2.getClassSchema()).write(response, rawEncoder);
+        rawEncoder.flush();
+        var out = OutputStream.nullOutputStream();
+
+        var in = new RepeatingInputStream(framedBytes.toByteArray());
+        var codec = new MessageCodec<>(ResponseV2.class, RequestV2.class, in, out, r -> r.getResponse() instanceof PingResponse);
+        var ping = new RequestV2(0, 0, new PingRequest());
+        Exchange cached = () -> {
+            codec.write(ping);
+            return codec.read();
+        };
+        var rawIn = new RepeatingInputStream(rawBytes.toByteArray());
+        Exchange uncached = () -> {
+            var encoder = EncoderFactory.get().binaryEncoder(out, null);
+            new SpecificDatumWriter<RequestV2>(RequestV2.getClassSchema()).write(ping, encoder);
+            encoder.flush();
+            var decoder = DecoderFactory.get().directBinaryDecoder(rawIn, null);
+            return new SpecificDatumReader<>(ResponseV2.class).read(null, decoder);
+        };
+
+        long before = bytesPerExchange(bean, uncached);
+        long after = bytesPerExchange(bean, cached);
+        System.out.printf("Bytes allocated per ping exchange: per-message codec=%d, cached codec=%d%n", before, after);
+        assertTrue(after * 10 < before, "cached codec should allocate far less per message");
+    }
+
+    private static long bytesPerExchange(com.sun.management.ThreadMXBean bean, Exchange exchange) throws IOException {
+        for (int i = 0; i < WARMUP; ++i) {
+            assertTrue(exchange.run().getResponse() instanceof PingResponse);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long start = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; ++i) {
+            exchange.run();
+        }
+        return (bean.getThreadAllocatedBytes(threadId) - start) / ITERATIONS;
+    }
+
+    private interface Exchange {
+        ResponseV2 run() throws IOException;
+    }
+
+    /**
+     * Returns the same message over and over, as a server replying to keepalives would.
+     */
+    private static class RepeatingInputStream extends InputStream {
+        private final byte[] message;
+        private int pos;
+
+        RepeatingInputStream(byte[] message) {
+            this.message = message;
+        }
+
+        @Override
+        public int read() {
+            int b = message[pos] & 0xff;
+            pos = (pos + 1) % message.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, message.length - pos);
+            System.arraycopy(message, pos, b, off, n);
+            pos = (pos + n) % message.length;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package at.willhaben.jdbcproxy.driver;
+
+import at.willhaben.jdbcproxy.server.avro.DBMetaData;
+import at.willhaben.jdbcproxy.server.avro.MetaDataResponse;
+import at.willhaben.jdbcproxy.server.avro.VersionedMetaDataResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MetaDataFileCacheTest {
+    @TempDir
+    Path dir;
+
+    private static VersionedMetaDataResponse metaData(String version) {
+        return VersionedMetaDataResponse.newBuilder()
+                .setVersion(version)
+                .setMetaData(MetaDataResponse.newBuilder()
+                        .setCatalog("db")
+                        .setDatabaseMetaData(DBMetaData.newBuilder().setIdentifierQuoteString("\"").build())
+                        .setTables(List.of())
+                        .build())
+                .build();
+    }
+
+    @Test
+    void testReadWrite() {
+        var cache = new MetaDataFileCache(dir.resolve("cache"), "proxy", 5760, "db", "alice");
+        assertNull(cache.read());
+
+        cache.write(metaData("v1"));
+        cache.write(metaData("v2"));
+        assertEquals(metaData("v2"), cache.read());
+        assertEquals(metaData("v2"), new MetaDataFileCache(dir.resolve("cache"), "proxy", 5760, "db", "alice").read());
+
+        // each user (and database and server) has its own metadata
+        assertNull(new MetaDataFileCache(dir.resolve("cache"), "proxy", 5760, "db", "bob").read());
+    }
+
+    @Test
+    void testUnreadable() throws IOException {
+        var cache = new MetaDataFileCache(dir, "proxy", 5760, "db", "alice");
+        cache.write(metaData("v1"));
+        try (var files = Files.list(dir)) {
+            for (var file : (Iterable<Path>) files::iterator) {
+                Files.write(file, new byte[] { 1, 2, 3 });
+            }
+        }
+        assertNull(cache.read());
+    }
+}
@@ -0,0 +1,102 @@
+package at.willhaben.jdbcproxy.driver;
+
+import at.willhaben.jdbcproxy.server.avro.ErrorResponse;
+import at.willhaben.jdbcproxy.server.avro.MetaDataRequest;
+import at.willhaben.jdbcproxy.server.avro.PingRequest;
+import at.willhaben.jdbcproxy.server.avro.PingResponse;
+import at.willhaben.jdbcproxy.server.avro.Request;
+import at.willhaben.jdbcproxy.server.avro.Response;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the fallback to a server which predates framing, simulated by one which reads and writes unframed messages
+ * the way such a server does.
+ */
+class MultiplexerTest {
+    private final AtomicInteger connections = new AtomicInteger();
+    private ServerSocket server;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        var thread = new Thread(() -> {
+            try {
+                for (;;) {
+                    var socket = server.accept();
+                    connections.incrementAndGet();
+                    new Thread(() -> serveLegacy(socket)).start();
+                }
+            } catch (IOException e) {
+                // server closed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        server.close();
+    }
+
+    @Test
+    void testLegacyServer() throws Exception {
+        var multiplexer = Multiplexer.connect(server.getInetAddress().getHostAddress(), server.getLocalPort(), 5000);
+        try {
+            // the server could not parse the preface, so the client connected again without it
+            assertFalse(multiplexer.isNegotiating());
+            assertTrue(multiplexer.exchange(0, new PingRequest(), 5000) instanceof PingResponse);
+            assertEquals(2, connections.get());
+
+            // responses are matched to the requests in order
+            assertTrue(multiplexer.exchange(1, new MetaDataRequest(), 5000) instanceof ErrorResponse);
+            assertTrue(multiplexer.exchange(0, new PingRequest(), 5000) instanceof PingResponse);
+        } finally {
+            multiplexer.close();
+        }
+    }
+
+    /**
+     * Answer unframed requests in order, until one cannot be parsed; the server then sends an ErrorResponse and
+     * closes the connection.
+     */
+    private static void serveLegacy(Socket socket) {
+        try (socket) {
+            var decoder = DecoderFactory.get().directBinaryDecoder(socket.getInputStream(), null);
+            var encoder = EncoderFactory.get().directBinaryEncoder(socket.getOutputStream(), null);
+            var reader = new SpecificDatumReader<>(Request.class);
+            var writer = new SpecificDatumWriter<>(Response.class);
+            for (;;) {
+                Object response;
+                try {
+                    var request = reader.read(null, decoder).getRequest();
+                    response = (request instanceof PingRequest)
+                            ? new PingResponse(true)
+                            : new ErrorResponse("Not supported");
+                } catch (RuntimeException e) {
+                    writer.write(new Response(new ErrorResponse("Unknown error")), encoder);
+                    return;
+                }
+                writer.write(new Response(response), encoder);
+            }
+        } catch (IOException e) {
+            // client closed the connection
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package at.willhaben.jdbcproxy.driver;
+
+import at.willhaben.jdbcproxy.server.avro.ColumnsRequest;
+import at.willhaben.jdbcproxy.server.avro.ColumnsResponse;
+import at.willhaben.jdbcproxy.server.avro.DBMetaData;
+import at.willhaben.jdbcproxy.server.avro.SchemasRequest;
+import at.willhaben.jdbcproxy.server.avro.SchemasResponse;
+import at.willhaben.jdbcproxy.server.avro.TableColumnMetaData;
+import at.willhaben.jdbcproxy.server.avro.TableMetaData;
+import at.willhaben.jdbcproxy.server.avro.TablesRequest;
+import at.willhaben.jdbcproxy.server.avro.TablesResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(MockitoExtension.class)
+class ProxyDatabaseMetaDataTest {
+
+    @Mock
+    private Communicator communicator;
+
+    private static TableMetaData table(String schema, String name, List<TableColumnMetaData> columns) {
+        return TableMetaData.newBuilder()
+                .setCatalogName("db")
+                .setSchemaName(schema)
+                .setName(name)
+                .setType("TABLE")
+                .setRemarks(null)
+                .setTypeCatalog(null)
+                .setTypeSchema(null)
+                .setTypeName(null)
+                .setColumns(columns)
+                .build();
+    }
+
+    private static TableColumnMetaData column(String name) {
+        return TableColumnMetaData.newBuilder()
+                .setOrdinal(1)
+                .setName(name)
+                .setType(Types.BIGINT)
+                .setSize(19)
+                .setPrecision(0)
+                .setNullable(0)
+                .setCharOctetLength(0)
+                .build();
+    }
+
+    @Test
+    void testLazyMetaData() throws Exception {
+        var schemas = SchemasResponse.newBuilder()
+                .setCatalog("db")
+                .setDatabaseMetaData(DBMetaData.newBuilder().setIdentifierQuoteString("\"").build())
+                .setSchemas(List.of("sales", "hr"))
+                .setTableTypes(List.of("TABLE", "VIEW"))
+                .build();
+        var metaData = ProxyDatabaseMetaData.of(schemas, communicator);
+
+        // schemas are known without any further request
+        var rs = metaData.getSchemas();
+        assertTrue(rs.next());
+        assertEquals("hr", rs.getString(1));
+        Mockito.verifyNoInteractions(communicator);
+
+        Mockito.when(communicator.send(Mockito.any(TablesRequest.class), Mockito.eq(TablesResponse.class)))
+                .thenReturn(TablesResponse.newBuilder()
+                        .setTables(List.of(table("sales", "orders", new ArrayList<>()), table("sales", "items", new ArrayList<>())))
+                        .build());
+        Mockito.when(communicator.send(Mockito.any(ColumnsRequest.class), Mockito.eq(ColumnsResponse.class)))
+                .thenReturn(ColumnsResponse.newBuilder()
+                        .setTables(List.of(table("sales", "orders", List.of(column("id")))))
+                        .build());
+
+        // the tables of a schema are fetched once
+        rs = metaData.getTables(null, "sales", null, null);
+        assertTrue(rs.next());
+        assertTrue(rs.next());
+        assertFalse(rs.next());
+        metaData.getTables(null, "sales", "orders", null);
+        Mockito.verify(communicator, Mockito.times(1))
+                .send(Mockito.any(TablesRequest.class), Mockito.eq(TablesResponse.class));
+
+        // as are the columns of a table
+        rs = metaData.getColumns(null, "sales", "orders", null);
+        assertTrue(rs.next());
+        assertEquals("id", rs.getString(4));
+        assertFalse(rs.next());
+        metaData.getColumns(null, "sales", "orders", null);
+        Mockito.verify(communicator, Mockito.times(1))
+                .send(Mockito.any(ColumnsRequest.class), Mockito.eq(ColumnsResponse.class));
+    }
+
+    @Test
+    void testInvalidate() throws Exception {
+        var schemas = SchemasResponse.newBuilder()
+                .setCatalog("db")
+                .setDatabaseMetaData(DBMetaData.newBuilder().setIdentifierQuoteString("\"").build())
+                .setSchemas(List.of("sales"))
+                .setTableTypes(List.of("TABLE"))
+                .build();
+        var metaData = ProxyDatabaseMetaData.of(schemas, communicator);
+        assertTrue(metaData.isFetchedOnDemand());
+
+        Mockito.when(communicator.send(Mockito.any(TablesRequest.class), Mockito.eq(TablesResponse.class)))
+                .thenReturn(TablesResponse.newBuilder()
+                        .setTables(List.of(table("sales", "orders", new ArrayList<>())))
+                        .build());
+        Mockito.when(communicator.send(Mockito.any(SchemasRequest.class), Mockito.eq(SchemasResponse.class)))
+                .thenReturn(SchemasResponse.newBuilder(schemas).setSchemas(List.of("hr", "sales")).build());
+
+        metaData.getTables(null, "sales", null, null);
+        metaData.getTables(null, "sales", null, null);
+        Mockito.verify(communicator, Mockito.times(1))
+                .send(Mockito.any(TablesRequest.class), Mockito.eq(TablesResponse.class));
+
+        // the tables of a changed schema are fetched again, as is the list of schemas
+        metaData.invalidate(List.of("sales"));
+        metaData.getTables(null, "sales", null, null);
+        Mockito.verify(communicator, Mockito.times(2))
+                .send(Mockito.any(TablesRequest.class), Mockito.eq(TablesResponse.class));
+
+        var rs = metaData.getSchemas();
+        assertTrue(rs.next());
+        assertEquals("hr", rs.getString(1));
+        Mockito.verify(communicator, Mockito.times(1))
+                .send(Mockito.any(SchemasRequest.class), Mockito.eq(SchemasResponse.class));
+    }
+}
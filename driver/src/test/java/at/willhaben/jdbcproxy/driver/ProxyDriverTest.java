@@ -0,0 +1,19 @@
+package at.willhaben.jdbcproxy.driver;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ProxyDriverTest {
+
+    @Test
+    void testInvalidCompression() {
+        // rejected before connecting
+        assertThrows(SQLException.class,
+                () -> new ProxyDriver().connect("jdbc:auditproxy://localhost:1/db?compression=fastest", new Properties())
+        );
+    }
+}
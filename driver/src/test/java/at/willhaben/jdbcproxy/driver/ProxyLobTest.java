@@ -0,0 +1,96 @@
+package at.willhaben.jdbcproxy.driver;
+
+import at.willhaben.jdbcproxy.server.avro.LobRequest;
+import at.willhaben.jdbcproxy.server.avro.LobResponse;
+import at.willhaben.jdbcproxy.server.avro.LobValue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.BufferedReader;
+import java.nio.ByteBuffer;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@ExtendWith(MockitoExtension.class)
+class ProxyLobTest {
+
+    @Mock
+    private Communicator communicator;
+
+    private static LobValue lob(Object prefix, long length, int lobId) {
+        return LobValue.newBuilder().setPrefix(prefix).setLength(length).setTruncated(false).setLobId(lobId).build();
+    }
+
+    @Test
+    void testClob() throws Exception {
+        // the server returns whatever was requested from "abcdefgh", of which "abc" was sent as prefix
+        Mockito.when(communicator.send(Mockito.any(LobRequest.class), Mockito.eq(LobResponse.class)))
+                .thenAnswer(inv -> {
+                    LobRequest request = inv.getArgument(0);
+                    assertEquals(3, request.getLobId());
+                    int start = (int) request.getOffset();
+                    var data = "abcdefgh".substring(start, Math.min(8, start + request.getLength()));
+                    return LobResponse.newBuilder().setData(data).build();
+                });
+
+        var clob = (Clob) ProxyLob.of(communicator, lob("abc", 8, 3));
+        assertEquals(8, clob.length());
+        assertEquals("ab", clob.getSubString(1, 2));
+        assertEquals("cdef", clob.getSubString(3, 4));
+        assertEquals("abcdefgh", clob.getSubString(1, 100));
+        assertEquals("abcdefgh", new BufferedReader(clob.getCharacterStream()).readLine());
+    }
+
+    @Test
+    void testTruncatedText() throws Exception {
+        Mockito.when(communicator.send(Mockito.any(LobRequest.class), Mockito.eq(LobResponse.class)))
+                .thenReturn(LobResponse.newBuilder().setData("defgh").build());
+        var metaData = new ProxyResultSetMetaData("t", List.of("c"), List.of(Types.VARCHAR));
+        var rs = ProxyMemResultSet.of(
+                metaData, List.of(List.of(lob("abc", 8, 3)), List.of(lob("xyz", 8, 4))), communicator);
+
+        // the text is returned as truncated, without fetching the rest, and reported once
+        rs.next();
+        assertEquals("abc", rs.getString(1));
+        assertEquals("abc", rs.getObject(1));
+        rs.next();
+        assertEquals("xyz", rs.getString(1));
+        Mockito.verifyNoInteractions(communicator);
+        assertNotNull(rs.getWarnings());
+        assertNull(rs.getWarnings().getNextWarning());
+
+        // the complete value is read via getClob
+        assertEquals("xyzdefgh", rs.getClob(1).getSubString(1, 8));
+    }
+
+    @Test
+    void testBlob() throws Exception {
+        // the complete value was sent as prefix, so nothing is fetched
+        var blob = (Blob) ProxyLob.of(communicator, lob(ByteBuffer.wrap(new byte[] {1, 2, 3}), 3, 0));
+        assertArrayEquals(new byte[] {2, 3}, blob.getBytes(2, 10));
+        assertArrayEquals(new byte[] {1, 2, 3}, blob.getBinaryStream().readAllBytes());
+        Mockito.verifyNoInteractions(communicator);
+    }
+
+    @Test
+    void testNoLongerAvailable() throws Exception {
+        Mockito.when(communicator.send(Mockito.any(LobRequest.class), Mockito.eq(LobResponse.class)))
+                .thenReturn(LobResponse.newBuilder().setData(null).build());
+
+        var blob = (Blob) ProxyLob.of(communicator, lob(ByteBuffer.wrap(new byte[] {1}), 5, 2));
+        assertArrayEquals(new byte[] {1}, blob.getBytes(1, 1));
+        assertThrows(SQLException.class, () -> blob.getBytes(1, 5));
+    }
+}
@@ -0,0 +1,36 @@
+package at.willhaben.jdbcproxy.driver;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ProxyMemResultSetTest {
+
+    @Test
+    void testTemporalEncodings() throws SQLException {
+        // a value decodes the same whether the server sent it as a string or (with "temporal") as a number
+        var rs = new ProxyMemResultSet(null, List.of());
+
+        var date = rs.mapType(1, Types.DATE, LocalDate.parse("2022-06-01").toEpochDay());
+        assertEquals(java.sql.Date.class, date.getClass());
+        assertEquals(rs.mapType(1, Types.DATE, "2022-06-01T00:00:00"), date);
+        assertEquals(Instant.parse("2022-06-01T00:00:00Z").toEpochMilli(), ((java.util.Date) date).getTime());
+
+        var time = rs.mapType(1, Types.TIME, LocalTime.parse("13:14:15.123").toNanoOfDay() / 1000);
+        assertEquals(java.sql.Time.class, time.getClass());
+        assertEquals(rs.mapType(1, Types.TIME, "1970-01-01T13:14:15.123"), time);
+
+        var micros = Instant.parse("2022-06-01T13:14:15.123456Z").getEpochSecond() * 1_000_000 + 123456;
+        var timestamp = (java.sql.Timestamp) rs.mapType(1, Types.TIMESTAMP, micros);
+        assertEquals(java.sql.Timestamp.from(Instant.parse("2022-06-01T13:14:15.123456Z")), timestamp);
+        assertEquals(java.sql.Timestamp.from(Instant.parse("2022-06-01T13:14:15.123Z")),
+                rs.mapType(1, Types.TIMESTAMP, "2022-06-01T13:14:15.123"));
+    }
+}
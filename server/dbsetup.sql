@@ -29,5 +29,6 @@ create table operation (
     session integer references session,
     at timestamp,
     command varchar(4096) not null,
+    executed varchar(4096), -- the command as rewritten by the proxy (see databases.*.limitPushdown), if it was
     primary key (session, at)
 );
\ No newline at end of file
@@ -0,0 +1,109 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.ResultFormat;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * The protocol features and settings which are negotiated when a client authenticates (see messages.avdl).
+ * <p>
+ * The client lists the features it supports; the server replies with those which will be used on the
+ * connection, plus settings which the driver should apply (eg the keepalive interval). All values are strings,
+ * with lists separated by commas. A client which lists no capabilities at all (eg one which predates this
+ * negotiation, so sends AuthenticationRequest rather than AuthenticationRequestV2) gets the features which existed
+ * before this negotiation was introduced.
+ * </p>
+ */
+class Capabilities {
+    static final String PROTOCOL_VERSION = "protocol.version";
+    static final String FORMATS = "formats"; // ResultFormat values
+    // names of compressions in order of preference; the server returns the one to be used
+    static final String COMPRESSION = "compression";
+    static final String ENCODINGS = "encodings"; // optional encodings of result values, eg "dictionary"
+    static final String STREAMING = "streaming"; // results can be returned via a cursor, in batches
+    static final String LAZY_METADATA = "metadata.lazy"; // schemas, tables and columns are fetched on demand
+    static final String METADATA_VERSION = "metadata.version"; // metadata is only sent when changed
+    static final String METADATA_INVALIDATION = "metadata.invalidation"; // server reports schema changes
+    static final String MAX_BATCH_SIZE = "batch.max";
+    static final String MAX_ROWS = "rows.max";
+    static final String QUERY_TIMEOUT = "query.timeout.seconds";
+    static final String KEEPALIVE_INTERVAL = "keepalive.seconds";
+
+    static final int CURRENT_PROTOCOL_VERSION = 2;
+
+    static final String DICTIONARY_ENCODING = "dictionary"; // see ColumnKind.DICTIONARY
+    static final String DECIMAL_ENCODING = "decimal"; // see DecimalValue and ColumnKind.DECIMAL
+    static final String TEMPORAL_ENCODING = "temporal"; // see BasicValue
+    static final String LOB_ENCODING = "lob"; // see LobValue
+
+    private static final List<String> SUPPORTED_FORMATS = Arrays.stream(ResultFormat.values())
+            .map(Enum::name)
+            .collect(Collectors.toList());
+    private static final List<String> SUPPORTED_COMPRESSION = Compression.names();
+    private static final List<String> SUPPORTED_ENCODINGS =
+            List.of(DICTIONARY_ENCODING, DECIMAL_ENCODING, TEMPORAL_ENCODING, LOB_ENCODING);
+
+    private final Map<String, String> settings; // the same for all clients
+
+    Capabilities(int maxRows, int maxBatchSize, Duration queryLifetime, Duration keepAliveInterval) {
+        settings = Map.of(
+                MAX_ROWS, String.valueOf(maxRows),
+                MAX_BATCH_SIZE, String.valueOf(maxBatchSize),
+                QUERY_TIMEOUT, String.valueOf(queryLifetime.toSeconds()),
+                KEEPALIVE_INTERVAL, String.valueOf(keepAliveInterval.toSeconds()));
+    }
+
+    /**
+     * Return the features to be used with a client which supports the specified ones, plus the server settings.
+     */
+    Map<String, String> negotiate(Map<String, String> client) {
+        var result = new HashMap<>(settings);
+
+        int clientVersion = parseInt(client.get(PROTOCOL_VERSION), 0);
+        result.put(PROTOCOL_VERSION, String.valueOf(Math.min(clientVersion, CURRENT_PROTOCOL_VERSION)));
+
+        // clients which predate the negotiation support rows only, and no streaming
+        var formats = split(client.getOrDefault(FORMATS, ResultFormat.ROWS.name()));
+        result.put(FORMATS, join(intersect(formats, SUPPORTED_FORMATS)));
+        // the first compression preferred by the client (if any) is used for all large responses
+        var compression = intersect(split(client.get(COMPRESSION)), SUPPORTED_COMPRESSION);
+        result.put(COMPRESSION, compression.isEmpty() ? Compression.NONE.getName() : compression.get(0));
+        result.put(ENCODINGS, join(intersect(split(client.get(ENCODINGS)), SUPPORTED_ENCODINGS)));
+        result.put(STREAMING, client.getOrDefault(STREAMING, "false"));
+        result.put(LAZY_METADATA, client.getOrDefault(LAZY_METADATA, "false"));
+        result.put(METADATA_VERSION, client.getOrDefault(METADATA_VERSION, "false"));
+        result.put(METADATA_INVALIDATION, client.getOrDefault(METADATA_INVALIDATION, "false"));
+        return result;
+    }
+
+    static List<String> split(String value) {
+        if (value == null || value.isEmpty()) {
+            return List.of();
+        }
+        return Arrays.asList(value.split(","));
+    }
+
+    private static String join(List<String> values) {
+        return String.join(",", values);
+    }
+
+    /**
+     * Return the values of the first list (in order of preference) which also occur in the second.
+     */
+    private static List<String> intersect(List<String> preferred, List<String> supported) {
+        return preferred.stream().filter(supported::contains).collect(Collectors.toList());
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return (value == null) ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package at.willhaben.jdbcproxy.server;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Reads the values of one result column, for either result format.
+ * <p>
+ * A codec is chosen per column once per result-set (see RequestHandler.createCodecs), so that the type of the
+ * column is not re-examined for every cell. The numeric and boolean codecs use the typed getters of ResultSet,
+ * and write to the ColumnVectorBuilder or RowEncoder without boxing the values; all other types are read with
+ * getObject and mapped by RequestHandler.mapToType.
+ * </p>
+ */
+interface ColumnCodec {
+    /**
+     * Return the value of the column in the current row, as sent in the ROWS format (see RequestHandler.mapToType).
+     */
+    Object read(ResultSet rs, int column) throws SQLException;
+
+    /**
+     * Add the value of the column in the current row to the builder, for the COLUMNS format.
+     */
+    default void read(ResultSet rs, int column, ColumnVectorBuilder builder) throws SQLException {
+        builder.add(read(rs, column));
+    }
+
+    /**
+     * Write the value of the column in the current row to the encoder, for the ROWS format.
+     */
+    default void read(ResultSet rs, int column, RowEncoder encoder) throws SQLException {
+        encoder.write(read(rs, column));
+    }
+
+    ColumnCodec LONG = new ColumnCodec() {
+        @Override
+        public Object read(ResultSet rs, int column) throws SQLException {
+            long value = rs.getLong(column);
+            return rs.wasNull() ? null : value;
+        }
+
+        @Override
+        public void read(ResultSet rs, int column, ColumnVectorBuilder builder) throws SQLException {
+            long value = rs.getLong(column);
+            if (rs.wasNull()) {
+                builder.addNull();
+            } else {
+                builder.addLong(value);
+            }
+        }
+
+        @Override
+        public void read(ResultSet rs, int column, RowEncoder encoder) throws SQLException {
+            long value = rs.getLong(column);
+            if (rs.wasNull()) {
+                encoder.writeNull();
+            } else {
+                encoder.writeLong(value);
+            }
+        }
+    };
+
+    ColumnCodec DOUBLE = new ColumnCodec() {
+        @Override
+        public Object read(ResultSet rs, int column) throws SQLException {
+            double value = rs.getDouble(column);
+            return rs.wasNull() ? null : value;
+        }
+
+        @Override
+        public void read(ResultSet rs, int column, ColumnVectorBuilder builder) throws SQLException {
+            double value = rs.getDouble(column);
+            if (rs.wasNull()) {
+                builder.addNull();
+            } else {
+                builder.addDouble(value);
+            }
+        }
+
+        @Override
+        public void read(ResultSet rs, int column, RowEncoder encoder) throws SQLException {
+            double value = rs.getDouble(column);
+            if (rs.wasNull()) {
+                encoder.writeNull();
+            } else {
+                encoder.writeDouble(value);
+            }
+        }
+    };
+
+    ColumnCodec BOOLEAN = new ColumnCodec() {
+        @Override
+        public Object read(ResultSet rs, int column) throws SQLException {
+            boolean value = rs.getBoolean(column);
+            return rs.wasNull() ? null : value;
+        }
+
+        @Override
+        public void read(ResultSet rs, int column, ColumnVectorBuilder builder) throws SQLException {
+            boolean value = rs.getBoolean(column);
+            if (rs.wasNull()) {
+                builder.addNull();
+            } else {
+                builder.addBoolean(value);
+            }
+        }
+
+        @Override
+        public void read(ResultSet rs, int column, RowEncoder encoder) throws SQLException {
+            boolean value = rs.getBoolean(column);
+            if (rs.wasNull()) {
+                encoder.writeNull();
+            } else {
+                encoder.writeBoolean(value);
+            }
+        }
+    };
+}
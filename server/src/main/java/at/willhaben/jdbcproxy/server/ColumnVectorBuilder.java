@@ -0,0 +1,249 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.ColumnKind;
+import at.willhaben.jdbcproxy.server.avro.ColumnVector;
+import at.willhaben.jdbcproxy.server.avro.LobValue;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates the values of one result column, producing a ColumnVector for the columnar result format.
+ * <p>
+ * The values passed in are those produced by RequestHandler.mapToType, ie all non-null values of a column
+ * are expected to have the same (Long, Double, Boolean, String, BigDecimal or LobValue) type. Longs and doubles are written
+ * with the avro binary encoding (zigzag varints and 8 bytes respectively) without any per-value framing.
+ * </p>
+ * <p>
+ * When allowed, a string column whose values repeat a lot within the batch (eg a status or country code) is
+ * sent with dictionary encoding: each distinct value once, plus a small index per row. Besides the bytes saved,
+ * the driver then needs only one String instance per distinct value.
+ * </p>
+ * <p>
+ * A string column in which some values exceeded the inline limit (see LobStore.addText) is sent as LobValues.
+ * </p>
+ */
+class ColumnVectorBuilder {
+    private final int column; // for error messages only
+    private final BitSet nulls = new BitSet();
+    private final BitSet booleans = new BitSet();
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(bytes, null);
+    private final List<String> strings = new ArrayList<>();
+
+    // Max number of distinct values for which dictionary encoding is used
+    static final int MAX_DICTIONARY_SIZE = 1024;
+
+    private static final DatumWriter<LobValue> LOB_WRITER = new SpecificDatumWriter<>(LobValue.class);
+
+    private ColumnKind kind; // determined by the first non-null value
+    private int rowCount;
+    // index of each distinct string, while dictionary encoding is still possible (else null)
+    private Map<String, Integer> dictionary;
+
+    /**
+     * @param column is the (1-based) column number, for error messages
+     * @param dictionaryAllowed is true if the client supports dictionary encoding
+     */
+    ColumnVectorBuilder(int column, boolean dictionaryAllowed) {
+        this.column = column;
+        this.dictionary = dictionaryAllowed ? new HashMap<>() : null;
+    }
+
+    void add(Object value) throws SQLException {
+        int row = rowCount++;
+        if (value == null) {
+            nulls.set(row);
+            return;
+        }
+
+        var valueKind = kindOf(value);
+        if (kind == ColumnKind.STRING && valueKind == ColumnKind.LOB) {
+            // a text value which exceeded the inline limit; all values of the column are then sent as LobValues
+            toLobs();
+        } else if (kind == ColumnKind.LOB && valueKind == ColumnKind.STRING) {
+            value = toLobValue((String) value);
+            valueKind = ColumnKind.LOB;
+        }
+        setKind(valueKind);
+
+        try {
+            switch (kind) {
+                case LONG:
+                    encoder.writeLong((Long) value);
+                    break;
+                case DOUBLE:
+                    encoder.writeDouble((Double) value);
+                    break;
+                case BOOLEAN:
+                    booleans.set(row, (Boolean) value);
+                    break;
+                case DECIMAL:
+                    var decimal = (BigDecimal) value;
+                    encoder.writeInt(decimal.scale());
+                    encoder.writeBytes(decimal.unscaledValue().toByteArray());
+                    break;
+                case LOB:
+                    LOB_WRITER.write((LobValue) value, encoder);
+                    break;
+                default:
+                    strings.add((String) value);
+                    addToDictionary((String) value);
+            }
+        } catch(IOException e) {
+            // cannot happen when writing to a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void addNull() {
+        nulls.set(rowCount++);
+    }
+
+    /**
+     * Add a non-null value to a LONG column, without boxing it (see ColumnCodec).
+     */
+    void addLong(long value) throws SQLException {
+        setKind(ColumnKind.LONG);
+        ++rowCount;
+        try {
+            encoder.writeLong(value);
+        } catch(IOException e) {
+            // cannot happen when writing to a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void addDouble(double value) throws SQLException {
+        setKind(ColumnKind.DOUBLE);
+        ++rowCount;
+        try {
+            encoder.writeDouble(value);
+        } catch(IOException e) {
+            // cannot happen when writing to a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void addBoolean(boolean value) throws SQLException {
+        setKind(ColumnKind.BOOLEAN);
+        booleans.set(rowCount++, value);
+    }
+
+    private void setKind(ColumnKind valueKind) throws SQLException {
+        if (kind == null) {
+            kind = valueKind;
+        } else if (kind != valueKind) {
+            throw new SQLException(String.format(
+                    "Column %d contains values of mixed types (%s, %s)", column, kind, valueKind));
+        }
+    }
+
+    /**
+     * Convert the strings added so far to (complete) LobValues.
+     */
+    private void toLobs() {
+        dictionary = null;
+        bytes.reset();
+        try {
+            for (var value : strings) {
+                LOB_WRITER.write(toLobValue(value), encoder);
+            }
+        } catch(IOException e) {
+            // cannot happen when writing to a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        strings.clear();
+        kind = ColumnKind.LOB;
+    }
+
+    private static LobValue toLobValue(String value) {
+        return LobValue.newBuilder().setPrefix(value).setLength(value.length()).setTruncated(false).setLobId(0).build();
+    }
+
+    /**
+     * Record the index of a string in the dictionary (in bytes, which is otherwise unused for strings).
+     */
+    private void addToDictionary(String value) throws IOException {
+        if (dictionary == null) {
+            return;
+        }
+
+        var index = dictionary.get(value);
+        if (index == null) {
+            if (dictionary.size() >= MAX_DICTIONARY_SIZE) {
+                // too many distinct values to be worth it
+                dictionary = null;
+                bytes.reset();
+                return;
+            }
+            index = dictionary.size();
+            dictionary.put(value, index);
+        }
+        encoder.writeInt(index);
+    }
+
+    ColumnVector build() {
+        // Worthwhile when each distinct value occurs at least twice on average
+        if (kind == ColumnKind.STRING && dictionary != null && dictionary.size() * 2 <= strings.size()) {
+            var distinct = new String[dictionary.size()];
+            dictionary.forEach((value, index) -> distinct[index] = value);
+            return ColumnVector.newBuilder()
+                    .setKind(ColumnKind.DICTIONARY)
+                    .setNulls(ByteBuffer.wrap(nulls.toByteArray()))
+                    .setValues(ByteBuffer.wrap(bytes.toByteArray()))
+                    .setStrings(List.of(distinct))
+                    .build();
+        }
+
+        byte[] values;
+        if (kind == ColumnKind.BOOLEAN) {
+            values = booleans.toByteArray();
+        } else if (kind == ColumnKind.STRING) {
+            values = new byte[0]; // bytes may hold dictionary indexes, which are not used
+        } else {
+            values = bytes.toByteArray();
+        }
+        return ColumnVector.newBuilder()
+                .setKind((kind == null) ? ColumnKind.STRING : kind)
+                .setNulls(ByteBuffer.wrap(nulls.toByteArray()))
+                .setValues(ByteBuffer.wrap(values))
+                .setStrings(strings)
+                .build();
+    }
+
+    private static ColumnKind kindOf(Object value) throws SQLException {
+        if (value instanceof Long) {
+            return ColumnKind.LONG;
+        }
+        if (value instanceof Double) {
+            return ColumnKind.DOUBLE;
+        }
+        if (value instanceof Boolean) {
+            return ColumnKind.BOOLEAN;
+        }
+        if (value instanceof String) {
+            return ColumnKind.STRING;
+        }
+        if (value instanceof BigDecimal) {
+            return ColumnKind.DECIMAL;
+        }
+        if (value instanceof LobValue) {
+            return ColumnKind.LOB;
+        }
+        throw new SQLException("Unsupported value type: " + value.getClass().getName());
+    }
+}
@@ -0,0 +1,62 @@
+package at.willhaben.jdbcproxy.server;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+
+/**
+ * The ways in which large responses can be compressed, as negotiated with the client (see Capabilities).
+ * <p>
+ * All use the deflate format (which the JDK supports without further dependencies), so a client can decompress
+ * any of them; they differ only in the effort spent compressing. Metadata and result-sets mostly consist of
+ * repeated names and values, so even the fastest level typically reduces them several-fold.
+ * </p>
+ */
+enum Compression {
+    NONE("", Deflater.NO_COMPRESSION),
+    FAST("deflate-fast", Deflater.BEST_SPEED), // for fast networks, where CPU time matters more
+    BEST("deflate-best", Deflater.BEST_COMPRESSION); // for slow links, eg via VPN
+
+    // Smaller messages are not worth compressing
+    static final int THRESHOLD = 4 * 1024;
+
+    private final String name;
+    private final int level;
+
+    Compression(String name, int level) {
+        this.name = name;
+        this.level = level;
+    }
+
+    /**
+     * Return the name used in the capabilities.
+     */
+    String getName() {
+        return name;
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Return the names of all supported compressions.
+     */
+    static List<String> names() {
+        return Arrays.stream(values())
+                .filter(c -> c != NONE)
+                .map(Compression::getName)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Return the compression with the specified name, or NONE if unknown.
+     */
+    static Compression of(String name) {
+        return Arrays.stream(values())
+                .filter(c -> c.name.equals(name))
+                .findFirst()
+                .orElse(NONE);
+    }
+}
@@ -0,0 +1,41 @@
+package at.willhaben.jdbcproxy.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Accepts network connections from clients, and passes the requests received on each connection to a
+ * Multiplexer.
+ * <p>
+ * Requests from a single connection are always passed to its Multiplexer one at a time, in the order received.
+ * The Multiplexer then processes them using the threads provided by the engine.
+ * </p>
+ */
+interface ConnectionEngine {
+    /**
+     * Creates the handler for a newly accepted connection.
+     */
+    interface HandlerFactory {
+        /**
+         * @param executors returns the executor with which to process a specific request
+         */
+        Multiplexer create(Socket socket, Transport transport, Function<Object, Executor> executors);
+    }
+
+    /**
+     * Start accepting connections on the specified port.
+     */
+    void start(int port, HandlerFactory handlerFactory) throws IOException;
+
+    /**
+     * Return the port on which connections are accepted, eg when started with port zero (any free port).
+     */
+    int getPort();
+
+    /**
+     * Stop accepting connections, and close all existing connections.
+     */
+    void stop() throws IOException;
+}
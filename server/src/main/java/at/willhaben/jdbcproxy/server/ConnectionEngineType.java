@@ -0,0 +1,32 @@
+package at.willhaben.jdbcproxy.server;
+
+/**
+ * Indicates how network connections from clients are serviced.
+ * <p>
+ * The application configuration file specifies which mode is active for the proxy.
+ * </p>
+ */
+enum ConnectionEngineType {
+    /**
+     * Each connection is serviced by its own (platform) thread, which blocks while waiting for the next request.
+     * <p>
+     * Simple, but each connection pins a thread with its stack even while the client is idle.
+     * </p>
+     */
+    THREAD,
+
+    /**
+     * Each connection is serviced by its own virtual thread. An idle connection costs very little memory.
+     * <p>
+     * This requires the server to run on Java 21 or later.
+     * </p>
+     */
+    VIRTUAL,
+
+    /**
+     * All connections are monitored by a single thread using a selector, and requests are passed to a
+     * fixed-size pool of worker threads. An idle connection costs very little memory, and the number of
+     * threads does not depend on the number of connections.
+     */
+    NIO
+}
@@ -5,164 +5,124 @@ import at.willhaben.jdbcproxy.server.dao.AuditLogger;
 import at.willhaben.jdbcproxy.server.dao.SessionException;
 import at.willhaben.jdbcproxy.server.model.Login;
 import at.willhaben.jdbcproxy.server.model.Session;
-import org.apache.avro.io.*;
-import org.apache.avro.specific.SpecificDatumReader;
-import org.apache.avro.specific.SpecificDatumWriter;
 import org.apache.avro.specific.SpecificRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.net.SocketException;
 import java.sql.SQLException;
-import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
- * Handle a connected client.
+ * Handle a logical connection ("channel") of a connected client.
  * <p>
- * When request is a SessionRequest then create the session and terminate the connection.
+ * When the first request is a SessionRequest then create the session and terminate the connection.
+ * Similarly, a CancelRequest cancels the statement being executed by another connection.
  * </p>
  * <p>
- * Otherwise require an AuthorizationRequest and validate it; when not valid then terminate the connection.
- * Then repeatedly read a request-packet from the socket and pass it to the RequestHandler for processing.
+ * Otherwise require an AuthenticationRequest (or AuthenticationRequestV2) and validate it; when not valid then
+ * terminate the connection. Then pass each following request to the RequestHandler for processing.
+ * </p>
+ * <p>
+ * This class does not do any network IO itself; the Multiplexer passes requests for this channel to method
+ * onRequest (one at a time), and responses are sent via the Channel.
  * </p>
  */
-class ConnectionHandler implements Runnable {
+class ConnectionHandler {
     private static final Logger logger = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private final int maxRows;
+    private final int maxBatchSize;
+    private final Capabilities capabilities;
+    private final LobStore.Config lobConfig;
+    private final LobStore.Budget lobBudget;
     private final List<String> schemas;
     private final SessionManager sessionManager;
-    private final Socket socket;
-    private final Duration maxSocketLifetime;
+    private final Multiplexer.Channel channel;
     private final Map<String, Database> databases;
     private final Map<String, DataSource> dataSources;
+    private final Map<String, MetaDataCache> metaDataCaches;
+    private final Map<String, SchemaChangeDetector> schemaChangeDetectors;
     private final Watchdog watchdog;
+    private final Watchdog.SocketWatch watch;
     private final AuditLogger auditLogger;
     private final Authenticator authenticator;
+    private final ConnectionRegistry registry;
+    private final SchemaChangeDetector.Listener schemaChangeListener = this::onSchemaChange;
 
+    private ConnectionRegistry.Entry registration;
+    private boolean negotiating; // the client authenticated with AuthenticationRequestV2
     private String username;
     private Instant connectedAt;
     private String db;
+    private RequestHandler requestHandler; // set once the client has been authenticated
+    private SchemaChangeDetector schemaChangeDetector; // set if schema changes are reported to the client
 
     ConnectionHandler(
             int maxRows,
+            int maxBatchSize,
+            Capabilities capabilities,
+            LobStore.Config lobConfig,
+            LobStore.Budget lobBudget,
             List<String> schemas,
             SessionManager sessionManager,
-            Socket socket,
-            Duration maxSocketLifetime,
+            Multiplexer.Channel channel,
+            Watchdog.SocketWatch watch,
             Map<String, Database> databases,
             Map<String, DataSource> dataSources,
+            Map<String, MetaDataCache> metaDataCaches,
+            Map<String, SchemaChangeDetector> schemaChangeDetectors,
             Watchdog watchdog,
             AuditLogger auditLogger,
-            Authenticator authenticator) {
+            Authenticator authenticator,
+            ConnectionRegistry registry) {
         this.maxRows = maxRows;
+        this.maxBatchSize = maxBatchSize;
+        this.capabilities = capabilities;
+        this.lobConfig = lobConfig;
+        this.lobBudget = lobBudget;
         this.schemas = schemas;
         this.sessionManager = sessionManager;
-        this.socket = socket;
-        this.maxSocketLifetime = maxSocketLifetime;
+        this.channel = channel;
         this.databases = databases;
         this.dataSources = dataSources;
+        this.metaDataCaches = metaDataCaches;
+        this.schemaChangeDetectors = schemaChangeDetectors;
         this.watchdog = watchdog;
         this.auditLogger = auditLogger;
         this.authenticator = authenticator;
+        this.registry = registry;
+        this.watch = watch;
     }
 
-    @Override
-    public void run() {
-        try (var watch = watchdog.closeAfter(socket, maxSocketLifetime)) {
-            var request = receive();
-
-            if (request instanceof SessionRequest sr) {
-                // This message-type triggers a single request/response exchange followed by
-                // closing the socket.
-                int sessionId = sessionManager.createSession(sr);
-                send(SessionResponse.newBuilder().setSessionId(sessionId).build());
-                logger.info("Created new session by {} for {}", sr.getUsername(), sr.getForUsername());
-                return;
-            }
-
-            if (request instanceof AuthenticationRequest == false) {
-                throw new IOException("Invalid first packet - expected connection request");
-            }
-
-            // Validate authentication data, then store username for later logging
-            Session session;
-            var authenticationRequest = (AuthenticationRequest) request;
-            try {
-                session = validate(authenticationRequest);
-            } catch (IOException e) {
-                logger.warn("Session validation failed for user {}", authenticationRequest.getUsername());
-                send(AuthenticationResponse.newBuilder()
-                        .setAccepted(false)
-                        .setErrorMessage(e.getMessage())
-                        .build());
-                return;
+    /**
+     * Process a request received from the client.
+     *
+     * @return false if the channel should be closed
+     */
+    boolean onRequest(Object request) {
+        try {
+            if (requestHandler == null) {
+                return onFirstRequest(request);
             }
 
-            auditLogger.recordLogin(session);
-            watch.setUsername(session.getUsername());
-
-            this.username = authenticationRequest.getUsername();
-            this.connectedAt = Instant.now();
-            this.db = authenticationRequest.getDb();
-
-            var dataSource = dataSources.get(this.db);
-            if (dataSource == null) {
-                logger.warn("Unknown target database: user={} db={}", username, db);
-                send(AuthenticationResponse.newBuilder()
-                        .setAccepted(false)
-                        .setErrorMessage("Unknown database: " + db)
-                        .build());
-                return;
+            // watchdog.reschedule(watchId, now + 1hour)
+            if (request instanceof CloseRequest) {
+                send(new CloseResponse());
+                logger.info("Connection closed: user={} database={}", username, db);
+                return false;
             }
 
-            var login = new Login(session);
-
-            send(AuthenticationResponse.newBuilder().setAccepted(true).build());
-
-            logger.info("Session validation succeeded for user={} db={}", username, db);
-
-            RequestHandler requestHandler = new RequestHandler(
-                    login,
-                    schemas,
-                    maxRows,
-                    dataSource,
-                    watchdog,
-                    auditLogger);
-
-            // Now enter a loop, reading requests and passing them to the requestHandler for processing.
-            boolean done = false;
-            while (!done) {
-                request = receive();
-                if (request == null) {
-                    logger.info("Client closed socket (EOF): user={}", username);
-                    done = true;
-                    continue;
-                }
-
-                // watchdog.reschedule(watchId, now + 1hour)
-                if (request instanceof CloseRequest) {
-                    done = true;
-                    send(new CloseResponse());
-                    logger.info("Connection closed: user={} database={}", username, db);
-                    continue;
-                }
-
-                var response = requestHandler.handleRequest(request);
-                if (response == null) {
-                    response = ErrorResponse.newBuilder().setMessage("Unsupported request type").build();
-                }
-                send(response);
+            var response = requestHandler.handleRequest(request);
+            if (response == null) {
+                response = ErrorResponse.newBuilder().setMessage("Unsupported request type").build();
             }
+            send(response);
+            return true;
         } catch (SessionException e) {
             logger.warn("Failure while authenticating remote user!", e);
             try {
@@ -172,73 +132,218 @@ class ConnectionHandler implements Runnable {
             } catch (IOException e2) {
                 logger.warn("Unable to tell client about the error!");
             }
+            return false;
         } catch (IOException | SQLException | RuntimeException e) {
-            logger.warn("Failure while communicating to underlying database or to client. Closing Connection! ", e);
-            try {
-                send(ErrorResponse.newBuilder().setMessage("Unknown error").build());
-            } catch (IOException e2) {
-                logger.warn("Unable to tell client about the error!");
-            }
-        } finally {
-            try {
-                socket.close();
-            } catch (IOException e2) {
-                //ignore
-            }
-            logger.info("Connection terminated: user={} database={} connectedAt={}", username, db, connectedAt);
+            onError(e);
+            return false;
         }
     }
 
-    public void stop() {
+    /**
+     * Invoked when processing fails; the channel is then closed.
+     */
+    void onError(Exception e) {
+        logger.warn("Failure while communicating to underlying database or to client. Closing Connection! ", e);
         try {
-            socket.close();
-        } catch (IOException e) {
-            // ignore
+            send(ErrorResponse.newBuilder().setMessage("Unknown error").build());
+        } catch (IOException e2) {
+            logger.warn("Unable to tell client about the error!");
         }
     }
 
-    void send(SpecificRecord response) throws IOException {
-        var rsp = Response.newBuilder().setResponse(response).build();
-        serializeAvroResponse(rsp, socket.getOutputStream());
-    }
+    /**
+     * Handle the first request on a connection, which must either create a session or authenticate the client.
+     *
+     * @return false if the channel should be closed
+     */
+    private boolean onFirstRequest(Object request) throws IOException, SessionException {
+        if (request instanceof SessionRequest sr) {
+            // This message-type triggers a single request/response exchange followed by
+            // closing the channel.
+            int sessionId = sessionManager.createSession(sr);
+            send(SessionResponse.newBuilder().setSessionId(sessionId).build());
+            logger.info("Created new session by {} for {}", sr.getUsername(), sr.getForUsername());
+            return false;
+        }
+
+        if (request instanceof CancelRequest cr) {
+            boolean cancelled = registry.cancel(cr.getCancelToken());
+            send(CancelResponse.newBuilder().setCancelled(cancelled).build());
+            logger.info("Cancel request: cancelled={}", cancelled);
+            return false;
+        }
 
-    Object receive() throws IOException {
+        if (request instanceof CloseRequest) {
+            // eg the client closing a channel whose authentication failed
+            send(new CloseResponse());
+            return false;
+        }
+
+        // A client which predates feature negotiation sends an AuthenticationRequest, and gets the features which
+        // existed then (see Capabilities.negotiate)
+        AuthenticationRequest authenticationRequest;
+        Map<String, String> clientCapabilities;
+        if (request instanceof AuthenticationRequestV2 ar) {
+            negotiating = true;
+            authenticationRequest = new AuthenticationRequest(ar.getUsername(), ar.getPassword(), ar.getDb());
+            clientCapabilities = ar.getCapabilities();
+        } else if (request instanceof AuthenticationRequest ar) {
+            authenticationRequest = ar;
+            clientCapabilities = Map.of();
+        } else {
+            throw new IOException("Invalid first packet - expected connection request");
+        }
+
+        // Reject a connection beyond the limits before the (expensive) authentication
         try {
-            var request = deserializeAvroRequest(Request.class, socket.getInputStream());
-            if (request == null) {
-                // eof
-                logger.info("No AVRO request read; assuming EOF");
-                return null;
-            }
-            return request.getRequest();
-        } catch(RuntimeException e) {
-            // avro sometimes throws RuntimeExceptions, eg ArrayIndexOutOfBoundsException
-            throw new IOException("Unable to parse message from client", e);
+            registry.check(authenticationRequest.getUsername(), authenticationRequest.getDb());
+        } catch (ConnectionRegistry.LimitExceededException e) {
+            logger.warn("Connection rejected: {}", e.getMessage());
+            sendAuthenticationResponse(false, e.getMessage(), 0, Map.of());
+            return false;
         }
-    }
 
-    void serializeAvroResponse(SpecificRecord request, OutputStream target) {
-        DatumWriter<SpecificRecord> writer = new SpecificDatumWriter<>(request.getSchema());
-        Encoder encoder = EncoderFactory.get().binaryEncoder(target, null);
+        // Validate authentication data, then store username for later logging
+        Session session;
         try {
-            writer.write(request, encoder);
-            encoder.flush();
+            session = validate(authenticationRequest);
         } catch (IOException e) {
-            throw new RuntimeException("Serialization error:" + e.getMessage());
+            logger.warn("Session validation failed for user {}", authenticationRequest.getUsername());
+            sendAuthenticationResponse(false, e.getMessage(), 0, Map.of());
+            return false;
+        }
+
+        // Only now that the user is known to be who they claim, count the connection against the user's limit;
+        // other connections may have been registered meanwhile
+        try {
+            registration = registry.register(authenticationRequest.getUsername(), authenticationRequest.getDb());
+        } catch (ConnectionRegistry.LimitExceededException e) {
+            logger.warn("Connection rejected: {}", e.getMessage());
+            sendAuthenticationResponse(false, e.getMessage(), 0, Map.of());
+            return false;
+        }
+
+        auditLogger.recordLogin(session);
+        watch.setUsername(session.getUsername());
+
+        this.username = authenticationRequest.getUsername();
+        this.connectedAt = Instant.now();
+        this.db = authenticationRequest.getDb();
+
+        var dataSource = dataSources.get(this.db);
+        if (dataSource == null) {
+            logger.warn("Unknown target database: user={} db={}", username, db);
+            sendAuthenticationResponse(false, "Unknown database: " + db, 0, Map.of());
+            return false;
+        }
+
+        var login = new Login(session);
+        var database = databases.get(this.db);
+
+        var settings = capabilities.negotiate(clientCapabilities);
+        sendAuthenticationResponse(true, null, registration.getCancelToken(), settings);
+        channel.setCompression(Compression.of(settings.get(Capabilities.COMPRESSION)));
+
+        logger.info("Session validation succeeded for user={} db={}", username, db);
+
+        requestHandler = new RequestHandler(
+                login,
+                schemas,
+                maxRows,
+                maxBatchSize,
+                database.getFetchSize(),
+                database.getDialect(),
+                database.isLimitPushdown(),
+                database.isPartialResults(),
+                Capabilities.split(settings.get(Capabilities.ENCODINGS)),
+                new LobStore(lobConfig, lobBudget),
+                dataSource,
+                metaDataCaches.get(db),
+                watchdog,
+                auditLogger,
+                registration);
+
+        if (Boolean.parseBoolean(settings.get(Capabilities.METADATA_INVALIDATION))) {
+            schemaChangeDetector = schemaChangeDetectors.get(db);
+            if (schemaChangeDetector != null) {
+                schemaChangeDetector.addListener(schemaChangeListener);
+            }
         }
+        return true;
     }
 
-    <T extends SpecificRecord> T deserializeAvroRequest(Class<T> clazz, InputStream in) {
-        DatumReader<T> reader = new SpecificDatumReader<>(clazz);
-        Decoder decoder = DecoderFactory.get().directBinaryDecoder(in, null);
+    /**
+     * Tell the client which of the schemas it can see have changed (see SchemaChangeDetector); invoked by the
+     * thread polling for changes.
+     */
+    void onSchemaChange(List<String> changed) {
+        var visible = changed.stream()
+                .filter(schema -> (schemas == null) || schemas.contains(schema))
+                .collect(Collectors.toList());
+        if (visible.isEmpty()) {
+            return;
+        }
+
         try {
-            return reader.read(null, decoder);
-        } catch (EOFException | SocketException e) {
-            // socket closed
-            logger.info("Failed to read avro message", e);
-            return null;
+            channel.push(MetaDataInvalidation.newBuilder().setSchemas(visible).build());
         } catch (IOException e) {
-            throw new RuntimeException("Deserialization error:" + e.getClass() + ":" + e.getMessage());
+            logger.info("Unable to report schema changes to user={}: {}", username, e.getMessage());
+        }
+    }
+
+    /**
+     * Return true if processing the request may need to wait for a connection from a connection-pool (or some
+     * other limited resource), rather than just using resources already held on behalf of this client.
+     */
+    static boolean mayWaitForPool(Object request) {
+        return !(request == null
+                || request instanceof FetchRequest
+                || request instanceof CloseCursorRequest
+                || request instanceof LobRequest
+                || request instanceof PingRequest
+                || request instanceof CloseRequest
+                || request instanceof CancelRequest);
+    }
+
+    /**
+     * Invoked by the Multiplexer once the channel has been closed (for whatever reason), to release
+     * all resources held on behalf of the client.
+     */
+    void onClose() {
+        if (schemaChangeDetector != null) {
+            schemaChangeDetector.removeListener(schemaChangeListener);
+        }
+        if (requestHandler != null) {
+            requestHandler.close();
+        }
+        if (registration != null) {
+            registration.close();
+        }
+        logger.info("Connection terminated: user={} database={} connectedAt={}", username, db, connectedAt);
+    }
+
+    void send(SpecificRecord response) throws IOException {
+        channel.send(response);
+    }
+
+    /**
+     * Reply to the authentication request, with the response type matching the request's.
+     */
+    private void sendAuthenticationResponse(
+            boolean accepted, String errorMessage, long cancelToken, Map<String, String> settings) throws IOException {
+        if (negotiating) {
+            send(AuthenticationResponseV2.newBuilder()
+                    .setAccepted(accepted)
+                    .setErrorMessage(errorMessage)
+                    .setCancelToken(cancelToken)
+                    .setSettings(settings)
+                    .build());
+        } else {
+            // as released, ie without a cancel token
+            send(AuthenticationResponse.newBuilder()
+                    .setAccepted(accepted)
+                    .setErrorMessage(errorMessage)
+                    .build());
         }
     }
 
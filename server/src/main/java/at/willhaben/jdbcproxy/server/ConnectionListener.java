@@ -10,41 +10,55 @@ import org.springframework.stereotype.Component;
 
 import javax.sql.DataSource;
 import java.io.IOException;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.time.Duration;
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
- * Listens for new TCP connections, and spawns a thread to handle requests to it.
+ * Listens for new TCP connections, and creates a Multiplexer to handle requests to it (which in turn creates a
+ * ConnectionHandler for each logical connection).
  * These are not HTTP requests, so spring-web isn't used.
+ * <p>
+ * The network IO is done by a ConnectionEngine; the configuration specifies which implementation is used.
+ * </p>
  */
 @Component
 public class ConnectionListener {
     private static final Logger logger = LoggerFactory.getLogger(ConnectionListener.class);
 
     private final int maxRows;
+    private final int maxBatchSize;
     private final Duration socketLifetime;
     private final Map<String, Database> databases;
     private final Map<String, DataSource> dataSources;
+    private final Map<String, MetaDataCache> metaDataCaches;
+    private final Map<String, SchemaChangeDetector> schemaChangeDetectors;
     private final List<String> schemas;
+    private final Capabilities capabilities;
+    private final LobStore.Config lobConfig;
+    private final LobStore.Budget lobBudget; // shared by all connections
 
-    private final ServerSocket serverSocket;
-    private final List<ConnectionHandler> handlers = new ArrayList<>(); // one per connected client
+    private final ConnectionEngine engine;
     private final Watchdog watchdog;
     private final SessionRepository sessionRepository;
     private final SessionManager sessionManager;
     private final Authenticator authenticator;
     private final AuditLogger auditLogger;
-
-    private final AtomicBoolean done = new AtomicBoolean();
+    private final ConnectionRegistry registry;
+    private final ScheduledExecutorService scheduler; // polls the databases for schema changes
 
     ConnectionListener(ProxyConfig proxyConfig) throws IOException {
         maxRows = proxyConfig.getMaxRows();
+        maxBatchSize = proxyConfig.getMaxBatchSize();
+        lobConfig = proxyConfig.getLobs();
+        lobBudget = new LobStore.Budget(lobConfig.getMaxTotalStoredSize());
         socketLifetime = Duration.parse(proxyConfig.getSocketLifetime());
 
         switch(proxyConfig.getAuthenticationManagement()) {
@@ -57,7 +71,8 @@ public class ConnectionListener {
                 break;
 
             default:
-                throw new UnsupportedOperationException();
+                throw new IllegalStateException(
+                        "Unknown authenticationManagement: " + proxyConfig.getAuthenticationManagement());
         }
 
         Duration sessionLifetime = Duration.parse(proxyConfig.getSessionLifetime());
@@ -85,17 +100,53 @@ public class ConnectionListener {
 
         // Create connection-pools for all databases that can be proxied to
         dataSources = createDataSources(databases);
-
-        // Create socket for clients to connect to
-        serverSocket = new ServerSocket(proxyConfig.getPort());
+        metaDataCaches = createMetaDataCaches(databases, dataSources);
+
+        // Detect schema changes of the databases, without connecting before the first poll is due
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "schema-change-detector");
+            thread.setDaemon(true);
+            return thread;
+        });
+        schemaChangeDetectors = createSchemaChangeDetectors(databases, dataSources, metaDataCaches);
+        schemaChangeDetectors.forEach((name, detector) ->
+                detector.start(scheduler, Duration.parse(databases.get(name).getSchemaPollInterval())));
+
+        registry = new ConnectionRegistry(
+                proxyConfig.getMaxConnections(),
+                proxyConfig.getMaxConnectionsPerUser(),
+                proxyConfig.getMaxConnectionsPerDatabase());
 
         // Ensure timeouts are enforced
         Duration queryLifetime = Duration.parse(proxyConfig.getQueryLifetime());
-        watchdog = new Watchdog(queryLifetime);
+        watchdog = new Watchdog(queryLifetime, Duration.parse(proxyConfig.getCursorIdleTimeout()));
+
+        capabilities = new Capabilities(
+                maxRows,
+                maxBatchSize,
+                queryLifetime,
+                Duration.parse(proxyConfig.getKeepAliveInterval()));
+
+        switch(proxyConfig.getEngine()) {
+            case THREAD:
+                engine = new ThreadConnectionEngine(Thread::new, proxyConfig.getWorkerThreads());
+                break;
+
+            case VIRTUAL:
+                engine = new ThreadConnectionEngine(
+                        ThreadConnectionEngine.virtualThreadFactory(), proxyConfig.getWorkerThreads());
+                break;
+
+            case NIO:
+                engine = new NioConnectionEngine(proxyConfig.getWorkerThreads());
+                break;
+
+            default:
+                throw new IllegalStateException("Unknown engine: " + proxyConfig.getEngine());
+        }
 
         // Start listening for clients
-        Thread t = new Thread(this::handleConnection);
-        t.start();
+        engine.start(proxyConfig.getPort(), this::createHandler);
     }
 
     /**
@@ -112,6 +163,49 @@ public class ConnectionListener {
                 e -> DatasourceProvider.createDataSource(e.getValue())));
     }
 
+    /**
+     * Create a metadata cache for each database which has a metadata cache lifetime. Nothing is loaded until a
+     * client first needs the metadata.
+     */
+    static Map<String, MetaDataCache> createMetaDataCaches(
+            Map<String, Database> databases,
+            Map<String, DataSource> dataSources) {
+        var caches = new HashMap<String, MetaDataCache>();
+        databases.forEach((name, database) -> {
+            var lifetime = Duration.parse(database.getMetaDataCacheLifetime());
+            if (!lifetime.isZero() && !lifetime.isNegative()) {
+                var dataSource = dataSources.get(name);
+                var dialect = database.getDialect();
+                caches.put(name, new MetaDataCache(
+                        name,
+                        lifetime,
+                        () -> RequestHandler.readMetaData(dataSource, dialect, null),
+                        () -> RequestHandler.readSchemas(dataSource)));
+            }
+        });
+        return caches;
+    }
+
+    /**
+     * Create a schema change detector for each database which has a schema poll interval and a dialect which
+     * supports this.
+     */
+    static Map<String, SchemaChangeDetector> createSchemaChangeDetectors(
+            Map<String, Database> databases,
+            Map<String, DataSource> dataSources,
+            Map<String, MetaDataCache> metaDataCaches) {
+        var detectors = new HashMap<String, SchemaChangeDetector>();
+        databases.forEach((name, database) -> {
+            var interval = Duration.parse(database.getSchemaPollInterval());
+            var query = database.getDialect().schemaVersionsQuery();
+            if (!interval.isZero() && !interval.isNegative() && (query != null)) {
+                detectors.put(name, new SchemaChangeDetector(
+                        name, dataSources.get(name), query, metaDataCaches.get(name)));
+            }
+        });
+        return detectors;
+    }
+
     @EventListener
     public void handleStartEvent(ContextStartedEvent event) {
         logger.info("Context Start Event received.");
@@ -121,34 +215,30 @@ public class ConnectionListener {
     public void handleStopEvent(ContextStoppedEvent event) throws IOException {
         logger.info("Context Start Event received.");
 
-        done.set(true);
-        serverSocket.close(); // stop accepting new connections - and also wakes code blocked on serverSocket.accept()
+        engine.stop(); // stop accepting new connections, and close all existing connections from clients
+        scheduler.shutdownNow(); // stop polling for schema changes
         watchdog.expireAll(); // kill all currently running SQL requests (triggering error messages back to client)
-        handlers.forEach(ConnectionHandler::stop); // close all existing connections from clients
     }
 
-    void handleConnection() {
-        try {
-            while (!done.get()) {
-                Socket socket = serverSocket.accept();
-                ConnectionHandler handler = new ConnectionHandler(
-                        maxRows,
-                        schemas,
-                        sessionManager,
-                        socket,
-                        socketLifetime,
-                        databases,
-                        dataSources,
-                        watchdog,
-                        auditLogger,
-                        authenticator);
-                handlers.add(handler);
-                Thread t = new Thread(handler);
-                t.start();
-            }
-        } catch(IOException e) {
-            // ignore
-           logger.warn("Failed to accept socket");
-        }
+    Multiplexer createHandler(Socket socket, Transport transport, Function<Object, Executor> executors) {
+        var watch = watchdog.closeAfter(socket, socketLifetime);
+        return new Multiplexer(transport, executors, watch, channel -> new ConnectionHandler(
+                maxRows,
+                maxBatchSize,
+                capabilities,
+                lobConfig,
+                lobBudget,
+                schemas,
+                sessionManager,
+                channel,
+                watch,
+                databases,
+                dataSources,
+                metaDataCaches,
+                schemaChangeDetectors,
+                watchdog,
+                auditLogger,
+                authenticator,
+                registry));
     }
-}
\ No newline at end of file
+}
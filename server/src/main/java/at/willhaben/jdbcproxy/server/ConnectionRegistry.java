@@ -0,0 +1,162 @@
+package at.willhaben.jdbcproxy.server;
+
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of all live authenticated client connections, and limits their number.
+ * <p>
+ * A misconfigured tool can open hundreds of connections, each of which costs memory in this process and
+ * potentially a connection in the pool of the target database. Limits apply to the total number of connections,
+ * to the connections per user and to the connections per target database. A limit of zero means "unlimited".
+ * </p>
+ * <p>
+ * Authenticating a client is expensive (LDAP, and a session in the audit database), so a connection which would
+ * exceed a limit is rejected before that, by checking the limits for the user it claims to be (see check). It is
+ * registered only once the user has been authenticated, as the limits are per user: otherwise a client without
+ * valid credentials could use up the connections of another user just by naming them. Such a client can at most
+ * be rejected early while the user's limit is reached anyway.
+ * </p>
+ * <p>
+ * Each connection also has a random "cancel token", which the client can present on a separate connection to
+ * cancel the statement currently being executed (see CancelRequest). The original connection cannot be used for
+ * this, as the client is blocked waiting for the response to its query.
+ * </p>
+ */
+class ConnectionRegistry {
+    /**
+     * Thrown when a connection would exceed one of the limits.
+     */
+    static class LimitExceededException extends Exception {
+        LimitExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A live connection; must be closed when the connection terminates.
+     */
+    class Entry implements AutoCloseable {
+        private final String user;
+        private final String db;
+        private final long cancelToken;
+        private volatile Statement activeStatement; // the statement currently being executed, if any
+
+        private Entry(String user, String db, long cancelToken) {
+            this.user = user;
+            this.db = db;
+            this.cancelToken = cancelToken;
+        }
+
+        long getCancelToken() {
+            return cancelToken;
+        }
+
+        /**
+         * Record the statement which is about to be executed (or null when execution has completed).
+         */
+        void setActiveStatement(Statement statement) {
+            this.activeStatement = statement;
+        }
+
+        private boolean cancel() {
+            var statement = activeStatement;
+            if (statement == null) {
+                return false;
+            }
+            try {
+                statement.cancel();
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            unregister(this);
+        }
+    }
+
+    private final int maxConnections;
+    private final int maxConnectionsPerUser;
+    private final int maxConnectionsPerDatabase;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Set<Entry> entries = new HashSet<>(); // guarded by this
+    private final Map<Long, Entry> byCancelToken = new HashMap<>(); // guarded by this
+    private final Map<String, Integer> perUser = new HashMap<>(); // guarded by this
+    private final Map<String, Integer> perDatabase = new HashMap<>(); // guarded by this
+
+    ConnectionRegistry(int maxConnections, int maxConnectionsPerUser, int maxConnectionsPerDatabase) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerUser = maxConnectionsPerUser;
+        this.maxConnectionsPerDatabase = maxConnectionsPerDatabase;
+    }
+
+    /**
+     * Verify that a new connection would not exceed one of the limits, without registering it; the limits are
+     * checked again by register.
+     */
+    synchronized void check(String user, String db) throws LimitExceededException {
+        if (exceeds(entries.size(), maxConnections)) {
+            throw new LimitExceededException("Too many connections to proxy server");
+        }
+        if (exceeds(perUser.getOrDefault(user, 0), maxConnectionsPerUser)) {
+            throw new LimitExceededException("Too many connections for user " + user);
+        }
+        if (exceeds(perDatabase.getOrDefault(db, 0), maxConnectionsPerDatabase)) {
+            throw new LimitExceededException("Too many connections to database " + db);
+        }
+    }
+
+    /**
+     * Register a new connection, unless that would exceed one of the limits.
+     */
+    synchronized Entry register(String user, String db) throws LimitExceededException {
+        check(user, db);
+
+        long token;
+        do {
+            token = random.nextLong();
+        } while (token == 0 || byCancelToken.containsKey(token)); // zero means "no token"
+
+        var entry = new Entry(user, db, token);
+        entries.add(entry);
+        byCancelToken.put(token, entry);
+        perUser.merge(user, 1, Integer::sum);
+        perDatabase.merge(db, 1, Integer::sum);
+        return entry;
+    }
+
+    private synchronized void unregister(Entry entry) {
+        if (entries.remove(entry)) {
+            byCancelToken.remove(entry.cancelToken);
+            perUser.computeIfPresent(entry.user, (k, n) -> (n > 1) ? n - 1 : null);
+            perDatabase.computeIfPresent(entry.db, (k, n) -> (n > 1) ? n - 1 : null);
+        }
+    }
+
+    /**
+     * Cancel the statement currently being executed by the connection with the specified cancel token.
+     *
+     * @return false if there is no such connection, or it is not executing a statement
+     */
+    boolean cancel(long cancelToken) {
+        Entry entry;
+        synchronized (this) {
+            entry = byCancelToken.get(cancelToken);
+        }
+        // Statement.cancel may block briefly (eg while contacting the database), so not done while locked
+        return (entry != null) && entry.cancel();
+    }
+
+    private static boolean exceeds(int current, int limit) {
+        return (limit > 0) && (current >= limit);
+    }
+}
@@ -0,0 +1,171 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.ResultColumnsMetaData;
+import at.willhaben.jdbcproxy.server.avro.ResultFormat;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * A query whose results are being returned to the client in batches.
+ * <p>
+ * The database connection, statement and result-set stay open until all rows have been read or the client
+ * closes the cursor. The connection is therefore not available to the connection-pool for that time, which
+ * is why the number of open cursors per client is limited (see RequestHandler), and why a cursor which the
+ * client has not read from for a while is closed (see Watchdog.closeWhenIdle).
+ * </p>
+ * <p>
+ * The cursor is read by the thread processing the client's requests, but may be closed by the watchdog; a
+ * cursor is therefore only closed as idle while it is not being read (see acquire).
+ * </p>
+ */
+class Cursor implements AutoCloseable {
+    private final int id;
+    private final Connection connection;
+    private final Statement statement;
+    private final ResultSet resultSet;
+    private final ResultColumnsMetaData metaData;
+    private final ColumnCodec[] codecs;
+    private final ResultFormat format;
+    private final int batchSize;
+    private final int maxRows; // zero means no limit
+    private final boolean partialResults; // return the rows read so far when the query is cancelled on timeout
+
+    private int rowsRead;
+    private boolean timedOut; // the query was cancelled while reading the last batch
+    private long lastUsed = System.currentTimeMillis(); // guarded by this
+    private boolean inUse; // being read by the client (guarded by this)
+    private boolean closed; // guarded by this
+
+    Cursor(
+            int id,
+            Connection connection,
+            Statement statement,
+            ResultSet resultSet,
+            ResultColumnsMetaData metaData,
+            ColumnCodec[] codecs,
+            ResultFormat format,
+            int batchSize,
+            int maxRows,
+            boolean partialResults) {
+        this.id = id;
+        this.connection = connection;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.metaData = metaData;
+        this.codecs = codecs;
+        this.format = format;
+        this.batchSize = batchSize;
+        this.maxRows = maxRows;
+        this.partialResults = partialResults;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    Statement getStatement() {
+        return statement;
+    }
+
+    ResultSet getResultSet() {
+        return resultSet;
+    }
+
+    ResultColumnsMetaData getMetaData() {
+        return metaData;
+    }
+
+    ColumnCodec[] getCodecs() {
+        return codecs;
+    }
+
+    ResultFormat getFormat() {
+        return format;
+    }
+
+    boolean isPartialResults() {
+        return partialResults;
+    }
+
+    boolean isTimedOut() {
+        return timedOut;
+    }
+
+    void setTimedOut(boolean timedOut) {
+        this.timedOut = timedOut;
+    }
+
+    /**
+     * Return the number of rows that the next batch may contain, taking the max-rows limit (if any) into account.
+     */
+    int nextBatchSize() {
+        return (maxRows > 0) ? Math.min(batchSize, maxRows - rowsRead) : batchSize;
+    }
+
+    void addRowsRead(int count) {
+        rowsRead += count;
+    }
+
+    /**
+     * Mark the cursor as being read, so that it is not closed as idle until release is called.
+     *
+     * @return false if the cursor has already been closed (because it was idle for too long)
+     */
+    synchronized boolean acquire() {
+        if (closed) {
+            return false;
+        }
+        inUse = true;
+        return true;
+    }
+
+    synchronized void release() {
+        inUse = false;
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Close the cursor if it has not been read since the given time (and is not being read now).
+     *
+     * @return true if the cursor was closed by this call
+     */
+    synchronized boolean closeIfIdleSince(long time) {
+        if (closed || inUse || lastUsed >= time) {
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Release the underlying database resources, returning the connection to its pool.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeQuietly(resultSet);
+        closeQuietly(statement);
+        closeQuietly(connection);
+    }
+
+    private static void closeQuietly(AutoCloseable resource) {
+        if (resource == null) {
+            return;
+        }
+
+        try {
+            resource.close();
+        } catch (Exception e) {
+            // ignore - nothing useful can be done here
+        }
+    }
+}
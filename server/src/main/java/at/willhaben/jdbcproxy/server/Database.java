@@ -9,6 +9,11 @@ public class Database {
     private String username;
     private String password;
     private boolean audited = true; // whether to keep an audit-trail or not
+    private int fetchSize = 1000; // rows fetched from the database per round-trip, unless the client asks otherwise
+    private boolean limitPushdown = false; // whether to add the max-rows limit to queries as a LIMIT clause
+    private boolean partialResults = false; // whether to return the rows read so far when a query times out
+    private String metaDataCacheLifetime = "PT10M"; // ISO-8601 format; zero means metadata is not cached
+    private String schemaPollInterval = "PT0S"; // ISO-8601 format; zero (default) means changes are not detected
     private SessionManagement sessionManagement = null; // null means "use global default"
 
     void setDriverClass(String driverClass) {
@@ -51,6 +56,74 @@ public class Database {
         audited = state;
     }
 
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Set the number of rows that are fetched from the database per round-trip when the client has not specified
+     * a fetch-size itself. This bounds the memory used for a large result-set on the proxy; zero means the default
+     * of the JDBC driver, which for some databases is to read all rows at once.
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public boolean isLimitPushdown() {
+        return limitPushdown;
+    }
+
+    /**
+     * Set whether queries without a row-limiting clause of their own get the max-rows limit appended as one
+     * (eg LIMIT for postgres and mysql, FETCH FIRST for oracle), so that the database need not produce more rows
+     * than can be returned. Has no effect for databases of unknown dialect (see LimitRewriter).
+     */
+    public void setLimitPushdown(boolean limitPushdown) {
+        this.limitPushdown = limitPushdown;
+    }
+
+    public boolean isPartialResults() {
+        return partialResults;
+    }
+
+    /**
+     * Set whether a query which is cancelled because it ran longer than the query-lifetime returns the rows read
+     * until then (marked as timed-out) rather than an error. Clients can also request this per query.
+     */
+    public void setPartialResults(boolean partialResults) {
+        this.partialResults = partialResults;
+    }
+
+    public String getMetaDataCacheLifetime() {
+        return metaDataCacheLifetime;
+    }
+
+    /**
+     * Set how long the metadata (tables and columns) read from the database is shared by all connections to it
+     * before being read again (see MetaDataCache), in ISO-8601 format. Zero means that each client reads the
+     * metadata itself.
+     */
+    public void setMetaDataCacheLifetime(String metaDataCacheLifetime) {
+        this.metaDataCacheLifetime = metaDataCacheLifetime;
+    }
+
+    public String getSchemaPollInterval() {
+        return schemaPollInterval;
+    }
+
+    /**
+     * Set how often the database is checked for changes to its tables and columns (see SchemaChangeDetector), in
+     * ISO-8601 format. On a change, the cached metadata is discarded and connected clients are told to discard
+     * theirs. Zero disables this; it also has no effect for databases of unknown dialect.
+     */
+    public void setSchemaPollInterval(String schemaPollInterval) {
+        this.schemaPollInterval = schemaPollInterval;
+    }
+
+    Dialect getDialect() {
+        return Dialect.of(url);
+    }
+
     public SessionManagement getSessionManagement() {
         return sessionManagement;
     }
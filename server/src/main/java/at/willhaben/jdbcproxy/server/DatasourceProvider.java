@@ -103,6 +103,11 @@ public final class DatasourceProvider {
         hc.setReadOnly(true);
         hc.setAutoCommit(false);
 
+        // fetch rows incrementally rather than reading whole result-sets into memory
+        if (config.getFetchSize() > 0) {
+            config.getDialect().configure(hc, config.getFetchSize());
+        }
+
         hc.setInitializationFailTimeout(-1); // don't create connection now..alternative is to catch and ignore exception
         return new HikariDataSource(hc);
     }
@@ -0,0 +1,306 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.TableColumnMetaData;
+import com.zaxxer.hikari.HikariConfig;
+import org.postgresql.core.BaseConnection;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Database-specific settings needed for rows to be fetched from the database incrementally, rather than the
+ * JDBC driver reading the whole result-set into the memory of the proxy when the query is executed.
+ * <p>
+ * A dialect may also provide a faster way of reading the column metadata of many tables (see readColumns), and
+ * a cheap way of detecting changes to tables and columns (see schemaVersionsQuery).
+ * </p>
+ * <p>
+ * The dialect of a target database is determined from its JDBC url (see Database.getDialect).
+ * </p>
+ */
+enum Dialect {
+    /**
+     * Postgres only uses a server-side cursor when a fetch-size is set and autoCommit is false (which is the
+     * case for all connections to target databases, see DatasourceProvider).
+     */
+    POSTGRES("jdbc:postgresql:") {
+        @Override
+        void configure(HikariConfig hc, int fetchSize) {
+            hc.addDataSourceProperty("defaultRowFetchSize", String.valueOf(fetchSize));
+        }
+
+        @Override
+        String limitClause(int rows) {
+            return "LIMIT " + rows;
+        }
+
+        /**
+         * Read the columns with a single lean pg_catalog query, rather than the more general (and far heavier)
+         * one behind DatabaseMetaData.getColumns, which also joins comments, defaults and more. Types, sizes
+         * and digits are mapped just as the postgres JDBC driver does it for getColumns.
+         */
+        @Override
+        void readColumns(Connection conn, String catalog, String schema, String table, ColumnConsumer consumer)
+                throws SQLException {
+            if (!conn.isWrapperFor(BaseConnection.class)) {
+                super.readColumns(conn, catalog, schema, table, consumer);
+                return;
+            }
+
+            var typeInfo = conn.unwrap(BaseConnection.class).getTypeInfo();
+            var sql = new StringBuilder(PG_COLUMNS_QUERY);
+            if (schema != null) {
+                sql.append(" and n.nspname = ?");
+            }
+            if (table != null) {
+                sql.append(" and c.relname = ?");
+            }
+            sql.append(" order by n.nspname, c.relname, a.attnum");
+
+            try (var stmt = conn.prepareStatement(sql.toString())) {
+                int param = 0;
+                if (schema != null) {
+                    stmt.setString(++param, schema);
+                }
+                if (table != null) {
+                    stmt.setString(++param, table);
+                }
+                setFetchSize(stmt, 1000);
+
+                try (var rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        // for a domain, the type of the column is its base type
+                        boolean domain = "d".equals(rs.getString("typtype"));
+                        int typeOid = domain ? (int) rs.getLong("typbasetype") : (int) rs.getLong("atttypid");
+                        int typeMod = domain ? rs.getInt("typtypmod") : rs.getInt("atttypmod");
+                        int size = typeInfo.getPrecision(typeOid, typeMod);
+                        if (size == 0) {
+                            size = typeInfo.getDisplaySize(typeOid, typeMod);
+                        }
+
+                        var column = TableColumnMetaData.newBuilder()
+                                .setOrdinal(rs.getInt("attnum"))
+                                .setName(rs.getString("attname"))
+                                .setType(typeInfo.getSQLType(typeOid))
+                                .setSize(size)
+                                .setPrecision(typeInfo.getScale(typeOid, typeMod))
+                                .setNullable(rs.getBoolean("attnotnull")
+                                        ? DatabaseMetaData.columnNoNulls
+                                        : DatabaseMetaData.columnNullable)
+                                .setCharOctetLength(size)
+                                .build();
+                        consumer.accept(rs.getString("nspname"), rs.getString("relname"), column);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Every change to a table or column creates a new version of its row in pg_class or pg_attribute, ie
+         * changes the xmin (id of the creating transaction) of that row.
+         */
+        @Override
+        String schemaVersionsQuery() {
+            return "select n.nspname, count(*), sum(c.xmin::text::bigint), sum(a.xmin::text::bigint)"
+                    + " from pg_catalog.pg_attribute a"
+                    + " join pg_catalog.pg_class c on c.oid = a.attrelid"
+                    + " join pg_catalog.pg_namespace n on n.oid = c.relnamespace"
+                    + " where a.attnum > 0 and c.relkind in ('r', 'v', 'm', 'f', 'p')"
+                    + " and n.nspname <> 'pg_toast' and n.nspname !~ '^pg_(toast_)?temp_'"
+                    + " group by n.nspname";
+        }
+    },
+
+    /**
+     * MySQL ignores the fetch-size unless server-side cursors are enabled for the connection. The alternative,
+     * a streaming result-set (fetch-size Integer.MIN_VALUE), is not used as closing such a result-set early
+     * requires reading all of its remaining rows.
+     */
+    MYSQL("jdbc:mysql:") {
+        @Override
+        void configure(HikariConfig hc, int fetchSize) {
+            hc.addDataSourceProperty("useCursorFetch", "true");
+            hc.addDataSourceProperty("defaultFetchSize", String.valueOf(fetchSize));
+        }
+
+        @Override
+        String limitClause(int rows) {
+            return "LIMIT " + rows;
+        }
+
+        /**
+         * MySQL has no change counter for its catalog, so this is a checksum of the columns of the user schemas;
+         * with the data dictionary of MySQL 8, that still needs no access to the tables themselves. Before MySQL 8
+         * each table definition has to be opened, so the query is not cheap there; schema polling requires
+         * MySQL 8.0 or later.
+         */
+        @Override
+        String schemaVersionsQuery() {
+            return "select table_schema, count(*),"
+                    + " sum(crc32(concat_ws('|', table_name, ordinal_position, column_name, column_type, is_nullable)))"
+                    + " from information_schema.columns"
+                    + " where table_schema not in ('mysql', 'sys', 'performance_schema', 'information_schema')"
+                    + " group by table_schema";
+        }
+    },
+
+    /**
+     * Oracle always fetches incrementally; the fetch-size is the number of rows prefetched per round-trip,
+     * which defaults to just 10.
+     */
+    ORACLE("jdbc:oracle:") {
+        @Override
+        void configure(HikariConfig hc, int fetchSize) {
+            hc.addDataSourceProperty("defaultRowPrefetch", String.valueOf(fetchSize));
+        }
+
+        /**
+         * The row-limiting clause of Oracle 12c and later.
+         */
+        @Override
+        String limitClause(int rows) {
+            return "FETCH FIRST " + rows + " ROWS ONLY";
+        }
+
+        /**
+         * Oracle records the time of the last DDL statement on each object.
+         */
+        @Override
+        String schemaVersionsQuery() {
+            return "select owner, count(*), to_char(max(last_ddl_time), 'YYYYMMDDHH24MISS')"
+                    + " from all_objects"
+                    + " where object_type in ('TABLE', 'VIEW', 'MATERIALIZED VIEW')"
+                    + " group by owner";
+        }
+    },
+
+    /**
+     * Any other database, for which just the standard Statement.setFetchSize is used. Queries are never
+     * rewritten, as there is no row-limiting syntax that all databases understand.
+     */
+    GENERIC(null);
+
+    // Columns of all tables, views, materialized views, foreign tables and partitioned tables; conditions on schema
+    // and table name, and the order, are appended
+    private static final String PG_COLUMNS_QUERY =
+            "select n.nspname, c.relname, a.attnum, a.attname, a.atttypid, a.atttypmod, a.attnotnull,"
+            + " t.typtype, t.typbasetype, t.typtypmod"
+            + " from pg_catalog.pg_attribute a"
+            + " join pg_catalog.pg_class c on c.oid = a.attrelid"
+            + " join pg_catalog.pg_namespace n on n.oid = c.relnamespace"
+            + " join pg_catalog.pg_type t on t.oid = a.atttypid"
+            + " where a.attnum > 0 and not a.attisdropped and c.relkind in ('r', 'v', 'm', 'f', 'p')";
+
+    /**
+     * Receives the columns read by readColumns, together with the schema and name of their table.
+     */
+    @FunctionalInterface
+    interface ColumnConsumer {
+        void accept(String schema, String table, TableColumnMetaData column);
+    }
+
+    private final String urlPrefix;
+
+    Dialect(String urlPrefix) {
+        this.urlPrefix = urlPrefix;
+    }
+
+    /**
+     * Return the dialect of the database with the given JDBC url.
+     */
+    static Dialect of(String url) {
+        if (url != null) {
+            for (var dialect : values()) {
+                if (dialect.urlPrefix != null && url.startsWith(dialect.urlPrefix)) {
+                    return dialect;
+                }
+            }
+        }
+        return GENERIC;
+    }
+
+    /**
+     * Configure the connection-pool so that the default fetch-size of every statement is the given value.
+     */
+    void configure(HikariConfig hc, int fetchSize) {
+        // only Statement.setFetchSize is used
+    }
+
+    /**
+     * Set the number of rows that the JDBC driver fetches per round-trip to the database, where zero means
+     * the default of the pool (see configure).
+     */
+    void setFetchSize(Statement stmt, int fetchSize) throws SQLException {
+        if (fetchSize > 0) {
+            stmt.setFetchSize(fetchSize);
+        }
+    }
+
+    /**
+     * Return the clause which, appended to a SELECT, limits its result to the given number of rows; null if
+     * the dialect has no such clause (see LimitRewriter).
+     */
+    String limitClause(int rows) {
+        return null;
+    }
+
+    /**
+     * Return a query whose result has one row per schema: the schema name followed by any values which change
+     * whenever a table or column of the schema changes (see SchemaChangeDetector). The query must be cheap, as it
+     * is run regularly. Null if the dialect has no such query, ie changes are not detected.
+     */
+    String schemaVersionsQuery() {
+        return null;
+    }
+
+    /**
+     * Read the columns of all tables with the given schema and name (null meaning any), passing each to the
+     * consumer.
+     * <p>
+     * This is a single DatabaseMetaData.getColumns call for all tables, rather than one call (ie one query
+     * of the database's catalog) per table.
+     * </p>
+     */
+    void readColumns(Connection conn, String catalog, String schema, String table, ColumnConsumer consumer)
+            throws SQLException {
+        var metaData = conn.getMetaData();
+        var escape = metaData.getSearchStringEscape();
+        try (var rs = metaData.getColumns(catalog, toPattern(schema, escape), toPattern(table, escape), null)) {
+            while (rs.next()) {
+                consumer.accept(rs.getString(2), rs.getString(3), toColumnMetaData(rs));
+            }
+        }
+    }
+
+    /**
+     * Return the column described by the current row of a result-set returned by DatabaseMetaData.getColumns.
+     */
+    static TableColumnMetaData toColumnMetaData(ResultSet rs) throws SQLException {
+        // See documentation for method DatabaseMetaData.getColumns
+        return TableColumnMetaData.newBuilder()
+                .setOrdinal(rs.getInt(17))
+                .setName(rs.getString(4))
+                .setType(rs.getInt(5))
+                .setSize(rs.getInt(7))
+                .setPrecision(rs.getInt(9))
+                .setNullable(rs.getInt(11))
+                .setCharOctetLength(rs.getInt(16))
+                .build();
+    }
+
+    /**
+     * Return the search-pattern (as used by DatabaseMetaData) which matches exactly the given name, or null (ie
+     * anything) if the name is null.
+     */
+    static String toPattern(String name, String escape) {
+        if (name == null || escape == null || escape.isEmpty()) {
+            return name;
+        }
+        return name.replace(escape, escape + escape)
+                .replace("_", escape + "_")
+                .replace("%", escape + "%");
+    }
+}
@@ -0,0 +1,85 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.ResultBatch;
+import at.willhaben.jdbcproxy.server.avro.SelectResponse;
+import at.willhaben.jdbcproxy.server.avro.SelectResponseV2;
+import org.apache.avro.io.Encoder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Rows of the ROWS result format which are already avro-encoded (see RowEncoder).
+ * <p>
+ * A message sends such rows as a Carrier: a subclass of the generated record whose "rows" field is left empty,
+ * and which MessageCodec writes with the encoded bytes in place of that field.
+ * </p>
+ */
+final class EncodedRows {
+    static final String FIELD = "rows";
+
+    private final byte[] bytes; // a complete avro array, ie blocks of rows followed by a zero count
+    private final int size;
+
+    EncodedRows(byte[] bytes, int size) {
+        this.bytes = bytes;
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void writeTo(Encoder out) throws IOException {
+        out.writeFixed(bytes);
+    }
+
+    /**
+     * A message whose field FIELD is written from encoded rows.
+     */
+    interface Carrier {
+        EncodedRows getEncodedRows();
+    }
+
+    static final class InSelectResponse extends SelectResponse implements Carrier {
+        private final EncodedRows encodedRows;
+
+        InSelectResponse(EncodedRows encodedRows) {
+            this.encodedRows = encodedRows;
+            setRows(List.of());
+        }
+
+        @Override
+        public EncodedRows getEncodedRows() {
+            return encodedRows;
+        }
+    }
+
+    static final class InSelectResponseV2 extends SelectResponseV2 implements Carrier {
+        private final EncodedRows encodedRows;
+
+        InSelectResponseV2(EncodedRows encodedRows) {
+            this.encodedRows = encodedRows;
+            setRows(List.of());
+        }
+
+        @Override
+        public EncodedRows getEncodedRows() {
+            return encodedRows;
+        }
+    }
+
+    static final class InResultBatch extends ResultBatch implements Carrier {
+        private final EncodedRows encodedRows;
+
+        InResultBatch(EncodedRows encodedRows) {
+            this.encodedRows = encodedRows;
+            setRows(List.of());
+        }
+
+        @Override
+        public EncodedRows getEncodedRows() {
+            return encodedRows;
+        }
+    }
+}
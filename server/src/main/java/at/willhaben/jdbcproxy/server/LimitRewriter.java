@@ -0,0 +1,171 @@
+package at.willhaben.jdbcproxy.server;
+
+import java.util.Set;
+
+/**
+ * Adds a row-limiting clause (eg LIMIT) to a query which has none.
+ * <p>
+ * Statement.setMaxRows only truncates the result-set as it is read; the database still plans (and often sorts
+ * or materialises) the whole result. A LIMIT lets the query planner take the row-limit into account, eg by
+ * stopping a sort after the first rows.
+ * </p>
+ * <p>
+ * This is deliberately not a SQL parser: the query is just scanned for its top-level words, skipping string
+ * literals, quoted identifiers, comments and anything in parentheses. Any query which is not obviously a plain
+ * SELECT, or which already limits its rows in some way, is left unchanged. Leaving a query unchanged is always
+ * safe, as the JDBC max-rows limit still applies.
+ * </p>
+ */
+final class LimitRewriter {
+    // Top-level words after which a limit clause cannot simply be appended
+    private static final Set<String> UNSAFE_WORDS = Set.of(
+            "LIMIT", "FETCH", "OFFSET", "TOP", "FOR", "INTO", "PROCEDURE",
+            "LOCK", "INSERT", "UPDATE", "DELETE", "MERGE");
+
+    private LimitRewriter() {
+    }
+
+    /**
+     * Return the query with a limit of the given number of rows, or the query unchanged if it cannot (safely)
+     * be rewritten or no limit applies.
+     */
+    static String rewrite(String sql, Dialect dialect, int rows) {
+        if (rows <= 0 || dialect == null) {
+            return sql;
+        }
+
+        var clause = dialect.limitClause(rows);
+        if (clause == null) {
+            return sql;
+        }
+
+        int end = findEnd(sql);
+        if (end < 0) {
+            return sql;
+        }
+        return sql.substring(0, end) + " " + clause;
+    }
+
+    /**
+     * Scan the query, returning the position after its last significant character (ie excluding any trailing
+     * semicolon, comments and whitespace), or -1 if the query is not one to which a limit can be appended.
+     */
+    static int findEnd(String sql) {
+        int len = sql.length();
+        int depth = 0; // of parentheses
+        int end = 0;
+        boolean first = true; // the next word is the first one of the query
+        boolean terminated = false; // a top-level semicolon was found
+
+        int i = 0;
+        while (i < len) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+
+            if (c == '-' && i + 1 < len && sql.charAt(i + 1) == '-') {
+                int eol = sql.indexOf('\n', i);
+                i = (eol < 0) ? len : eol + 1;
+                continue;
+            }
+
+            if (c == '/' && i + 1 < len && sql.charAt(i + 1) == '*') {
+                int close = sql.indexOf("*/", i + 2);
+                if (close < 0) {
+                    return -1;
+                }
+                i = close + 2;
+                continue;
+            }
+
+            if (terminated) {
+                return -1; // more than one statement
+            }
+
+            if (first && !Character.isLetter(c)) {
+                return -1; // eg a parenthesised query, or a VALUES list
+            }
+
+            if (c == ';') {
+                if (depth > 0) {
+                    return -1;
+                }
+                terminated = true;
+                i++;
+                continue;
+            }
+
+            if (c == '\'' || c == '"' || c == '`') {
+                int close = findClosingQuote(sql, i);
+                if (close < 0) {
+                    return -1;
+                }
+                i = end = close + 1;
+                continue;
+            }
+
+            if (c == '$') {
+                return -1; // possibly a postgres dollar-quoted string, which may contain anything
+            }
+
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                if (--depth < 0) {
+                    return -1;
+                }
+            } else if (Character.isLetter(c) || c == '_') {
+                int start = i;
+                while (i < len && isIdentifierPart(sql.charAt(i))) {
+                    i++;
+                }
+                end = i;
+                if (depth == 0) {
+                    var word = sql.substring(start, i).toUpperCase();
+                    if (first && !word.equals("SELECT") && !word.equals("WITH")) {
+                        return -1;
+                    }
+                    if (UNSAFE_WORDS.contains(word)) {
+                        return -1;
+                    }
+                }
+                first = false;
+                continue;
+            }
+            end = ++i;
+        }
+        return (first || depth != 0) ? -1 : end;
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        // '$' is used in names such as oracle's v$session
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    /**
+     * Return the position of the quote closing the literal or identifier which starts at the given position, or
+     * -1 if there is none. A doubled quote is an escaped quote; a backslash is treated as unsafe as its meaning
+     * depends on the database and its settings.
+     */
+    private static int findClosingQuote(String sql, int start) {
+        char quote = sql.charAt(start);
+        int i = start + 1;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\\') {
+                return -1;
+            }
+            if (c == quote) {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+}
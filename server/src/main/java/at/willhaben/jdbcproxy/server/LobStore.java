@@ -0,0 +1,316 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.LobRequest;
+import at.willhaben.jdbcproxy.server.avro.LobResponse;
+import at.willhaben.jdbcproxy.server.avro.LobValue;
+
+import java.nio.ByteBuffer;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.sql.SQLXML;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the large objects (BLOB, CLOB, binary and long text values) of the results sent on one channel, so
+ * that the client can fetch them on demand (see LobValue in messages.avdl). Optionally, text values of ordinary
+ * (CHAR/VARCHAR) columns are treated the same way when they exceed an inline limit.
+ * <p>
+ * Only a short prefix of each value is sent with the results, which is usually all that a DB GUI displays in
+ * its grid; the rest crosses the network only if the user actually opens the value. The values are read from
+ * the database when the rows are read, as most JDBC drivers invalidate Blob/Clob objects once the result-set
+ * or transaction has been closed.
+ * </p>
+ * <p>
+ * Each value is truncated at a configurable size, and the memory held is bounded per channel and over all
+ * channels (see Budget): when a new value does not fit then the oldest values of the channel are discarded (and
+ * can no longer be fetched). If that is not enough, because other channels hold the memory, the new value is
+ * sent as a prefix only.
+ * </p>
+ * <p>
+ * Text is never cut between the two chars of a surrogate pair (ie inside a character outside the basic
+ * multilingual plane, such as an emoji), so a prefix or chunk may be one char shorter than requested.
+ * </p>
+ */
+class LobStore {
+    // Max bytes or chars returned by one LobRequest
+    static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    public static class Config {
+        private int prefixSize = 1024; // bytes or chars sent with the results
+        private int maxSize = 4 * 1024 * 1024; // bytes or chars; longer values are truncated
+        private long maxStoredSize = 32 * 1024 * 1024; // bytes held per channel
+        private long maxTotalStoredSize = 256 * 1024 * 1024; // bytes held over all channels
+        private int inlineTextSize = 0; // chars of a CHAR/VARCHAR value sent with the results; zero means all
+
+        public int getPrefixSize() {
+            return prefixSize;
+        }
+        public void setPrefixSize(int prefixSize) {
+            this.prefixSize = prefixSize;
+        }
+        public int getMaxSize() {
+            return maxSize;
+        }
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+        public long getMaxStoredSize() {
+            return maxStoredSize;
+        }
+        public void setMaxStoredSize(long maxStoredSize) {
+            this.maxStoredSize = maxStoredSize;
+        }
+        public long getMaxTotalStoredSize() {
+            return maxTotalStoredSize;
+        }
+        public void setMaxTotalStoredSize(long maxTotalStoredSize) {
+            this.maxTotalStoredSize = maxTotalStoredSize;
+        }
+        public int getInlineTextSize() {
+            return inlineTextSize;
+        }
+        public void setInlineTextSize(int inlineTextSize) {
+            this.inlineTextSize = inlineTextSize;
+        }
+    }
+
+    /**
+     * The memory held by the LobStores of all channels together; shared by all of them.
+     */
+    static class Budget {
+        private final long max; // bytes
+        private final AtomicLong used = new AtomicLong();
+
+        Budget(long max) {
+            this.max = max;
+        }
+
+        /**
+         * Reserve memory for a value, returning false if there is not enough left.
+         */
+        boolean reserve(long size) {
+            for (;;) {
+                long current = used.get();
+                if (current + size > max) {
+                    return false;
+                }
+                if (used.compareAndSet(current, current + size)) {
+                    return true;
+                }
+            }
+        }
+
+        void release(long size) {
+            used.addAndGet(-size);
+        }
+
+        long getUsed() {
+            return used.get();
+        }
+    }
+
+    private final Config config;
+    private final Budget budget;
+    private final Map<Integer, Object> lobs = new LinkedHashMap<>(); // byte[] or String, oldest first
+    private long storedSize; // bytes
+    private int nextLobId = 1;
+
+    LobStore(Config config, Budget budget) {
+        this.config = config;
+        this.budget = budget;
+    }
+
+    /**
+     * Read a large object from the database, returning its prefix and (if needed) a handle to the rest.
+     *
+     * @param value is the value returned by ResultSet.getObject, eg a Blob, Clob, byte[] or String
+     * @param binary is true if the value should be returned as bytes rather than as text
+     */
+    LobValue add(Object value, boolean binary) throws SQLException {
+        if (binary) {
+            if (value instanceof Blob) {
+                var blob = (Blob) value;
+                long length = blob.length();
+                var bytes = blob.getBytes(1, (int) Math.min(length, config.maxSize));
+                free(blob);
+                return toLobValue(bytes, length, config.prefixSize);
+            }
+            if (value instanceof byte[]) {
+                var bytes = (byte[]) value;
+                var content = (bytes.length > config.maxSize) ? Arrays.copyOf(bytes, config.maxSize) : bytes;
+                return toLobValue(content, bytes.length, config.prefixSize);
+            }
+            throw new SQLException("Unsupported binary value type: " + value.getClass().getName());
+        }
+
+        if (value instanceof Clob) {
+            var clob = (Clob) value;
+            long length = clob.length();
+            // one char more than needed, so that truncate can tell whether a surrogate pair would be split
+            var text = clob.getSubString(1, (int) Math.min(length, config.maxSize + 1L));
+            free(clob);
+            return toLobValue(truncate(text), length, config.prefixSize);
+        }
+        var text = (value instanceof SQLXML) ? ((SQLXML) value).getString() : value.toString();
+        return toLobValue(truncate(text), text.length(), config.prefixSize);
+    }
+
+    /**
+     * Return true if a value of an ordinary text column exceeds the inline limit, ie should be passed to addText.
+     */
+    boolean isInlineTooLong(String text) {
+        return config.inlineTextSize > 0 && text.length() > config.inlineTextSize;
+    }
+
+    /**
+     * Return the value of an ordinary text column truncated at the inline limit, plus a handle to the rest.
+     */
+    LobValue addText(String text) {
+        return toLobValue(truncate(text), text.length(), config.inlineTextSize);
+    }
+
+    private String truncate(String text) {
+        return text.substring(0, cutIndex(text, 0, config.maxSize));
+    }
+
+    /**
+     * Return the end of the part of a text which starts at index start and is at most max chars long. The end is
+     * moved back by one if it would split a surrogate pair, unless that would leave nothing.
+     */
+    static int cutIndex(String text, int start, int max) {
+        int end = (int) Math.min(text.length(), (long) start + max);
+        if (end < text.length() && end - 1 > start && Character.isHighSurrogate(text.charAt(end - 1))
+                && Character.isLowSurrogate(text.charAt(end))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Return the prefix of a value (byte[] or String, already truncated at maxSize), storing the value if the
+     * prefix is not all of it.
+     *
+     * @param originalLength is the length of the value in the database
+     */
+    private LobValue toLobValue(Object content, long originalLength, int prefixSize) {
+        var result = LobValue.newBuilder();
+        int length;
+        if (content instanceof byte[]) {
+            var bytes = (byte[]) content;
+            length = bytes.length;
+            result.setPrefix(ByteBuffer.wrap(bytes, 0, Math.min(length, prefixSize)).slice());
+        } else {
+            var text = (String) content;
+            length = text.length();
+            result.setPrefix(text.substring(0, cutIndex(text, 0, prefixSize)));
+        }
+
+        int lobId = 0;
+        if (length > prefixSize) {
+            lobId = store(content, sizeOf(content));
+            if (lobId == 0) {
+                // too large to be held in memory, so only the prefix is available
+                length = prefixLength(result.getPrefix());
+            }
+        }
+        return result
+                .setLength(length)
+                .setTruncated(originalLength > length)
+                .setLobId(lobId)
+                .build();
+    }
+
+    /**
+     * Return the requested part of a large object, or a response without data if it is no longer held.
+     */
+    LobResponse read(LobRequest request) {
+        var content = lobs.get(request.getLobId());
+        if (content == null) {
+            return LobResponse.newBuilder().setData(null).build();
+        }
+
+        int length = Math.max(0, Math.min(request.getLength(), MAX_CHUNK_SIZE));
+        if (content instanceof byte[]) {
+            var bytes = (byte[]) content;
+            int start = (int) Math.min(Math.max(request.getOffset(), 0), bytes.length);
+            int end = Math.min(bytes.length, start + length);
+            return LobResponse.newBuilder().setData(ByteBuffer.wrap(Arrays.copyOfRange(bytes, start, end))).build();
+        }
+
+        var text = (String) content;
+        int start = (int) Math.min(Math.max(request.getOffset(), 0), text.length());
+        int end = cutIndex(text, start, length);
+        return LobResponse.newBuilder().setData(text.substring(start, end)).build();
+    }
+
+    /**
+     * Release all large objects, eg when the channel is closed.
+     */
+    void clear() {
+        lobs.clear();
+        budget.release(storedSize);
+        storedSize = 0;
+    }
+
+    /**
+     * Hold a value so that it can be fetched by the client, returning its id (or zero if it is too large).
+     */
+    private int store(Object content, long size) {
+        if (size > config.maxStoredSize) {
+            return 0;
+        }
+
+        // make room by discarding the oldest values of this channel
+        Iterator<Object> oldest = lobs.values().iterator();
+        while (storedSize + size > config.maxStoredSize && oldest.hasNext()) {
+            discard(oldest);
+        }
+        while (!budget.reserve(size)) {
+            if (!oldest.hasNext()) {
+                return 0; // the memory is held by other channels
+            }
+            discard(oldest);
+        }
+
+        int lobId = nextLobId++;
+        lobs.put(lobId, content);
+        storedSize += size;
+        return lobId;
+    }
+
+    private void discard(Iterator<Object> oldest) {
+        long size = sizeOf(oldest.next());
+        oldest.remove();
+        storedSize -= size;
+        budget.release(size);
+    }
+
+    private static int prefixLength(Object prefix) {
+        return (prefix instanceof ByteBuffer) ? ((ByteBuffer) prefix).remaining() : ((String) prefix).length();
+    }
+
+    private static long sizeOf(Object content) {
+        return (content instanceof byte[]) ? ((byte[]) content).length : 2L * ((String) content).length();
+    }
+
+    private static void free(Blob blob) {
+        try {
+            blob.free();
+        } catch (SQLException | UnsupportedOperationException e) {
+            // ignore - released with the result-set anyway
+        }
+    }
+
+    private static void free(Clob clob) {
+        try {
+            clob.free();
+        } catch (SQLException | UnsupportedOperationException e) {
+            // ignore - released with the result-set anyway
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package at.willhaben.jdbcproxy.server;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.specific.SpecificRecord;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+
+/**
+ * Reads and writes avro messages on a single connection.
+ * <p>
+ * Each message is sent as a "frame": a header consisting of a flags byte and the length of the payload (as a
+ * 4-byte big-endian int), followed by the avro-encoded payload. This allows a message to be read with a single
+ * bulk read into memory, and a truncated message to be distinguished from a corrupt one.
+ * </p>
+ * <p>
+ * Clients which predate framing send each message as it is, without a header; a framed client first sends the
+ * PREFACE, which tells the two apart (see messages.avdl). A codec created with framed=false reads and writes
+ * such unframed messages, and never compresses.
+ * </p>
+ * <p>
+ * When the client has agreed to compression (see Capabilities), a large message is sent with flag COMPRESSED:
+ * the payload is then the length of the avro-encoded message (4-byte big-endian int) followed by the message
+ * compressed in zlib format. Requests are small, so only responses are compressed; this class therefore only
+ * reads uncompressed frames.
+ * </p>
+ * <p>
+ * Creating a DatumReader/DatumWriter is relatively expensive (the schema is analysed on first use), as is
+ * creating an encoder or decoder with their buffers. An instance of this class therefore creates these once
+ * and reuses them (and the frame buffers) for every message exchanged over the connection.
+ * </p>
+ * <p>
+ * Messages are read by a single thread, but may be written by several threads at once (eg the responses of
+ * different channels). Encoding and compressing a large message takes a while, so each writing thread encodes
+ * with a FrameEncoder of its own, taken from a pool (which therefore holds no more encoders than there have
+ * been concurrent writers); only the write of the finished frame to the stream is serialized.
+ * </p>
+ * <p>
+ * Result rows may already have been encoded when they were read from the database; a message carrying them (see
+ * EncodedRows.Carrier) is written with their bytes copied into it as they are.
+ * </p>
+ * <p>
+ * Avro can also read a message into a previously returned object, overwriting its fields. This is only safe
+ * when the caller no longer references the previous message, so it is done only for messages accepted by
+ * the "reusable" predicate (eg keepalive pings, which are discarded immediately).
+ * </p>
+ */
+class MessageCodec<R extends SpecificRecord, W extends SpecificRecord> {
+    static final int HEADER_SIZE = 5; // flags + length
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    static final int FLAG_COMPRESSED = 1;
+    // Sent by a framed client before its first frame, and echoed by the server; its first byte can not start a
+    // released Request (whose first byte is the zigzag-encoded index of a union branch, ie small and even)
+    static final byte[] PREFACE = {(byte) 0xff, 'J', 'A', 'P'};
+
+    static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    // Buffers grown beyond this size for a large message are released afterwards, so that an idle
+    // connection does not hold on to a lot of memory
+    static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private final DatumReader<R> reader;
+    private final Class<W> writeType;
+    private final boolean framed;
+    private final DataInputStream in;
+    private final OutputStream out; // guarded by writeLock
+    private final Object writeLock = new Object();
+    private final Deque<FrameEncoder<W>> encoders = new ConcurrentLinkedDeque<>(); // idle, for reuse
+    private final Predicate<R> reusable;
+
+    private byte[] readBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private BinaryDecoder decoder;
+    private R previous; // last message read, if it may be overwritten
+
+    /**
+     * Create a codec which does not do any IO itself, ie only methods encode and decode may be used.
+     */
+    MessageCodec(Class<R> readType, Class<W> writeType, Predicate<R> reusable) {
+        this(readType, writeType, true, null, null, reusable);
+    }
+
+    MessageCodec(
+            Class<R> readType,
+            Class<W> writeType,
+            InputStream in,
+            OutputStream out,
+            Predicate<R> reusable) {
+        this(readType, writeType, true, in, out, reusable);
+    }
+
+    MessageCodec(
+            Class<R> readType,
+            Class<W> writeType,
+            boolean framed,
+            InputStream in,
+            OutputStream out,
+            Predicate<R> reusable) {
+        this.reader = new SpecificDatumReader<>(readType);
+        this.writeType = writeType;
+        this.framed = framed;
+        // Buffered, so that a small frame normally needs just one read from the socket
+        this.in = (in == null) ? null : new DataInputStream(new BufferedInputStream(in));
+        this.out = out;
+        this.reusable = reusable;
+    }
+
+    /**
+     * Write a message, and flush it to the underlying stream. May be invoked by several threads at once.
+     */
+    void write(W message, Compression compression) throws IOException {
+        var frameEncoder = acquireEncoder();
+        try {
+            var frame = frameEncoder.encodeFrame(message, compression);
+            synchronized (writeLock) {
+                if (framed) {
+                    frame.writeTo(out);
+                } else {
+                    out.write(frame.getBuffer(), HEADER_SIZE, frame.size() - HEADER_SIZE);
+                }
+                out.flush();
+            }
+        } finally {
+            encoders.push(frameEncoder);
+        }
+    }
+
+    /**
+     * Return a message as a complete frame (header and payload), or only the message if unframed. May be invoked
+     * by several threads at once.
+     * <p>
+     * The frame of a large message is returned in the buffer it was assembled in, rather than as a copy, so
+     * that it does not need twice its size in memory.
+     * </p>
+     */
+    ByteBuffer encode(W message, Compression compression) throws IOException {
+        var frameEncoder = acquireEncoder();
+        try {
+            return frameEncoder.encodeFrame(message, compression).detach(framed ? 0 : HEADER_SIZE);
+        } finally {
+            encoders.push(frameEncoder);
+        }
+    }
+
+    private FrameEncoder<W> acquireEncoder() {
+        var frameEncoder = encoders.poll();
+        return (frameEncoder == null) ? new FrameEncoder<>(writeType, framed) : frameEncoder;
+    }
+
+    /**
+     * Read the next message from the stream, blocking until it is available.
+     *
+     * @throws EOFException if the stream ended before the start of a message
+     */
+    R read() throws IOException {
+        if (!framed) {
+            return readUnframed();
+        }
+
+        int length = readFrame();
+        var message = decode(readBuffer, 0, length);
+        if (readBuffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            readBuffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+        return message;
+    }
+
+    /**
+     * Decode the payload of a frame which has already been read.
+     */
+    R decode(byte[] payload, int offset, int length) throws IOException {
+        decoder = DecoderFactory.get().binaryDecoder(payload, offset, length, decoder);
+        var message = reader.read(previous, decoder);
+        if (!decoder.isEnd()) {
+            throw new IOException("Malformed message: payload not fully consumed");
+        }
+
+        previous = reusable.test(message) ? message : null;
+        return message;
+    }
+
+    /**
+     * Decode an unframed message from the start of a buffer, advancing its position past the message; return
+     * null (leaving the position unchanged) if the buffer does not yet hold the complete message.
+     */
+    R decodeUnframed(ByteBuffer buffer) throws IOException {
+        var stream = new ByteArrayInputStream(
+                buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        decoder = DecoderFactory.get().directBinaryDecoder(stream, decoder);
+        R message;
+        try {
+            message = reader.read(previous, decoder);
+        } catch (EOFException e) {
+            return null;
+        }
+        buffer.position(buffer.limit() - stream.available());
+
+        previous = reusable.test(message) ? message : null;
+        return message;
+    }
+
+    private R readUnframed() throws IOException {
+        // the end of the stream is only clean before the first byte of a message
+        in.mark(1);
+        if (in.read() < 0) {
+            throw new EOFException("Connection closed");
+        }
+        in.reset();
+
+        decoder = DecoderFactory.get().directBinaryDecoder(in, decoder);
+        R message;
+        try {
+            message = reader.read(previous, decoder);
+        } catch (EOFException e) {
+            throw new IOException("Truncated message", e);
+        }
+        previous = reusable.test(message) ? message : null;
+        return message;
+    }
+
+    /**
+     * Return true if a byte received as the first of a connection is the start of the PREFACE.
+     */
+    static boolean isPreface(int firstByte) {
+        return firstByte == (PREFACE[0] & 0xff);
+    }
+
+    /**
+     * Read the PREFACE at the start of a connection, returning true if the client sent it (so is framed). If the
+     * client did not, the byte read is pushed back, so that the first message can be read from the stream.
+     *
+     * @throws EOFException if the stream ended before anything was received
+     */
+    static boolean readPreface(PushbackInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            throw new EOFException("Connection closed");
+        }
+        if (!isPreface(first)) {
+            in.unread(first);
+            return false;
+        }
+
+        for (int i = 1; i < PREFACE.length; i++) {
+            if (in.read() != PREFACE[i]) {
+                throw new IOException("Malformed preface");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verify that a frame header (as read from the stream) is valid.
+     */
+    static void checkHeader(int flags, int length) throws IOException {
+        if (flags != 0) {
+            throw new IOException("Malformed message: unsupported flags " + flags);
+        }
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Malformed message: invalid length " + length);
+        }
+    }
+
+    /**
+     * Read the next frame into readBuffer, returning the length of the payload.
+     */
+    private int readFrame() throws IOException {
+        int flags = in.read();
+        if (flags < 0) {
+            throw new EOFException("Connection closed");
+        }
+
+        try {
+            int length = in.readInt();
+            checkHeader(flags, length);
+            if (length > readBuffer.length) {
+                readBuffer = new byte[length];
+            }
+            in.readFully(readBuffer, 0, length);
+            return length;
+        } catch (EOFException e) {
+            // not a clean end of stream, so not reported as EOFException
+            throw new IOException("Truncated message", e);
+        }
+    }
+
+    /**
+     * Encodes (and compresses) messages into frames; used by one thread at a time.
+     */
+    private static class FrameEncoder<W> {
+        private final DatumWriter<W> writer;
+        private final FrameBuffer writeBuffer = new FrameBuffer();
+        private final FrameBuffer compressedBuffer = new FrameBuffer();
+        private final BinaryEncoder encoder;
+        private final boolean framed;
+        private Deflater deflater; // created when first needed
+
+        FrameEncoder(Class<W> type, boolean framed) {
+            this.writer = new Writer<>(type);
+            this.framed = framed;
+            this.encoder = EncoderFactory.get().directBinaryEncoder(writeBuffer, null);
+        }
+
+        /**
+         * Return the frame of a message; it remains valid until the next call. If unframed, the header of the
+         * frame is left empty, and the message is neither compressed nor limited in size.
+         */
+        FrameBuffer encodeFrame(W message, Compression compression) throws IOException {
+            writeBuffer.startFrame();
+            writer.write(message, encoder);
+            encoder.flush();
+
+            if (!framed) {
+                return writeBuffer;
+            }
+
+            int length = writeBuffer.size() - HEADER_SIZE;
+            if (compression != Compression.NONE && length >= Compression.THRESHOLD && length <= MAX_FRAME_SIZE) {
+                compress(compression);
+                // incompressible data (eg already compressed LOBs) is sent as it is
+                if (compressedBuffer.size() < writeBuffer.size()) {
+                    compressedBuffer.finishFrame(FLAG_COMPRESSED);
+                    return compressedBuffer;
+                }
+            }
+
+            writeBuffer.finishFrame(0);
+            return writeBuffer;
+        }
+
+        /**
+         * Compress the payload in writeBuffer into compressedBuffer.
+         */
+        private void compress(Compression compression) {
+            if (deflater == null) {
+                deflater = new Deflater();
+            }
+            deflater.reset();
+            deflater.setLevel(compression.getLevel());
+
+            int length = writeBuffer.size() - HEADER_SIZE;
+            compressedBuffer.startFrame();
+            compressedBuffer.writeInt(length);
+            deflater.setInput(writeBuffer.getBuffer(), HEADER_SIZE, length);
+            deflater.finish();
+            compressedBuffer.deflate(deflater);
+        }
+    }
+
+    /**
+     * A DatumWriter which writes the rows of an EncodedRows.Carrier from their encoded bytes, rather than from
+     * its (empty) list of Row objects.
+     */
+    private static class Writer<W> extends SpecificDatumWriter<W> {
+        Writer(Class<W> type) {
+            super(type);
+        }
+
+        @Override
+        protected void writeRecord(Schema schema, Object datum, Encoder out) throws IOException {
+            if (!(datum instanceof EncodedRows.Carrier carrier)) {
+                super.writeRecord(schema, datum, out);
+                return;
+            }
+
+            Object state = getData().getRecordState(datum, schema);
+            for (Schema.Field f : schema.getFields()) {
+                if (f.name().equals(EncodedRows.FIELD)) {
+                    carrier.getEncodedRows().writeTo(out);
+                } else {
+                    writeField(datum, f, out, state);
+                }
+            }
+        }
+    }
+
+    /**
+     * A buffer into which a frame is assembled, so that it can be written with a single call.
+     */
+    private static class FrameBuffer extends ByteArrayOutputStream {
+        FrameBuffer() {
+            super(INITIAL_BUFFER_SIZE);
+        }
+
+        /**
+         * Discard the previous frame, and reserve space for the header of the next one.
+         */
+        void startFrame() {
+            if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+                buf = new byte[INITIAL_BUFFER_SIZE];
+            }
+            count = HEADER_SIZE;
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+
+        /**
+         * Return the frame from the specified offset, handing over the buffer itself if it has grown beyond its
+         * initial size; the next frame is then assembled in a new buffer. A small frame is copied, so that the
+         * buffer is reused.
+         */
+        ByteBuffer detach(int offset) {
+            if (buf.length <= INITIAL_BUFFER_SIZE) {
+                return ByteBuffer.wrap(Arrays.copyOfRange(buf, offset, count));
+            }
+            var frame = ByteBuffer.wrap(buf, offset, count - offset);
+            buf = new byte[INITIAL_BUFFER_SIZE];
+            count = 0;
+            return frame;
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        /**
+         * Append all output of the deflater, whose input has been finished.
+         */
+        void deflate(Deflater deflater) {
+            while (!deflater.finished()) {
+                if (count == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                count += deflater.deflate(buf, count, buf.length - count);
+            }
+        }
+
+        void finishFrame(int flags) throws IOException {
+            int length = count - HEADER_SIZE;
+            if (length > MAX_FRAME_SIZE) {
+                throw new IOException("Message too large: " + length + " bytes");
+            }
+            buf[0] = (byte) flags;
+            buf[1] = (byte) (length >>> 24);
+            buf[2] = (byte) (length >>> 16);
+            buf[3] = (byte) (length >>> 8);
+            buf[4] = (byte) length;
+        }
+    }
+}
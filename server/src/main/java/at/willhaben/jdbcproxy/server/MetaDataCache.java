@@ -0,0 +1,209 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.MetaDataResponse;
+import at.willhaben.jdbcproxy.server.avro.SchemasResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds the metadata (all tables and their columns, and the schemas and table types) of one target database,
+ * shared by all connections to it.
+ * <p>
+ * Reading the metadata of a large database takes seconds and puts load on its catalog tables; without this
+ * cache, every client connecting did so, although the schema rarely changes. The metadata is cached unfiltered,
+ * ie any restriction of the schemas a client may see is applied when it is read (see RequestHandler).
+ * </p>
+ * <p>
+ * Cached metadata is used for a configurable time-to-live. When it is read during the last quarter of that
+ * time, it is reloaded in the background (refresh-ahead), so that regularly used metadata never expires and
+ * clients don't wait for it. Only one load runs at a time: clients needing the metadata while it is being loaded
+ * wait for that load rather than starting their own.
+ * </p>
+ * <p>
+ * The cached objects are shared between threads, so must not be modified.
+ * </p>
+ */
+class MetaDataCache {
+    private static final Logger logger = LoggerFactory.getLogger(MetaDataCache.class);
+
+    /**
+     * Reads the metadata from the database.
+     */
+    @FunctionalInterface
+    interface Loader {
+        MetaDataResponse load() throws SQLException;
+    }
+
+    /**
+     * Reads the schemas and table types from the database.
+     */
+    @FunctionalInterface
+    interface SchemasLoader {
+        SchemasResponse load() throws SQLException;
+    }
+
+    /**
+     * The metadata loaded at one time, with its version (see RequestHandler.versionOf) computed once for all
+     * clients.
+     */
+    static class Entry {
+        final MetaDataResponse metaData;
+        final String version;
+        final SchemasResponse schemas;
+        final long refreshAt; // read after this time triggers a background reload
+        final long expiresAt; // not used after this time
+
+        Entry(MetaDataResponse metaData, String version, SchemasResponse schemas, long refreshAt, long expiresAt) {
+            this.metaData = metaData;
+            this.version = version;
+            this.schemas = schemas;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final String name;
+    private final long ttl; // millis
+    private final Executor refresher;
+    private final LongSupplier clock;
+    private final Loader loader;
+    private final SchemasLoader schemasLoader;
+
+    private Entry entry; // null until loaded
+    private CompletableFuture<Entry> loading; // the load in progress, if any
+    private int generation; // incremented by invalidate, so that a load started before is not cached
+
+    MetaDataCache(String name, Duration ttl, Loader loader, SchemasLoader schemasLoader) {
+        this(name, ttl, MetaDataCache::startDaemon, System::currentTimeMillis, loader, schemasLoader);
+    }
+
+    MetaDataCache(
+            String name,
+            Duration ttl,
+            Executor refresher,
+            LongSupplier clock,
+            Loader loader,
+            SchemasLoader schemasLoader) {
+        this.name = name;
+        this.ttl = ttl.toMillis();
+        this.refresher = refresher;
+        this.clock = clock;
+        this.loader = loader;
+        this.schemasLoader = schemasLoader;
+    }
+
+    /**
+     * Return the metadata, loading it if there is none that is still valid.
+     */
+    MetaDataResponse get() throws SQLException {
+        return getEntry().metaData;
+    }
+
+    /**
+     * Return the schemas and table types, loading them (with the metadata) if there are none that are still valid.
+     */
+    SchemasResponse getSchemas() throws SQLException {
+        return getEntry().schemas;
+    }
+
+    /**
+     * Return the metadata with its version and the schemas, loading them if there are none that are still valid.
+     */
+    Entry getEntry() throws SQLException {
+        CompletableFuture<Entry> load;
+        int loadGeneration = -1; // the generation being loaded by this thread, if any
+        synchronized (this) {
+            long now = clock.getAsLong();
+            if ((entry != null) && (now < entry.expiresAt)) {
+                if ((now >= entry.refreshAt) && (loading == null)) {
+                    var refresh = loading = new CompletableFuture<>();
+                    var refreshGeneration = generation;
+                    refresher.execute(() -> load(refresh, refreshGeneration));
+                }
+                return entry;
+            }
+
+            if (loading != null) {
+                load = loading; // wait for the load in progress
+            } else {
+                load = loading = new CompletableFuture<>();
+                loadGeneration = generation;
+            }
+        }
+        if (loadGeneration >= 0) {
+            load(load, loadGeneration);
+        }
+        return await(load);
+    }
+
+    /**
+     * Return the metadata if it is cached and still valid, else null (without loading it).
+     */
+    synchronized MetaDataResponse getIfPresent() {
+        return ((entry != null) && (clock.getAsLong() < entry.expiresAt)) ? entry.metaData : null;
+    }
+
+    /**
+     * Discard the cached metadata, so that the next read loads it again.
+     */
+    synchronized void invalidate() {
+        entry = null;
+        loading = null;
+        generation++;
+    }
+
+    /**
+     * Load the metadata, completing the given future. A failed background refresh is just logged, ie the current
+     * metadata is used until it expires.
+     */
+    private void load(CompletableFuture<Entry> load, int loadGeneration) {
+        try {
+            long start = clock.getAsLong();
+            var metaData = loader.load();
+            var version = RequestHandler.versionOf(metaData);
+            var schemas = schemasLoader.load();
+            long now = clock.getAsLong();
+            var loaded = new Entry(metaData, version, schemas, now + ttl * 3 / 4, now + ttl);
+            synchronized (this) {
+                if (generation == loadGeneration) {
+                    entry = loaded;
+                }
+            }
+            logger.info("Loaded metadata of database {} in {}ms", name, now - start);
+            load.complete(loaded);
+        } catch (SQLException | RuntimeException e) {
+            logger.warn("Failed to load metadata of database {}", name, e);
+            load.completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                if (loading == load) {
+                    loading = null;
+                }
+            }
+        }
+    }
+
+    private static Entry await(CompletableFuture<Entry> load) throws SQLException {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static void startDaemon(Runnable task) {
+        var thread = new Thread(task, "metadata-refresh");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
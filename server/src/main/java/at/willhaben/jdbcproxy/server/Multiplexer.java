@@ -0,0 +1,354 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.ErrorResponse;
+import at.willhaben.jdbcproxy.server.avro.PingRequest;
+import at.willhaben.jdbcproxy.server.avro.PingResponse;
+import at.willhaben.jdbcproxy.server.avro.Request;
+import at.willhaben.jdbcproxy.server.avro.RequestV2;
+import at.willhaben.jdbcproxy.server.avro.ResponseV2;
+import org.apache.avro.specific.SpecificRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * Handle a connected client, which may multiplex several logical connections ("channels") over a single
+ * network connection (see messages.avdl).
+ * <p>
+ * Each channel is handled by its own ConnectionHandler, to which requests are passed one at a time in the
+ * order received. Requests for different channels are processed concurrently, so that a long-running query
+ * does not delay the other channels. Keepalive pings are answered immediately, whatever the channel.
+ * </p>
+ * <p>
+ * A client which predates framing (see messages.avdl) sends its requests via onLegacyRequest; they form a single
+ * channel, and the connection is closed once that channel has been closed, as such clients expect.
+ * </p>
+ * <p>
+ * The workers processing requests which may wait for a pooled database connection are shared by all connections
+ * (see WorkerPools), so a single connection may only occupy MAX_BLOCKING_REQUESTS of them at a time; further
+ * channels with such a request wait (in order) until one of those requests has completed. A busy client thus
+ * cannot starve all others, however many channels it opens.
+ * </p>
+ * <p>
+ * This class does not do any network IO itself; the ConnectionEngine reads requests from the network and
+ * passes them to method onRequest, and responses are sent via the Transport.
+ * </p>
+ */
+class Multiplexer {
+    private static final Logger logger = LoggerFactory.getLogger(Multiplexer.class);
+
+    // Requests queued or being processed, over all channels. Further requests are rejected, which bounds the
+    // memory and threads that a single client can occupy.
+    static final int MAX_PENDING_REQUESTS = 64;
+
+    // Requests which may wait for a pooled database connection (see ConnectionHandler.mayWaitForPool) being
+    // processed at once, over all channels
+    static final int MAX_BLOCKING_REQUESTS = 4;
+
+    // The channel of the requests of a client which predates framing
+    static final int LEGACY_CHANNEL = 0;
+
+    /**
+     * Creates the handler for a new channel.
+     */
+    interface ChannelHandlerFactory {
+        ConnectionHandler create(Channel channel);
+    }
+
+    /**
+     * A logical connection.
+     */
+    class Channel {
+        private final int id;
+        private final ConnectionHandler handler;
+        private final Deque<RequestV2> queue = new ArrayDeque<>(); // guarded by Multiplexer.this
+        private boolean running; // a task to process the queue has been scheduled (guarded by Multiplexer.this)
+        private boolean closed; // guarded by Multiplexer.this
+        private boolean blocking; // holds one of the MAX_BLOCKING_REQUESTS (guarded by Multiplexer.this)
+        private volatile int requestId; // of the request currently being processed
+        private volatile Compression compression = Compression.NONE; // as negotiated on authentication
+
+        private Channel(int id) {
+            this.id = id;
+            this.handler = handlerFactory.create(this);
+        }
+
+        /**
+         * Send the response to the request currently being processed.
+         */
+        void send(SpecificRecord message) throws IOException {
+            if (isClosed()) {
+                return; // the client has gone away (eg it closed this channel and then the connection)
+            }
+            transport.send(new ResponseV2(id, requestId, message), compression);
+        }
+
+        /**
+         * Send a message which is not the response to a request (see MetaDataInvalidation). This may be invoked
+         * by any thread, also while a request of the channel is being processed.
+         */
+        void push(SpecificRecord message) throws IOException {
+            if (isClosed()) {
+                return;
+            }
+            transport.send(new ResponseV2(id, 0, message), compression);
+        }
+
+        /**
+         * Set how large responses on this channel are compressed.
+         */
+        void setCompression(Compression compression) {
+            this.compression = compression;
+        }
+    }
+
+    private final Transport transport;
+    private final Function<Object, Executor> executors;
+    private final Watchdog.SocketWatch watch;
+    private final ChannelHandlerFactory handlerFactory;
+
+    private final Map<Integer, Channel> channels = new HashMap<>(); // guarded by this
+    private final Deque<Channel> waitingChannels = new ArrayDeque<>(); // for MAX_BLOCKING_REQUESTS (guarded by this)
+    private int pendingRequests; // guarded by this
+    private int blockingRequests; // guarded by this
+    private boolean closed; // guarded by this
+    private volatile boolean legacy; // the client predates framing
+
+    Multiplexer(
+            Transport transport,
+            Function<Object, Executor> executors,
+            Watchdog.SocketWatch watch,
+            ChannelHandlerFactory handlerFactory) {
+        this.transport = transport;
+        this.executors = executors;
+        this.watch = watch;
+        this.handlerFactory = handlerFactory;
+    }
+
+    /**
+     * Accept a request received from the client, for processing by the handler of its channel.
+     *
+     * @param request is the request, or null when the client has closed the connection
+     * @return false if the connection should be closed
+     */
+    boolean onRequest(RequestV2 request) {
+        if (request == null) {
+            logger.info("Client closed socket (EOF)");
+            synchronized (this) {
+                closed = true; // don't try to send responses to requests still being processed
+            }
+            return false;
+        }
+
+        if (request.getRequest() instanceof PingRequest) {
+            return reply(request, PingResponse.newBuilder().setOk(true).build());
+        }
+
+        if (isOverloaded()) {
+            logger.warn("Too many concurrent requests on one connection; rejecting request");
+            return reply(request, ErrorResponse.newBuilder().setMessage("Too many concurrent requests").build());
+        }
+
+        Channel start = null;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+
+            var channel = channels.computeIfAbsent(request.getChannel(), Channel::new);
+            channel.queue.add(request);
+            pendingRequests++;
+            if (!channel.running) {
+                channel.running = true;
+                start = channel;
+            }
+        }
+
+        if (start != null) {
+            schedule(start);
+        }
+        return true;
+    }
+
+    /**
+     * Accept a request received from a client which predates framing (see onRequest).
+     */
+    boolean onLegacyRequest(Request request) {
+        legacy = true;
+        return onRequest(request == null ? null : new RequestV2(LEGACY_CHANNEL, 0, request.getRequest()));
+    }
+
+    /**
+     * Return true if the client has too many requests waiting to be processed.
+     * <p>
+     * Only the engine's reader adds requests, so the limit cannot be exceeded between this check and queueing.
+     * </p>
+     */
+    private synchronized boolean isOverloaded() {
+        return pendingRequests >= MAX_PENDING_REQUESTS;
+    }
+
+    /**
+     * Invoked when a request from the client cannot be read; the connection is then closed.
+     */
+    void onError(Exception e) {
+        logger.warn("Failure while communicating with client. Closing Connection! ", e);
+        try {
+            transport.send(
+                    new ResponseV2(0, 0, ErrorResponse.newBuilder().setMessage("Unknown error").build()),
+                    Compression.NONE);
+        } catch (IOException e2) {
+            logger.warn("Unable to tell client about the error!");
+        }
+    }
+
+    /**
+     * Invoked by the ConnectionEngine once the connection has been closed (for whatever reason), to release
+     * all resources held on behalf of the client.
+     * <p>
+     * Channels which are currently processing a request are closed once that request has completed.
+     * </p>
+     */
+    void onClose() {
+        List<Channel> idle = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (var channel : new ArrayList<>(channels.values())) {
+                discard(channel);
+                if (!channel.running) {
+                    idle.add(channel);
+                }
+            }
+        }
+        idle.forEach(c -> c.handler.onClose());
+        watch.close();
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public void stop() {
+        transport.close();
+    }
+
+    private boolean reply(RequestV2 request, SpecificRecord message) {
+        try {
+            transport.send(new ResponseV2(request.getChannel(), request.getRequestId(), message), Compression.NONE);
+            return true;
+        } catch (IOException e) {
+            logger.info("Unable to send response: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void schedule(Channel channel) {
+        Object message;
+        synchronized (this) {
+            var next = channel.queue.peek();
+            message = (next == null) ? null : next.getRequest();
+            if (ConnectionHandler.mayWaitForPool(message)) {
+                if (blockingRequests >= MAX_BLOCKING_REQUESTS) {
+                    waitingChannels.add(channel); // scheduled once another such request has completed
+                    return;
+                }
+                blockingRequests++;
+                channel.blocking = true;
+            }
+        }
+
+        try {
+            executors.apply(message).execute(() -> process(channel));
+        } catch (RejectedExecutionException e) {
+            // the server is shutting down
+            Channel waiting;
+            synchronized (this) {
+                discard(channel);
+                channel.running = false;
+                waiting = releaseBlocking(channel);
+            }
+            channel.handler.onClose();
+            if (waiting != null) {
+                schedule(waiting);
+            }
+        }
+    }
+
+    /**
+     * Release the channel's share of the MAX_BLOCKING_REQUESTS (if it has one), returning the channel which
+     * should be scheduled instead (if any).
+     */
+    private Channel releaseBlocking(Channel channel) {
+        if (!channel.blocking) {
+            return null;
+        }
+        channel.blocking = false;
+        blockingRequests--;
+        return waitingChannels.poll();
+    }
+
+    /**
+     * Pass the next queued request of a channel to its handler, then schedule the following one (if any).
+     */
+    private void process(Channel channel) {
+        RequestV2 request;
+        synchronized (this) {
+            request = channel.queue.poll();
+        }
+
+        boolean open = true;
+        if (request != null) {
+            channel.requestId = request.getRequestId();
+            open = channel.handler.onRequest(request.getRequest());
+        }
+
+        boolean finished;
+        boolean more;
+        Channel waiting;
+        synchronized (this) {
+            waiting = releaseBlocking(channel);
+            if (request != null) {
+                pendingRequests--;
+            }
+            if (!open) {
+                discard(channel);
+            }
+            finished = channel.closed;
+            more = !finished && !channel.queue.isEmpty();
+            channel.running = more;
+        }
+
+        // a channel which waited for this one goes first, so that channels take turns
+        if (waiting != null) {
+            schedule(waiting);
+        }
+        if (finished) {
+            channel.handler.onClose();
+            if (legacy) {
+                transport.closeWhenSent();
+            }
+        } else if (more) {
+            schedule(channel);
+        }
+    }
+
+    /**
+     * Mark a channel as closed, and drop any requests which have not been processed yet.
+     */
+    private void discard(Channel channel) {
+        pendingRequests -= channel.queue.size();
+        channel.queue.clear();
+        channel.closed = true;
+        channels.remove(channel.id, channel);
+    }
+}
@@ -0,0 +1,481 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.PingRequest;
+import at.willhaben.jdbcproxy.server.avro.Request;
+import at.willhaben.jdbcproxy.server.avro.RequestV2;
+import at.willhaben.jdbcproxy.server.avro.Response;
+import at.willhaben.jdbcproxy.server.avro.ResponseV2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+
+/**
+ * A ConnectionEngine which monitors all connections with a single selector thread, and processes requests
+ * with fixed-size pools of worker threads (see WorkerPools).
+ * <p>
+ * The selector thread reads data from the network until a complete frame (see MessageCodec) is available,
+ * then decodes it and passes it to the connection's Multiplexer, which processes it on a worker thread
+ * (while keeping the requests of each channel in order, and bounding the number of pending requests).
+ * Responses are written directly by the worker when the network allows, otherwise they are queued and
+ * written by the selector thread.
+ * </p>
+ * <p>
+ * An idle connection therefore costs just a socket, a small read-buffer and its Multiplexer.
+ * </p>
+ * <p>
+ * A client which predates framing sends its requests without a header (see messages.avdl), so the length of
+ * such a request is not known until it has been decoded; decoding is therefore attempted whenever data arrives.
+ * These clients send one small request at a time, so the attempts are cheap.
+ * </p>
+ */
+class NioConnectionEngine implements ConnectionEngine {
+    private static final Logger logger = LoggerFactory.getLogger(NioConnectionEngine.class);
+
+    // Connections can be closed by other threads (eg the Watchdog) without the selector noticing; they
+    // are detected by a scan at this interval.
+    private static final long SCAN_INTERVAL_MILLIS = 1000;
+
+    private final WorkerPools workers;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>(); // run by the selector thread
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private HandlerFactory handlerFactory;
+    private volatile boolean done;
+
+    NioConnectionEngine(int workerThreads) {
+        this.workers = new WorkerPools(workerThreads, Executors.defaultThreadFactory());
+    }
+
+    @Override
+    public void start(int port, HandlerFactory handlerFactory) throws IOException {
+        this.handlerFactory = handlerFactory;
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        Thread t = new Thread(this::selectLoop);
+        t.start();
+    }
+
+    @Override
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void stop() throws IOException {
+        done = true;
+        serverChannel.close(); // stop accepting new connections
+        connections.forEach(Connection::close); // close all existing connections from clients
+        workers.shutdownNow();
+        selector.wakeup();
+    }
+
+    private void selectLoop() {
+        long lastScan = System.currentTimeMillis();
+        try {
+            while (!done) {
+                selector.select(SCAN_INTERVAL_MILLIS);
+
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                var keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    var key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    } else if (key.attachment() instanceof Connection conn) {
+                        conn.onSelected(key);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastScan >= SCAN_INTERVAL_MILLIS) {
+                    lastScan = now;
+                    connections.forEach(Connection::finishIfClosed);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Selector failed; no longer servicing connections", e);
+        } finally {
+            connections.forEach(Connection::close);
+            connections.forEach(Connection::finishIfClosed);
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            var conn = new Connection(channel, channel.register(selector, SelectionKey.OP_READ));
+            connections.add(conn);
+            conn.start();
+        } catch (IOException e) {
+            logger.warn("Failed to accept socket", e);
+        }
+    }
+
+    /**
+     * The state of one client connection.
+     * <p>
+     * Fields not guarded by the instance lock are accessed only by the selector thread.
+     * </p>
+     */
+    private class Connection implements Transport {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        // Requests are decoded only by the selector thread; responses are encoded by the sending threads, concurrently
+        private final MessageCodec<RequestV2, ResponseV2> codec = new MessageCodec<>(
+                RequestV2.class,
+                ResponseV2.class,
+                r -> r.getRequest() instanceof PingRequest); // keepalive pings are answered immediately
+        private final Deque<ByteBuffer> pendingWrites = new ArrayDeque<>(); // guarded by this
+        // set instead of using codec when the client predates framing
+        private volatile MessageCodec<Request, Response> legacyCodec;
+
+        private Multiplexer handler;
+        private boolean started; // it is known whether the client is framed
+        private ByteBuffer readBuffer = ByteBuffer.allocate(MessageCodec.INITIAL_BUFFER_SIZE);
+        private boolean eof; // the client has closed its end of the connection
+        private boolean closing; // close once all pending writes are done (guarded by this)
+        private boolean finished; // handler.onClose has been invoked
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            key.attach(this);
+        }
+
+        void start() {
+            handler = handlerFactory.create(
+                    channel.socket(),
+                    this,
+                    workers::forRequest);
+        }
+
+        // ============ Transport interface (invoked by worker threads, and the selector thread for pings)
+
+        @Override
+        public void send(ResponseV2 response, Compression compression) throws IOException {
+            if (!channel.isOpen()) {
+                throw new IOException("Connection closed");
+            }
+            // encoded before taking the lock, which the selector thread also needs to serve the connection
+            var legacy = legacyCodec;
+            var frame = (legacy != null)
+                    ? legacy.encode(new Response(response.getResponse()), Compression.NONE)
+                    : codec.encode(response, compression);
+            synchronized (this) {
+                if (!channel.isOpen()) {
+                    throw new IOException("Connection closed");
+                }
+                pendingWrites.add(frame);
+                flushWrites();
+                if (!pendingWrites.isEmpty()) {
+                    runOnSelector(this::updateInterest);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            runOnSelector(this::finishIfClosed);
+        }
+
+        @Override
+        public void closeWhenSent() {
+            runOnSelector(() -> {
+                closeWhenFlushed();
+                updateInterest();
+            });
+        }
+
+        // ============ selector-thread methods
+
+        void onSelected(SelectionKey selectedKey) {
+            try {
+                if (selectedKey.isWritable()) {
+                    synchronized (this) {
+                        flushWrites();
+                    }
+                }
+                if (selectedKey.isReadable()) {
+                    onReadable();
+                }
+                updateInterest();
+            } catch (IOException | CancelledKeyException e) {
+                logger.info("Connection failed: {}", e.getMessage());
+                close();
+            }
+        }
+
+        private void onReadable() throws IOException {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                eof = true;
+            }
+            dispatchFrames();
+        }
+
+        /**
+         * Pass each complete frame (or unframed request) which has been received to the Multiplexer.
+         */
+        private void dispatchFrames() throws IOException {
+            boolean open = true;
+            readBuffer.flip();
+            try {
+                if (!started) {
+                    readPreface();
+                }
+                boolean framed = started && legacyCodec == null;
+                if (started && !framed) {
+                    open = dispatchUnframed();
+                }
+                while (open && framed && readBuffer.remaining() >= MessageCodec.HEADER_SIZE) {
+                    int start = readBuffer.position();
+                    int flags = readBuffer.get(start) & 0xff;
+                    int length = readBuffer.getInt(start + 1);
+                    MessageCodec.checkHeader(flags, length);
+
+                    if (readBuffer.remaining() < MessageCodec.HEADER_SIZE + length) {
+                        break;
+                    }
+                    var payload = new byte[length];
+                    readBuffer.position(start + MessageCodec.HEADER_SIZE);
+                    readBuffer.get(payload);
+                    open = process(payload);
+                }
+
+                if (open && eof) {
+                    if (readBuffer.hasRemaining()) {
+                        throw new IOException("Truncated message");
+                    }
+                    open = process(null);
+                }
+            } finally {
+                readBuffer.compact();
+            }
+
+            if (open) {
+                resizeReadBuffer();
+            } else {
+                closeWhenFlushed();
+            }
+        }
+
+        /**
+         * Tell from the first bytes received whether the client sent the preface (see MessageCodec.PREFACE),
+         * and if so echo it; otherwise the client predates framing.
+         */
+        private void readPreface() throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                return;
+            }
+            if (!MessageCodec.isPreface(readBuffer.get(readBuffer.position()) & 0xff)) {
+                legacyCodec = new MessageCodec<>(
+                        Request.class, Response.class, false, null, null, r -> r.getRequest() instanceof PingRequest);
+                started = true;
+                return;
+            }
+            if (readBuffer.remaining() < MessageCodec.PREFACE.length) {
+                return;
+            }
+
+            var preface = new byte[MessageCodec.PREFACE.length];
+            readBuffer.get(preface);
+            if (!Arrays.equals(preface, MessageCodec.PREFACE)) {
+                throw new IOException("Malformed preface");
+            }
+            started = true;
+            synchronized (this) {
+                pendingWrites.add(ByteBuffer.wrap(MessageCodec.PREFACE.clone()));
+                flushWrites();
+            }
+        }
+
+        /**
+         * Pass each complete unframed request which has been received to the Multiplexer.
+         *
+         * @return false if the connection should be closed
+         */
+        private boolean dispatchUnframed() {
+            boolean open = true;
+            try {
+                while (open && readBuffer.hasRemaining()) {
+                    Request request;
+                    try {
+                        request = legacyCodec.decodeUnframed(readBuffer);
+                    } catch (RuntimeException e) {
+                        throw new IOException("Unable to parse message from client", e);
+                    }
+                    if (request == null) {
+                        break; // incomplete
+                    }
+                    open = handler.onLegacyRequest(request);
+                }
+            } catch (IOException e) {
+                handler.onError(e);
+                return false;
+            }
+            return open;
+        }
+
+        /**
+         * Ensure the read-buffer can hold the frame currently being received, and release a large buffer
+         * once it is no longer needed.
+         */
+        private void resizeReadBuffer() throws IOException {
+            int required = MessageCodec.INITIAL_BUFFER_SIZE;
+            if (legacyCodec != null) {
+                // the length of an unframed request is unknown, so a buffer filled by an incomplete one is grown
+                if (!readBuffer.hasRemaining()) {
+                    if (readBuffer.capacity() >= MessageCodec.MAX_FRAME_SIZE) {
+                        throw new IOException("Message too large");
+                    }
+                    required = readBuffer.capacity() * 2;
+                }
+            } else if (started && readBuffer.position() >= MessageCodec.HEADER_SIZE) {
+                required = Math.max(required, MessageCodec.HEADER_SIZE + readBuffer.getInt(1));
+            }
+
+            boolean tooSmall = readBuffer.capacity() < required;
+            boolean tooLarge = readBuffer.capacity() > MessageCodec.MAX_RETAINED_BUFFER_SIZE
+                    && readBuffer.position() <= MessageCodec.INITIAL_BUFFER_SIZE;
+            if (tooSmall || tooLarge) {
+                var newBuffer = ByteBuffer.allocate(Math.max(required, readBuffer.position()));
+                readBuffer.flip();
+                newBuffer.put(readBuffer);
+                readBuffer = newBuffer;
+            }
+        }
+
+        /**
+         * Pass a request to the Multiplexer.
+         *
+         * @return false if the connection should be closed
+         */
+        private boolean process(byte[] payload) {
+            try {
+                return handler.onRequest(decode(payload));
+            } catch (IOException e) {
+                handler.onError(e);
+                return false;
+            }
+        }
+
+        private RequestV2 decode(byte[] payload) throws IOException {
+            if (payload == null) {
+                return null; // eof
+            }
+
+            try {
+                return codec.decode(payload, 0, payload.length);
+            } catch(RuntimeException e) {
+                // avro sometimes throws RuntimeExceptions, eg ArrayIndexOutOfBoundsException
+                throw new IOException("Unable to parse message from client", e);
+            }
+        }
+
+        private void closeWhenFlushed() {
+            synchronized (this) {
+                closing = true;
+                if (pendingWrites.isEmpty()) {
+                    close();
+                }
+            }
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+
+            int ops = eof ? 0 : SelectionKey.OP_READ;
+            synchronized (this) {
+                if (closing) {
+                    ops = 0;
+                }
+                if (!pendingWrites.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Release the resources of a connection once it is closed.
+         */
+        void finishIfClosed() {
+            if (finished || channel.isOpen()) {
+                return;
+            }
+
+            finished = true;
+            connections.remove(this);
+            handler.onClose();
+        }
+
+        // ============ methods invoked by any thread
+
+        /**
+         * Write as much of the pending data as the network currently accepts, without blocking.
+         */
+        private synchronized void flushWrites() throws IOException {
+            while (!pendingWrites.isEmpty()) {
+                var buffer = pendingWrites.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                pendingWrites.poll();
+            }
+
+            if (closing) {
+                close();
+            }
+        }
+
+        private void runOnSelector(Runnable task) {
+            selectorTasks.add(task);
+            selector.wakeup();
+        }
+    }
+}
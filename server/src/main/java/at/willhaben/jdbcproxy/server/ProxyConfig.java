@@ -16,10 +16,19 @@ public class ProxyConfig {
     // general config
     private int port = -1;
     private int maxRows = 100;
+    private int maxBatchSize = 1000; // max rows per batch when results are returned via a cursor
     private int maxCommandLength = 4096; // max chars in a SQL statement
     private String sessionLifetime = "PT8H"; // ISO-8601 format; see also Duration.parse
     private String socketLifetime = "PT2H"; // ISO-8601 format; see also Duration.parse
     private String queryLifetime = "PT2M"; // ISO-8601 format; see also Duration.parse
+    private String cursorIdleTimeout = "PT10M"; // ISO-8601 format; see also Duration.parse
+    private String keepAliveInterval = "PT10S"; // ISO-8601 format; see also Duration.parse
+    private ConnectionEngineType engine = ConnectionEngineType.THREAD;
+    private int workerThreads = 16; // per pool of threads processing requests (see ConnectionEngine)
+    private int maxConnections = 500; // zero means unlimited
+    private int maxConnectionsPerUser = 20; // zero means unlimited
+    private int maxConnectionsPerDatabase = 200; // zero means unlimited
+    private final LobStore.Config lobConfig = new LobStore.Config();
 
     // authentication management config
     private AuthenticationManagement authenticationManagement = AuthenticationManagement.LOCAL;
@@ -53,6 +62,14 @@ public class ProxyConfig {
         this.maxRows = maxRows;
     }
 
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
     public int getMaxCommandLength() {
         return maxCommandLength;
     }
@@ -85,6 +102,66 @@ public class ProxyConfig {
         this.queryLifetime = queryLifetime;
     }
 
+    public String getCursorIdleTimeout() {
+        return cursorIdleTimeout;
+    }
+
+    public void setCursorIdleTimeout(String cursorIdleTimeout) {
+        this.cursorIdleTimeout = cursorIdleTimeout;
+    }
+
+    public String getKeepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    public void setKeepAliveInterval(String keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    public ConnectionEngineType getEngine() {
+        return engine;
+    }
+
+    public void setEngine(ConnectionEngineType engine) {
+        this.engine = engine;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnectionsPerUser() {
+        return maxConnectionsPerUser;
+    }
+
+    public void setMaxConnectionsPerUser(int maxConnectionsPerUser) {
+        this.maxConnectionsPerUser = maxConnectionsPerUser;
+    }
+
+    public int getMaxConnectionsPerDatabase() {
+        return maxConnectionsPerDatabase;
+    }
+
+    public void setMaxConnectionsPerDatabase(int maxConnectionsPerDatabase) {
+        this.maxConnectionsPerDatabase = maxConnectionsPerDatabase;
+    }
+
+    public LobStore.Config getLobs() {
+        return lobConfig;
+    }
+
     // ====================== authentication-management config
 
     public AuthenticationManagement getAuthenticationManagement() {
@@ -3,20 +3,35 @@ package at.willhaben.jdbcproxy.server;
 import at.willhaben.jdbcproxy.server.avro.*;
 import at.willhaben.jdbcproxy.server.dao.AuditLogger;
 import at.willhaben.jdbcproxy.server.model.Login;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
 import org.apache.avro.specific.SpecificRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.*;
 import java.sql.DatabaseMetaData;
 import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Handles a sequence of requests (commands) from a connected client (user).
@@ -26,27 +41,66 @@ class RequestHandler {
 
     private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
 
+    // Each open cursor holds a pooled database connection, so don't let a single client hog the pool.
+    // When a client opens more cursors than this, the oldest one is closed (as is one left idle for too long,
+    // see Watchdog.closeWhenIdle).
+    private static final int MAX_OPEN_CURSORS = 4;
+
     private final Login login;
     private final List<String> schemas;
     private final int maxRows; // truncate result-sets at this number of rows
+    private final int maxBatchSize; // max rows per batch returned from a cursor
+    private final int fetchSize; // rows fetched from the database per round-trip when not reading a cursor
+    private final Dialect dialect;
+    private final boolean limitPushdown; // add the max-rows limit to queries as a LIMIT clause (see LimitRewriter)
+    private final boolean partialResults; // return the rows read so far when a query is cancelled on timeout
+    private final List<String> encodings; // optional value encodings supported by the client (see Capabilities)
+    private final boolean typedDecimals; // DECIMAL/NUMERIC values are sent as BigDecimal rather than String
+    private final boolean typedTemporals; // DATE/TIME/TIMESTAMP values are sent as Long rather than String
+    private final LobStore lobs; // large objects which the client may fetch; used only if the client supports it
 
     private final Watchdog watchdog;
     private final DataSource dataSource;
+    private final MetaDataCache metaDataCache; // shared by all connections to the database; null if not cached
     private final AuditLogger auditLogger;
+    private final ConnectionRegistry.Entry registration; // allows running statements to be cancelled
+
+    private final Map<Integer, Cursor> cursors = new LinkedHashMap<>(); // in order of creation
+    private int nextCursorId = 1;
 
     RequestHandler(
             Login login,
             List<String> schemas,
             int maxRows,
+            int maxBatchSize,
+            int fetchSize,
+            Dialect dialect,
+            boolean limitPushdown,
+            boolean partialResults,
+            List<String> encodings,
+            LobStore lobs,
             DataSource dataSource,
+            MetaDataCache metaDataCache,
             Watchdog watchdog,
-            AuditLogger auditLogger) {
+            AuditLogger auditLogger,
+            ConnectionRegistry.Entry registration) {
         this.login = login;
         this.schemas = schemas;
         this.maxRows = maxRows;
+        this.maxBatchSize = maxBatchSize;
+        this.fetchSize = fetchSize;
+        this.dialect = dialect;
+        this.limitPushdown = limitPushdown;
+        this.partialResults = partialResults;
+        this.encodings = encodings;
+        this.typedDecimals = encodings.contains(Capabilities.DECIMAL_ENCODING);
+        this.typedTemporals = encodings.contains(Capabilities.TEMPORAL_ENCODING);
+        this.lobs = encodings.contains(Capabilities.LOB_ENCODING) ? lobs : null;
         this.dataSource = dataSource;
+        this.metaDataCache = metaDataCache;
         this.watchdog = watchdog;
         this.auditLogger = auditLogger;
+        this.registration = registration;
     }
 
     /**
@@ -57,8 +111,43 @@ class RequestHandler {
             return getMetaData();
         }
 
+        if (request instanceof VersionedMetaDataRequest) {
+            return getVersionedMetaData((VersionedMetaDataRequest) request);
+        }
+
+        if (request instanceof SchemasRequest) {
+            return getSchemas();
+        }
+
+        if (request instanceof TablesRequest) {
+            return getTables((TablesRequest) request);
+        }
+
+        if (request instanceof ColumnsRequest) {
+            return getColumns((ColumnsRequest) request);
+        }
+
         if (request instanceof SelectRequest) {
-            return executeRequest((SelectRequest) request);
+            return executeRequest(toSelectRequestV2((SelectRequest) request), true);
+        }
+
+        if (request instanceof SelectRequestV2) {
+            return executeRequest((SelectRequestV2) request, false);
+        }
+
+        if (request instanceof FetchRequest) {
+            return fetch((FetchRequest) request);
+        }
+
+        if (request instanceof CloseCursorRequest) {
+            closeCursor(((CloseCursorRequest) request).getCursorId());
+            return new CloseCursorResponse();
+        }
+
+        if (request instanceof LobRequest) {
+            return (lobs == null)
+                    ? LobResponse.newBuilder().setData(null).build()
+                    : lobs.read((LobRequest) request);
         }
 
         if (request instanceof PingRequest) {
@@ -68,7 +157,105 @@ class RequestHandler {
         return null;
     }
 
+    /**
+     * Release all resources held on behalf of the client, ie close any cursors that are still open.
+     */
+    void close() {
+        cursors.values().forEach(Cursor::close);
+        cursors.clear();
+        if (lobs != null) {
+            lobs.clear();
+        }
+    }
+
     SpecificRecord getMetaData() throws SQLException {
+        if (metaDataCache == null) {
+            return readMetaData(dataSource, dialect, schemas);
+        }
+        return visibleMetaData(metaDataCache.get());
+    }
+
+    /**
+     * Return the cached metadata restricted to the schemas which the client may see.
+     */
+    private MetaDataResponse visibleMetaData(MetaDataResponse metaData) {
+        if (schemas == null) {
+            return metaData;
+        }
+        return MetaDataResponse.newBuilder()
+                .setCatalog(metaData.getCatalog())
+                .setDatabaseMetaData(metaData.getDatabaseMetaData())
+                .setTables(findTables(metaData, null, null, true))
+                .build();
+    }
+
+    /**
+     * Return the version of the metadata, plus the metadata itself unless the client already has that version
+     * (eg stored on disk from an earlier connection).
+     * <p>
+     * The version of cached metadata is computed once when it is loaded (see MetaDataCache.Entry). What a client
+     * sees of it depends only on that metadata and the schemas it may see, so the version of its view is derived
+     * from these rather than by hashing the view.
+     * </p>
+     */
+    SpecificRecord getVersionedMetaData(VersionedMetaDataRequest request) throws SQLException {
+        var known = request.getKnownVersion().orElse(null);
+        if (metaDataCache == null) {
+            var metaData = readMetaData(dataSource, dialect, schemas);
+            var version = versionOf(metaData);
+            return VersionedMetaDataResponse.newBuilder()
+                    .setVersion(version)
+                    .setMetaData(version.equals(known) ? null : metaData)
+                    .build();
+        }
+
+        var entry = metaDataCache.getEntry();
+        var version = (schemas == null) ? entry.version : versionOf(entry.version, schemas);
+        return VersionedMetaDataResponse.newBuilder()
+                .setVersion(version)
+                .setMetaData(version.equals(known) ? null : visibleMetaData(entry.metaData))
+                .build();
+    }
+
+    /**
+     * Return a hash of the content of the metadata, ie of its binary encoding. This takes far less time than
+     * reading the metadata from the database, but is still worth doing only once per load (see MetaDataCache).
+     */
+    static String versionOf(MetaDataResponse metaData) throws SQLException {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            var out = new DigestOutputStream(OutputStream.nullOutputStream(), digest);
+            var encoder = EncoderFactory.get().binaryEncoder(out, null);
+            new SpecificDatumWriter<>(MetaDataResponse.class).write(metaData, encoder);
+            encoder.flush();
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new SQLException("Unable to hash metadata", e);
+        }
+    }
+
+    /**
+     * Return the version of the part of some metadata (of the given version) in the given schemas.
+     */
+    static String versionOf(String version, List<String> schemas) throws SQLException {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(version.getBytes(StandardCharsets.UTF_8));
+            for (var schema : schemas) {
+                digest.update((byte) 0);
+                digest.update(schema.getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new SQLException("Unable to hash metadata", e);
+        }
+    }
+
+    /**
+     * Read all tables, with their columns, in the given schemas (null meaning all) from the database.
+     */
+    static MetaDataResponse readMetaData(DataSource dataSource, Dialect dialect, List<String> schemas)
+            throws SQLException {
         try (var conn = dataSource.getConnection()) {
             var catalog = conn.getCatalog(); // default catalog for the current connection
 
@@ -76,22 +263,160 @@ class RequestHandler {
             var response = MetaDataResponse.newBuilder();
             response.setCatalog(catalog);
 
-            // Copy the subset of fields of object metaData which the remote client might care about.
-            // There are far too many fields to send them all - unless we go to some hack like serializing
-            // metaData to bytes or JSON. Fortunately, most clients need very few of these fields...
-            var dbMetaData = DBMetaData.newBuilder();
-            dbMetaData.setIdentifierQuoteString(metaData.getIdentifierQuoteString());
-            response.setDatabaseMetaData(dbMetaData.build());
+            response.setDatabaseMetaData(toDBMetaData(metaData));
 
             try (var allTables = metaData.getTables(catalog, null, null, null)) {
-                var tables = toTableMetaData(allTables, catalog);
-                populateColumnMetaData(tables, metaData);
+                var tables = toTableMetaData(allTables, catalog, schemas);
+                populateColumnMetaData(dialect, tables, conn, null, null);
                 response.setTables(tables);
             }
             return response.build();
         }
     }
 
+    /**
+     * Return the schemas (those which the client may see) and general settings of the database, ie what the client
+     * needs before it fetches tables and columns on demand (see getTables and getColumns).
+     */
+    SpecificRecord getSchemas() throws SQLException {
+        var all = (metaDataCache == null) ? readSchemas(dataSource) : metaDataCache.getSchemas();
+        if (schemas == null) {
+            return all;
+        }
+
+        var schemaNames = new ArrayList<String>();
+        for (var schema : all.getSchemas()) {
+            if (schemas.contains(schema)) {
+                schemaNames.add(schema);
+            }
+        }
+        return SchemasResponse.newBuilder()
+                .setCatalog(all.getCatalog())
+                .setDatabaseMetaData(all.getDatabaseMetaData())
+                .setSchemas(schemaNames)
+                .setTableTypes(all.getTableTypes())
+                .build();
+    }
+
+    /**
+     * Read all schemas and table types, and the general settings, of the database.
+     */
+    static SchemasResponse readSchemas(DataSource dataSource) throws SQLException {
+        try (var conn = dataSource.getConnection()) {
+            var metaData = conn.getMetaData();
+            var schemaNames = new ArrayList<String>();
+            try (var rs = metaData.getSchemas()) {
+                while (rs.next()) {
+                    schemaNames.add(rs.getString(1));
+                }
+            }
+
+            var tableTypes = new ArrayList<String>();
+            try (var rs = metaData.getTableTypes()) {
+                while (rs.next()) {
+                    tableTypes.add(rs.getString(1));
+                }
+            }
+
+            return SchemasResponse.newBuilder()
+                    .setCatalog(conn.getCatalog())
+                    .setDatabaseMetaData(toDBMetaData(metaData))
+                    .setSchemas(schemaNames)
+                    .setTableTypes(tableTypes)
+                    .build();
+        }
+    }
+
+    /**
+     * Return the tables with the requested schema and name (null meaning any), but with empty column info.
+     */
+    SpecificRecord getTables(TablesRequest request) throws SQLException {
+        var schema = request.getSchemaName().orElse(null);
+        var table = request.getTableName().orElse(null);
+        if (metaDataCache != null) {
+            var cached = metaDataCache.get();
+            return TablesResponse.newBuilder().setTables(findTables(cached, schema, table, false)).build();
+        }
+
+        try (var conn = dataSource.getConnection()) {
+            var tables = findTables(conn, schema, table);
+            return TablesResponse.newBuilder().setTables(tables).build();
+        }
+    }
+
+    /**
+     * Return the tables with the requested schema and name (null meaning any), including their columns.
+     */
+    SpecificRecord getColumns(ColumnsRequest request) throws SQLException {
+        var schema = request.getSchemaName().orElse(null);
+        var table = request.getTableName().orElse(null);
+        if (metaDataCache != null) {
+            var cached = metaDataCache.get();
+            return ColumnsResponse.newBuilder().setTables(findTables(cached, schema, table, true)).build();
+        }
+
+        try (var conn = dataSource.getConnection()) {
+            var tables = findTables(conn, schema, table);
+            populateColumnMetaData(dialect, tables, conn, schema, table);
+            return ColumnsResponse.newBuilder().setTables(tables).build();
+        }
+    }
+
+    private List<TableMetaData> findTables(Connection conn, String schema, String table) throws SQLException {
+        var catalog = conn.getCatalog();
+        var metaData = conn.getMetaData();
+        var escape = metaData.getSearchStringEscape();
+        var schemaPattern = Dialect.toPattern(schema, escape);
+        try (var rs = metaData.getTables(catalog, schemaPattern, Dialect.toPattern(table, escape), null)) {
+            return toTableMetaData(rs, catalog, schemas);
+        }
+    }
+
+    /**
+     * Return the (cached) tables with the given schema and name (null meaning any) which the client may see, with
+     * or without their columns. The cached objects are not modified.
+     */
+    List<TableMetaData> findTables(MetaDataResponse metaData, String schema, String table, boolean withColumns) {
+        var tables = new ArrayList<TableMetaData>();
+        for (var t : metaData.getTables()) {
+            var tableSchema = t.getSchemaName().orElse(null);
+            if (((schema != null) && !schema.equals(tableSchema))
+                    || ((table != null) && !table.equals(t.getName()))
+                    || ((this.schemas != null) && !this.schemas.contains(tableSchema))) {
+                continue;
+            }
+
+            if (!withColumns) {
+                t = TableMetaData.newBuilder()
+                        .setCatalogName(t.getCatalogName().orElse(null))
+                        .setSchemaName(tableSchema)
+                        .setName(t.getName())
+                        .setType(t.getType())
+                        .setRemarks(t.getRemarks().orElse(null))
+                        .setTypeCatalog(t.getTypeCatalog().orElse(null))
+                        .setTypeSchema(t.getTypeSchema().orElse(null))
+                        .setTypeName(t.getTypeName().orElse(null))
+                        .setColumns(new ArrayList<>())
+                        .build();
+            }
+            tables.add(t);
+        }
+        return tables;
+    }
+
+    /**
+     * Copy the subset of fields of object metaData which the remote client might care about.
+     * <p>
+     * There are far too many fields to send them all - unless we go to some hack like serializing
+     * metaData to bytes or JSON. Fortunately, most clients need very few of these fields...
+     * </p>
+     */
+    private static DBMetaData toDBMetaData(DatabaseMetaData metaData) throws SQLException {
+        return DBMetaData.newBuilder()
+                .setIdentifierQuoteString(metaData.getIdentifierQuoteString())
+                .build();
+    }
+
     /**
      * Work around strange Postgres behaviour.
      * <p>
@@ -104,7 +429,7 @@ class RequestHandler {
      * the tables were fetched as a default.
      * </p>
      */
-    private String getTableCatalog(String in, String defaultValue) {
+    private static String getTableCatalog(String in, String defaultValue) {
         if (in != null) {
             return in;
         }
@@ -112,13 +437,14 @@ class RequestHandler {
     }
 
     /**
-     * Get the list of all tables - but with empty column info.
+     * Get the list of all tables in the given schemas (null meaning all) - but with empty column info.
      * <p>
      * Column data is not fetched here because that requires a new query to the database, ie the structure of the
      * AVRO response is quite different from how JDBC returns the data.
      * </p>
      */
-    List<TableMetaData> toTableMetaData(ResultSet rs, String catalog) throws SQLException {
+    static List<TableMetaData> toTableMetaData(ResultSet rs, String catalog, List<String> schemas)
+            throws SQLException {
         var tables = new ArrayList<TableMetaData>();
         while (rs.next()) {
             var tableCatalog = getTableCatalog(rs.getString(1), catalog);
@@ -130,7 +456,7 @@ class RequestHandler {
                 tableType = "Unknown"; // alternative would be to change AVRO schema so TableMetaData.type is nullable
             }
 
-            if ((this.schemas != null) && !this.schemas.contains(tableSchema)) {
+            if ((schemas != null) && !schemas.contains(tableSchema)) {
                 continue;
             }
 
@@ -151,43 +477,63 @@ class RequestHandler {
     }
 
     /**
-     * Iterate over all tables, updating attribute "colummns".
+     * Update attribute "columns" of the given tables, which are those with the given schema and name (null
+     * meaning any).
+     * <p>
+     * The columns of all these tables are read in one pass (see Dialect.readColumns) and assigned to their
+     * tables in memory, rather than querying the database once per table; for a catalog with thousands of
+     * tables, that is the difference between seconds and minutes.
+     * </p>
      */
-    void populateColumnMetaData(List<TableMetaData> tables, DatabaseMetaData metaData) throws SQLException {
+    static void populateColumnMetaData(
+            Dialect dialect, List<TableMetaData> tables, Connection conn, String schema, String table)
+            throws SQLException {
+        if (tables.isEmpty()) {
+            return;
+        }
+
+        var tablesByName = new HashMap<String, TableMetaData>();
         for (var t : tables) {
-            try (var rs = metaData.getColumns(
-                    t.getCatalogName().orElse(null),
-                    t.getSchemaName().orElse(null),
-                    t.getName(),
-                    null)) {
-                while (rs.next()) {
-                    // See documentation for method DatabaseMetaData.getColumns
-                    var ordinal = rs.getInt(17);
-                    var colName = rs.getString(4);
-                    var sqlType = rs.getInt(5);
-                    var colSize = rs.getInt(7);
-                    var nDigits = rs.getInt(9);
-                    var nullable = rs.getInt(11);
-                    var charOctetLength = rs.getInt(16);
-
-                    var column = TableColumnMetaData.newBuilder()
-                            .setOrdinal(ordinal)
-                            .setName(colName)
-                            .setType(sqlType)
-                            .setSize(colSize)
-                            .setPrecision(nDigits)
-                            .setNullable(nullable)
-                            .setCharOctetLength(charOctetLength)
-                            .build();
-                    t.getColumns().add(column);
-                }
-            }
+            tablesByName.put(qualifiedName(t.getSchemaName().orElse(null), t.getName()), t);
         }
+
+        dialect.readColumns(conn, conn.getCatalog(), schema, table, (tableSchema, tableName, column) -> {
+            var t = tablesByName.get(qualifiedName(tableSchema, tableName));
+            if (t != null) {
+                t.getColumns().add(column);
+            }
+        });
     }
 
-    SpecificRecord executeRequest(SelectRequest request) {
+    private static String qualifiedName(String schema, String table) {
+        return (schema == null) ? table : schema + "." + table;
+    }
+
+    /**
+     * Return the equivalent of a SelectRequest sent by a client before protocol version 2, ie without a cursor,
+     * without limits of its own and without accepting partial results.
+     */
+    static SelectRequestV2 toSelectRequestV2(SelectRequest request) {
+        return SelectRequestV2.newBuilder()
+                .setQuery(request.getQuery())
+                .build();
+    }
+
+    /**
+     * Execute the query; legacy means that it was sent as a SelectRequest, so is answered with the response
+     * records understood by such clients. These have no way of marking results as incomplete, so partial results
+     * are never returned to them.
+     */
+    SpecificRecord executeRequest(SelectRequestV2 request, boolean legacy) {
+        var rowLimit = limitMaxRows(request.getMaxRows());
+        var query = request.getQuery();
+        var executed = limitPushdown ? LimitRewriter.rewrite(query, dialect, rowLimit) : query;
+        if (!executed.equals(query) && !auditLogger.canRecord(login, executed)) {
+            // the rewrite would not fit in the audit trail; the max-rows limit still applies without it
+            executed = query;
+        }
         try {
-            auditLogger.recordOperation(login, request.getQuery());
+            auditLogger.recordOperation(login, query, executed.equals(query) ? null : executed);
         } catch(IOException e) {
             var cause = e.getMessage();
             if (cause == null) {
@@ -197,25 +543,241 @@ class RequestHandler {
             return ErrorResponse.newBuilder().setMessage(msg).build();
         }
 
+        if (request.getBatchSize() > 0) {
+            return openCursor(request, executed, rowLimit);
+        }
+
+        boolean partial = !legacy && (partialResults || request.getPartialResults());
         try (var conn = dataSource.getConnection();
-            var stmt = conn.prepareStatement(request.getQuery())) {
-                stmt.setMaxRows(maxRows);
-                var rs = watchdog.executeQuery(stmt, login.getSession().getUsername());
-                var resultMetaData = createResultMetaData(rs.getMetaData());
-                var rowData = createRowData(resultMetaData, rs);
-                return SelectResponse.newBuilder()
-                        .setMetadata(resultMetaData)
-                        .setRows(rowData)
-                        .build();
+            var stmt = conn.prepareStatement(executed)) {
+                stmt.setMaxRows(rowLimit);
+                setQueryTimeout(stmt, request.getQueryTimeoutSecs());
+                dialect.setFetchSize(stmt, limitFetchSize(fetchSize, rowLimit));
+                // reading the rows may take as long as executing the query, so the lifetime covers both, as does
+                // cancelling by the client
+                registration.setActiveStatement(stmt);
+                try (var watch = watchdog.watch(stmt, login.getSession().getUsername())) {
+                    var rs = stmt.executeQuery();
+                    var resultMetaData = createResultMetaData(rs.getMetaData());
+                    var rowData = createRowData(createCodecs(resultMetaData), rs,
+                            (rowLimit > 0) ? rowLimit : Integer.MAX_VALUE, partial ? watch : null);
+                    if (legacy) {
+                        var response = new EncodedRows.InSelectResponse(rowData);
+                        response.setMetadata(resultMetaData);
+                        return response;
+                    }
+                    var response = new EncodedRows.InSelectResponseV2(rowData);
+                    response.setMetadata(resultMetaData);
+                    response.setTimedOut(partial && watch.isExpired());
+                    return response;
+                } finally {
+                    registration.setActiveStatement(null);
+                }
         } catch(SQLException e) {
-            var msg = e.getMessage();
-            if (msg == null) {
-                msg = "Unknown error while executing statement";
+            return toErrorResponse(e);
+        }
+    }
+
+    /**
+     * Execute the query and return the first batch of results, keeping the result-set open so that the
+     * client can fetch the remaining rows on demand.
+     * <p>
+     * This bounds the memory needed on both client and server by the batch-size rather than the size
+     * of the result-set, and allows the client to present the first rows before the whole result-set
+     * has been transferred.
+     * </p>
+     */
+    SpecificRecord openCursor(SelectRequestV2 request, String query, int rowLimit) {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        try {
+            conn = dataSource.getConnection();
+            stmt = conn.prepareStatement(query);
+            stmt.setMaxRows(rowLimit);
+            setQueryTimeout(stmt, request.getQueryTimeoutSecs());
+            // the client's fetch-size, so that each batch needs (at most) one round-trip to the database
+            var batchSize = Math.min(request.getBatchSize(), maxBatchSize);
+            dialect.setFetchSize(stmt, limitFetchSize(batchSize, rowLimit));
+            ResultSet rs;
+            try (var watch = watchdog.watch(stmt, login.getSession().getUsername())) {
+                rs = executeQuery(stmt);
             }
-            return ErrorResponse.newBuilder().setMessage(msg).build();
+            var resultMetaData = createResultMetaData(rs.getMetaData());
+            var cursor = new Cursor(
+                    nextCursorId++,
+                    conn,
+                    stmt,
+                    rs,
+                    resultMetaData,
+                    createCodecs(resultMetaData),
+                    request.getFormat(),
+                    batchSize,
+                    rowLimit,
+                    partialResults || request.getPartialResults());
+            conn = null; // now owned by the cursor
+            stmt = null;
+
+            cursors.values().removeIf(Cursor::isClosed); // eg by the watchdog, being idle for too long
+            if (cursors.size() >= MAX_OPEN_CURSORS) {
+                var oldest = cursors.keySet().iterator().next();
+                logger.info("Too many open cursors: closing cursor {} of user={}",
+                        oldest, login.getSession().getUsername());
+                closeCursor(oldest);
+            }
+            cursors.put(cursor.getId(), cursor);
+
+            var batch = readBatch(cursor);
+            if (!batch.getEndOfResults()) {
+                watchdog.closeWhenIdle(cursor, login.getSession().getUsername());
+            }
+            return CursorResponseV2.newBuilder()
+                    .setCursorId(cursor.getId())
+                    .setMetadata(resultMetaData)
+                    .setBatch(batch)
+                    .setTimedOut(cursor.isTimedOut())
+                    .build();
+        } catch(SQLException e) {
+            closeQuietly(stmt);
+            closeQuietly(conn);
+            return toErrorResponse(e);
+        }
+    }
+
+    /**
+     * Return the max-rows limit for a query, ie the limit requested by the client if that is lower than the
+     * server's own limit.
+     */
+    int limitMaxRows(int requested) {
+        if (requested > 0 && (maxRows <= 0 || requested < maxRows)) {
+            return requested;
+        }
+        return maxRows;
+    }
+
+    /**
+     * Return the given fetch-size, reduced to the max-rows limit as there is no point in fetching more rows.
+     */
+    private static int limitFetchSize(int rows, int rowLimit) {
+        return (rowLimit > 0) ? Math.min(rows, rowLimit) : rows;
+    }
+
+    /**
+     * Apply the timeout requested by the client, if any. The watchdog cancels any query which runs longer than
+     * the server's query-lifetime, so a longer timeout is ignored.
+     */
+    private void setQueryTimeout(PreparedStatement stmt, int requestedSecs) throws SQLException {
+        if (requestedSecs > 0 && requestedSecs < watchdog.getQueryLifetime().toSeconds()) {
+            stmt.setQueryTimeout(requestedSecs);
+        }
+    }
+
+    /**
+     * Execute the statement, allowing it to be cancelled by the client; the caller is responsible for
+     * watching the statement (see Watchdog.watch), and for allowing the reading of its rows to be cancelled
+     * too (see readBatch).
+     */
+    private ResultSet executeQuery(PreparedStatement stmt) throws SQLException {
+        registration.setActiveStatement(stmt);
+        try {
+            return stmt.executeQuery();
+        } finally {
+            registration.setActiveStatement(null);
         }
     }
 
+    SpecificRecord fetch(FetchRequest request) {
+        var cursor = cursors.get(request.getCursorId());
+        if (cursor == null) {
+            return ErrorResponse.newBuilder().setMessage("Unknown cursor (already closed?)").build();
+        }
+        if (!cursor.acquire()) {
+            cursors.remove(cursor.getId());
+            return ErrorResponse.newBuilder().setMessage("Cursor closed after being idle for too long").build();
+        }
+
+        try {
+            var batch = readBatch(cursor);
+            return FetchResponseV2.newBuilder().setBatch(batch).setTimedOut(cursor.isTimedOut()).build();
+        } catch(SQLException e) {
+            closeCursor(cursor.getId());
+            return toErrorResponse(e);
+        } finally {
+            cursor.release();
+        }
+    }
+
+    /**
+     * Read the next batch of rows from the cursor; when the end of the results is reached then the cursor
+     * is closed so that its database connection is returned to the pool as early as possible.
+     * <p>
+     * Each batch may run for the query-lifetime, as the time the client takes between batches is not spent
+     * in the database. Whether the query was cancelled meanwhile is recorded in the cursor (see
+     * Cursor.isTimedOut).
+     * </p>
+     */
+    ResultBatch readBatch(Cursor cursor) throws SQLException {
+        int limit = cursor.nextBatchSize();
+        ResultBatch batch;
+        int rowCount;
+        // Reading rows may also take a long time (the database produces them on demand), so can be cancelled too
+        registration.setActiveStatement(cursor.getStatement());
+        try (var watch = watchdog.watch(cursor.getStatement(), login.getSession().getUsername())) {
+            var partial = cursor.isPartialResults() ? watch : null;
+            if (cursor.getFormat() == ResultFormat.COLUMNS) {
+                var columns = createColumnData(cursor.getCodecs(), cursor.getResultSet(), limit, partial);
+                batch = new ResultBatch();
+                batch.setRows(List.of());
+                batch.setColumns(columns);
+                rowCount = columns.getRowCount();
+            } else {
+                var rows = createRowData(cursor.getCodecs(), cursor.getResultSet(), limit, partial);
+                batch = new EncodedRows.InResultBatch(rows);
+                rowCount = rows.size();
+            }
+            cursor.setTimedOut(partial != null && watch.isExpired());
+        } finally {
+            registration.setActiveStatement(null);
+        }
+        cursor.addRowsRead(rowCount);
+
+        // The end is reached when fewer rows than requested were available (including when the query timed out
+        // and partial results were requested), or the max-rows limit is hit
+        boolean endOfResults = rowCount < limit || cursor.isTimedOut() || cursor.nextBatchSize() <= 0;
+        if (endOfResults) {
+            closeCursor(cursor.getId());
+        }
+
+        batch.setEndOfResults(endOfResults);
+        return batch;
+    }
+
+    void closeCursor(int cursorId) {
+        var cursor = cursors.remove(cursorId);
+        if (cursor != null) {
+            cursor.close();
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable resource) {
+        if (resource == null) {
+            return;
+        }
+
+        try {
+            resource.close();
+        } catch (Exception e) {
+            // ignore - we are already reporting an error
+        }
+    }
+
+    private static ErrorResponse toErrorResponse(SQLException e) {
+        var msg = e.getMessage();
+        if (msg == null) {
+            msg = "Unknown error while executing statement";
+        }
+        return ErrorResponse.newBuilder().setMessage(msg).build();
+    }
+
     ResultColumnsMetaData createResultMetaData(ResultSetMetaData md) throws SQLException {
         List<ResultColumnMetaData> columns = new ArrayList<>();
         int nColumns = md.getColumnCount();
@@ -232,29 +794,108 @@ class RequestHandler {
         return ResultColumnsMetaData.newBuilder().setColumns(columns).build();
     }
 
-    List<Row> createRowData(ResultColumnsMetaData rowMetaData, ResultSet rs) throws SQLException {
-        int nColumns = rowMetaData.getColumns().size();
-        List<Row> data = new ArrayList<>();
-        while (rs.next()) {
-            var row = Row.newBuilder().setColumns(new ArrayList<>());
-            for(int i=1; i<=nColumns; ++i) {
-                var origValue = rs.getObject(i);
-                var newValue = mapToType(origValue, rowMetaData.getColumns().get(i-1).getType());
-                var col = BasicValue.newBuilder()
-                        .setValue(newValue)
-                        .build();
-                row.getColumns().add(col);
+    /**
+     * Return the codec for each column of a result-set, chosen once rather than per cell.
+     */
+    ColumnCodec[] createCodecs(ResultColumnsMetaData rowMetaData) {
+        var columns = rowMetaData.getColumns();
+        var codecs = new ColumnCodec[columns.size()];
+        for (int i = 0; i < codecs.length; ++i) {
+            codecs[i] = createCodec(columns.get(i).getType());
+        }
+        return codecs;
+    }
+
+    private ColumnCodec createCodec(int sqlType) {
+        switch(sqlType) {
+            case Types.INTEGER:
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.BIGINT:
+                return ColumnCodec.LONG;
+
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return ColumnCodec.DOUBLE;
+
+            case Types.BOOLEAN:
+                return ColumnCodec.BOOLEAN;
+
+            default:
+                // BIT in particular may be a boolean or a number, depending on the database
+                return (rs, column) -> mapToType(rs.getObject(column), sqlType);
+        }
+    }
+
+    /**
+     * Read at most maxCount rows from the result-set; see nextRow for the meaning of partial.
+     * <p>
+     * The rows are encoded as they are read (see RowEncoder), so are returned only as their bytes.
+     * </p>
+     */
+    EncodedRows createRowData(ColumnCodec[] codecs, ResultSet rs, int maxCount, Watchdog.StmtWatch partial)
+            throws SQLException {
+        var encoder = new RowEncoder();
+        while (encoder.getRowCount() < maxCount && nextRow(rs, partial)) {
+            encoder.startRow(codecs.length);
+            for(int i=0; i<codecs.length; ++i) {
+                codecs[i].read(rs, i+1, encoder);
             }
-            data.add(row.build());
+            encoder.endRow();
+        }
+        return encoder.finish();
+    }
 
-            if (data.size() > maxRows) {
-                break;
+    /**
+     * Move to the next row of the result-set.
+     * <p>
+     * When the watchdog cancels the statement, fetching further rows fails. If the client accepts partial
+     * results (ie the watch of the statement is passed as partial) this is instead treated as the end of the
+     * results, so that the rows already read are not thrown away; the caller marks the results as timed-out.
+     * </p>
+     */
+    private static boolean nextRow(ResultSet rs, Watchdog.StmtWatch partial) throws SQLException {
+        try {
+            return rs.next();
+        } catch(SQLException e) {
+            if (partial != null && partial.isExpired()) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Read at most maxCount rows from the result-set, in column-major order.
+     * <p>
+     * Compared to createRowData, this avoids a union-index and a BasicValue object per cell, and stores
+     * numeric values without any per-value overhead.
+     * </p>
+     */
+    RowBatch createColumnData(ColumnCodec[] codecs, ResultSet rs, int maxCount, Watchdog.StmtWatch partial)
+            throws SQLException {
+        var builders = new ColumnVectorBuilder[codecs.length];
+        boolean dictionaryAllowed = encodings.contains(Capabilities.DICTIONARY_ENCODING);
+        for(int i=0; i<codecs.length; ++i) {
+            builders[i] = new ColumnVectorBuilder(i+1, dictionaryAllowed);
+        }
+
+        int rowCount = 0;
+        while (rowCount < maxCount && nextRow(rs, partial)) {
+            for(int i=0; i<codecs.length; ++i) {
+                codecs[i].read(rs, i+1, builders[i]);
             }
+            ++rowCount;
+        }
+
+        List<ColumnVector> columns = new ArrayList<>(codecs.length);
+        for (var builder : builders) {
+            columns.add(builder.build());
         }
-        return data;
+        return RowBatch.newBuilder().setRowCount(rowCount).setColumns(columns).build();
     }
 
-    Object mapToType(Object value, int sqlType) {
+    Object mapToType(Object value, int sqlType) throws SQLException {
         if (value == null) {
             return null;
         }
@@ -284,17 +925,26 @@ class RequestHandler {
 
             case Types.DECIMAL:
             case Types.NUMERIC:
-                // AVRO doesn't have any equivalent of this. We could serialize it to bytes or to string.
-                // The receiving end of course has to reverse this mapping...
+                // AVRO doesn't have any equivalent of this, so unless the client understands DecimalValue
+                // this is sent as a string. The receiving end of course has to reverse this mapping...
+                if (typedDecimals) {
+                    return (value instanceof BigDecimal) ? value : new BigDecimal(value.toString());
+                }
                 return value.toString();
 
             case Types.CHAR:
             case Types.VARCHAR:
-                return value.toString();
+                // Long values are truncated when the client can fetch the rest on demand
+                var text = value.toString();
+                return (lobs != null && lobs.isInlineTooLong(text)) ? lobs.addText(text) : text;
 
             case Types.DATE:
             case Types.TIME:
             case Types.TIMESTAMP:
+                if (typedTemporals) {
+                    return toLong(value, sqlType);
+                }
+
                 // Avro doesn't have native date/time types, so map these types to a String in ISO format
                 if (value instanceof java.util.Date) {
                     // also handles java.sql.Date and java.sql.Timestamp
@@ -308,13 +958,80 @@ class RequestHandler {
                 return null;
 
             case Types.BLOB:
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+                // Only a prefix is sent; the client fetches the rest on demand
+                return (lobs == null) ? null : lobs.add(value, true);
+
             case Types.CLOB:
-                // Don't support these types for this auditproxy usecase
-                return null;
+            case Types.NCLOB:
+            case Types.LONGVARCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.SQLXML:
+                return (lobs == null) ? null : lobs.add(value, false);
 
             default:
                 logger.warn("Unsupported type: {}", sqlType);
                 return null;
         }
     }
+
+    /**
+     * Map a temporal value to the numeric encoding described in messages.avdl (see BasicValue), which is
+     * far cheaper to produce and to parse than an ISO string.
+     * <p>
+     * As in the string encoding, java.util.Date values (including java.sql.Date and java.sql.Time) are taken as
+     * an instant whose UTC date or time is sent, and values without a time-zone (eg LocalDateTime) are taken to
+     * be in UTC. A column thus decodes to the same value whichever encoding is negotiated.
+     * </p>
+     */
+    static Long toLong(Object value, int sqlType) {
+        switch (sqlType) {
+            case Types.DATE:
+                if (value instanceof LocalDate) {
+                    return ((LocalDate) value).toEpochDay();
+                }
+                break;
+
+            case Types.TIME:
+                if (value instanceof LocalTime) {
+                    return ((LocalTime) value).toNanoOfDay() / 1000;
+                }
+                break;
+
+            default:
+                if (value instanceof java.sql.Timestamp) {
+                    var ts = (java.sql.Timestamp) value;
+                    return Math.floorDiv(ts.getTime(), 1000) * 1_000_000 + ts.getNanos() / 1000;
+                }
+                if (value instanceof LocalDateTime) {
+                    return toEpochMicros(((LocalDateTime) value).toInstant(ZoneOffset.UTC));
+                }
+                if (value instanceof OffsetDateTime) {
+                    return toEpochMicros(((OffsetDateTime) value).toInstant());
+                }
+        }
+
+        if (value instanceof java.util.Date) {
+            // also a java.sql.Timestamp in a DATE column (as returned by Oracle); the milliseconds of a
+            // java.sql.Time are kept
+            var instant = Instant.ofEpochMilli(((java.util.Date) value).getTime());
+            switch (sqlType) {
+                case Types.DATE:
+                    return instant.atZone(ZoneOffset.UTC).toLocalDate().toEpochDay();
+                case Types.TIME:
+                    return instant.atZone(ZoneOffset.UTC).toLocalTime().toNanoOfDay() / 1000;
+                default:
+                    return toEpochMicros(instant);
+            }
+        }
+
+        logger.warn("Unsupported value for temporal type {}: {}", sqlType, value.getClass().getName());
+        return null;
+    }
+
+    private static long toEpochMicros(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000 + instant.getNano() / 1000;
+    }
 }
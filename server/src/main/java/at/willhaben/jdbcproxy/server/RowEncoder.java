@@ -0,0 +1,180 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.BasicValue;
+import at.willhaben.jdbcproxy.server.avro.DecimalValue;
+import at.willhaben.jdbcproxy.server.avro.LobValue;
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+
+/**
+ * Encodes rows of the ROWS result format (array&lt;Row&gt; in messages.avdl) as they are read from the
+ * result-set, without creating a Row and BasicValue object per row and cell.
+ * <p>
+ * The rows are written as an avro array in blocks of BLOCK_SIZE rows, as the number of rows is not known in
+ * advance; each block is assembled in a small buffer and then appended to the output. The result is sent as
+ * EncodedRows in an EncodedRows.Carrier, whose bytes MessageCodec copies into the message as they are. For the
+ * client this is the same (valid avro) encoding as before.
+ * </p>
+ */
+class RowEncoder {
+    static final int BLOCK_SIZE = 128; // rows
+
+    private static final Schema VALUE_SCHEMA = BasicValue.SCHEMA$.getField("value").schema();
+    private static final int NULL_INDEX = VALUE_SCHEMA.getIndexNamed("null");
+    private static final int STRING_INDEX = VALUE_SCHEMA.getIndexNamed("string");
+    private static final int LONG_INDEX = VALUE_SCHEMA.getIndexNamed("long");
+    private static final int BOOLEAN_INDEX = VALUE_SCHEMA.getIndexNamed("boolean");
+    private static final int DOUBLE_INDEX = VALUE_SCHEMA.getIndexNamed("double");
+    private static final int DECIMAL_INDEX = VALUE_SCHEMA.getIndexNamed(DecimalValue.SCHEMA$.getFullName());
+    private static final int LOB_INDEX = VALUE_SCHEMA.getIndexNamed(LobValue.SCHEMA$.getFullName());
+
+    private static final DatumWriter<LobValue> LOB_WRITER = new SpecificDatumWriter<>(LobValue.class);
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final BinaryEncoder outEncoder = EncoderFactory.get().directBinaryEncoder(out, null);
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(block, null);
+
+    private int rowCount;
+    private int blockRowCount;
+
+    int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Start a row, whose values must then be written in column order.
+     */
+    void startRow(int columnCount) {
+        try {
+            encoder.writeArrayStart();
+            encoder.setItemCount(columnCount);
+        } catch(IOException e) {
+            // cannot happen when writing to a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void endRow() {
+        try {
+            encoder.writeArrayEnd();
+            ++rowCount;
+            if (++blockRowCount == BLOCK_SIZE) {
+                flushBlock();
+            }
+        } catch(IOException e) {
+            // cannot happen when writing to a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void writeNull() {
+        writeIndex(NULL_INDEX);
+    }
+
+    void writeLong(long value) {
+        try {
+            encoder.writeIndex(LONG_INDEX);
+            encoder.writeLong(value);
+        } catch(IOException e) {
+            // cannot happen when writing to a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void writeDouble(double value) {
+        try {
+            encoder.writeIndex(DOUBLE_INDEX);
+            encoder.writeDouble(value);
+        } catch(IOException e) {
+            // cannot happen when writing to a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void writeBoolean(boolean value) {
+        try {
+            encoder.writeIndex(BOOLEAN_INDEX);
+            encoder.writeBoolean(value);
+        } catch(IOException e) {
+            // cannot happen when writing to a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write a value as returned by RequestHandler.mapToType.
+     */
+    void write(Object value) throws SQLException {
+        try {
+            if (value == null) {
+                encoder.writeIndex(NULL_INDEX);
+            } else if (value instanceof String) {
+                encoder.writeIndex(STRING_INDEX);
+                encoder.writeString((String) value);
+            } else if (value instanceof Long) {
+                writeLong((Long) value);
+            } else if (value instanceof Double) {
+                writeDouble((Double) value);
+            } else if (value instanceof Boolean) {
+                writeBoolean((Boolean) value);
+            } else if (value instanceof BigDecimal) {
+                // fields of DecimalValue in schema order
+                var decimal = (BigDecimal) value;
+                encoder.writeIndex(DECIMAL_INDEX);
+                encoder.writeBytes(decimal.unscaledValue().toByteArray());
+                encoder.writeInt(decimal.scale());
+            } else if (value instanceof LobValue) {
+                encoder.writeIndex(LOB_INDEX);
+                LOB_WRITER.write((LobValue) value, encoder);
+            } else {
+                throw new SQLException("Unsupported value type: " + value.getClass().getName());
+            }
+        } catch(IOException e) {
+            // cannot happen when writing to a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Return the rows written so far, as a complete avro array.
+     */
+    EncodedRows finish() {
+        try {
+            flushBlock();
+            outEncoder.writeArrayEnd();
+        } catch(IOException e) {
+            // cannot happen when writing to a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        return new EncodedRows(out.toByteArray(), rowCount);
+    }
+
+    private void writeIndex(int index) {
+        try {
+            encoder.writeIndex(index);
+        } catch(IOException e) {
+            // cannot happen when writing to a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockRowCount == 0) {
+            return;
+        }
+        outEncoder.writeLong(blockRowCount);
+        block.writeTo(out);
+        block.reset();
+        blockRowCount = 0;
+    }
+}
@@ -0,0 +1,136 @@
+package at.willhaben.jdbcproxy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects changes to the tables and columns of a target database, eg by a migration, so that metadata held by the
+ * proxy (see MetaDataCache) and by connected clients (see MetaDataInvalidation in messages.avdl) can be discarded.
+ * <p>
+ * The database is polled with a query which returns a "version" per schema, ie values which change whenever a
+ * table or column of the schema changes (see Dialect.schemaVersionsQuery). This is far cheaper than reading the
+ * metadata itself, so metadata need not be reloaded regularly just in case it has changed. Only the schemas
+ * whose version changed are reported.
+ * </p>
+ */
+class SchemaChangeDetector {
+    private static final Logger logger = LoggerFactory.getLogger(SchemaChangeDetector.class);
+    private static final int QUERY_TIMEOUT_SECS = 30; // a hanging poll would delay all later polls (of all databases)
+
+    /**
+     * Notified when the tables or columns of some schemas have changed.
+     */
+    @FunctionalInterface
+    interface Listener {
+        void onChange(List<String> schemas);
+    }
+
+    private final String name;
+    private final DataSource dataSource;
+    private final String query;
+    private final MetaDataCache metaDataCache; // null if the metadata of the database is not cached
+    private final Set<Listener> listeners = new CopyOnWriteArraySet<>();
+
+    private Map<String, String> versions; // as of the last poll; null until a poll succeeded (used by poll only)
+
+    SchemaChangeDetector(String name, DataSource dataSource, String query, MetaDataCache metaDataCache) {
+        this.name = name;
+        this.dataSource = dataSource;
+        this.query = query;
+        this.metaDataCache = metaDataCache;
+    }
+
+    /**
+     * Poll the database at the given interval, until the scheduler is shut down.
+     */
+    void start(ScheduledExecutorService scheduler, Duration interval) {
+        scheduler.scheduleWithFixedDelay(this::poll, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Read the current versions of the schemas, and report those which have changed since the last poll. A
+     * failure is just logged, eg the database may be down for a while.
+     */
+    void poll() {
+        Map<String, String> current;
+        try {
+            current = readVersions();
+        } catch (SQLException e) {
+            logger.warn("Unable to detect schema changes of database {}: {}", name, e.getMessage());
+            return;
+        }
+
+        if (versions != null) {
+            var changed = changedSchemas(versions, current);
+            if (!changed.isEmpty()) {
+                logger.info("Detected changes of database {} in schemas {}", name, changed);
+                if (metaDataCache != null) {
+                    metaDataCache.invalidate();
+                }
+                for (var listener : listeners) {
+                    try {
+                        listener.onChange(changed);
+                    } catch (RuntimeException e) {
+                        logger.warn("Failed to report schema changes", e);
+                    }
+                }
+            }
+        }
+        versions = current;
+    }
+
+    private Map<String, String> readVersions() throws SQLException {
+        var result = new HashMap<String, String>();
+        try (var conn = dataSource.getConnection();
+             var stmt = conn.createStatement()) {
+            stmt.setQueryTimeout(QUERY_TIMEOUT_SECS);
+            try (var rs = stmt.executeQuery(query)) {
+                int columns = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    var version = new StringBuilder();
+                    for (int i = 2; i <= columns; i++) {
+                        version.append(rs.getString(i)).append(':');
+                    }
+                    result.put(rs.getString(1), version.toString());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the (sorted) names of the schemas whose versions differ, including those which exist in only one
+     * of the maps.
+     */
+    static List<String> changedSchemas(Map<String, String> previous, Map<String, String> current) {
+        var changed = new TreeSet<String>();
+        previous.forEach((schema, version) -> {
+            if (!version.equals(current.get(schema))) {
+                changed.add(schema);
+            }
+        });
+        current.keySet().stream().filter(schema -> !previous.containsKey(schema)).forEach(changed::add);
+        return new ArrayList<>(changed);
+    }
+}
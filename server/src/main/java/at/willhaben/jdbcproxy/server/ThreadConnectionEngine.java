@@ -0,0 +1,207 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.PingRequest;
+import at.willhaben.jdbcproxy.server.avro.Request;
+import at.willhaben.jdbcproxy.server.avro.RequestV2;
+import at.willhaben.jdbcproxy.server.avro.Response;
+import at.willhaben.jdbcproxy.server.avro.ResponseV2;
+import org.apache.avro.specific.SpecificRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A ConnectionEngine which reads from each connection with a dedicated thread, using blocking IO.
+ * <p>
+ * Requests are processed by fixed-size pools of worker threads (see WorkerPools), so that the channels of a
+ * connection can be processed concurrently (see Multiplexer) while many busy clients cannot make the server create
+ * any number of threads. The threads may be platform threads or virtual threads, depending on the ThreadFactory
+ * provided.
+ * </p>
+ */
+class ThreadConnectionEngine implements ConnectionEngine {
+    private static final Logger logger = LoggerFactory.getLogger(ThreadConnectionEngine.class);
+
+    private final ThreadFactory threadFactory;
+    private final WorkerPools workers;
+    private final Set<Multiplexer> handlers = ConcurrentHashMap.newKeySet(); // one per connected client
+
+    private ServerSocket serverSocket;
+    private volatile boolean done;
+
+    ThreadConnectionEngine(ThreadFactory threadFactory, int workerThreads) {
+        this.threadFactory = threadFactory;
+        this.workers = new WorkerPools(workerThreads, threadFactory);
+    }
+
+    /**
+     * Return a factory for virtual threads.
+     * <p>
+     * This code is compiled for Java 17 where virtual threads are not available, so reflection is needed.
+     * </p>
+     */
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new IllegalStateException("Virtual threads are not supported by this JVM (Java 21+ required)", e);
+        }
+    }
+
+    @Override
+    public void start(int port, HandlerFactory handlerFactory) throws IOException {
+        serverSocket = new ServerSocket(port);
+
+        Thread t = new Thread(() -> acceptConnections(handlerFactory));
+        t.start();
+    }
+
+    @Override
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void stop() throws IOException {
+        done = true;
+        serverSocket.close(); // stop accepting new connections - and also wakes code blocked on serverSocket.accept()
+        handlers.forEach(Multiplexer::stop); // close all existing connections from clients
+        workers.shutdownNow();
+    }
+
+    private void acceptConnections(HandlerFactory handlerFactory) {
+        try {
+            while (!done) {
+                Socket socket = serverSocket.accept();
+                threadFactory.newThread(() -> handleConnection(socket, handlerFactory)).start();
+            }
+        } catch(IOException e) {
+            // ignore
+           logger.warn("Failed to accept socket");
+        }
+    }
+
+    private void handleConnection(Socket socket, HandlerFactory handlerFactory) {
+        var transport = new SocketTransport(socket);
+        var handler = handlerFactory.create(socket, transport, workers::forRequest);
+        handlers.add(handler);
+
+        try {
+            boolean open = transport.start();
+            while (open) {
+                open = (transport.codec != null)
+                        ? handler.onRequest(receive(transport.codec))
+                        : handler.onLegacyRequest(receive(transport.legacyCodec));
+            }
+        } catch (IOException e) {
+            handler.onError(e);
+        } finally {
+            closeQuietly(socket);
+            handlers.remove(handler);
+            handler.onClose();
+        }
+    }
+
+    /**
+     * Return the next request from the client, or null if the client has closed the connection.
+     */
+    private static <R extends SpecificRecord> R receive(MessageCodec<R, ?> codec) throws IOException {
+        try {
+            return codec.read();
+        } catch (EOFException | SocketException e) {
+            // socket closed
+            logger.info("Failed to read avro message; assuming EOF", e);
+            return null;
+        } catch(RuntimeException e) {
+            // avro sometimes throws RuntimeExceptions, eg ArrayIndexOutOfBoundsException
+            throw new IOException("Unable to parse message from client", e);
+        }
+    }
+
+    /**
+     * Sends the responses to a client, framed or not depending on what the client sent first (see
+     * messages.avdl).
+     */
+    private static class SocketTransport implements Transport {
+        private final Socket socket;
+        // exactly one of these is set once the connection has started
+        private volatile MessageCodec<RequestV2, ResponseV2> codec;
+        private volatile MessageCodec<Request, Response> legacyCodec;
+
+        SocketTransport(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * Read the preface (if any) and create the codec for the kind of client; return false if the client
+         * closed the connection without sending anything.
+         */
+        boolean start() throws IOException {
+            var in = new PushbackInputStream(socket.getInputStream());
+            var out = socket.getOutputStream();
+            boolean framed;
+            try {
+                framed = MessageCodec.readPreface(in);
+            } catch (EOFException | SocketException e) {
+                logger.info("Client closed socket before sending a request: {}", e.getMessage());
+                return false;
+            }
+
+            if (!framed) {
+                // a client which predates framing only understands unframed Request and Response
+                legacyCodec = new MessageCodec<>(
+                        Request.class, Response.class, false, in, out, r -> r.getRequest() instanceof PingRequest);
+                return true;
+            }
+            out.write(MessageCodec.PREFACE);
+            out.flush();
+            codec = new MessageCodec<>(
+                    RequestV2.class,
+                    ResponseV2.class,
+                    in,
+                    out,
+                    r -> r.getRequest() instanceof PingRequest); // keepalive pings are answered immediately
+            return true;
+        }
+
+        @Override
+        public void send(ResponseV2 response, Compression compression) throws IOException {
+            // responses for different channels are sent by different threads, which the codec allows
+            if (codec != null) {
+                codec.write(response, compression);
+            } else if (legacyCodec != null) {
+                legacyCodec.write(new Response(response.getResponse()), Compression.NONE);
+            } else {
+                throw new IOException("Connection not started");
+            }
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(socket);
+        }
+
+        @Override
+        public void closeWhenSent() {
+            closeQuietly(socket); // responses have been written by the time send returns
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
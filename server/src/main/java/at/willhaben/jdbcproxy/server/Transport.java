@@ -0,0 +1,28 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.ResponseV2;
+
+import java.io.IOException;
+
+/**
+ * The means by which a Multiplexer sends responses to its client; provided by the ConnectionEngine.
+ * <p>
+ * Responses for different channels may be sent concurrently by different threads.
+ * </p>
+ */
+interface Transport {
+    /**
+     * Send a message to the client, compressing it if it is large enough to be worth it.
+     */
+    void send(ResponseV2 response, Compression compression) throws IOException;
+
+    /**
+     * Close the connection to the client, eg when the server is shutting down.
+     */
+    void close();
+
+    /**
+     * Close the connection to the client once all responses passed to send have been sent.
+     */
+    void closeWhenSent();
+}
@@ -5,25 +5,26 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.Socket;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.Duration;
 import java.util.*;
 import java.util.stream.Collectors;
 
 /**
- * Terminates a SQL statement or network socket after a specific period of time.
+ * Terminates a SQL statement or network socket after a specific period of time, and closes cursors which the
+ * client has stopped reading.
  */
 public class Watchdog {
     private static final Logger logger = LoggerFactory.getLogger(Watchdog.class);
 
     public class StmtWatch implements AutoCloseable {
-        final PreparedStatement stmt;
+        final Statement stmt;
         final long expiresAt;
         final String user;
+        private volatile boolean expired;
 
-        StmtWatch(PreparedStatement stmt, long expiresAt, String user) {
+        StmtWatch(Statement stmt, long expiresAt, String user) {
             this.stmt = stmt;
             this.expiresAt = expiresAt;
             this.user = user;
@@ -33,9 +34,18 @@ public class Watchdog {
             stmtWatches.remove(this);
         }
 
+        /**
+         * Return true if the statement has been cancelled because its lifetime expired, ie any SQLException
+         * thrown by the statement (or its result-set) since then is due to the cancellation.
+         */
+        public boolean isExpired() {
+            return expired;
+        }
+
         void expire() {
             if (stmtWatches.remove(this)) {
                 logger.warn("Force-cancelling SQL statement for client {}", user);
+                expired = true;
                 try {
                     stmt.cancel();
                 } catch (SQLException e) {
@@ -77,21 +87,52 @@ public class Watchdog {
         }
     }
 
+    class CursorWatch {
+        final Cursor cursor;
+        final String user;
+
+        CursorWatch(Cursor cursor, String user) {
+            this.cursor = cursor;
+            this.user = user;
+        }
+
+        /**
+         * Close the cursor if it has not been read since the given time.
+         *
+         * @return true if the cursor no longer needs to be watched, ie is closed
+         */
+        boolean expireIfIdleSince(long time) {
+            if (cursor.closeIfIdleSince(time)) {
+                logger.warn("Closing cursor {} of client {} which has been idle for longer than {}",
+                        cursor.getId(), user, cursorIdleTimeout);
+                return true;
+            }
+            return cursor.isClosed();
+        }
+    }
+
     private static final Duration SCAN_INTERVAL = Duration.ofSeconds(30);
 
     private final Duration queryLifetime;
+    private final Duration cursorIdleTimeout;
     private final Set<StmtWatch> stmtWatches = Collections.synchronizedSet(new HashSet<>());
     private final Set<SocketWatch> socketWatches = Collections.synchronizedSet(new HashSet<>());
+    private final Set<CursorWatch> cursorWatches = Collections.synchronizedSet(new HashSet<>());
     private final Thread expiryThread;
 
-    public Watchdog(Duration queryLifetime) {
+    public Watchdog(Duration queryLifetime, Duration cursorIdleTimeout) {
         this.queryLifetime = queryLifetime;
+        this.cursorIdleTimeout = cursorIdleTimeout;
 
         expiryThread = new Thread(this::watch);
         expiryThread.setDaemon(true); // don't block application shutdown...
         expiryThread.start();
     }
 
+    public Duration getQueryLifetime() {
+        return queryLifetime;
+    }
+
     /**
      * Loop forever (or until explicitly interrupted), terminating SQL-statements and network-sockets
      * which have passed their associated lifetimes.
@@ -112,7 +153,7 @@ public class Watchdog {
     }
 
     /**
-     * Scan all existing statements and sockets, closing them if needed.
+     * Scan all existing statements, sockets and cursors, closing them if needed.
      * <p>
      * This uses a pretty brute-force way to find expired items. However the list of currently-running
      * statements and currently-open sockets is expected to be very small.
@@ -130,19 +171,27 @@ public class Watchdog {
                 .filter(e -> e.expiresAt < now)
                 .toList();
         expiredSockets.forEach(SocketWatch::expire);
+
+        // closing a cursor may take a while, so is not done while holding the lock
+        long idleSince = now - cursorIdleTimeout.toMillis();
+        List<CursorWatch> cursors;
+        synchronized (cursorWatches) {
+            cursors = new ArrayList<>(cursorWatches);
+        }
+        cursors.stream()
+                .filter(e -> e.expireIfIdleSince(idleSince))
+                .forEach(cursorWatches::remove);
     }
 
     /**
-     * Run a query with a maximum duration (stmt.cancel will be called after this interval).
+     * Run a query with a maximum duration, ie stmt.cancel will be called after this interval unless the returned
+     * watch has been closed. The watch should cover reading rows from the result-set too, as with incremental
+     * fetching the database may spend as long producing them as executing the query.
      */
-    public ResultSet executeQuery(PreparedStatement statement, String user) throws SQLException {
+    public StmtWatch watch(Statement statement, String user) {
         var stmtWatch = new StmtWatch(statement, System.currentTimeMillis() + queryLifetime.toMillis(), user);
         stmtWatches.add(stmtWatch);
-        try {
-            return statement.executeQuery();
-        } finally {
-            stmtWatches.remove(stmtWatch);
-        }
+        return stmtWatch;
     }
 
     public SocketWatch closeAfter(Socket socket, Duration maxDuration) {
@@ -151,6 +200,15 @@ public class Watchdog {
         return watch;
     }
 
+    /**
+     * Close the cursor once the client has not read from it for the cursor-idle-timeout (see Cursor.acquire), so
+     * that a client which abandons a cursor without closing it does not hold a pooled connection until it
+     * disconnects. Closed cursors are forgotten on the next scan.
+     */
+    void closeWhenIdle(Cursor cursor, String user) {
+        cursorWatches.add(new CursorWatch(cursor, user));
+    }
+
     public void expireAll() {
         // not actually needed, as this is a daemon thread
         expiryThread.interrupt();
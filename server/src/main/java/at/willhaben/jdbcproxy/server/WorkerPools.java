@@ -0,0 +1,55 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.CancelRequest;
+import at.willhaben.jdbcproxy.server.avro.PingRequest;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The threads with which a ConnectionEngine processes requests, shared by all connections.
+ * <p>
+ * Requests which wait for a pooled database connection can occupy all workers, while the clients holding
+ * those connections (via an open cursor) need a worker to fetch the remaining rows and release them.
+ * Requests which never wait for a pooled connection therefore have their own workers (see
+ * ConnectionHandler.mayWaitForPool). How many workers a single connection may occupy is limited by its
+ * Multiplexer.
+ * </p>
+ * <p>
+ * A CancelRequest must take effect while the query it cancels is still running, however busy the other workers
+ * are, so it has a small pool of its own; so do keepalive pings, should one not have been answered by the
+ * Multiplexer directly. Neither is run by the thread reading requests, as cancelling a statement may involve a
+ * round-trip to the database, which would stall all connections served by the NIO selector thread.
+ * </p>
+ */
+class WorkerPools {
+    static final int CONTROL_THREADS = 2;
+
+    private final ExecutorService workers;
+    private final ExecutorService nonBlockingWorkers;
+    private final ExecutorService controlWorkers;
+
+    WorkerPools(int workerThreads, ThreadFactory threadFactory) {
+        this.workers = Executors.newFixedThreadPool(workerThreads, threadFactory);
+        this.nonBlockingWorkers = Executors.newFixedThreadPool(workerThreads, threadFactory);
+        this.controlWorkers = Executors.newFixedThreadPool(CONTROL_THREADS, threadFactory);
+    }
+
+    /**
+     * Return the executor with which to process a specific request.
+     */
+    Executor forRequest(Object request) {
+        if (request instanceof CancelRequest || request instanceof PingRequest) {
+            return controlWorkers;
+        }
+        return ConnectionHandler.mayWaitForPool(request) ? workers : nonBlockingWorkers;
+    }
+
+    void shutdownNow() {
+        workers.shutdownNow();
+        nonBlockingWorkers.shutdownNow();
+        controlWorkers.shutdownNow();
+    }
+}
@@ -21,5 +21,21 @@ public interface AuditLogger {
     /**
      * Record the actual SQL statement that a user has executed.
      */
-    void recordOperation(Login login, String operation) throws IOException;
+    default void recordOperation(Login login, String operation) throws IOException {
+        recordOperation(login, operation, null);
+    }
+
+    /**
+     * Record the SQL statement that a user has executed, together with the statement actually sent to the
+     * database when the proxy rewrote it (eg to add a LIMIT clause); executed is null when not rewritten.
+     */
+    void recordOperation(Login login, String operation, String executed) throws IOException;
+
+    /**
+     * Return false if the statement is too long to be recorded for the user's database, ie recordOperation would
+     * fail for it.
+     */
+    default boolean canRecord(Login login, String statement) {
+        return true;
+    }
 }
@@ -32,6 +32,7 @@ public class DBAuditLogger implements AuditLogger {
     private static final String COLUMN_SESSION = "session";
     private static final String COLUMN_AT = "at";
     private static final String COLUMN_COMMAND = "command";
+    private static final String COLUMN_EXECUTED = "executed";
 
     private final Map<String, Database> databases;
     private final JdbcTemplate jdbcTemplate;
@@ -74,7 +75,7 @@ public class DBAuditLogger implements AuditLogger {
     }
 
     @Override
-    public void recordOperation(Login login, String operation) throws IOException {
+    public void recordOperation(Login login, String operation, String executed) throws IOException {
         if (!isAudited(login.getSession().getDatabase())) {
             return;
         }
@@ -85,11 +86,18 @@ public class DBAuditLogger implements AuditLogger {
             // with an explicit message.
             throw new IOException("Unable to record operation: longer than max of " + maxCommandLength);
         }
+        if (executed != null && executed.length() >= maxCommandLength) {
+            // callers check canRecord first, and execute the operation as it is if its rewrite is too long
+            throw new IOException("Unable to record rewritten operation: longer than max of " + maxCommandLength);
+        }
 
         try {
+            // Column "executed" is only needed (and so only needs to exist) when queries are rewritten
             SimpleJdbcInsert simpleJdbcInsert = new SimpleJdbcInsert(jdbcTemplate)
                     .withTableName("OPERATION")
-                    .usingColumns(COLUMN_SESSION, COLUMN_AT, COLUMN_COMMAND);
+                    .usingColumns((executed == null)
+                            ? new String[] {COLUMN_SESSION, COLUMN_AT, COLUMN_COMMAND}
+                            : new String[] {COLUMN_SESSION, COLUMN_AT, COLUMN_COMMAND, COLUMN_EXECUTED});
 
             var at = Instant.now(); // operation-at, not login-at
 
@@ -97,12 +105,20 @@ public class DBAuditLogger implements AuditLogger {
             cols.put(COLUMN_SESSION, login.getSession().getId());
             cols.put(COLUMN_AT, new java.sql.Timestamp(at.toEpochMilli()));
             cols.put(COLUMN_COMMAND, operation);
+            if (executed != null) {
+                cols.put(COLUMN_EXECUTED, executed);
+            }
             simpleJdbcInsert.execute(cols);
         } catch (RuntimeException e) {
             throw new IOException("Unable to store operation", e);
         }
     }
 
+    @Override
+    public boolean canRecord(Login login, String statement) {
+        return !isAudited(login.getSession().getDatabase()) || statement.length() < maxCommandLength;
+    }
+
     // ====  static helper methods
 
     /**
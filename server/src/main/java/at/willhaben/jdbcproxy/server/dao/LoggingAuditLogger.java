@@ -22,7 +22,7 @@ public class LoggingAuditLogger implements AuditLogger {
     }
 
     @Override
-    public void recordOperation(Login login, String operation) {
+    public void recordOperation(Login login, String operation, String executed) {
         // The current time (at which operation was executed) is expected to be
         // implicitly added via the logger-format-string.
         String msg = String.format(
@@ -30,6 +30,9 @@ public class LoggingAuditLogger implements AuditLogger {
                 login.getSession().getUsername(),
                 login.getAt(),
                 operation);
+        if (executed != null) {
+            msg += String.format(" executed=[%s]", executed);
+        }
         logger.info(msg);
     }
 }
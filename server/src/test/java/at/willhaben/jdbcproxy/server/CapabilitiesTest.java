@@ -0,0 +1,52 @@
+package at.willhaben.jdbcproxy.server;
+
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+
+class CapabilitiesTest {
+    private final Capabilities capabilities =
+            new Capabilities(1000, 500, Duration.ofMinutes(2), Duration.ofSeconds(30));
+
+    @Test
+    void testNegotiate() {
+        var result = capabilities.negotiate(Map.of(
+                Capabilities.PROTOCOL_VERSION, "7",
+                Capabilities.FORMATS, "FANCY,COLUMNS,ROWS",
+                Capabilities.COMPRESSION, "zstd",
+                Capabilities.STREAMING, "false"));
+
+        Assert.assertEquals(String.valueOf(Capabilities.CURRENT_PROTOCOL_VERSION), result.get(Capabilities.PROTOCOL_VERSION));
+        Assert.assertEquals("COLUMNS,ROWS", result.get(Capabilities.FORMATS));
+        Assert.assertEquals("", result.get(Capabilities.COMPRESSION));
+        Assert.assertEquals("false", result.get(Capabilities.STREAMING));
+        Assert.assertEquals("1000", result.get(Capabilities.MAX_ROWS));
+        Assert.assertEquals("500", result.get(Capabilities.MAX_BATCH_SIZE));
+        Assert.assertEquals("120", result.get(Capabilities.QUERY_TIMEOUT));
+        Assert.assertEquals("30", result.get(Capabilities.KEEPALIVE_INTERVAL));
+    }
+
+    @Test
+    void testNegotiateCompression() {
+        // the first supported compression preferred by the client is used
+        var result = capabilities.negotiate(Map.of(Capabilities.COMPRESSION, "zstd,deflate-best,deflate-fast"));
+        Assert.assertEquals("deflate-best", result.get(Capabilities.COMPRESSION));
+        Assert.assertEquals(Compression.BEST, Compression.of(result.get(Capabilities.COMPRESSION)));
+        Assert.assertEquals(Compression.NONE, Compression.of(""));
+    }
+
+    @Test
+    void testNegotiateWithOldClient() {
+        // a client which predates the negotiation sends no capabilities
+        var result = capabilities.negotiate(Map.of());
+
+        Assert.assertEquals("0", result.get(Capabilities.PROTOCOL_VERSION));
+        Assert.assertEquals("ROWS", result.get(Capabilities.FORMATS));
+        Assert.assertEquals("false", result.get(Capabilities.STREAMING));
+        Assert.assertEquals("false", result.get(Capabilities.LAZY_METADATA));
+        Assert.assertEquals("false", result.get(Capabilities.METADATA_VERSION));
+        Assert.assertEquals("false", result.get(Capabilities.METADATA_INVALIDATION));
+    }
+}
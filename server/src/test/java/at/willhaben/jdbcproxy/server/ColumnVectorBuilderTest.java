@@ -0,0 +1,83 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.ColumnKind;
+import at.willhaben.jdbcproxy.server.avro.LobValue;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.List;
+
+class ColumnVectorBuilderTest {
+
+    @Test
+    void testDictionary() throws SQLException {
+        var builder = new ColumnVectorBuilder(1, true);
+        for (var value : new String[] {"NEW", "DONE", null, "NEW", "NEW"}) {
+            builder.add(value);
+        }
+
+        var vector = builder.build();
+        Assert.assertEquals(ColumnKind.DICTIONARY, vector.getKind());
+        Assert.assertEquals(List.of("NEW", "DONE"), vector.getStrings());
+        Assert.assertEquals(4, vector.getValues().remaining()); // one byte per non-null value
+    }
+
+    @Test
+    void testNoDictionary() throws SQLException {
+        // not supported by the client
+        var builder = new ColumnVectorBuilder(1, false);
+        builder.add("NEW");
+        builder.add("NEW");
+        Assert.assertEquals(ColumnKind.STRING, builder.build().getKind());
+
+        // mostly distinct values
+        builder = new ColumnVectorBuilder(1, true);
+        builder.add("a");
+        builder.add("b");
+        builder.add("a");
+        var vector = builder.build();
+        Assert.assertEquals(ColumnKind.STRING, vector.getKind());
+        Assert.assertEquals(List.of("a", "b", "a"), vector.getStrings());
+        Assert.assertEquals(0, vector.getValues().remaining());
+    }
+
+    @Test
+    void testDecimal() throws SQLException {
+        var builder = new ColumnVectorBuilder(1, false);
+        builder.add(new BigDecimal("3.25"));
+        builder.add(null);
+
+        var vector = builder.build();
+        Assert.assertEquals(ColumnKind.DECIMAL, vector.getKind());
+        Assert.assertEquals(4, vector.getValues().remaining()); // scale, length and two bytes for 325
+    }
+
+    @Test
+    void testTruncatedText() throws Exception {
+        // strings before and after a truncated value are sent as complete LobValues
+        var truncated = LobValue.newBuilder().setPrefix("ab").setLength(5).setTruncated(false).setLobId(3).build();
+        var builder = new ColumnVectorBuilder(1, true);
+        builder.add("x");
+        builder.add("x");
+        builder.add(truncated);
+        builder.add("y");
+
+        var vector = builder.build();
+        Assert.assertEquals(ColumnKind.LOB, vector.getKind());
+        Assert.assertTrue(vector.getStrings().isEmpty());
+
+        var reader = new SpecificDatumReader<>(LobValue.class);
+        var decoder = DecoderFactory.get().binaryDecoder(vector.getValues().array(), null);
+        Assert.assertEquals("x", reader.read(null, decoder).getPrefix().toString());
+        Assert.assertEquals("x", reader.read(null, decoder).getPrefix().toString());
+        Assert.assertEquals(truncated, reader.read(null, decoder));
+        var last = reader.read(null, decoder);
+        Assert.assertEquals("y", last.getPrefix().toString());
+        Assert.assertEquals(0, last.getLobId());
+        Assert.assertTrue(decoder.isEnd());
+    }
+}
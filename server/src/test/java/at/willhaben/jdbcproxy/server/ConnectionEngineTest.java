@@ -0,0 +1,237 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.CloseRequest;
+import at.willhaben.jdbcproxy.server.avro.CloseResponse;
+import at.willhaben.jdbcproxy.server.avro.LobRequest;
+import at.willhaben.jdbcproxy.server.avro.LobResponse;
+import at.willhaben.jdbcproxy.server.avro.PingRequest;
+import at.willhaben.jdbcproxy.server.avro.PingResponse;
+import at.willhaben.jdbcproxy.server.avro.Request;
+import at.willhaben.jdbcproxy.server.avro.RequestV2;
+import at.willhaben.jdbcproxy.server.avro.Response;
+import at.willhaben.jdbcproxy.server.avro.ResponseV2;
+import org.junit.Assert;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests a ConnectionEngine over a loopback socket, with a client which sends raw frames. Each request is a
+ * LobRequest, answered with a LobResponse of the requested length (so that responses of any size can be produced).
+ * A client which predates framing is simulated by sending unframed messages instead.
+ */
+abstract class ConnectionEngineTest {
+    private final Semaphore closedChannels = new Semaphore(0);
+    private ConnectionEngine engine;
+
+    abstract ConnectionEngine createEngine();
+
+    @BeforeEach
+    void start() throws IOException {
+        engine = createEngine();
+        engine.start(0, (socket, transport, executors) -> new Multiplexer(
+                transport, executors, Mockito.mock(Watchdog.SocketWatch.class), this::createHandler));
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        engine.stop();
+    }
+
+    @Test
+    void testFraming() throws Exception {
+        try (var socket = connect()) {
+            // two frames in a single write
+            var out = socket.getOutputStream();
+            var both = new ByteArrayOutputStream();
+            both.write(frame(request(1, 10)));
+            both.write(frame(request(2, 20)));
+            out.write(both.toByteArray());
+            out.flush();
+
+            // a frame arriving a byte at a time
+            for (byte b : frame(request(3, 30))) {
+                out.write(b);
+                out.flush();
+                Thread.sleep(1);
+            }
+
+            var in = reader(socket);
+            assertResponse(1, 10, in.read());
+            assertResponse(2, 20, in.read());
+            assertResponse(3, 30, in.read());
+        }
+    }
+
+    @Test
+    void testLargeResponse() throws Exception {
+        try (var socket = connect()) {
+            // the response does not fit in the socket buffers while the client is not reading, so it is written in
+            // parts; meanwhile the next request is still read
+            int length = 8 * 1024 * 1024;
+            var out = socket.getOutputStream();
+            out.write(frame(request(1, length)));
+            out.write(frame(request(2, 10)));
+            out.flush();
+            Thread.sleep(200);
+
+            var in = reader(socket);
+            assertResponse(1, length, in.read());
+            assertResponse(2, 10, in.read());
+
+            // once all is written, the connection is just waiting for requests again
+            out.write(frame(request(3, 10)));
+            out.flush();
+            assertResponse(3, 10, in.read());
+        }
+    }
+
+    @Test
+    void testClose() throws Exception {
+        // the client closes the channel
+        try (var socket = connect()) {
+            socket.getOutputStream().write(frame(new RequestV2(1, 1, new CloseRequest())));
+            var response = reader(socket).read();
+            Assert.assertTrue(response.getResponse() instanceof CloseResponse);
+            Assert.assertTrue(closedChannels.tryAcquire(5, TimeUnit.SECONDS));
+        }
+
+        // the client closes the connection, with a channel still open
+        try (var socket = connect()) {
+            socket.getOutputStream().write(frame(request(1, 10)));
+            assertResponse(1, 10, reader(socket).read());
+        }
+        Assert.assertTrue(closedChannels.tryAcquire(5, TimeUnit.SECONDS));
+
+        // the server is stopped
+        try (var socket = connect()) {
+            socket.getOutputStream().write(frame(request(1, 10)));
+            var in = reader(socket);
+            assertResponse(1, 10, in.read());
+            engine.stop();
+            Assert.assertThrows(IOException.class, in::read);
+            Assert.assertTrue(closedChannels.tryAcquire(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void testLegacyClient() throws Exception {
+        try (var socket = connectUnframed()) {
+            var out = socket.getOutputStream();
+            var in = new MessageCodec<>(Response.class, Request.class, false,
+                    socket.getInputStream(), OutputStream.nullOutputStream(), r -> false);
+            out.write(unframed(new Request(new PingRequest())));
+            out.flush();
+            Assert.assertTrue(in.read().getResponse() instanceof PingResponse);
+
+            // a request arriving a byte at a time
+            for (byte b : unframed(new Request(new CloseRequest()))) {
+                out.write(b);
+                out.flush();
+                Thread.sleep(1);
+            }
+            Assert.assertTrue(in.read().getResponse() instanceof CloseResponse);
+
+            // such a client expects the server to close the connection with its only channel
+            Assert.assertThrows(EOFException.class, in::read);
+            Assert.assertTrue(closedChannels.tryAcquire(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private ConnectionHandler createHandler(Multiplexer.Channel channel) {
+        return Mockito.mock(ConnectionHandler.class, invocation -> {
+            switch (invocation.getMethod().getName()) {
+                case "onRequest":
+                    return respond(channel, invocation.getArgument(0));
+                case "onClose":
+                    closedChannels.release();
+                    return null;
+                default:
+                    return Mockito.RETURNS_DEFAULTS.answer(invocation);
+            }
+        });
+    }
+
+    private static boolean respond(Multiplexer.Channel channel, Object request) throws IOException {
+        if (request instanceof CloseRequest) {
+            channel.send(new CloseResponse());
+            return false;
+        }
+
+        var lobRequest = (LobRequest) request;
+        var data = new byte[lobRequest.getLength()];
+        Arrays.fill(data, (byte) lobRequest.getLobId());
+        channel.send(LobResponse.newBuilder().setData(ByteBuffer.wrap(data)).build());
+        return true;
+    }
+
+    /**
+     * Connect as a framed client, ie one which sends the preface.
+     */
+    private Socket connect() throws IOException {
+        var socket = connectUnframed();
+        socket.getOutputStream().write(MessageCodec.PREFACE);
+        var preface = socket.getInputStream().readNBytes(MessageCodec.PREFACE.length);
+        Assert.assertArrayEquals(MessageCodec.PREFACE, preface);
+        return socket;
+    }
+
+    private Socket connectUnframed() throws IOException {
+        var socket = new Socket();
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), engine.getPort()));
+        socket.setSoTimeout(10_000);
+        return socket;
+    }
+
+    private static MessageCodec<ResponseV2, RequestV2> reader(Socket socket) throws IOException {
+        return new MessageCodec<>(
+                ResponseV2.class,
+                RequestV2.class,
+                socket.getInputStream(),
+                OutputStream.nullOutputStream(),
+                r -> false);
+    }
+
+    private static RequestV2 request(int requestId, int length) {
+        return new RequestV2(1, requestId, LobRequest.newBuilder()
+                .setLobId(requestId)
+                .setOffset(0)
+                .setLength(length)
+                .build());
+    }
+
+    private static byte[] frame(RequestV2 request) throws IOException {
+        var codec = new MessageCodec<>(ResponseV2.class, RequestV2.class, r -> false);
+        var frame = codec.encode(request, Compression.NONE);
+        return Arrays.copyOf(frame.array(), frame.limit());
+    }
+
+    private static byte[] unframed(Request request) throws IOException {
+        var codec = new MessageCodec<>(Response.class, Request.class, false, null, null, r -> false);
+        var message = codec.encode(request, Compression.NONE);
+        return Arrays.copyOfRange(message.array(), message.position(), message.limit());
+    }
+
+    private static void assertResponse(int requestId, int length, ResponseV2 response) {
+        Assert.assertEquals(requestId, response.getRequestId());
+        var data = (ByteBuffer) ((LobResponse) response.getResponse()).getData().get();
+        Assert.assertEquals(length, data.remaining());
+        while (data.hasRemaining()) {
+            Assert.assertEquals((byte) requestId, data.get());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.AuthenticationRequest;
+import at.willhaben.jdbcproxy.server.avro.AuthenticationResponse;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.Map;
+
+class ConnectionHandlerTest {
+
+    @Test
+    void testRejectedBeforeAuthentication() throws Exception {
+        var registry = new ConnectionRegistry(0, 1, 0);
+        registry.register("a", "db");
+        var authenticator = Mockito.mock(Authenticator.class);
+        var sessionManager = Mockito.mock(SessionManager.class);
+        var channel = Mockito.mock(Multiplexer.Channel.class);
+        var handler = new ConnectionHandler(
+                0, 0, null, null, null, null, sessionManager, channel, Mockito.mock(Watchdog.SocketWatch.class),
+                Map.of(), Map.of(), Map.of(), Map.of(), null, null, authenticator, registry);
+
+        // the user's limit is reached, so neither LDAP nor the audit database are asked
+        Assert.assertFalse(handler.onRequest(new AuthenticationRequest("a", "secret", "db")));
+        Mockito.verifyNoInteractions(authenticator, sessionManager);
+
+        // the client is told why, in the response it is waiting for
+        var response = ArgumentCaptor.forClass(AuthenticationResponse.class);
+        Mockito.verify(channel).send(response.capture());
+        Assert.assertFalse(response.getValue().getAccepted());
+        Assert.assertEquals("Too many connections for user a", response.getValue().getErrorMessage());
+    }
+}
@@ -0,0 +1,73 @@
+package at.willhaben.jdbcproxy.server;
+
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.sql.Statement;
+
+class ConnectionRegistryTest {
+
+    @Test
+    void testLimits() throws Exception {
+        var registry = new ConnectionRegistry(3, 2, 0);
+
+        var a1 = registry.register("a", "db1");
+        registry.register("a", "db2");
+        Assert.assertThrows(ConnectionRegistry.LimitExceededException.class, () -> registry.register("a", "db1"));
+
+        registry.register("b", "db1");
+        Assert.assertThrows(ConnectionRegistry.LimitExceededException.class, () -> registry.register("c", "db1"));
+
+        // closing a connection frees a slot, for both the global and per-user limits
+        a1.close();
+        a1.close(); // closing twice has no effect
+        registry.register("a", "db1");
+        Assert.assertThrows(ConnectionRegistry.LimitExceededException.class, () -> registry.register("c", "db1"));
+    }
+
+    @Test
+    void testCheck() throws Exception {
+        var registry = new ConnectionRegistry(0, 1, 0);
+
+        // checking does not count as a connection
+        registry.check("a", "db1");
+        registry.check("a", "db1");
+        registry.register("a", "db1");
+        Assert.assertThrows(ConnectionRegistry.LimitExceededException.class, () -> registry.check("a", "db1"));
+        registry.check("b", "db1");
+    }
+
+    @Test
+    void testDatabaseLimit() throws Exception {
+        var registry = new ConnectionRegistry(0, 0, 1);
+
+        var entry = registry.register("a", "db1");
+        registry.register("a", "db2");
+        Assert.assertThrows(ConnectionRegistry.LimitExceededException.class, () -> registry.register("b", "db1"));
+
+        entry.close();
+        registry.register("b", "db1");
+    }
+
+    @Test
+    void testCancel() throws Exception {
+        var registry = new ConnectionRegistry(0, 0, 0);
+        var entry = registry.register("a", "db1");
+        var other = registry.register("a", "db1");
+        Assert.assertNotEquals(entry.getCancelToken(), other.getCancelToken());
+
+        // nothing running
+        Assert.assertFalse(registry.cancel(entry.getCancelToken()));
+
+        var stmt = Mockito.mock(Statement.class);
+        entry.setActiveStatement(stmt);
+        Assert.assertFalse(registry.cancel(entry.getCancelToken() + 1));
+        Assert.assertTrue(registry.cancel(entry.getCancelToken()));
+        Mockito.verify(stmt).cancel();
+
+        // the token is no longer valid once the connection is closed
+        entry.close();
+        Assert.assertFalse(registry.cancel(entry.getCancelToken()));
+    }
+}
@@ -0,0 +1,49 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.ResultFormat;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+public class CursorTest {
+    @Test
+    public void testCloseIfIdle() throws SQLException {
+        var conn = Mockito.mock(Connection.class);
+        var cursor = new Cursor(1, conn, null, null, null, null, ResultFormat.ROWS, 10, 100, false);
+        long future = System.currentTimeMillis() + 60_000;
+
+        // not closed while being read, however long that takes
+        Assert.assertTrue(cursor.acquire());
+        Assert.assertFalse(cursor.closeIfIdleSince(future));
+        cursor.release();
+
+        Assert.assertFalse(cursor.closeIfIdleSince(0));
+        Assert.assertTrue(cursor.closeIfIdleSince(future));
+        Assert.assertTrue(cursor.isClosed());
+        Mockito.verify(conn).close();
+
+        // the client's next fetch finds the cursor closed
+        Assert.assertFalse(cursor.acquire());
+        Assert.assertFalse(cursor.closeIfIdleSince(future));
+        cursor.close();
+        Mockito.verify(conn, Mockito.times(1)).close();
+    }
+
+    @Test
+    public void testNextBatchSize() {
+        var limited = new Cursor(1, null, null, null, null, null, ResultFormat.ROWS, 10, 25, false);
+        Assert.assertEquals(10, limited.nextBatchSize());
+        limited.addRowsRead(20);
+        Assert.assertEquals(5, limited.nextBatchSize());
+        limited.addRowsRead(5);
+        Assert.assertEquals(0, limited.nextBatchSize());
+
+        // zero means no limit
+        var unlimited = new Cursor(1, null, null, null, null, null, ResultFormat.ROWS, 10, 0, false);
+        unlimited.addRowsRead(1000);
+        Assert.assertEquals(10, unlimited.nextBatchSize());
+    }
+}
@@ -0,0 +1,50 @@
+package at.willhaben.jdbcproxy.server;
+
+import com.zaxxer.hikari.HikariConfig;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class DialectTest {
+    @Test
+    public void testOf() {
+        Assert.assertEquals(Dialect.POSTGRES, Dialect.of("jdbc:postgresql://localhost:5432/postgres"));
+        Assert.assertEquals(Dialect.MYSQL, Dialect.of("jdbc:mysql://localhost/test"));
+        Assert.assertEquals(Dialect.ORACLE, Dialect.of("jdbc:oracle:thin:@localhost:1521/xe"));
+        Assert.assertEquals(Dialect.GENERIC, Dialect.of("jdbc:h2:mem:test"));
+        Assert.assertEquals(Dialect.GENERIC, Dialect.of(null));
+    }
+
+    @Test
+    public void testConfigure() {
+        var hc = new HikariConfig();
+        Dialect.MYSQL.configure(hc, 500);
+        Assert.assertEquals("true", hc.getDataSourceProperties().getProperty("useCursorFetch"));
+        Assert.assertEquals("500", hc.getDataSourceProperties().getProperty("defaultFetchSize"));
+
+        hc = new HikariConfig();
+        Dialect.GENERIC.configure(hc, 500);
+        Assert.assertTrue(hc.getDataSourceProperties().isEmpty());
+    }
+
+    @Test
+    public void testSetFetchSize() throws SQLException {
+        var stmt = Mockito.mock(Statement.class);
+        Dialect.POSTGRES.setFetchSize(stmt, 0);
+        Mockito.verify(stmt, Mockito.never()).setFetchSize(Mockito.anyInt());
+
+        Dialect.POSTGRES.setFetchSize(stmt, 200);
+        Mockito.verify(stmt).setFetchSize(200);
+    }
+
+    @Test
+    public void testToPattern() {
+        Assert.assertNull(Dialect.toPattern(null, "\\"));
+        Assert.assertEquals("foo\\_bar", Dialect.toPattern("foo_bar", "\\"));
+        Assert.assertEquals("a\\%b\\\\c", Dialect.toPattern("a%b\\c", "\\"));
+        Assert.assertEquals("foo_bar", Dialect.toPattern("foo_bar", ""));
+    }
+}
@@ -0,0 +1,43 @@
+package at.willhaben.jdbcproxy.server;
+
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+public class LimitRewriterTest {
+    @Test
+    public void testRewrite() {
+        Assert.assertEquals("select * from foo order by x LIMIT 100",
+                LimitRewriter.rewrite("select * from foo order by x", Dialect.POSTGRES, 100));
+        Assert.assertEquals("SELECT * FROM foo LIMIT 100",
+                LimitRewriter.rewrite("SELECT * FROM foo;\n-- done\n", Dialect.MYSQL, 100));
+        Assert.assertEquals("select * from v$session FETCH FIRST 100 ROWS ONLY",
+                LimitRewriter.rewrite("select * from v$session", Dialect.ORACLE, 100));
+        Assert.assertEquals("with t as (select 1 from bar limit 5) select * from t LIMIT 100",
+                LimitRewriter.rewrite("with t as (select 1 from bar limit 5) select * from t", Dialect.POSTGRES, 100));
+        Assert.assertEquals("select 'it''s; limit' from foo LIMIT 100",
+                LimitRewriter.rewrite("select 'it''s; limit' from foo -- limit\n", Dialect.POSTGRES, 100));
+    }
+
+    @Test
+    public void testUnchanged() {
+        // no limit, or no limit-syntax for the dialect
+        Assert.assertEquals("select * from foo", LimitRewriter.rewrite("select * from foo", Dialect.POSTGRES, 0));
+        Assert.assertEquals("select * from foo", LimitRewriter.rewrite("select * from foo", Dialect.GENERIC, 100));
+
+        // already limited, or not a plain select
+        for (var sql : new String[] {
+                "select * from foo limit 10",
+                "select * from foo offset 10 rows fetch next 10 rows only",
+                "select * from foo for update",
+                "(select 1) union (select 2)",
+                "values (1)",
+                "select 1; select 2",
+                "select 'unterminated",
+                "select 'a\\'b' from foo",
+                "select $$x$$",
+                "select (1",
+        }) {
+            Assert.assertEquals(sql, LimitRewriter.rewrite(sql, Dialect.POSTGRES, 100));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.LobRequest;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+
+class LobStoreTest {
+    private static LobStore createStore(int prefixSize, int maxSize, long maxStoredSize) {
+        return createStore(prefixSize, maxSize, maxStoredSize, new LobStore.Budget(Long.MAX_VALUE));
+    }
+
+    private static LobStore createStore(int prefixSize, int maxSize, long maxStoredSize, LobStore.Budget budget) {
+        var config = new LobStore.Config();
+        config.setPrefixSize(prefixSize);
+        config.setMaxSize(maxSize);
+        config.setMaxStoredSize(maxStoredSize);
+        return new LobStore(config, budget);
+    }
+
+    private static LobRequest request(int lobId, long offset, int length) {
+        return LobRequest.newBuilder().setLobId(lobId).setOffset(offset).setLength(length).build();
+    }
+
+    @Test
+    void testPrefixAndTruncation() throws SQLException {
+        var store = createStore(2, 6, 1000);
+
+        // short values are sent completely, and not stored
+        var small = store.add(new byte[] {1, 2}, true);
+        Assert.assertEquals(ByteBuffer.wrap(new byte[] {1, 2}), small.getPrefix());
+        Assert.assertEquals(0, small.getLobId());
+        Assert.assertFalse(small.getTruncated());
+
+        // longer values are truncated at maxSize, and the rest after the prefix can be fetched
+        var large = store.add(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, true);
+        Assert.assertEquals(ByteBuffer.wrap(new byte[] {1, 2}), large.getPrefix());
+        Assert.assertEquals(6, large.getLength());
+        Assert.assertTrue(large.getTruncated());
+
+        var response = store.read(request(large.getLobId(), 2, 100));
+        Assert.assertEquals(ByteBuffer.wrap(new byte[] {3, 4, 5, 6}), response.getData().get());
+    }
+
+    @Test
+    void testEviction() throws SQLException {
+        // room for two values of 4 chars (8 bytes each)
+        var store = createStore(1, 100, 16);
+        var first = store.add("abcd", false);
+        var second = store.add("efgh", false);
+        var third = store.add("ijkl", false);
+
+        Assert.assertTrue(store.read(request(first.getLobId(), 0, 4)).getData().isEmpty());
+        Assert.assertEquals("efgh", store.read(request(second.getLobId(), 0, 4)).getData().get());
+        Assert.assertEquals("jk", store.read(request(third.getLobId(), 1, 2)).getData().get());
+
+        // a value which can never fit is sent as a prefix only
+        var huge = store.add("0123456789", false);
+        Assert.assertEquals(0, huge.getLobId());
+        Assert.assertEquals(1, huge.getLength());
+        Assert.assertTrue(huge.getTruncated());
+
+        store.clear();
+        Assert.assertTrue(store.read(request(second.getLobId(), 0, 4)).getData().isEmpty());
+    }
+
+    @Test
+    void testBudget() throws SQLException {
+        // room for three values of 4 chars over both channels
+        var budget = new LobStore.Budget(24);
+        var store1 = createStore(1, 100, 1000, budget);
+        var store2 = createStore(1, 100, 1000, budget);
+        var first = store1.add("abcd", false);
+        var second = store1.add("efgh", false);
+        store2.add("ijkl", false);
+
+        // a channel makes room by discarding its own oldest values
+        var third = store1.add("mnop", false);
+        Assert.assertTrue(store1.read(request(first.getLobId(), 0, 4)).getData().isEmpty());
+        Assert.assertEquals("efgh", store1.read(request(second.getLobId(), 0, 4)).getData().get());
+        Assert.assertEquals("mnop", store1.read(request(third.getLobId(), 0, 4)).getData().get());
+
+        // but not those of other channels, so a channel holding none sends a prefix only
+        var store3 = createStore(1, 100, 1000, budget);
+        var fourth = store3.add("qrst", false);
+        Assert.assertEquals(0, fourth.getLobId());
+        Assert.assertEquals("q", fourth.getPrefix());
+        Assert.assertEquals(1, fourth.getLength());
+
+        store1.clear();
+        Assert.assertEquals(8, budget.getUsed());
+        Assert.assertNotEquals(0, store3.add("uvwx", false).getLobId());
+    }
+
+    @Test
+    void testSurrogatePairs() throws SQLException {
+        // "a" followed by three emoji, each a surrogate pair
+        var text = "a\uD83D\uDE00\uD83D\uDE01\uD83D\uDE02";
+        var store = createStore(2, 6, 1000);
+
+        // neither the prefix nor the value is cut inside a pair
+        var value = store.add(text, false);
+        Assert.assertEquals("a", value.getPrefix());
+        Assert.assertEquals(5, value.getLength());
+        Assert.assertTrue(value.getTruncated());
+
+        // nor a chunk
+        Assert.assertEquals("\uD83D\uDE00", store.read(request(value.getLobId(), 1, 3)).getData().get());
+        Assert.assertEquals("\uD83D\uDE01", store.read(request(value.getLobId(), 3, 2)).getData().get());
+    }
+}
@@ -0,0 +1,116 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.DBMetaData;
+import at.willhaben.jdbcproxy.server.avro.MetaDataResponse;
+import at.willhaben.jdbcproxy.server.avro.SchemasResponse;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MetaDataCacheTest {
+    private static MetaDataResponse metaData(String catalog) {
+        return MetaDataResponse.newBuilder()
+                .setCatalog(catalog)
+                .setDatabaseMetaData(DBMetaData.newBuilder().setIdentifierQuoteString("\"").build())
+                .setTables(new ArrayList<>())
+                .build();
+    }
+
+    static SchemasResponse schemas() {
+        return SchemasResponse.newBuilder()
+                .setCatalog("db")
+                .setDatabaseMetaData(DBMetaData.newBuilder().setIdentifierQuoteString("\"").build())
+                .setSchemas(List.of("s"))
+                .setTableTypes(List.of("TABLE"))
+                .build();
+    }
+
+    @Test
+    public void testExpiry() throws SQLException {
+        var now = new AtomicLong();
+        var loads = new AtomicInteger();
+        var refreshes = new ArrayList<Runnable>();
+        var cache = new MetaDataCache("db", Duration.ofMillis(100), refreshes::add, now::get,
+                () -> metaData("v" + loads.incrementAndGet()), MetaDataCacheTest::schemas);
+
+        Assert.assertNull(cache.getIfPresent());
+        Assert.assertEquals("v1", cache.get().getCatalog());
+        Assert.assertEquals("v1", cache.getIfPresent().getCatalog());
+
+        // within the last quarter of the lifetime, the cached value is returned and a refresh started (once)
+        now.set(80);
+        Assert.assertEquals("v1", cache.get().getCatalog());
+        Assert.assertEquals("v1", cache.get().getCatalog());
+        Assert.assertEquals(1, refreshes.size());
+        refreshes.get(0).run();
+        Assert.assertEquals("v2", cache.get().getCatalog());
+
+        // once expired, the value is loaded by the reader
+        now.set(1000);
+        Assert.assertNull(cache.getIfPresent());
+        Assert.assertEquals("v3", cache.get().getCatalog());
+
+        cache.invalidate();
+        Assert.assertNull(cache.getIfPresent());
+        Assert.assertEquals("v4", cache.get().getCatalog());
+    }
+
+    @Test
+    public void testFailure() throws SQLException {
+        var fail = new AtomicInteger(1);
+        var cache = new MetaDataCache("db", Duration.ofMinutes(1), Runnable::run, System::currentTimeMillis, () -> {
+            if (fail.getAndDecrement() > 0) {
+                throw new SQLException("down");
+            }
+            return metaData("ok");
+        }, MetaDataCacheTest::schemas);
+
+        Assert.assertThrows(SQLException.class, cache::get);
+        Assert.assertEquals("ok", cache.get().getCatalog()); // a failed load is not cached
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        var loads = new AtomicInteger();
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var cache = new MetaDataCache("db", Duration.ofMinutes(1), Runnable::run, System::currentTimeMillis, () -> {
+            loads.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new SQLException(e);
+            }
+            return metaData("db");
+        }, MetaDataCacheTest::schemas);
+
+        var executor = Executors.newFixedThreadPool(10);
+        try {
+            var results = new ArrayList<Future<MetaDataResponse>>();
+            results.add(executor.submit(cache::get));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            for (int i = 1; i < 10; i++) {
+                results.add(executor.submit(cache::get));
+            }
+            release.countDown();
+
+            for (var result : results) {
+                Assert.assertEquals("db", result.get(5, TimeUnit.SECONDS).getCatalog());
+            }
+            Assert.assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
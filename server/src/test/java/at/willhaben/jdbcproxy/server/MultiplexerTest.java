@@ -0,0 +1,180 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.CloseRequest;
+import at.willhaben.jdbcproxy.server.avro.FetchRequest;
+import at.willhaben.jdbcproxy.server.avro.MetaDataRequest;
+import at.willhaben.jdbcproxy.server.avro.PingRequest;
+import at.willhaben.jdbcproxy.server.avro.PingResponse;
+import at.willhaben.jdbcproxy.server.avro.Request;
+import at.willhaben.jdbcproxy.server.avro.RequestV2;
+import at.willhaben.jdbcproxy.server.avro.ResponseV2;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class MultiplexerTest {
+    private final List<ResponseV2> sent = new ArrayList<>();
+    private final Map<Integer, ConnectionHandler> handlers = new HashMap<>(); // in order of channel creation
+    private final AtomicInteger channelsCreated = new AtomicInteger();
+    private final CountDownLatch closedWhenSent = new CountDownLatch(1);
+
+    private final Transport transport = new Transport() {
+        @Override
+        public void send(ResponseV2 response, Compression compression) {
+            synchronized (sent) {
+                sent.add(response);
+            }
+        }
+
+        @Override
+        public void close() {
+            // not needed
+        }
+
+        @Override
+        public void closeWhenSent() {
+            closedWhenSent.countDown();
+        }
+    };
+
+    private Multiplexer createMultiplexer() {
+        var executor = Executors.newCachedThreadPool();
+        return new Multiplexer(
+                transport,
+                request -> executor,
+                Mockito.mock(Watchdog.SocketWatch.class),
+                channel -> handlers.get(channelsCreated.incrementAndGet()));
+    }
+
+    @Test
+    void testChannelsAreIndependent() throws Exception {
+        var multiplexer = createMultiplexer();
+
+        // the first request on channel 1 blocks until released
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var blocking = new MetaDataRequest();
+        var handler1 = Mockito.mock(ConnectionHandler.class);
+        handlers.put(1, handler1);
+        Mockito.when(handler1.onRequest(Mockito.any())).thenAnswer(inv -> {
+            if (inv.getArgument(0) == blocking) {
+                started.countDown();
+                release.await();
+            }
+            return true;
+        });
+        Assert.assertTrue(multiplexer.onRequest(new RequestV2(1, 1, blocking)));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // meanwhile a ping is answered immediately, and another channel is processed
+        Assert.assertTrue(multiplexer.onRequest(new RequestV2(1, 2, new PingRequest())));
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(2, sent.get(0).getRequestId());
+        Assert.assertTrue(sent.get(0).getResponse() instanceof PingResponse);
+
+        var handler2 = Mockito.mock(ConnectionHandler.class);
+        handlers.put(2, handler2);
+        var second = new MetaDataRequest();
+        Assert.assertTrue(multiplexer.onRequest(new RequestV2(2, 3, second)));
+        Mockito.verify(handler2, Mockito.timeout(5000)).onRequest(Mockito.same(second));
+
+        // requests on channel 1 stay in order behind the blocked one
+        var third = new MetaDataRequest();
+        Assert.assertTrue(multiplexer.onRequest(new RequestV2(1, 4, third)));
+        Thread.sleep(100);
+        Mockito.verify(handler1, Mockito.never()).onRequest(Mockito.same(third));
+        release.countDown();
+        Mockito.verify(handler1, Mockito.timeout(5000)).onRequest(Mockito.same(third));
+    }
+
+    @Test
+    void testBlockingRequestsPerConnection() throws Exception {
+        var multiplexer = createMultiplexer();
+
+        // requests which may wait for a pooled connection, on more channels than may be processed at once
+        var release = new CountDownLatch(1);
+        int channels = Multiplexer.MAX_BLOCKING_REQUESTS + 1;
+        var started = new CountDownLatch(Multiplexer.MAX_BLOCKING_REQUESTS);
+        for (int i = 1; i <= channels; ++i) {
+            var handler = Mockito.mock(ConnectionHandler.class);
+            handlers.put(i, handler);
+            Mockito.when(handler.onRequest(Mockito.any())).thenAnswer(inv -> {
+                if (inv.getArgument(0) instanceof MetaDataRequest) {
+                    started.countDown();
+                    release.await();
+                }
+                return true;
+            });
+            Assert.assertTrue(multiplexer.onRequest(new RequestV2(i, i, new MetaDataRequest())));
+        }
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        Mockito.verify(handlers.get(channels), Mockito.never()).onRequest(Mockito.any());
+
+        // other requests are not held up
+        var handler = Mockito.mock(ConnectionHandler.class);
+        handlers.put(channels + 1, handler);
+        var fetch = new FetchRequest(1);
+        Assert.assertTrue(multiplexer.onRequest(new RequestV2(channels + 1, channels + 1, fetch)));
+        Mockito.verify(handler, Mockito.timeout(5000)).onRequest(Mockito.same(fetch));
+
+        // the waiting channel gets its turn once another has completed
+        release.countDown();
+        Mockito.verify(handlers.get(channels), Mockito.timeout(5000)).onRequest(Mockito.any());
+    }
+
+    @Test
+    void testClose() throws Exception {
+        var multiplexer = createMultiplexer();
+
+        // a channel is closed when its handler says so
+        var handler1 = Mockito.mock(ConnectionHandler.class);
+        handlers.put(1, handler1);
+        Mockito.when(handler1.onRequest(Mockito.any())).thenReturn(false);
+        multiplexer.onRequest(new RequestV2(1, 1, new CloseRequest()));
+        Mockito.verify(handler1, Mockito.timeout(5000)).onClose();
+
+        // and all channels are closed when the connection is closed
+        var handler2 = Mockito.mock(ConnectionHandler.class);
+        handlers.put(2, handler2);
+        Mockito.when(handler2.onRequest(Mockito.any())).thenReturn(true);
+        var request = new MetaDataRequest();
+        multiplexer.onRequest(new RequestV2(2, 2, request));
+        Mockito.verify(handler2, Mockito.timeout(5000)).onRequest(Mockito.same(request));
+
+        Assert.assertFalse(multiplexer.onRequest(null));
+        multiplexer.onClose();
+        Mockito.verify(handler2, Mockito.timeout(5000)).onClose();
+        Mockito.verify(handler1, Mockito.times(1)).onClose();
+    }
+
+    @Test
+    void testLegacyClient() throws Exception {
+        var multiplexer = createMultiplexer();
+
+        // the requests of a client which predates framing form a single channel
+        var handler = Mockito.mock(ConnectionHandler.class);
+        handlers.put(1, handler);
+        Mockito.when(handler.onRequest(Mockito.any(MetaDataRequest.class))).thenReturn(true);
+        Mockito.when(handler.onRequest(Mockito.any(CloseRequest.class))).thenReturn(false);
+        var request = new MetaDataRequest();
+        Assert.assertTrue(multiplexer.onLegacyRequest(new Request(request)));
+        Mockito.verify(handler, Mockito.timeout(5000)).onRequest(Mockito.same(request));
+        Assert.assertEquals(1, closedWhenSent.getCount());
+
+        // and the connection is closed with that channel, as such a client expects
+        Assert.assertTrue(multiplexer.onLegacyRequest(new Request(new CloseRequest())));
+        Assert.assertTrue(closedWhenSent.await(5, TimeUnit.SECONDS));
+        Mockito.verify(handler, Mockito.timeout(5000)).onClose();
+        Assert.assertEquals(1, channelsCreated.get());
+    }
+}
@@ -0,0 +1,8 @@
+package at.willhaben.jdbcproxy.server;
+
+class NioConnectionEngineTest extends ConnectionEngineTest {
+    @Override
+    ConnectionEngine createEngine() {
+        return new NioConnectionEngine(2);
+    }
+}
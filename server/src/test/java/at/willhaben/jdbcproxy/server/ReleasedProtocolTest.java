@@ -0,0 +1,242 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.AuthenticationRequest;
+import at.willhaben.jdbcproxy.server.avro.AuthenticationResponse;
+import at.willhaben.jdbcproxy.server.avro.BasicValue;
+import at.willhaben.jdbcproxy.server.avro.CloseRequest;
+import at.willhaben.jdbcproxy.server.avro.ErrorResponse;
+import at.willhaben.jdbcproxy.server.avro.Request;
+import at.willhaben.jdbcproxy.server.avro.Response;
+import at.willhaben.jdbcproxy.server.avro.ResultColumnsMetaData;
+import at.willhaben.jdbcproxy.server.avro.SelectRequest;
+import org.apache.avro.Protocol;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificData;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Checks that messages.avdl is still compatible with drivers and servers which use the protocol as released
+ * (protocol version 0, ie unframed Request and Response): the released records are unchanged, requests written
+ * with the released schema are read completely by the server, and its responses to such clients are read
+ * completely with the released schema.
+ */
+class ReleasedProtocolTest {
+    private static final String NAMESPACE = "at.willhaben.jdbcproxy.server.avro.";
+
+    // messages.avdl as released, in JSON form
+    private static final Protocol RELEASED = Protocol.parse("""
+            {"protocol": "Messages", "namespace": "at.willhaben.jdbcproxy.server.avro", "types": [
+              {"type": "record", "name": "SessionRequest", "fields": [
+                {"name": "username", "type": "string"},
+                {"name": "password", "type": "string"},
+                {"name": "db", "type": "string"},
+                {"name": "reason", "type": "string"},
+                {"name": "forUsername", "type": ["null", "string"]}]},
+              {"type": "record", "name": "SessionResponse", "fields": [
+                {"name": "sessionId", "type": "int"}]},
+              {"type": "record", "name": "AuthenticationRequest", "fields": [
+                {"name": "username", "type": "string"},
+                {"name": "password", "type": "string"},
+                {"name": "db", "type": "string"}]},
+              {"type": "record", "name": "AuthenticationResponse", "fields": [
+                {"name": "accepted", "type": "boolean"},
+                {"name": "errorMessage", "type": ["null", "string"], "default": null}]},
+              {"type": "record", "name": "CloseRequest", "fields": []},
+              {"type": "record", "name": "CloseResponse", "fields": []},
+              {"type": "record", "name": "PingRequest", "fields": []},
+              {"type": "record", "name": "PingResponse", "fields": [
+                {"name": "ok", "type": "boolean"}]},
+              {"type": "record", "name": "MetaDataRequest", "fields": []},
+              {"type": "record", "name": "DBMetaData", "fields": [
+                {"name": "identifierQuoteString", "type": "string"}]},
+              {"type": "record", "name": "TableColumnMetaData", "fields": [
+                {"name": "ordinal", "type": "int"},
+                {"name": "name", "type": "string"},
+                {"name": "type", "type": "int"},
+                {"name": "size", "type": "int"},
+                {"name": "precision", "type": "int"},
+                {"name": "nullable", "type": "int"},
+                {"name": "charOctetLength", "type": "int"}]},
+              {"type": "record", "name": "TableMetaData", "fields": [
+                {"name": "catalogName", "type": ["null", "string"]},
+                {"name": "schemaName", "type": ["null", "string"]},
+                {"name": "name", "type": "string"},
+                {"name": "type", "type": "string"},
+                {"name": "remarks", "type": ["null", "string"]},
+                {"name": "typeCatalog", "type": ["null", "string"]},
+                {"name": "typeSchema", "type": ["null", "string"]},
+                {"name": "typeName", "type": ["null", "string"]},
+                {"name": "columns", "type": {"type": "array", "items": "TableColumnMetaData"}}]},
+              {"type": "record", "name": "MetaDataResponse", "fields": [
+                {"name": "catalog", "type": "string"},
+                {"name": "databaseMetaData", "type": "DBMetaData"},
+                {"name": "tables", "type": {"type": "array", "items": "TableMetaData"}}]},
+              {"type": "record", "name": "ResultColumnMetaData", "fields": [
+                {"name": "ordinal", "type": "int"},
+                {"name": "name", "type": "string"},
+                {"name": "type", "type": "int"},
+                {"name": "size", "type": "int"},
+                {"name": "precision", "type": "int"},
+                {"name": "nullable", "type": "int"}]},
+              {"type": "record", "name": "SelectRequest", "fields": [
+                {"name": "query", "type": "string"}]},
+              {"type": "record", "name": "BasicValue", "fields": [
+                {"name": "value", "type": ["null", "string", "long", "boolean", "double"]}]},
+              {"type": "record", "name": "ResultColumnsMetaData", "fields": [
+                {"name": "columns", "type": {"type": "array", "items": "ResultColumnMetaData"}}]},
+              {"type": "record", "name": "Row", "fields": [
+                {"name": "columns", "type": {"type": "array", "items": "BasicValue"}}]},
+              {"type": "record", "name": "SelectResponse", "fields": [
+                {"name": "metadata", "type": "ResultColumnsMetaData"},
+                {"name": "rows", "type": {"type": "array", "items": "Row"}}]},
+              {"type": "record", "name": "ErrorResponse", "fields": [
+                {"name": "message", "type": "string"}]},
+              {"type": "record", "name": "Request", "fields": [
+                {"name": "request", "type": [
+                  "SessionRequest", "AuthenticationRequest", "CloseRequest", "PingRequest", "MetaDataRequest",
+                  "SelectRequest"]}]},
+              {"type": "record", "name": "Response", "fields": [
+                {"name": "response", "type": [
+                  "ErrorResponse", "SessionResponse", "AuthenticationResponse", "CloseResponse", "PingResponse",
+                  "MetaDataResponse", "SelectResponse"]}]}
+            ]}
+            """);
+
+    // Records which contain BasicValue, whose union has had branches appended (see testReleasedRecordsUnchanged)
+    private static final Set<String> CONTAIN_BASIC_VALUE = Set.of("BasicValue", "Row", "SelectResponse", "Response");
+
+    @Test
+    void testReleasedRecordsUnchanged() throws ClassNotFoundException {
+        for (Schema released : RELEASED.getTypes()) {
+            var current = SpecificData.get().getSchema(Class.forName(released.getFullName()));
+            if (CONTAIN_BASIC_VALUE.contains(released.getName())) {
+                Assert.assertEquals(released.getName(), fieldNames(released), fieldNames(current));
+            } else {
+                Assert.assertEquals(released.getName(), released, current);
+            }
+        }
+        Assert.assertEquals(unionBranches(RELEASED.getType(NAMESPACE + "Response"), "response"),
+                unionBranches(Response.getClassSchema(), "response"));
+
+        // the appended branches are only sent to clients which agreed to the corresponding encodings
+        var released = RELEASED.getType(NAMESPACE + "BasicValue").getField("value").schema().getTypes();
+        var current = BasicValue.getClassSchema().getField("value").schema().getTypes();
+        Assert.assertEquals(released, current.subList(0, released.size()));
+    }
+
+    @Test
+    void testAuthentication() throws IOException {
+        var request = record("AuthenticationRequest");
+        request.put("username", "alice");
+        request.put("password", "secret");
+        request.put("db", "db1");
+        var decoded = (AuthenticationRequest) decodeRequest(request).getRequest();
+        Assert.assertEquals("alice", decoded.getUsername());
+        Assert.assertEquals("secret", decoded.getPassword());
+        Assert.assertEquals("db1", decoded.getDb());
+
+        var response = (GenericRecord) encodeResponse(AuthenticationResponse.newBuilder()
+                .setAccepted(false)
+                .setErrorMessage("denied")
+                .build()).get("response");
+        Assert.assertEquals(false, response.get("accepted"));
+        Assert.assertEquals("denied", response.get("errorMessage").toString());
+    }
+
+    @Test
+    void testSelect() throws IOException, SQLException {
+        var request = record("SelectRequest");
+        request.put("query", "select 1");
+        var decoded = (SelectRequest) decodeRequest(request).getRequest();
+        Assert.assertEquals("select 1", decoded.getQuery());
+
+        // rows as encoded by RequestHandler
+        var rows = new RowEncoder();
+        rows.startRow(1);
+        rows.write("a");
+        rows.endRow();
+        var select = new EncodedRows.InSelectResponse(rows.finish());
+        select.setMetadata(ResultColumnsMetaData.newBuilder().setColumns(List.of()).build());
+        var response = (GenericRecord) encodeResponse(select).get("response");
+        var row = (GenericRecord) ((List<?>) response.get("rows")).get(0);
+        var value = (GenericRecord) ((List<?>) row.get("columns")).get(0);
+        Assert.assertEquals("a", value.get("value").toString());
+    }
+
+    @Test
+    void testClose() throws IOException {
+        Assert.assertTrue(decodeRequest(record("CloseRequest")).getRequest() instanceof CloseRequest);
+
+        // as sent by Multiplexer.onError, before the server closes the connection
+        var response = (GenericRecord) encodeResponse(new ErrorResponse("Unknown error")).get("response");
+        Assert.assertEquals("Unknown error", response.get("message").toString());
+    }
+
+    private static List<String> fieldNames(Schema schema) {
+        return schema.getFields().stream().map(Schema.Field::name).collect(Collectors.toList());
+    }
+
+    private static List<String> unionBranches(Schema schema, String field) {
+        return schema.getField(field).schema().getTypes().stream()
+                .map(Schema::getFullName)
+                .collect(Collectors.toList());
+    }
+
+    private static GenericRecord record(String name) {
+        return new GenericData.Record(RELEASED.getType(NAMESPACE + name));
+    }
+
+    /**
+     * Read a request as the server does from a client which uses the released schema, ie one which sends no
+     * preface.
+     */
+    private static Request decodeRequest(GenericRecord message) throws IOException {
+        var request = record("Request");
+        request.put("request", message);
+        var bytes = new ByteArrayOutputStream();
+        var encoder = EncoderFactory.get().binaryEncoder(bytes, null);
+        new GenericDatumWriter<GenericRecord>(request.getSchema()).write(request, encoder);
+        encoder.flush();
+
+        var in = new PushbackInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Assert.assertFalse(MessageCodec.readPreface(in));
+        var codec = new MessageCodec<>(
+                Request.class, Response.class, false, in, OutputStream.nullOutputStream(), r -> false);
+        var decoded = codec.read();
+        Assert.assertThrows("request not fully consumed", EOFException.class, codec::read);
+        return decoded;
+    }
+
+    /**
+     * Encode a response as the server does for a client which sent no preface, and decode it as such a client.
+     */
+    private static GenericRecord encodeResponse(Object message) throws IOException {
+        var codec = new MessageCodec<>(Request.class, Response.class, false, null, null, r -> false);
+        var encoded = codec.encode(new Response(message), Compression.NONE);
+
+        Schema schema = RELEASED.getType(NAMESPACE + "Response");
+        var decoder = DecoderFactory.get().binaryDecoder(
+                encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+        var decoded = new GenericDatumReader<GenericRecord>(schema).read(null, decoder);
+        Assert.assertTrue("response not fully consumed", decoder.isEnd());
+        return decoded;
+    }
+}
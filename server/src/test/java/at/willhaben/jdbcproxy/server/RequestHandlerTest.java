@@ -1,16 +1,55 @@
 package at.willhaben.jdbcproxy.server;
 
+import at.willhaben.jdbcproxy.server.avro.ColumnKind;
+import at.willhaben.jdbcproxy.server.avro.CursorResponseV2;
+import at.willhaben.jdbcproxy.server.avro.DBMetaData;
+import at.willhaben.jdbcproxy.server.avro.FetchRequest;
+import at.willhaben.jdbcproxy.server.avro.FetchResponseV2;
+import at.willhaben.jdbcproxy.server.avro.LobRequest;
+import at.willhaben.jdbcproxy.server.avro.LobResponse;
+import at.willhaben.jdbcproxy.server.avro.LobValue;
+import at.willhaben.jdbcproxy.server.avro.MetaDataResponse;
+import at.willhaben.jdbcproxy.server.avro.ResultColumnMetaData;
+import at.willhaben.jdbcproxy.server.avro.ResultColumnsMetaData;
+import at.willhaben.jdbcproxy.server.avro.SchemasResponse;
+import at.willhaben.jdbcproxy.server.avro.SelectRequestV2;
+import at.willhaben.jdbcproxy.server.avro.TableColumnMetaData;
+import at.willhaben.jdbcproxy.server.avro.TableMetaData;
+import at.willhaben.jdbcproxy.server.avro.TablesRequest;
+import at.willhaben.jdbcproxy.server.avro.TablesResponse;
+import at.willhaben.jdbcproxy.server.avro.VersionedMetaDataRequest;
+import at.willhaben.jdbcproxy.server.avro.VersionedMetaDataResponse;
+import at.willhaben.jdbcproxy.server.dao.AuditLogger;
+import at.willhaben.jdbcproxy.server.model.Login;
+import at.willhaben.jdbcproxy.server.model.Session;
 import org.junit.Assert;
-import org.junit.Test;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
 
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.sql.Types;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RequestHandlerTest {
     @Test
-    public void testDateMapping() {
-        var rh = new RequestHandler(null, null, 0, null, null, null);
+    public void testDateMapping() throws SQLException {
+        var rh = handler().build();
         var ld = LocalDateTime.parse("2022-06-01T13:14:15");
         java.sql.Date date = new java.sql.Date(ld.toInstant(ZoneOffset.UTC).toEpochMilli());
         var result = rh.mapToType(date, Types.DATE);
@@ -19,12 +58,454 @@ public class RequestHandlerTest {
     }
 
     @Test
-    public void testTimestampMapping() {
-        var rh = new RequestHandler(null, null, 0, null, null, null);
+    public void testTimestampMapping() throws SQLException {
+        var rh = handler().build();
         var ld = LocalDateTime.parse("2022-06-01T13:14:15");
         var when = new java.sql.Timestamp(ld.toInstant(ZoneOffset.UTC).toEpochMilli());
         var result = rh.mapToType(when, Types.TIMESTAMP);
         Assert.assertTrue(result instanceof String);
         Assert.assertEquals("2022-06-01T13:14:15", result);
     }
+
+    @Test
+    public void testTypedMapping() throws SQLException {
+        var rh = handler().encodings("decimal", "temporal").build();
+
+        var decimal = rh.mapToType(new BigDecimal("-12.50"), Types.DECIMAL);
+        Assert.assertEquals(new BigDecimal("-12.50"), decimal);
+        Assert.assertEquals(new BigDecimal("7"), rh.mapToType(7L, Types.NUMERIC));
+
+        var ld = LocalDateTime.parse("2022-06-01T13:14:15.123456");
+        var when = java.sql.Timestamp.valueOf(ld);
+        long micros = ld.toEpochSecond(ZoneOffset.UTC) * 1_000_000 + 123456;
+        Assert.assertEquals(micros, rh.mapToType(ld, Types.TIMESTAMP));
+        Assert.assertEquals(when.getTime() * 1000 + 456, rh.mapToType(when, Types.TIMESTAMP));
+
+        var date = LocalDate.parse("2022-06-01");
+        Assert.assertEquals(date.toEpochDay(), rh.mapToType(date, Types.DATE));
+
+        var time = LocalTime.parse("13:14:15.123456");
+        Assert.assertEquals(time.toNanoOfDay() / 1000, rh.mapToType(time, Types.TIME));
+    }
+
+    @Test
+    public void testTemporalConventions() throws SQLException {
+        // the UTC date or time of a java.util.Date is sent, whether as a string or a number
+        var legacy = handler().build();
+        var rh = handler().encodings("temporal").build();
+
+        var date = new java.sql.Date(Instant.parse("2022-06-01T00:00:00Z").toEpochMilli());
+        Assert.assertEquals("2022-06-01T00:00:00", legacy.mapToType(date, Types.DATE));
+        Assert.assertEquals(LocalDate.parse("2022-06-01").toEpochDay(), rh.mapToType(date, Types.DATE));
+
+        // including the fraction of a second
+        var time = new java.sql.Time(Instant.parse("1970-01-01T13:14:15.123Z").toEpochMilli());
+        Assert.assertEquals("1970-01-01T13:14:15.123", legacy.mapToType(time, Types.TIME));
+        Assert.assertEquals(LocalTime.parse("13:14:15.123").toNanoOfDay() / 1000, rh.mapToType(time, Types.TIME));
+
+        var when = java.sql.Timestamp.from(Instant.parse("2022-06-01T13:14:15.123456Z"));
+        Assert.assertEquals("2022-06-01T13:14:15.123", legacy.mapToType(when, Types.TIMESTAMP));
+        Assert.assertEquals(
+                LocalDateTime.parse("2022-06-01T13:14:15").toEpochSecond(ZoneOffset.UTC) * 1_000_000 + 123456,
+                rh.mapToType(when, Types.TIMESTAMP));
+    }
+
+    @Test
+    public void testLobMapping() throws SQLException {
+        var config = new LobStore.Config();
+        config.setPrefixSize(4);
+        var lobs = new LobStore(config, new LobStore.Budget(Long.MAX_VALUE));
+
+        // without the encoding, large objects are not returned at all
+        var legacy = handler().lobs(lobs).build();
+        Assert.assertNull(legacy.mapToType(new byte[] {1, 2, 3}, Types.BLOB));
+
+        var rh = handler().encodings("lob").lobs(lobs).build();
+        var bytes = (LobValue) rh.mapToType(new byte[] {1, 2, 3}, Types.VARBINARY);
+        Assert.assertEquals(3, bytes.getLength());
+        Assert.assertEquals(0, bytes.getLobId());
+
+        var text = (LobValue) rh.mapToType("abcdefgh", Types.CLOB);
+        Assert.assertEquals("abcd", text.getPrefix());
+        Assert.assertEquals(8, text.getLength());
+        Assert.assertNotEquals(0, text.getLobId());
+
+        var request = LobRequest.newBuilder().setLobId(text.getLobId()).setOffset(4).setLength(100).build();
+        Assert.assertEquals("efgh", ((LobResponse) rh.handleRequest(request)).getData().get());
+
+        // ordinary text values are truncated only when exceeding the inline limit (if any)
+        Assert.assertEquals("abcdefgh", rh.mapToType("abcdefgh", Types.VARCHAR));
+        config.setInlineTextSize(6);
+        Assert.assertEquals("abcdef", rh.mapToType("abcdef", Types.VARCHAR));
+        var truncated = (LobValue) rh.mapToType("abcdefgh", Types.VARCHAR);
+        Assert.assertEquals("abcdef", truncated.getPrefix());
+        Assert.assertEquals(8, truncated.getLength());
+    }
+
+    @Test
+    public void testCodecs() throws SQLException {
+        var rh = handler().build();
+        var metaData = ResultColumnsMetaData.newBuilder()
+                .setColumns(List.of(column(1, Types.BIGINT), column(2, Types.VARCHAR)))
+                .build();
+        var codecs = rh.createCodecs(metaData);
+        Assert.assertSame(ColumnCodec.LONG, codecs[0]);
+
+        // two rows: (5, "a") and (null, "b")
+        var rs = Mockito.mock(ResultSet.class);
+        Mockito.when(rs.next()).thenReturn(true, true, false);
+        Mockito.when(rs.getLong(1)).thenReturn(5L, 0L);
+        Mockito.when(rs.wasNull()).thenReturn(false, true);
+        Mockito.when(rs.getObject(2)).thenReturn("a", "b");
+
+        var batch = rh.createColumnData(codecs, rs, 10, null);
+        Assert.assertEquals(2, batch.getRowCount());
+        Assert.assertEquals(ColumnKind.LONG, batch.getColumns().get(0).getKind());
+        Assert.assertEquals(1, batch.getColumns().get(0).getValues().remaining()); // one varint
+        Assert.assertEquals(List.of("a", "b"), batch.getColumns().get(1).getStrings());
+        Mockito.verify(rs, Mockito.never()).getObject(1);
+    }
+
+    @Test
+    public void testPartialResults() throws SQLException {
+        var rh = handler().build();
+        var metaData = ResultColumnsMetaData.newBuilder()
+                .setColumns(List.of(column(1, Types.BIGINT)))
+                .build();
+        var codecs = rh.createCodecs(metaData);
+
+        // one row is read before the watchdog cancels the statement
+        var rs = Mockito.mock(ResultSet.class);
+        Mockito.doReturn(true).doThrow(new SQLException("canceling statement")).when(rs).next();
+        Mockito.when(rs.getLong(1)).thenReturn(5L);
+        var watch = Mockito.mock(Watchdog.StmtWatch.class);
+
+        // not expired: the failure is reported as usual
+        Assert.assertThrows(SQLException.class, () -> rh.createColumnData(codecs, rs, 10, watch));
+
+        Mockito.doReturn(true).doThrow(new SQLException("canceling statement")).when(rs).next();
+        Mockito.when(watch.isExpired()).thenReturn(true);
+        var batch = rh.createColumnData(codecs, rs, 10, watch);
+        Assert.assertEquals(1, batch.getRowCount());
+    }
+
+    @Test
+    public void testPopulateColumnMetaData() throws SQLException {
+        var foo = table("s", "foo");
+        var bar = table("s", "bar");
+
+        // one getColumns call for both tables; columns of other tables are ignored
+        var rs = Mockito.mock(ResultSet.class);
+        Mockito.when(rs.next()).thenReturn(true, true, true, false);
+        Mockito.when(rs.getString(2)).thenReturn("s", "s", "other");
+        Mockito.when(rs.getString(3)).thenReturn("bar", "foo", "foo");
+        Mockito.when(rs.getString(4)).thenReturn("b1", "f1", "o1");
+        var metaData = Mockito.mock(DatabaseMetaData.class);
+        Mockito.when(metaData.getSearchStringEscape()).thenReturn("\\");
+        Mockito.when(metaData.getColumns("db", "s", null, null)).thenReturn(rs);
+        var conn = Mockito.mock(Connection.class);
+        Mockito.when(conn.getCatalog()).thenReturn("db");
+        Mockito.when(conn.getMetaData()).thenReturn(metaData);
+
+        RequestHandler.populateColumnMetaData(Dialect.GENERIC, List.of(foo, bar), conn, "s", null);
+        Assert.assertEquals("f1", foo.getColumns().get(0).getName());
+        Assert.assertEquals(1, foo.getColumns().size());
+        Assert.assertEquals("b1", bar.getColumns().get(0).getName());
+        Mockito.verify(metaData, Mockito.times(1)).getColumns(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void testFindCachedTables() {
+        var rh = handler().schemas("s").build();
+        var foo = table("s", "foo");
+        foo.getColumns().add(TableColumnMetaData.newBuilder()
+                .setOrdinal(1).setName("id").setType(Types.BIGINT).setSize(19).setPrecision(0).setNullable(0)
+                .setCharOctetLength(0).build());
+        var metaData = MetaDataResponse.newBuilder()
+                .setCatalog("db")
+                .setDatabaseMetaData(DBMetaData.newBuilder().setIdentifierQuoteString("\"").build())
+                .setTables(List.of(foo, table("s", "bar"), table("hidden", "foo")))
+                .build();
+
+        // schemas the client may not see are filtered out
+        var tables = rh.findTables(metaData, null, "foo", true);
+        Assert.assertEquals(List.of(foo), tables);
+
+        // the cached tables keep their columns
+        tables = rh.findTables(metaData, "s", null, false);
+        Assert.assertEquals(2, tables.size());
+        Assert.assertTrue(tables.get(0).getColumns().isEmpty());
+        Assert.assertEquals(1, foo.getColumns().size());
+    }
+
+    @Test
+    public void testCachedSchemasAndTables() throws SQLException {
+        var metaData = MetaDataResponse.newBuilder()
+                .setCatalog("db")
+                .setDatabaseMetaData(DBMetaData.newBuilder().setIdentifierQuoteString("\"").build())
+                .setTables(List.of(table("s", "foo"), table("hidden", "bar")))
+                .build();
+        var loads = new AtomicInteger();
+        var cache = new MetaDataCache("db", Duration.ofMinutes(1), () -> metaData, () -> {
+            loads.incrementAndGet();
+            return SchemasResponse.newBuilder(MetaDataCacheTest.schemas())
+                    .setSchemas(List.of("s", "hidden"))
+                    .build();
+        });
+        var rh = handler().schemas("s").metaDataCache(cache).build();
+
+        // the tables are read from the cache even before it was loaded, ie not via a database connection
+        var request = TablesRequest.newBuilder().setSchemaName(null).setTableName(null).build();
+        var tables = (TablesResponse) rh.getTables(request);
+        Assert.assertEquals(List.of("foo"), tables.getTables().stream().map(TableMetaData::getName).toList());
+
+        // schemas are loaded with the tables, and filtered for the client
+        var schemas = (SchemasResponse) rh.getSchemas();
+        Assert.assertEquals(List.of("s"), schemas.getSchemas());
+        Assert.assertEquals(List.of("TABLE"), schemas.getTableTypes());
+        rh.getSchemas();
+        Assert.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testVersionedMetaData() throws SQLException {
+        var metaData = MetaDataResponse.newBuilder()
+                .setCatalog("db")
+                .setDatabaseMetaData(DBMetaData.newBuilder().setIdentifierQuoteString("\"").build())
+                .setTables(List.of(table("s", "foo")))
+                .build();
+        var cache = new MetaDataCache("db", Duration.ofMinutes(1), () -> metaData, MetaDataCacheTest::schemas);
+        var rh = handler().metaDataCache(cache).build();
+
+        var response = (VersionedMetaDataResponse) rh.getVersionedMetaData(new VersionedMetaDataRequest());
+        Assert.assertEquals(metaData, response.getMetaData().get());
+        var version = response.getVersion();
+
+        // the metadata is not sent again while unchanged
+        response = (VersionedMetaDataResponse) rh.getVersionedMetaData(
+                VersionedMetaDataRequest.newBuilder().setKnownVersion(version).build());
+        Assert.assertEquals(version, response.getVersion());
+        Assert.assertFalse(response.getMetaData().isPresent());
+
+        response = (VersionedMetaDataResponse) rh.getVersionedMetaData(
+                VersionedMetaDataRequest.newBuilder().setKnownVersion("other").build());
+        Assert.assertTrue(response.getMetaData().isPresent());
+
+        // the version is computed once when the metadata is loaded; clients which may see fewer schemas have a
+        // version of their own
+        Assert.assertEquals(RequestHandler.versionOf(metaData), version);
+        var restricted = handler().schemas("s").metaDataCache(cache).build();
+        response = (VersionedMetaDataResponse) restricted.getVersionedMetaData(new VersionedMetaDataRequest());
+        Assert.assertNotEquals(version, response.getVersion());
+        Assert.assertEquals(RequestHandler.versionOf(version, List.of("s")), response.getVersion());
+
+        metaData.getTables().get(0).setName("bar");
+        Assert.assertNotEquals(version, RequestHandler.versionOf(metaData));
+    }
+
+    private static TableMetaData table(String schema, String name) {
+        return TableMetaData.newBuilder()
+                .setCatalogName("db")
+                .setSchemaName(schema)
+                .setName(name)
+                .setType("TABLE")
+                .setRemarks(null)
+                .setTypeCatalog(null)
+                .setTypeSchema(null)
+                .setTypeName(null)
+                .setColumns(new ArrayList<>())
+                .build();
+    }
+
+    private static ResultColumnMetaData column(int ordinal, int type) {
+        return ResultColumnMetaData.newBuilder()
+                .setOrdinal(ordinal)
+                .setName("c" + ordinal)
+                .setType(type)
+                .setSize(10)
+                .setNullable(1)
+                .setPrecision(0)
+                .build();
+    }
+
+    @Test
+    public void testRewriteTooLongToAudit() throws SQLException, IOException {
+        var auditLogger = Mockito.mock(AuditLogger.class);
+        Mockito.when(auditLogger.canRecord(Mockito.any(), Mockito.anyString())).thenReturn(false);
+        var conn = Mockito.mock(Connection.class);
+        Mockito.when(conn.prepareStatement(Mockito.anyString())).thenThrow(new SQLException("not connected"));
+        var dataSource = Mockito.mock(DataSource.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(conn);
+        var rh = handler()
+                .maxRows(100)
+                .limitPushdown(Dialect.POSTGRES)
+                .dataSource(dataSource)
+                .auditLogger(auditLogger)
+                .build();
+
+        // the query is executed (and recorded) as it is, rather than failing
+        rh.executeRequest(SelectRequestV2.newBuilder().setQuery("select * from foo").build(), false);
+        Mockito.verify(auditLogger).recordOperation(null, "select * from foo", null);
+        Mockito.verify(conn).prepareStatement("select * from foo");
+    }
+
+    @Test
+    public void testLimitMaxRows() {
+        var rh = handler().maxRows(100).build();
+        Assert.assertEquals(100, rh.limitMaxRows(0));
+        Assert.assertEquals(20, rh.limitMaxRows(20));
+        Assert.assertEquals(100, rh.limitMaxRows(5000));
+
+        var unlimited = handler().build();
+        Assert.assertEquals(0, unlimited.limitMaxRows(0));
+        Assert.assertEquals(5000, unlimited.limitMaxRows(5000));
+    }
+
+    @Test
+    public void testUnlimitedRows() throws SQLException, IOException {
+        var rsMetaData = Mockito.mock(ResultSetMetaData.class);
+        Mockito.when(rsMetaData.getColumnCount()).thenReturn(1);
+        Mockito.when(rsMetaData.getColumnType(1)).thenReturn(Types.BIGINT);
+        var rs = Mockito.mock(ResultSet.class);
+        Mockito.when(rs.getMetaData()).thenReturn(rsMetaData);
+        var stmt = Mockito.mock(PreparedStatement.class);
+        Mockito.when(stmt.executeQuery()).thenReturn(rs);
+        var conn = Mockito.mock(Connection.class);
+        Mockito.when(conn.prepareStatement(Mockito.anyString())).thenReturn(stmt);
+        var dataSource = Mockito.mock(DataSource.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(conn);
+        var rh = handler().executing(dataSource).build(); // maxRows zero, ie no limit
+
+        // all rows are returned at once
+        Mockito.when(rs.next()).thenReturn(true, true, true, false);
+        var response = rh.executeRequest(SelectRequestV2.newBuilder().setQuery("select 1").build(), false);
+        Assert.assertEquals(3, ((EncodedRows.Carrier) response).getEncodedRows().size());
+        Mockito.verify(stmt).setMaxRows(0);
+
+        // or in batches
+        Mockito.when(rs.next()).thenReturn(true, true, true, false);
+        var cursorRequest = SelectRequestV2.newBuilder().setQuery("select 1").setBatchSize(2).build();
+        var batch = ((CursorResponseV2) rh.executeRequest(cursorRequest, false)).getBatch();
+        Assert.assertEquals(2, ((EncodedRows.Carrier) batch).getEncodedRows().size());
+        Assert.assertFalse(batch.getEndOfResults());
+        batch = ((FetchResponseV2) rh.fetch(new FetchRequest(1))).getBatch();
+        Assert.assertEquals(1, ((EncodedRows.Carrier) batch).getEncodedRows().size());
+        Assert.assertTrue(batch.getEndOfResults());
+    }
+
+    @Test
+    public void testCancelWhileReadingRows() throws SQLException {
+        var rsMetaData = Mockito.mock(ResultSetMetaData.class);
+        Mockito.when(rsMetaData.getColumnCount()).thenReturn(1);
+        Mockito.when(rsMetaData.getColumnType(1)).thenReturn(Types.BIGINT);
+        var rs = Mockito.mock(ResultSet.class);
+        Mockito.when(rs.getMetaData()).thenReturn(rsMetaData);
+        Mockito.when(rs.next()).thenReturn(true, false);
+        var stmt = Mockito.mock(PreparedStatement.class);
+        Mockito.when(stmt.executeQuery()).thenReturn(rs);
+        var conn = Mockito.mock(Connection.class);
+        Mockito.when(conn.prepareStatement(Mockito.anyString())).thenReturn(stmt);
+        var dataSource = Mockito.mock(DataSource.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(conn);
+        var registration = Mockito.mock(ConnectionRegistry.Entry.class);
+        var rh = handler().executing(dataSource).registration(registration).build();
+
+        // the statement stays cancellable until all its rows have been read, not just while it is executed
+        rh.executeRequest(SelectRequestV2.newBuilder().setQuery("select 1").build(), false);
+        var inOrder = Mockito.inOrder(registration, stmt, rs);
+        inOrder.verify(registration).setActiveStatement(stmt);
+        inOrder.verify(stmt).executeQuery();
+        inOrder.verify(rs, Mockito.times(2)).next();
+        inOrder.verify(registration).setActiveStatement(null);
+    }
+
+    private static Builder handler() {
+        return new Builder();
+    }
+
+    /**
+     * Creates a RequestHandler with only the settings and collaborators which a test needs; everything else is
+     * null (or zero, false or empty).
+     */
+    private static class Builder {
+        private List<String> schemas;
+        private int maxRows;
+        private Dialect dialect;
+        private boolean limitPushdown;
+        private List<String> encodings = List.of();
+        private LobStore lobs;
+        private DataSource dataSource;
+        private MetaDataCache metaDataCache;
+        private AuditLogger auditLogger;
+        private Login login;
+        private Watchdog watchdog;
+        private ConnectionRegistry.Entry registration;
+
+        Builder schemas(String... schemas) {
+            this.schemas = List.of(schemas);
+            return this;
+        }
+
+        Builder maxRows(int maxRows) {
+            this.maxRows = maxRows;
+            return this;
+        }
+
+        Builder limitPushdown(Dialect dialect) {
+            this.dialect = dialect;
+            this.limitPushdown = true;
+            return this;
+        }
+
+        Builder encodings(String... encodings) {
+            this.encodings = List.of(encodings);
+            return this;
+        }
+
+        Builder lobs(LobStore lobs) {
+            this.lobs = lobs;
+            return this;
+        }
+
+        Builder dataSource(DataSource dataSource) {
+            this.dataSource = dataSource;
+            return this;
+        }
+
+        Builder metaDataCache(MetaDataCache metaDataCache) {
+            this.metaDataCache = metaDataCache;
+            return this;
+        }
+
+        Builder auditLogger(AuditLogger auditLogger) {
+            this.auditLogger = auditLogger;
+            return this;
+        }
+
+        /**
+         * Everything needed to execute queries on the given data source, with mocks that accept anything.
+         */
+        Builder executing(DataSource dataSource) {
+            var session = new Session();
+            session.setUsername("user");
+            this.login = new Login(session);
+            this.dialect = Dialect.GENERIC;
+            this.dataSource = dataSource;
+            this.watchdog = Mockito.mock(Watchdog.class, Mockito.RETURNS_MOCKS);
+            this.auditLogger = Mockito.mock(AuditLogger.class);
+            this.registration = Mockito.mock(ConnectionRegistry.Entry.class);
+            return this;
+        }
+
+        Builder registration(ConnectionRegistry.Entry registration) {
+            this.registration = registration;
+            return this;
+        }
+
+        RequestHandler build() {
+            return new RequestHandler(
+                    login, schemas, maxRows, 100, 0, dialect, limitPushdown, false, encodings, lobs, dataSource,
+                    metaDataCache, watchdog, auditLogger, registration);
+        }
+    }
 }
@@ -0,0 +1,57 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.BasicValue;
+import at.willhaben.jdbcproxy.server.avro.DecimalValue;
+import at.willhaben.jdbcproxy.server.avro.ResponseV2;
+import at.willhaben.jdbcproxy.server.avro.ResultColumnsMetaData;
+import at.willhaben.jdbcproxy.server.avro.Row;
+import at.willhaben.jdbcproxy.server.avro.SelectResponse;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+class RowEncoderTest {
+
+    @Test
+    void testEncodedRowsMatchRowObjects() throws Exception {
+        // more rows than fit in one block
+        int rowCount = RowEncoder.BLOCK_SIZE + 3;
+        var encoder = new RowEncoder();
+        List<Row> expected = new ArrayList<>();
+        for (int i = 0; i < rowCount; ++i) {
+            encoder.startRow(4);
+            encoder.writeLong(i);
+            encoder.write((i % 2 == 0) ? "even" : null);
+            encoder.writeDouble(i * 0.5);
+            encoder.write(new BigDecimal("-1.25"));
+            encoder.endRow();
+
+            var decimal = new DecimalValue(ByteBuffer.wrap(BigInteger.valueOf(-125).toByteArray()), 2);
+            expected.add(new Row(List.of(
+                    new BasicValue((long) i),
+                    new BasicValue((i % 2 == 0) ? "even" : null),
+                    new BasicValue(i * 0.5),
+                    new BasicValue(decimal))));
+        }
+        var rows = encoder.finish();
+        Assert.assertEquals(rowCount, rows.size());
+
+        // the rows are decoded exactly as if they had been sent as objects
+        var codec = new MessageCodec<>(ResponseV2.class, ResponseV2.class, r -> false);
+        var encoded = new EncodedRows.InSelectResponse(rows);
+        encoded.setMetadata(metadata());
+        var frame = codec.encode(new ResponseV2(1, 2, encoded), Compression.NONE);
+        var decoded = codec.decode(frame.array(), MessageCodec.HEADER_SIZE, frame.limit() - MessageCodec.HEADER_SIZE);
+        var response = SelectResponse.newBuilder().setMetadata(metadata()).setRows(expected).build();
+        Assert.assertEquals(new ResponseV2(1, 2, response), decoded);
+    }
+
+    private static ResultColumnsMetaData metadata() {
+        return ResultColumnsMetaData.newBuilder().setColumns(List.of()).build();
+    }
+}
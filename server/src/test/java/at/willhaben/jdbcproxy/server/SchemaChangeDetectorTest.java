@@ -0,0 +1,78 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.DBMetaData;
+import at.willhaben.jdbcproxy.server.avro.MetaDataResponse;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SchemaChangeDetectorTest {
+    @Test
+    public void testChangedSchemas() {
+        Assert.assertEquals(List.of(), SchemaChangeDetector.changedSchemas(Map.of("a", "1"), Map.of("a", "1")));
+        Assert.assertEquals(
+                List.of("a", "b", "d"),
+                SchemaChangeDetector.changedSchemas(
+                        Map.of("a", "1", "b", "1", "c", "1"),
+                        Map.of("a", "2", "c", "1", "d", "1")));
+    }
+
+    @Test
+    public void testPoll() throws SQLException {
+        // the version of schema "s" changes between the second and third poll
+        var rs = Mockito.mock(ResultSet.class);
+        var rsMetaData = Mockito.mock(ResultSetMetaData.class);
+        Mockito.when(rs.getMetaData()).thenReturn(rsMetaData);
+        Mockito.when(rsMetaData.getColumnCount()).thenReturn(2);
+        Mockito.when(rs.next()).thenReturn(true, false, true, false, true, false);
+        Mockito.when(rs.getString(1)).thenReturn("s");
+        Mockito.when(rs.getString(2)).thenReturn("1", "1", "2");
+        var stmt = Mockito.mock(Statement.class);
+        Mockito.when(stmt.executeQuery("query")).thenReturn(rs);
+        var conn = Mockito.mock(Connection.class);
+        Mockito.when(conn.createStatement()).thenReturn(stmt);
+        var dataSource = Mockito.mock(DataSource.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(conn);
+
+        var loads = new AtomicInteger();
+        var cache = new MetaDataCache("db", Duration.ofMinutes(1), () -> {
+            loads.incrementAndGet();
+            return MetaDataResponse.newBuilder()
+                    .setCatalog("db")
+                    .setDatabaseMetaData(DBMetaData.newBuilder().setIdentifierQuoteString("\"").build())
+                    .setTables(new ArrayList<>())
+                    .build();
+        }, MetaDataCacheTest::schemas);
+        cache.get();
+
+        var detector = new SchemaChangeDetector("db", dataSource, "query", cache);
+        var reported = new ArrayList<List<String>>();
+        detector.addListener(reported::add);
+
+        detector.poll();
+        detector.poll();
+        Assert.assertTrue(reported.isEmpty());
+        Assert.assertNotNull(cache.getIfPresent());
+
+        detector.poll();
+        Assert.assertEquals(List.of(List.of("s")), reported);
+        Assert.assertNull(cache.getIfPresent());
+        cache.get();
+        Assert.assertEquals(2, loads.get());
+
+        // a hanging poll must not stall the detection forever
+        Mockito.verify(stmt, Mockito.times(3)).setQueryTimeout(Mockito.intThat(secs -> secs > 0));
+    }
+}
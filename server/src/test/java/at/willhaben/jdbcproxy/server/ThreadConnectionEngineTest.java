@@ -0,0 +1,8 @@
+package at.willhaben.jdbcproxy.server;
+
+class ThreadConnectionEngineTest extends ConnectionEngineTest {
+    @Override
+    ConnectionEngine createEngine() {
+        return new ThreadConnectionEngine(Thread::new, 2);
+    }
+}
@@ -0,0 +1,31 @@
+package at.willhaben.jdbcproxy.server;
+
+import at.willhaben.jdbcproxy.server.avro.CancelRequest;
+import at.willhaben.jdbcproxy.server.avro.FetchRequest;
+import at.willhaben.jdbcproxy.server.avro.MetaDataRequest;
+import at.willhaben.jdbcproxy.server.avro.PingRequest;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Executors;
+
+class WorkerPoolsTest {
+
+    @Test
+    void testForRequest() {
+        var pools = new WorkerPools(1, Executors.defaultThreadFactory());
+        try {
+            var blocking = pools.forRequest(new MetaDataRequest());
+            var nonBlocking = pools.forRequest(new FetchRequest(1));
+            var control = pools.forRequest(new CancelRequest(1L));
+            Assert.assertNotSame(blocking, nonBlocking);
+            Assert.assertNotSame(blocking, control);
+            Assert.assertNotSame(nonBlocking, control);
+
+            // cancels and pings are never queued behind other requests
+            Assert.assertSame(control, pools.forRequest(new PingRequest()));
+        } finally {
+            pools.shutdownNow();
+        }
+    }
+}